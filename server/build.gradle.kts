@@ -10,8 +10,45 @@ dependencies {
     implementation("org.xerial:sqlite-jdbc:3.45.1.0")
 }
 
+// The digit-major scoring kernel uses the incubating Vector API when the module
+// is present at runtime, and falls back to a scalar loop otherwise. Its Vector
+// API class is the whole "vector" source set, the only one compiled against
+// the module. javac cannot silence "using incubating module(s)" on its own, so
+// that set compiles with -nowarn and every other compile stays warning-clean.
+val vectorModuleArg = "--add-modules=jdk.incubator.vector"
+
+val vector: SourceSet by sourceSets.creating
+sourceSets {
+    main {
+        compileClasspath += vector.output
+        runtimeClasspath += vector.output
+    }
+    test {
+        compileClasspath += vector.output
+        runtimeClasspath += vector.output
+    }
+}
+
+tasks.named<JavaCompile>(vector.compileJavaTaskName) {
+    options.compilerArgs.add(vectorModuleArg)
+    options.isWarnings = false
+}
+
+tasks.jar {
+    from(vector.output)
+}
+
+tasks.named<org.springframework.boot.gradle.tasks.bundling.BootJar>("bootJar") {
+    classpath(vector.output)
+}
+
+tasks.withType<JavaExec> {
+    jvmArgs(vectorModuleArg)
+}
+
 tasks.test {
     useJUnitPlatform()
+    jvmArgs(vectorModuleArg)
 }
 
 val frontendDir = project.rootDir.resolve("client")
@@ -45,6 +82,25 @@ tasks.register<JavaExec>("precompute") {
     description = "Runs the offline precompute tool"
     classpath = sourceSets["main"].runtimeClasspath
     mainClass.set("com.markovai.server.tools.DigitDatasetPrecompute")
+    listOf("markov.data.dir", "precomputeCommitImages").forEach { prop ->
+        if (System.getProperty(prop) != null) {
+            systemProperty(prop, System.getProperty(prop))
+        }
+    }
+}
+
+tasks.register<JavaExec>("benchmarkChainScoring") {
+    group = "verification"
+    description = "Compares per-digit and digit-major chain scoring time per image"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.markovai.server.tools.ChainScoringBenchmark")
+}
+
+tasks.register<JavaExec>("benchmarkPatch4x4") {
+    group = "verification"
+    description = "Reports footprint and lookup latency of the 4x4 patch symbol table"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.markovai.server.tools.Patch4x4TableBenchmark")
 }
 
 tasks.named<org.springframework.boot.gradle.tasks.run.BootRun>("bootRun") {
@@ -62,7 +118,19 @@ tasks.named<org.springframework.boot.gradle.tasks.run.BootRun>("bootRun") {
         "server.port",
         "rowFeedback",
         "colFeedback",
-        "markov.data.dir"
+        "markov.data.dir",
+        "parallelTraining",
+        "parallelEval",
+        "baseScoreStore",
+        "feedbackStateDir",
+        "feedbackLogDir",
+        "adaptWorkers",
+        "adaptAverageEvery",
+        "cacheWriteBehind",
+        "cacheWriteQueue",
+        "scoreCacheEntries",
+        "cachePreload",
+        "cachePreloadWait"
     ).forEach { prop ->
         if (System.getProperty(prop) != null) {
             systemProperty(prop, System.getProperty(prop))
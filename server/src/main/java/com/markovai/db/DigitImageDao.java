@@ -1,89 +1,231 @@
 package com.markovai.db;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class DigitImageDao {
 
-    private final String dbPath;
+    // Stays well below SQLite's default limit of 999 bound parameters
+    static final int MAX_IN_PARAMS = 500;
+    // IN lists are padded to one of these sizes, so the chunked lookups
+    // prepare only a handful of distinct statements
+    private static final int[] IN_LIST_SIZES = { 8, 32, 128, MAX_IN_PARAMS };
+    // Rows per multi-row image upsert: 3 parameters each
+    private static final int IMAGE_ROWS_PER_STATEMENT = MAX_IN_PARAMS / 3;
 
+    private static final String IMAGE_UPSERT_COLUMNS =
+            "INSERT INTO digit_image (image_rel_path, image_hash, created_ts) VALUES ";
+    private static final String IMAGE_UPSERT_CONFLICT = " ON CONFLICT(image_rel_path) DO UPDATE SET " +
+            "image_hash = excluded.image_hash WHERE excluded.image_hash IS NOT NULL";
+
+    private final SqliteConnectionProvider connections;
+
+    /**
+     * DAO over the connections {@link SqliteConnectionProvider#shared}
+     * keeps for {@code dbPath}, which live as long as the JVM or until that
+     * provider is closed.
+     */
     public DigitImageDao(String dbPath) {
-        this.dbPath = dbPath;
+        this(SqliteConnectionProvider.shared(dbPath));
     }
 
-    private Connection connect() throws SQLException {
-        return DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    public DigitImageDao(SqliteConnectionProvider connections) {
+        this.connections = connections;
     }
 
     public DigitImage getOrCreateByPath(String imageRelPath, String imageHashOrNull) throws SQLException {
-        try (Connection conn = connect()) {
-            // Optimistic find first
-            Optional<DigitImage> existing = findByPathInternal(conn, imageRelPath);
-            if (existing.isPresent()) {
-                DigitImage img = existing.get();
-                // Update hash if changed and provided
-                if (imageHashOrNull != null && !imageHashOrNull.equals(img.getImageHash())) {
-                    try (PreparedStatement ps = conn.prepareStatement(
-                            "UPDATE digit_image SET image_hash = ? WHERE id = ?")) {
-                        ps.setString(1, imageHashOrNull);
-                        ps.setLong(2, img.getId());
-                        ps.executeUpdate();
-                    }
-                    return new DigitImage(img.getId(), img.getImageRelPath(), imageHashOrNull, img.getCreatedTs());
-                }
-                return img;
+        // Optimistic find first
+        Optional<DigitImage> existing = findByPath(imageRelPath);
+        if (existing.isPresent()) {
+            DigitImage img = existing.get();
+            // Update hash if changed and provided
+            if (imageHashOrNull != null && !imageHashOrNull.equals(img.getImageHash())) {
+                PreparedStatement ps = connections.prepare("UPDATE digit_image SET image_hash = ? WHERE id = ?");
+                ps.setString(1, imageHashOrNull);
+                ps.setLong(2, img.getId());
+                ps.executeUpdate();
+                return new DigitImage(img.getId(), img.getImageRelPath(), imageHashOrNull, img.getCreatedTs());
             }
+            return img;
+        }
 
-            // Insert
-            long now = System.currentTimeMillis();
-            try (PreparedStatement ps = conn.prepareStatement(
+        // Insert
+        long now = System.currentTimeMillis();
+        try {
+            PreparedStatement ps = connections.prepare(
                     "INSERT INTO digit_image (image_rel_path, image_hash, created_ts) VALUES (?, ?, ?)",
-                    Statement.RETURN_GENERATED_KEYS)) {
-                ps.setString(1, imageRelPath);
-                ps.setString(2, imageHashOrNull);
-                ps.setLong(3, now);
-                ps.executeUpdate();
+                    Statement.RETURN_GENERATED_KEYS);
+            ps.setString(1, imageRelPath);
+            ps.setString(2, imageHashOrNull);
+            ps.setLong(3, now);
+            ps.executeUpdate();
 
-                try (ResultSet rs = ps.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        long id = rs.getLong(1);
-                        return new DigitImage(id, imageRelPath, imageHashOrNull, now);
-                    } else {
-                        throw new SQLException("Creating digit_image failed, no ID obtained.");
-                    }
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) {
+                    long id = rs.getLong(1);
+                    return new DigitImage(id, imageRelPath, imageHashOrNull, now);
+                } else {
+                    throw new SQLException("Creating digit_image failed, no ID obtained.");
                 }
-            } catch (SQLException e) {
-                // Handle race condition where it was created in between
-                if (e.getMessage().contains("UNIQUE constraint failed")) {
-                    return findByPathInternal(conn, imageRelPath)
-                            .orElseThrow(() -> new SQLException(
-                                    "Failed to find image after UNIQUE constraint violation", e));
+            }
+        } catch (SQLException e) {
+            // Handle race condition where it was created in between
+            if (e.getMessage().contains("UNIQUE constraint failed")) {
+                return findByPath(imageRelPath)
+                        .orElseThrow(() -> new SQLException(
+                                "Failed to find image after UNIQUE constraint violation", e));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Batch equivalent of {@link #getOrCreateByPath}: existing rows are
+     * resolved with chunked IN queries, and only missing or re-hashed images
+     * are written, with multi-row upserts in one transaction. Result is
+     * aligned with {@code imageRelPaths}; {@code imageHashesOrNull} may be
+     * null.
+     */
+    public List<DigitImage> getOrCreateByPaths(List<String> imageRelPaths, List<String> imageHashesOrNull)
+            throws SQLException {
+        Map<String, DigitImage> existing = findByPaths(imageRelPaths);
+        Map<String, String> toWrite = new LinkedHashMap<>();
+        for (int i = 0; i < imageRelPaths.size(); i++) {
+            String path = imageRelPaths.get(i);
+            String hash = imageHashesOrNull != null ? imageHashesOrNull.get(i) : null;
+            DigitImage img = existing.get(path);
+            if (img == null || (hash != null && !hash.equals(img.getImageHash()))) {
+                toWrite.put(path, hash);
+            }
+        }
+        if (!toWrite.isEmpty()) {
+            List<String> paths = new ArrayList<>(toWrite.keySet());
+            connections.inTransaction(() -> {
+                upsertImages(paths, toWrite);
+                return null;
+            });
+            existing.putAll(findByPaths(paths));
+        }
+
+        List<DigitImage> result = new ArrayList<>(imageRelPaths.size());
+        for (String path : imageRelPaths) {
+            DigitImage img = existing.get(path);
+            if (img == null) {
+                throw new SQLException("Image " + path + " missing after upsert");
+            }
+            result.add(img);
+        }
+        return result;
+    }
+
+    /**
+     * Inserts the images of {@code paths}; rows that exist already only get
+     * their hash replaced, and only by a non-null one, as in
+     * {@link #getOrCreateByPath}.
+     */
+    private void upsertImages(List<String> paths, Map<String, String> hashes) throws SQLException {
+        long now = System.currentTimeMillis();
+        int i = 0;
+        if (paths.size() >= IMAGE_ROWS_PER_STATEMENT) {
+            // Full multi-row statements: always the same SQL, so it stays cached
+            StringBuilder values = new StringBuilder();
+            for (int r = 0; r < IMAGE_ROWS_PER_STATEMENT; r++) {
+                values.append(r == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+            }
+            PreparedStatement multi = connections.prepare(IMAGE_UPSERT_COLUMNS + values + IMAGE_UPSERT_CONFLICT);
+            for (; paths.size() - i >= IMAGE_ROWS_PER_STATEMENT; i += IMAGE_ROWS_PER_STATEMENT) {
+                for (int r = 0; r < IMAGE_ROWS_PER_STATEMENT; r++) {
+                    String path = paths.get(i + r);
+                    multi.setString(r * 3 + 1, path);
+                    multi.setString(r * 3 + 2, hashes.get(path));
+                    multi.setLong(r * 3 + 3, now);
                 }
-                throw e;
+                multi.executeUpdate();
             }
         }
+        if (i < paths.size()) {
+            // Remainder as one JDBC batch of the single-row upsert
+            PreparedStatement single = connections.prepare(IMAGE_UPSERT_COLUMNS + "(?, ?, ?)" + IMAGE_UPSERT_CONFLICT);
+            for (; i < paths.size(); i++) {
+                String path = paths.get(i);
+                single.setString(1, path);
+                single.setString(2, hashes.get(path));
+                single.setLong(3, now);
+                single.addBatch();
+            }
+            single.executeBatch();
+        }
     }
 
     public Optional<DigitImage> findByPath(String imageRelPath) throws SQLException {
-        try (Connection conn = connect()) {
-            return findByPathInternal(conn, imageRelPath);
+        String sql = "SELECT id, image_rel_path, image_hash, created_ts FROM digit_image WHERE image_rel_path = ?";
+        PreparedStatement ps = connections.prepare(sql);
+        ps.setString(1, imageRelPath);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (rs.next()) {
+                return Optional.of(new DigitImage(
+                        rs.getLong("id"),
+                        rs.getString("image_rel_path"),
+                        rs.getString("image_hash"),
+                        rs.getLong("created_ts")));
+            }
         }
+        return Optional.empty();
     }
 
-    private Optional<DigitImage> findByPathInternal(Connection conn, String imageRelPath) throws SQLException {
-        String sql = "SELECT id, image_rel_path, image_hash, created_ts FROM digit_image WHERE image_rel_path = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, imageRelPath);
+    /**
+     * Existing images of {@code imageRelPaths} by path, looked up with
+     * chunked IN queries; nothing is created.
+     */
+    public Map<String, DigitImage> findByPaths(List<String> imageRelPaths) throws SQLException {
+        Map<String, DigitImage> found = new HashMap<>();
+        for (int from = 0; from < imageRelPaths.size(); from += MAX_IN_PARAMS) {
+            int to = Math.min(imageRelPaths.size(), from + MAX_IN_PARAMS);
+            int size = inListSize(to - from);
+            String sql = "SELECT id, image_rel_path, image_hash, created_ts FROM digit_image WHERE image_rel_path IN ("
+                    + placeholders(size) + ")";
+            PreparedStatement ps = connections.prepare(sql);
+            for (int p = 0; p < size; p++) {
+                // Padding repeats the chunk's last path
+                ps.setString(p + 1, imageRelPaths.get(Math.min(from + p, to - 1)));
+            }
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return Optional.of(new DigitImage(
+                while (rs.next()) {
+                    DigitImage img = new DigitImage(
                             rs.getLong("id"),
                             rs.getString("image_rel_path"),
                             rs.getString("image_hash"),
-                            rs.getLong("created_ts")));
+                            rs.getLong("created_ts"));
+                    found.put(img.getImageRelPath(), img);
                 }
             }
         }
-        return Optional.empty();
+        return found;
+    }
+
+    /**
+     * Smallest padded IN list size that holds {@code n} parameters; {@code n}
+     * is at most {@link #MAX_IN_PARAMS}.
+     */
+    static int inListSize(int n) {
+        for (int size : IN_LIST_SIZES) {
+            if (n <= size) {
+                return size;
+            }
+        }
+        throw new IllegalArgumentException("IN list of " + n + " exceeds " + MAX_IN_PARAMS);
+    }
+
+    static String placeholders(int n) {
+        StringBuilder sb = new StringBuilder(n * 2);
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
     }
 }
@@ -3,73 +3,221 @@ package com.markovai.db;
 import com.markovai.util.DoubleArrayCodec;
 
 import java.sql.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class MarkovChainResultDao {
 
-    private final String dbPath;
+    private static final String UPSERT_COLUMNS =
+            "INSERT INTO markov_chain_result (image_id, chain_type, chain_version, scores_blob, created_ts) VALUES ";
+    private static final String UPSERT_CONFLICT = " ON CONFLICT(image_id, chain_type, chain_version) DO UPDATE SET " +
+            "scores_blob = excluded.scores_blob, created_ts = excluded.created_ts";
 
+    // Rows per multi-row upsert: 5 parameters each, within the IN limit
+    static final int UPSERT_ROWS_PER_STATEMENT = DigitImageDao.MAX_IN_PARAMS / 5;
+
+    private final SqliteConnectionProvider connections;
+
+    /**
+     * DAO over the connections {@link SqliteConnectionProvider#shared}
+     * keeps for {@code dbPath}, which live as long as the JVM or until that
+     * provider is closed.
+     */
     public MarkovChainResultDao(String dbPath) {
-        this.dbPath = dbPath;
+        this(SqliteConnectionProvider.shared(dbPath));
     }
 
-    private Connection connect() throws SQLException {
-        return DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    public MarkovChainResultDao(SqliteConnectionProvider connections) {
+        this.connections = connections;
     }
 
     public Optional<double[]> loadScores(long imageId, String chainType, String chainVersion) throws SQLException {
         String sql = "SELECT scores_blob FROM markov_chain_result " +
                 "WHERE image_id = ? AND chain_type = ? AND chain_version = ?";
-        try (Connection conn = connect();
-                PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, imageId);
-            ps.setString(2, chainType);
-            ps.setString(3, chainVersion);
+        PreparedStatement ps = connections.prepare(sql);
+        ps.setLong(1, imageId);
+        ps.setString(2, chainType);
+        ps.setString(3, chainVersion);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (rs.next()) {
+                byte[] blob = rs.getBytes("scores_blob");
+                return Optional.ofNullable(DoubleArrayCodec.fromBytes(blob));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Loads the cached scores of many images for one chain with chunked IN
+     * queries. Images without a cached row are
+     * absent from the returned map.
+     */
+    public Map<Long, double[]> loadScoresBatch(List<Long> imageIds, String chainType, String chainVersion)
+            throws SQLException {
+        Map<Long, double[]> found = new HashMap<>();
+        for (int from = 0; from < imageIds.size(); from += DigitImageDao.MAX_IN_PARAMS) {
+            int to = Math.min(imageIds.size(), from + DigitImageDao.MAX_IN_PARAMS);
+            int size = DigitImageDao.inListSize(to - from);
+            String sql = "SELECT image_id, scores_blob FROM markov_chain_result " +
+                    "WHERE chain_type = ? AND chain_version = ? AND image_id IN (" +
+                    DigitImageDao.placeholders(size) + ")";
+            PreparedStatement ps = connections.prepare(sql);
+            ps.setString(1, chainType);
+            ps.setString(2, chainVersion);
+            for (int p = 0; p < size; p++) {
+                // Padding repeats the chunk's last id
+                ps.setLong(p + 3, imageIds.get(Math.min(from + p, to - 1)));
+            }
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    byte[] blob = rs.getBytes("scores_blob");
-                    return Optional.ofNullable(DoubleArrayCodec.fromBytes(blob));
+                while (rs.next()) {
+                    double[] scores = DoubleArrayCodec.fromBytes(rs.getBytes("scores_blob"));
+                    if (scores != null) {
+                        found.put(rs.getLong("image_id"), scores);
+                    }
                 }
             }
         }
-        return Optional.empty();
+        return found;
+    }
+
+    /**
+     * Receives the rows of {@link #scanScores}; {@code imageHash} is the
+     * image's recorded hash (possibly null) and {@code chain} the row's
+     * position in the requested chain lists.
+     */
+    @FunctionalInterface
+    public interface ScoreRowHandler {
+        void accept(String imageRelPath, String imageHash, int chain, byte[] scoresBlob);
+    }
+
+    /**
+     * Streams every cached row of the given chains (aligned type and
+     * version lists), joined with its image path and hash, through
+     * {@code handler} in one sequential query. Returns the number of rows.
+     */
+    public long scanScores(List<String> chainTypes, List<String> chainVersions, ScoreRowHandler handler)
+            throws SQLException {
+        Map<String, Integer> chains = new HashMap<>();
+        StringBuilder where = new StringBuilder();
+        for (int c = 0; c < chainTypes.size(); c++) {
+            chains.put(chainTypes.get(c) + '/' + chainVersions.get(c), c);
+            where.append(c == 0 ? "" : " OR ").append("(r.chain_type = ? AND r.chain_version = ?)");
+        }
+        if (chains.isEmpty()) {
+            return 0;
+        }
+        String sql = "SELECT i.image_rel_path, i.image_hash, r.chain_type, r.chain_version, r.scores_blob " +
+                "FROM markov_chain_result r JOIN digit_image i ON i.id = r.image_id WHERE " + where;
+        PreparedStatement ps = connections.prepare(sql);
+        for (int c = 0; c < chainTypes.size(); c++) {
+            ps.setString(2 * c + 1, chainTypes.get(c));
+            ps.setString(2 * c + 2, chainVersions.get(c));
+        }
+        long rows = 0;
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                Integer chain = chains.get(rs.getString(3) + '/' + rs.getString(4));
+                if (chain != null) {
+                    handler.accept(rs.getString(1), rs.getString(2), chain, rs.getBytes(5));
+                    rows++;
+                }
+            }
+        }
+        return rows;
     }
 
     public void upsertScores(long imageId, String chainType, String chainVersion, double[] scores) throws SQLException {
-        byte[] blob = DoubleArrayCodec.toBytes(scores);
+        PreparedStatement ps = connections.prepare(UPSERT_COLUMNS + "(?, ?, ?, ?, ?)" + UPSERT_CONFLICT);
+        bindRow(ps, 1, imageId, chainType, chainVersion, scores, System.currentTimeMillis());
+        ps.executeUpdate();
+    }
+
+    /**
+     * Upserts the scores of many images for one chain in a single
+     * transaction; {@code scores} is aligned with {@code imageIds}.
+     */
+    public void upsertScoresBatch(List<Long> imageIds, String chainType, String chainVersion, List<double[]> scores)
+            throws SQLException {
+        upsertScoresBatch(imageIds, chainType, chainVersion, scores, imageIds.size());
+    }
+
+    /**
+     * Like {@link #upsertScoresBatch(List, String, String, List)}, but
+     * commits every {@code commitRows} rows so a long bulk load neither
+     * holds the write lock nor grows the WAL for its whole duration. Inside
+     * a caller's transaction nothing is committed here.
+     */
+    public void upsertScoresBatch(List<Long> imageIds, String chainType, String chainVersion, List<double[]> scores,
+            int commitRows) throws SQLException {
+        if (imageIds.size() != scores.size()) {
+            throw new IllegalArgumentException(
+                    "Got " + scores.size() + " score rows for " + imageIds.size() + " images");
+        }
+        if (commitRows <= 0) {
+            throw new IllegalArgumentException("commitRows must be positive: " + commitRows);
+        }
         long now = System.currentTimeMillis();
-        String sql = "INSERT INTO markov_chain_result (image_id, chain_type, chain_version, scores_blob, created_ts) " +
-                "VALUES (?, ?, ?, ?, ?) " +
-                "ON CONFLICT(image_id, chain_type, chain_version) DO UPDATE SET " +
-                "scores_blob = excluded.scores_blob, created_ts = excluded.created_ts";
-
-        try (Connection conn = connect();
-                PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, imageId);
-            ps.setString(2, chainType);
-            ps.setString(3, chainVersion);
-            ps.setBytes(4, blob);
-            ps.setLong(5, now);
-            ps.executeUpdate();
+        for (int from = 0; from < imageIds.size(); from += commitRows) {
+            int start = from;
+            int end = Math.min(imageIds.size(), from + commitRows);
+            connections.inTransaction(() -> {
+                upsertRows(imageIds, chainType, chainVersion, scores, start, end, now);
+                return null;
+            });
+        }
+    }
+
+    private void upsertRows(List<Long> imageIds, String chainType, String chainVersion, List<double[]> scores,
+            int from, int to, long now) throws SQLException {
+        int i = from;
+        if (to - from >= UPSERT_ROWS_PER_STATEMENT) {
+            // Full multi-row statements: always the same SQL, so it stays cached
+            StringBuilder values = new StringBuilder();
+            for (int r = 0; r < UPSERT_ROWS_PER_STATEMENT; r++) {
+                values.append(r == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+            }
+            PreparedStatement multi = connections.prepare(UPSERT_COLUMNS + values + UPSERT_CONFLICT);
+            for (; to - i >= UPSERT_ROWS_PER_STATEMENT; i += UPSERT_ROWS_PER_STATEMENT) {
+                for (int r = 0; r < UPSERT_ROWS_PER_STATEMENT; r++) {
+                    bindRow(multi, r * 5 + 1, imageIds.get(i + r), chainType, chainVersion, scores.get(i + r), now);
+                }
+                multi.executeUpdate();
+            }
         }
+        if (i < to) {
+            // Remainder as one JDBC batch of the single-row upsert
+            PreparedStatement single = connections.prepare(UPSERT_COLUMNS + "(?, ?, ?, ?, ?)" + UPSERT_CONFLICT);
+            for (; i < to; i++) {
+                bindRow(single, 1, imageIds.get(i), chainType, chainVersion, scores.get(i), now);
+                single.addBatch();
+            }
+            single.executeBatch();
+        }
+    }
+
+    private static void bindRow(PreparedStatement ps, int first, long imageId, String chainType, String chainVersion,
+            double[] scores, long now) throws SQLException {
+        ps.setLong(first, imageId);
+        ps.setString(first + 1, chainType);
+        ps.setString(first + 2, chainVersion);
+        ps.setBytes(first + 3, DoubleArrayCodec.toBytes(scores));
+        ps.setLong(first + 4, now);
     }
 
     public void deleteByChain(String chainType, String chainVersion) throws SQLException {
         String sql = "DELETE FROM markov_chain_result WHERE chain_type = ? AND chain_version = ?";
-        try (Connection conn = connect();
-                PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, chainType);
-            ps.setString(2, chainVersion);
-            ps.executeUpdate();
-        }
+        PreparedStatement ps = connections.prepare(sql);
+        ps.setString(1, chainType);
+        ps.setString(2, chainVersion);
+        ps.executeUpdate();
     }
 
     public void deleteByImage(long imageId) throws SQLException {
         String sql = "DELETE FROM markov_chain_result WHERE image_id = ?";
-        try (Connection conn = connect();
-                PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, imageId);
-            ps.executeUpdate();
-        }
+        PreparedStatement ps = connections.prepare(sql);
+        ps.setLong(1, imageId);
+        ps.executeUpdate();
     }
 }
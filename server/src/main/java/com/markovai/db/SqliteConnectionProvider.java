@@ -0,0 +1,219 @@
+package com.markovai.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Managed SQLite connections for one database file. Each thread gets its own
+ * connection, opened on first use with the tuning pragmas applied once, and
+ * keeps its prepared statements cached by SQL text. SQLite connections must
+ * not be used by two threads at once, and in WAL mode readers never block
+ * each other, so a connection per thread avoids both locking and the cost of
+ * opening a connection and re-parsing SQL on every call.
+ *
+ * Connections and statements handed out belong to the provider: callers
+ * close their result sets but never the statement or the connection.
+ * Connections of threads that have exited are closed whenever a new one is
+ * opened, so short-lived threads do not hold file handles until
+ * {@link #close}, which closes everything and must only run once no thread
+ * uses the provider any more.
+ */
+public class SqliteConnectionProvider implements AutoCloseable {
+
+    // Per connection; the least recently used statement is closed beyond this
+    private static final int MAX_CACHED_STATEMENTS = 32;
+
+    private static final String[] PRAGMAS = {
+            "PRAGMA journal_mode = WAL",
+            // WAL keeps the database consistent on crashes; only the last
+            // commits may be lost on power failure
+            "PRAGMA synchronous = NORMAL",
+            "PRAGMA mmap_size = 268435456",
+            // Negative: KiB, i.e. 16 MiB of page cache per connection
+            "PRAGMA cache_size = -16384",
+            "PRAGMA temp_store = MEMORY",
+            "PRAGMA busy_timeout = 5000"
+    };
+
+    /**
+     * Database work run by {@link #inTransaction}.
+     */
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    private static final Map<String, SqliteConnectionProvider> SHARED = new ConcurrentHashMap<>();
+
+    private final String dbPath;
+    private final String url;
+    private final ThreadLocal<ThreadConnection> local = new ThreadLocal<>();
+    // Every open connection, so close() and pruning can reach other threads' ones
+    private final Set<ThreadConnection> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private static final class ThreadConnection {
+        final Connection connection;
+        final Thread owner;
+        final LinkedHashMap<String, PreparedStatement> statements;
+
+        ThreadConnection(Connection connection, Thread owner) {
+            this.connection = connection;
+            this.owner = owner;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= MAX_CACHED_STATEMENTS) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+    }
+
+    public SqliteConnectionProvider(String dbPath) {
+        this.dbPath = dbPath;
+        this.url = "jdbc:sqlite:" + dbPath;
+    }
+
+    /**
+     * Provider shared by every caller of the same path for the life of the
+     * JVM, for code that is not handed one.
+     */
+    public static SqliteConnectionProvider shared(String dbPath) {
+        return SHARED.computeIfAbsent(dbPath, SqliteConnectionProvider::new);
+    }
+
+    /**
+     * The calling thread's connection, opened and tuned on first use.
+     */
+    public Connection connection() throws SQLException {
+        return threadConnection().connection;
+    }
+
+    /**
+     * The calling thread's cached statement for {@code sql}, with its
+     * parameters and pending batch cleared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        ThreadConnection tc = threadConnection();
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+        PreparedStatement ps = tc.statements.get(key);
+        if (ps == null) {
+            ps = tc.connection.prepareStatement(sql, autoGeneratedKeys);
+            tc.statements.put(key, ps);
+        } else {
+            ps.clearParameters();
+            ps.clearBatch();
+        }
+        return ps;
+    }
+
+    /**
+     * Runs {@code work} in one transaction on the calling thread's
+     * connection, rolling it back if the work throws. Called within another
+     * transaction of the same thread, the work joins it and the outer one
+     * decides when to commit. Every statement of an autocommit connection is
+     * a transaction with its own commit and WAL sync; grouping bulk writes
+     * pays those once.
+     */
+    public <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        Connection conn = connection();
+        if (!conn.getAutoCommit()) {
+            return work.run();
+        }
+        conn.setAutoCommit(false);
+        try {
+            T result = work.run();
+            conn.commit();
+            return result;
+        } catch (Throwable t) {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                t.addSuppressed(e);
+            }
+            throw t;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private ThreadConnection threadConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection provider for " + url + " is closed");
+        }
+        ThreadConnection tc = local.get();
+        if (tc != null && !tc.connection.isClosed()) {
+            return tc;
+        }
+        if (tc != null) {
+            open.remove(tc);
+        }
+        pruneExitedThreads();
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            for (String pragma : PRAGMAS) {
+                stmt.execute(pragma);
+            }
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        tc = new ThreadConnection(conn, Thread.currentThread());
+        local.set(tc);
+        open.add(tc);
+        return tc;
+    }
+
+    // A thread that has exited can no longer use its connection
+    private void pruneExitedThreads() {
+        for (ThreadConnection tc : open) {
+            if (!tc.owner.isAlive() && open.remove(tc)) {
+                closeConnection(tc);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (ThreadConnection tc : open) {
+            closeConnection(tc);
+        }
+        open.clear();
+        SHARED.remove(dbPath, this);
+    }
+
+    private static void closeConnection(ThreadConnection tc) {
+        for (PreparedStatement ps : tc.statements.values()) {
+            closeQuietly(ps);
+        }
+        try {
+            tc.connection.close();
+        } catch (SQLException e) {
+            // Closing anyway
+        }
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // Statement is discarded either way
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.markovai.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind for computed chain scores: callers enqueue a cache miss and
+ * return, and a single writer thread stores the queued scores, creating
+ * missing image rows, in one transaction per drained batch.
+ *
+ * The queue is bounded; when it is full, {@link #enqueue} blocks until the
+ * writer catches up, so a burst of misses slows the callers down instead of
+ * growing the heap. Scores still queued are served by {@link #pendingScores},
+ * so an image is not recomputed while its write is in flight. {@link #flush}
+ * waits for everything enqueued so far, and {@link #close} writes the rest
+ * before stopping the thread. Failed batches are logged and counted, and
+ * their scores are recomputed on the next miss.
+ */
+public class WriteBehindScoreWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindScoreWriter.class);
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    // Scores written per transaction at most
+    private static final int MAX_BATCH = 1024;
+    private static final long POLL_MILLIS = 100;
+
+    private final SqliteConnectionProvider connections;
+    private final DigitImageDao imageDao;
+    private final MarkovChainResultDao resultDao;
+    private final BlockingQueue<PendingScores> queue;
+    private final int capacity;
+    // Latest queued scores per image and chain
+    private final Map<String, PendingScores> pending = new ConcurrentHashMap<>();
+    // Enqueue holds the read lock, close the write lock: nothing is queued
+    // once the writer may have seen closed
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    // Written or failed; only the writer thread advances it
+    private final AtomicLong processed = new AtomicLong();
+    private final Object processedMonitor = new Object();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder blockedEnqueues = new LongAdder();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    private static final class PendingScores {
+        final String key;
+        final String imageRelPath;
+        final String imageHash;
+        final String chainType;
+        final String chainVersion;
+        final double[] scores;
+
+        PendingScores(String key, String imageRelPath, String imageHash, String chainType, String chainVersion,
+                double[] scores) {
+            this.key = key;
+            this.imageRelPath = imageRelPath;
+            this.imageHash = imageHash;
+            this.chainType = chainType;
+            this.chainVersion = chainVersion;
+            this.scores = scores;
+        }
+    }
+
+    public WriteBehindScoreWriter(SqliteConnectionProvider connections, DigitImageDao imageDao,
+            MarkovChainResultDao resultDao, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.connections = connections;
+        this.imageDao = imageDao;
+        this.resultDao = resultDao;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::drain, "score-write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private static String key(String imageRelPath, String chainType, String chainVersion) {
+        return chainType + '\u0000' + chainVersion + '\u0000' + imageRelPath;
+    }
+
+    /**
+     * Queues {@code scores} (copied) for the image and chain, blocking while
+     * the queue is full. After {@link #close} the scores are written
+     * synchronously.
+     */
+    public void enqueue(String imageRelPath, String imageHashOrNull, String chainType, String chainVersion,
+            double[] scores) throws SQLException {
+        Objects.requireNonNull(imageRelPath, "imageRelPath");
+        String key = key(imageRelPath, chainType, chainVersion);
+        PendingScores entry = new PendingScores(key, imageRelPath, imageHashOrNull, chainType, chainVersion,
+                scores.clone());
+        closeLock.readLock().lock();
+        try {
+            if (!closed) {
+                pending.put(key, entry);
+                enqueued.incrementAndGet();
+                if (!queue.offer(entry)) {
+                    blockedEnqueues.increment();
+                    queue.put(entry);
+                }
+                maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+                return;
+            }
+        } catch (InterruptedException e) {
+            // Never queued: account for it and write it here instead
+            pending.remove(key, entry);
+            markProcessed(1);
+            Thread.currentThread().interrupt();
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        writeNow(List.of(entry));
+    }
+
+    /**
+     * Copy of the scores queued for the image and chain, or null if none
+     * are waiting to be written.
+     */
+    public double[] pendingScores(String imageRelPath, String chainType, String chainVersion) {
+        PendingScores entry = pending.get(key(imageRelPath, chainType, chainVersion));
+        return entry != null ? entry.scores.clone() : null;
+    }
+
+    /**
+     * Waits until everything enqueued before this call has been written (or
+     * has failed).
+     */
+    public void flush() throws InterruptedException {
+        long target = enqueued.get();
+        synchronized (processedMonitor) {
+            while (processed.get() < target) {
+                processedMonitor.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting scores, writes what is queued and stops the writer
+     * thread.
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Score write-behind closed: {}", getStats());
+    }
+
+    private void drain() {
+        List<PendingScores> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            PendingScores first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Only close() stops the writer, and only once drained
+                continue;
+            }
+            if (first == null) {
+                if (closed && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH - 1);
+            try {
+                writeNow(batch);
+            } catch (SQLException | RuntimeException e) {
+                logger.error("Failed to write {} queued chain scores", batch.size(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeNow(List<PendingScores> batch) throws SQLException {
+        boolean ok = false;
+        try {
+            connections.inTransaction(() -> {
+                write(batch);
+                return null;
+            });
+            ok = true;
+        } finally {
+            (ok ? written : failed).add(batch.size());
+            if (Thread.currentThread() == writer) {
+                batches.increment();
+                for (PendingScores entry : batch) {
+                    pending.remove(entry.key, entry);
+                }
+                markProcessed(batch.size());
+            }
+        }
+    }
+
+    private void write(List<PendingScores> batch) throws SQLException {
+        List<String> paths = new ArrayList<>(batch.size());
+        List<String> hashes = new ArrayList<>(batch.size());
+        for (PendingScores entry : batch) {
+            paths.add(entry.imageRelPath);
+            hashes.add(entry.imageHash);
+        }
+        List<DigitImage> images = imageDao.getOrCreateByPaths(paths, hashes);
+
+        Map<String, List<Integer>> byChain = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingScores entry = batch.get(i);
+            byChain.computeIfAbsent(entry.chainType + '\u0000' + entry.chainVersion, k -> new ArrayList<>()).add(i);
+        }
+        for (List<Integer> rows : byChain.values()) {
+            List<Long> ids = new ArrayList<>(rows.size());
+            List<double[]> scores = new ArrayList<>(rows.size());
+            for (int i : rows) {
+                ids.add(images.get(i).getId());
+                scores.add(batch.get(i).scores);
+            }
+            PendingScores chain = batch.get(rows.get(0));
+            resultDao.upsertScoresBatch(ids, chain.chainType, chain.chainVersion, scores);
+        }
+    }
+
+    private void markProcessed(int n) {
+        processed.addAndGet(n);
+        synchronized (processedMonitor) {
+            processedMonitor.notifyAll();
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(queue.size(), capacity, maxQueueDepth.get(), enqueued.get(), written.sum(), failed.sum(),
+                batches.sum(), blockedEnqueues.sum());
+    }
+
+    /**
+     * Point-in-time queue and throughput counters.
+     */
+    public static final class Stats {
+        private final int queueDepth;
+        private final int queueCapacity;
+        private final long maxQueueDepth;
+        private final long enqueued;
+        private final long written;
+        private final long failed;
+        private final long batches;
+        private final long blockedEnqueues;
+
+        Stats(int queueDepth, int queueCapacity, long maxQueueDepth, long enqueued, long written, long failed,
+                long batches, long blockedEnqueues) {
+            this.queueDepth = queueDepth;
+            this.queueCapacity = queueCapacity;
+            this.maxQueueDepth = maxQueueDepth;
+            this.enqueued = enqueued;
+            this.written = written;
+            this.failed = failed;
+            this.batches = batches;
+            this.blockedEnqueues = blockedEnqueues;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public long getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getEnqueued() {
+            return enqueued;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * Transactions the writer thread has run.
+         */
+        public long getBatches() {
+            return batches;
+        }
+
+        /**
+         * Enqueues that found the queue full and had to wait.
+         */
+        public long getBlockedEnqueues() {
+            return blockedEnqueues;
+        }
+
+        public double getMeanBatchSize() {
+            return batches == 0 ? 0.0 : (double) (written + failed) / batches;
+        }
+
+        @Override
+        public String toString() {
+            return "depth " + queueDepth + "/" + queueCapacity + " (max " + maxQueueDepth + "), enqueued "
+                    + enqueued + ", written " + written + ", failed " + failed + ", batches " + batches
+                    + ", blocked enqueues " + blockedEnqueues;
+        }
+    }
+}
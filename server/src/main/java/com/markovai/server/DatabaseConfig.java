@@ -0,0 +1,65 @@
+package com.markovai.server;
+
+import com.markovai.db.DigitImageDao;
+import com.markovai.db.MarkovChainResultDao;
+import com.markovai.db.SqliteConnectionProvider;
+import com.markovai.db.SqliteInitializer;
+import com.markovai.db.WriteBehindScoreWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.File;
+import java.sql.SQLException;
+
+/**
+ * The SQLite chain cache: one initialized database with managed
+ * connections, and the DAOs every service and factor graph shares.
+ */
+@Configuration
+public class DatabaseConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseConfig.class);
+
+    /**
+     * {@code markov_cache.db} in the data directory (-Dmarkov.data.dir,
+     * default the working directory).
+     */
+    public static String cacheDbPath() {
+        return System.getProperty("markov.data.dir", ".") + File.separator + "markov_cache.db";
+    }
+
+    @Bean(destroyMethod = "close")
+    public SqliteConnectionProvider sqliteConnectionProvider() throws SQLException {
+        String dbPath = cacheDbPath();
+        SqliteInitializer.initialize(dbPath);
+        logger.info("Initialized SQLite cache at {}", dbPath);
+        return new SqliteConnectionProvider(dbPath);
+    }
+
+    @Bean
+    public DigitImageDao digitImageDao(SqliteConnectionProvider connections) {
+        return new DigitImageDao(connections);
+    }
+
+    @Bean
+    public MarkovChainResultDao markovChainResultDao(SqliteConnectionProvider connections) {
+        return new MarkovChainResultDao(connections);
+    }
+
+    /**
+     * Asynchronous cache writes, enabled with -DcacheWriteBehind=true; the
+     * queue holds -DcacheWriteQueue scores. Closing flushes the queue
+     * before the connections close.
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "cacheWriteBehind", havingValue = "true")
+    public WriteBehindScoreWriter writeBehindScoreWriter(SqliteConnectionProvider connections,
+            DigitImageDao imageDao, MarkovChainResultDao resultDao) {
+        int capacity = Integer.getInteger("cacheWriteQueue", WriteBehindScoreWriter.DEFAULT_CAPACITY);
+        logger.info("Cache write-behind enabled, queue capacity {}", capacity);
+        return new WriteBehindScoreWriter(connections, imageDao, resultDao, capacity);
+    }
+}
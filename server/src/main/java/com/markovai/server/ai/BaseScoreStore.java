@@ -0,0 +1,314 @@
+package com.markovai.server.ai;
+
+import com.markovai.db.MarkovChainResultDao;
+import com.markovai.util.DoubleArrayCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Dataset-wide, in-memory matrix of base chain scores: for every image (keyed
+ * by its relative path) and every chain (type + version), the 10 per-digit
+ * scores the chain's evaluator produces. These never change while feedback
+ * learning runs, so sweeps build the store once and let the cached leaf
+ * evaluators read from it instead of SQLite or recomputation.
+ *
+ * Each image also keeps the hash it was scored under, as the SQLite cache
+ * does: a lookup with a different hash is a miss, so an image replaced
+ * under the same path is rescored rather than served stale scores.
+ *
+ * {@link #load} fills the same structure from the SQLite cache instead, for
+ * the images that have cached rows.
+ *
+ * Immutable after {@link #build} or {@link #load}, except that
+ * {@link #invalidate} retires the whole store once its cached rows are
+ * cleared; safe for concurrent readers.
+ */
+public final class BaseScoreStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(BaseScoreStore.class);
+    private static final int NUM_DIGITS = 10;
+
+    private final Map<String, Integer> indexByPath;
+    // imageIndex -> hash the scores belong to, or null if unknown
+    private final String[] hashes;
+    // chain key -> [imageIndex * NUM_DIGITS + digit]
+    private final Map<String, double[]> scoresByChain;
+    // chain key -> images with scores for the chain; empty when all have them
+    private final Map<String, BitSet> presentByChain;
+    private volatile boolean invalidated;
+
+    private BaseScoreStore(Map<String, Integer> indexByPath, String[] hashes, Map<String, double[]> scoresByChain,
+            Map<String, BitSet> presentByChain) {
+        this.indexByPath = indexByPath;
+        this.hashes = hashes;
+        this.scoresByChain = scoresByChain;
+        this.presentByChain = presentByChain;
+    }
+
+    /**
+     * Scores every image with every evaluator in parallel. Images without a
+     * relative path cannot be keyed and are skipped; duplicates are scored
+     * once.
+     */
+    public static BaseScoreStore build(List<DigitImage> images, List<MarkovChainEvaluator> evaluators,
+            ForkJoinPool pool) {
+        return build(images, evaluators, pool, null);
+    }
+
+    /**
+     * Like {@link #build(List, List, ForkJoinPool)}, but images whose scores
+     * {@code known} (e.g. a store preloaded from SQLite) holds for every
+     * chain are copied from it and only the rest are scored.
+     */
+    public static BaseScoreStore build(List<DigitImage> images, List<MarkovChainEvaluator> evaluators,
+            ForkJoinPool pool, BaseScoreStore known) {
+        long start = System.currentTimeMillis();
+
+        Map<String, Integer> indexByPath = new HashMap<>();
+        List<DigitImage> unique = new ArrayList<>();
+        for (DigitImage img : images) {
+            if (img.imageRelPath != null && !indexByPath.containsKey(img.imageRelPath)) {
+                indexByPath.put(img.imageRelPath, unique.size());
+                unique.add(img);
+            }
+        }
+
+        Map<String, double[]> scoresByChain = new HashMap<>();
+        String[] chainKeys = new String[evaluators.size()];
+        double[][] tables = new double[evaluators.size()][];
+        for (int e = 0; e < evaluators.size(); e++) {
+            MarkovChainEvaluator evaluator = evaluators.get(e);
+            chainKeys[e] = chainKey(evaluator.getChainType(), evaluator.getChainVersion());
+            tables[e] = new double[unique.size() * NUM_DIGITS];
+            scoresByChain.put(chainKeys[e], tables[e]);
+        }
+
+        // Each image writes its own disjoint rows; the accumulator only
+        // counts {scored, copied}
+        int[] counts = ShardedReduction.run(pool, unique.size(), () -> new int[2],
+                (count, i) -> {
+                    DigitImage img = unique.get(i);
+                    if (known != null && known.copyRow(img.imageRelPath, img.imageHash, chainKeys, tables, i)) {
+                        count[1]++;
+                        return;
+                    }
+                    ImageFeatureContext ctx = new ImageFeatureContext(img);
+                    for (int e = 0; e < evaluators.size(); e++) {
+                        double[] scores = evaluators.get(e).computeScores(ctx);
+                        System.arraycopy(scores, 0, tables[e], i * NUM_DIGITS, NUM_DIGITS);
+                    }
+                    count[0]++;
+                },
+                (a, b) -> {
+                    a[0] += b[0];
+                    a[1] += b[1];
+                });
+
+        logger.info("Built base score store: {} images x {} chains in {} ms ({} scored, {} copied)",
+                unique.size(), evaluators.size(), System.currentTimeMillis() - start, counts[0], counts[1]);
+        String[] hashes = new String[unique.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = unique.get(i).imageHash;
+        }
+        return new BaseScoreStore(indexByPath, hashes, scoresByChain, Collections.emptyMap());
+    }
+
+    // Copies the image's scores of every chain into row {@code row} of
+    // {@code tables}, or nothing if any chain is missing
+    private boolean copyRow(String imageRelPath, String imageHashOrNull, String[] chainKeys, double[][] tables,
+            int row) {
+        Integer index = indexByPath.get(imageRelPath);
+        if (index == null || invalidated || !hashMatches(index, imageHashOrNull)) {
+            return false;
+        }
+        for (String key : chainKeys) {
+            BitSet present = presentByChain.get(key);
+            if (!scoresByChain.containsKey(key) || (present != null && !present.get(index))) {
+                return false;
+            }
+        }
+        for (int e = 0; e < chainKeys.length; e++) {
+            System.arraycopy(scoresByChain.get(chainKeys[e]), index * NUM_DIGITS, tables[e], row * NUM_DIGITS,
+                    NUM_DIGITS);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the cached scores of every image for the evaluators' chains
+     * with one sequential scan of the SQLite cache, decoding each blob
+     * straight into the store's tables. Images are the ones with at least
+     * one cached row, with the hash recorded for them; a chain missing for
+     * an image reads as absent.
+     */
+    public static BaseScoreStore load(MarkovChainResultDao resultDao, List<MarkovChainEvaluator> evaluators)
+            throws SQLException {
+        long start = System.currentTimeMillis();
+
+        List<String> types = new ArrayList<>(evaluators.size());
+        List<String> versions = new ArrayList<>(evaluators.size());
+        for (MarkovChainEvaluator evaluator : evaluators) {
+            types.add(evaluator.getChainType());
+            versions.add(evaluator.getChainVersion());
+        }
+
+        Map<String, Integer> indexByPath = new HashMap<>();
+        List<String> hashes = new ArrayList<>();
+        double[][] tables = new double[evaluators.size()][1024 * NUM_DIGITS];
+        BitSet[] present = new BitSet[evaluators.size()];
+        for (int e = 0; e < present.length; e++) {
+            present[e] = new BitSet();
+        }
+        long[] skipped = new long[1];
+        long rows = resultDao.scanScores(types, versions, (path, hash, chain, blob) -> {
+            Integer index = indexByPath.get(path);
+            if (index == null) {
+                index = indexByPath.size();
+                indexByPath.put(path, index);
+                hashes.add(hash);
+                if ((index + 1) * NUM_DIGITS > tables[0].length) {
+                    for (int e = 0; e < tables.length; e++) {
+                        tables[e] = Arrays.copyOf(tables[e], tables[e].length * 2);
+                    }
+                }
+            }
+            if (DoubleArrayCodec.decodeInto(blob, tables[chain], index * NUM_DIGITS, NUM_DIGITS)) {
+                present[chain].set(index);
+            } else {
+                skipped[0]++;
+            }
+        });
+
+        Map<String, double[]> scoresByChain = new HashMap<>();
+        Map<String, BitSet> presentByChain = new HashMap<>();
+        for (int e = 0; e < evaluators.size(); e++) {
+            String key = chainKey(types.get(e), versions.get(e));
+            scoresByChain.put(key, Arrays.copyOf(tables[e], indexByPath.size() * NUM_DIGITS));
+            if (present[e].cardinality() < indexByPath.size()) {
+                presentByChain.put(key, present[e]);
+            }
+        }
+
+        logger.info("Loaded base score store from cache: {} rows of {} images x {} chains in {} ms"
+                + " ({} malformed rows skipped)", rows, indexByPath.size(), evaluators.size(),
+                System.currentTimeMillis() - start, skipped[0]);
+        return new BaseScoreStore(indexByPath, hashes.toArray(new String[0]), scoresByChain, presentByChain);
+    }
+
+    private static String chainKey(String chainType, String chainVersion) {
+        return chainType + "/" + chainVersion;
+    }
+
+    // An unknown hash on either side matches, as in the SQLite cache
+    private boolean hashMatches(int index, String imageHashOrNull) {
+        String stored = hashes[index];
+        return stored == null || imageHashOrNull == null || stored.equals(imageHashOrNull);
+    }
+
+    /**
+     * Copies the stored scores into {@code out[0..9]}; returns false if the
+     * image or chain is not in the store, or the image was stored under a
+     * different hash.
+     */
+    public boolean copyScores(String chainType, String chainVersion, String imageRelPath, String imageHashOrNull,
+            double[] out) {
+        if (imageRelPath == null || invalidated) {
+            return false;
+        }
+        Integer index = indexByPath.get(imageRelPath);
+        String key = chainKey(chainType, chainVersion);
+        double[] table = scoresByChain.get(key);
+        if (index == null || table == null || !hashMatches(index, imageHashOrNull)) {
+            return false;
+        }
+        BitSet present = presentByChain.get(key);
+        if (present != null && !present.get(index)) {
+            return false;
+        }
+        System.arraycopy(table, index * NUM_DIGITS, out, 0, NUM_DIGITS);
+        return true;
+    }
+
+    /**
+     * Fresh copy of the stored scores (callers may mutate it), or null.
+     * Allocates; per-image scoring goes through {@link #copyScores}.
+     */
+    public double[] getScores(String chainType, String chainVersion, String imageRelPath, String imageHashOrNull) {
+        double[] out = new double[NUM_DIGITS];
+        return copyScores(chainType, chainVersion, imageRelPath, imageHashOrNull, out) ? out : null;
+    }
+
+    /**
+     * True if the store holds the scores of every stored chain for every
+     * keyed image of {@code images}, under the image's hash, so it can
+     * serve that dataset as is.
+     */
+    public boolean covers(List<DigitImage> images) {
+        if (invalidated) {
+            return false;
+        }
+        for (DigitImage img : images) {
+            if (img.imageRelPath == null) {
+                continue;
+            }
+            Integer index = indexByPath.get(img.imageRelPath);
+            if (index == null || !hashMatches(index, img.imageHash)) {
+                return false;
+            }
+            for (BitSet present : presentByChain.values()) {
+                if (!present.get(index)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops serving scores: evaluators still holding the store fall through
+     * to the chain score caches and recompute what was cleared.
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    public int getNumImages() {
+        return indexByPath.size();
+    }
+
+    public List<String> getChainKeys() {
+        List<String> keys = new ArrayList<>(scoresByChain.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Approximate heap bytes of the score tables.
+     */
+    public long getFootprintBytes() {
+        long bytes = 0;
+        for (double[] table : scoresByChain.values()) {
+            bytes += (long) table.length * Double.BYTES;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "BaseScoreStore{images=" + getNumImages() + ", chains=" + getChainKeys() + "}";
+    }
+}
@@ -0,0 +1,146 @@
+package com.markovai.server.ai;
+
+/**
+ * Bit-packed 28x28 binary image: one int mask per row, pixel (r, c) stored at
+ * bit {@code 27 - c} of {@code rows[r]}, so the leftmost pixel is the most
+ * significant of the 28 used bits. Built once per image and shared by all
+ * extractors; 2x2 and 4x4 patch symbols are read with shifts and masks.
+ */
+public final class BinaryImage {
+
+    public static final int SIZE = 28;
+    public static final int DEFAULT_THRESHOLD = 128;
+
+    private final int[] rows;
+
+    private BinaryImage(int[] rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Binarizes a grayscale image: values >= threshold become 1. Same rule as
+     * {@link DigitMarkovModel#binarize(int[][], int)}.
+     */
+    public static BinaryImage fromPixels(int[][] pixels, int threshold) {
+        int[] rows = new int[SIZE];
+        for (int r = 0; r < SIZE; r++) {
+            int[] src = pixels[r];
+            int mask = 0;
+            for (int c = 0; c < SIZE; c++) {
+                mask = (mask << 1) | (src[c] >= threshold ? 1 : 0);
+            }
+            rows[r] = mask;
+        }
+        return new BinaryImage(rows);
+    }
+
+    public static BinaryImage fromPixels(int[][] pixels) {
+        return fromPixels(pixels, DEFAULT_THRESHOLD);
+    }
+
+    public static BinaryImage of(DigitImage img) {
+        return fromPixels(img.pixels, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Packs an already binary 28x28 int array (values 0 or 1).
+     */
+    public static BinaryImage fromBinary(int[][] binary) {
+        int[] rows = new int[SIZE];
+        for (int r = 0; r < SIZE; r++) {
+            int mask = 0;
+            for (int c = 0; c < SIZE; c++) {
+                mask = (mask << 1) | (binary[r][c] != 0 ? 1 : 0);
+            }
+            rows[r] = mask;
+        }
+        return new BinaryImage(rows);
+    }
+
+    /**
+     * Packs a row-major flat binary image of 784 bytes (values 0 or 1).
+     */
+    public static BinaryImage fromFlat(byte[] binary28x28) {
+        int[] rows = new int[SIZE];
+        int i = 0;
+        for (int r = 0; r < SIZE; r++) {
+            int mask = 0;
+            for (int c = 0; c < SIZE; c++) {
+                mask = (mask << 1) | (binary28x28[i++] != 0 ? 1 : 0);
+            }
+            rows[r] = mask;
+        }
+        return new BinaryImage(rows);
+    }
+
+    public int get(int r, int c) {
+        return (rows[r] >>> (SIZE - 1 - c)) & 1;
+    }
+
+    public int getRowMask(int r) {
+        return rows[r];
+    }
+
+    /**
+     * 2x2 patch symbol of grid cell (gridRow, gridCol), 0 <= both < 14.
+     * TL -> bit 3, TR -> bit 2, BL -> bit 1, BR -> bit 0.
+     */
+    public int patch2x2(int gridRow, int gridCol) {
+        int shift = SIZE - 2 - 2 * gridCol;
+        int top = (rows[2 * gridRow] >>> shift) & 3;
+        int bottom = (rows[2 * gridRow + 1] >>> shift) & 3;
+        return (top << 2) | bottom;
+    }
+
+    /**
+     * 4x4 patch symbol with the top-left pixel at (startRow, startCol), read
+     * row by row, first pixel as the most significant bit. Pixels outside the
+     * image read as 0, matching
+     * {@link DigitPatch4x4UnigramModel#encodePatch(int[][], int, int)}.
+     */
+    public int patch4x4(int startRow, int startCol) {
+        int symbol = 0;
+        for (int pr = 0; pr < 4; pr++) {
+            int r = startRow + pr;
+            int nibble = r < SIZE ? nibbleAt(rows[r], startCol) : 0;
+            symbol = (symbol << 4) | nibble;
+        }
+        return symbol;
+    }
+
+    private static int nibbleAt(int rowMask, int startCol) {
+        int shift = SIZE - 4 - startCol;
+        if (shift >= 0) {
+            return (rowMask >>> shift) & 0xF;
+        }
+        // Window runs past the right edge: missing pixels are 0
+        return (rowMask << -shift) & 0xF;
+    }
+
+    /**
+     * Unpacks to the legacy 28x28 int representation.
+     */
+    public int[][] toArray() {
+        int[][] binary = new int[SIZE][SIZE];
+        for (int r = 0; r < SIZE; r++) {
+            for (int c = 0; c < SIZE; c++) {
+                binary[r][c] = get(r, c);
+            }
+        }
+        return binary;
+    }
+
+    /**
+     * Unpacks to the row-major flat byte layout used by the score cache.
+     */
+    public byte[] toFlatBytes() {
+        byte[] flat = new byte[SIZE * SIZE];
+        int i = 0;
+        for (int r = 0; r < SIZE; r++) {
+            for (int c = 0; c < SIZE; c++) {
+                flat[i++] = (byte) get(r, c);
+            }
+        }
+        return flat;
+    }
+}
@@ -3,10 +3,14 @@ package com.markovai.server.ai;
 import com.markovai.db.DigitImage;
 import com.markovai.db.DigitImageDao;
 import com.markovai.db.MarkovChainResultDao;
+import com.markovai.db.WriteBehindScoreWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class CachedMarkovChainEvaluator {
@@ -16,6 +20,9 @@ public class CachedMarkovChainEvaluator {
     private final MarkovChainEvaluator delegate;
     private final DigitImageDao imageDao;
     private final MarkovChainResultDao resultDao;
+    private volatile BaseScoreStore baseScores;
+    private volatile WriteBehindScoreWriter writeBehind;
+    private volatile ChainScoreCache scoreCache;
 
     public CachedMarkovChainEvaluator(MarkovChainEvaluator delegate,
             DigitImageDao imageDao,
@@ -25,7 +32,101 @@ public class CachedMarkovChainEvaluator {
         this.resultDao = resultDao;
     }
 
+    /**
+     * In-memory base scores consulted before SQLite; images missing from the
+     * store fall through to the cache as before. Null disables the lookup.
+     */
+    public void setBaseScoreStore(BaseScoreStore baseScores) {
+        this.baseScores = baseScores;
+    }
+
+    /**
+     * Queues cache misses on {@code writeBehind} instead of writing them on
+     * the calling thread, which then only reads from SQLite. Null restores
+     * synchronous writes.
+     */
+    public void setWriteBehind(WriteBehindScoreWriter writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * In-process L1 in front of SQLite, consulted after the base score
+     * store; images without a path bypass it. Null disables it.
+     */
+    public void setScoreCache(ChainScoreCache scoreCache) {
+        this.scoreCache = scoreCache;
+    }
+
     public double[] evaluate(String imageRelPath, String imageHashOrNull, byte[] binary28x28) {
+        return evaluate(imageRelPath, imageHashOrNull, BinaryImage.fromFlat(binary28x28));
+    }
+
+    public double[] evaluate(String imageRelPath, String imageHashOrNull, BinaryImage binaryImage) {
+        return evaluate(imageRelPath, imageHashOrNull, binaryImage, null);
+    }
+
+    /**
+     * Evaluates an image, reusing the features memoized in {@code ctx} on a
+     * cache miss.
+     */
+    public double[] evaluate(ImageFeatureContext ctx) {
+        com.markovai.server.ai.DigitImage img = ctx.getImage();
+        return evaluate(img.imageRelPath, img.imageHash, null, ctx);
+    }
+
+    /**
+     * Like {@link #evaluate(ImageFeatureContext)}, but writes the scores into
+     * {@code out[0..9]}; base score store hits copy straight into it without
+     * allocating.
+     */
+    public void evaluateInto(ImageFeatureContext ctx, double[] out) {
+        com.markovai.server.ai.DigitImage img = ctx.getImage();
+        BaseScoreStore store = baseScores;
+        if (store != null && store.copyScores(delegate.getChainType(), delegate.getChainVersion(), img.imageRelPath,
+                img.imageHash, out)) {
+            return;
+        }
+        double[] scores = evaluateUncached(img.imageRelPath, img.imageHash, null, ctx);
+        System.arraycopy(scores, 0, out, 0, out.length);
+    }
+
+    private double[] evaluate(String imageRelPath, String imageHashOrNull, BinaryImage binaryImage,
+            ImageFeatureContext ctx) {
+        BaseScoreStore store = baseScores;
+        if (store != null) {
+            // Fresh copy: callers add feedback adjustments in place
+            double[] stored = new double[10];
+            if (store.copyScores(delegate.getChainType(), delegate.getChainVersion(), imageRelPath, imageHashOrNull,
+                    stored)) {
+                return stored;
+            }
+        }
+        return evaluateUncached(imageRelPath, imageHashOrNull, binaryImage, ctx);
+    }
+
+    /**
+     * L1 then L2, for images the base score store does not hold.
+     */
+    private double[] evaluateUncached(String imageRelPath, String imageHashOrNull, BinaryImage binaryImage,
+            ImageFeatureContext ctx) {
+        ChainScoreCache cache = scoreCache;
+        if (cache != null && imageRelPath != null) {
+            String key = ChainScoreCache.key(delegate.getChainType(), delegate.getChainVersion(), imageRelPath);
+            return cache.get(key, () -> evaluateStored(imageRelPath, imageHashOrNull, binaryImage, ctx));
+        }
+        return evaluateStored(imageRelPath, imageHashOrNull, binaryImage, ctx);
+    }
+
+    /**
+     * L2: the SQLite cache, computing and storing the scores on a miss.
+     */
+    private double[] evaluateStored(String imageRelPath, String imageHashOrNull, BinaryImage binaryImage,
+            ImageFeatureContext ctx) {
+        WriteBehindScoreWriter writer = writeBehind;
+        if (writer != null && imageRelPath != null) {
+            return evaluateWriteBehind(writer, imageRelPath, imageHashOrNull, binaryImage, ctx);
+        }
+
         try {
             // 1. Get or Create Image
             DigitImage img = imageDao.getOrCreateByPath(imageRelPath, imageHashOrNull);
@@ -37,12 +138,14 @@ public class CachedMarkovChainEvaluator {
 
             if (cached.isPresent()) {
                 logger.debug("Cache HIT for image {} chain {}/{}", imageRelPath, type, version);
+                countL2(1, 0);
                 return cached.get();
             }
 
             // 3. Compute
             logger.debug("Cache MISS for image {} chain {}/{}", imageRelPath, type, version);
-            double[] scores = delegate.computeScores(binary28x28);
+            countL2(0, 1);
+            double[] scores = compute(binaryImage, ctx);
 
             // 4. Store
             resultDao.upsertScores(img.getId(), type, version, scores);
@@ -51,8 +154,199 @@ public class CachedMarkovChainEvaluator {
 
         } catch (SQLException e) {
             logger.error("Database error in CachedMarkovChainEvaluator, falling back to direct computation", e);
-            return delegate.computeScores(binary28x28);
+            return compute(binaryImage, ctx);
+        }
+    }
+
+    private double[] evaluateWriteBehind(WriteBehindScoreWriter writer, String imageRelPath, String imageHashOrNull,
+            BinaryImage binaryImage, ImageFeatureContext ctx) {
+        String type = delegate.getChainType();
+        String version = delegate.getChainVersion();
+        double[] queued = writer.pendingScores(imageRelPath, type, version);
+        if (queued != null) {
+            countL2(1, 0);
+            return queued;
+        }
+
+        double[] scores = null;
+        try {
+            Optional<DigitImage> img = imageDao.findByPath(imageRelPath);
+            if (img.isPresent()) {
+                Optional<double[]> cached = resultDao.loadScores(img.get().getId(), type, version);
+                if (cached.isPresent()) {
+                    logger.debug("Cache HIT for image {} chain {}/{}", imageRelPath, type, version);
+                    countL2(1, 0);
+                    return cached.get();
+                }
+            }
+
+            logger.debug("Cache MISS for image {} chain {}/{}", imageRelPath, type, version);
+            countL2(0, 1);
+            scores = compute(binaryImage, ctx);
+            writer.enqueue(imageRelPath, imageHashOrNull, type, version, scores);
+            return scores;
+
+        } catch (SQLException e) {
+            logger.error("Database error in CachedMarkovChainEvaluator, falling back to direct computation", e);
+            return scores != null ? scores : compute(binaryImage, ctx);
+        }
+    }
+
+    /**
+     * Batch variant of {@link #evaluate(ImageFeatureContext)}: resolves the
+     * image ids and loads the cached scores of the whole batch with one query
+     * each, computes only the misses and stores them in one transaction, and
+     * writes row i of {@code out}.
+     */
+    public void evaluateBatch(List<ImageFeatureContext> batch, double[][] out) {
+        BaseScoreStore store = baseScores;
+        ChainScoreCache cache = scoreCache;
+        if (store == null && cache == null) {
+            evaluateBatchCached(batch, out);
+            return;
+        }
+
+        String type = delegate.getChainType();
+        String version = delegate.getChainVersion();
+        List<ImageFeatureContext> missing = new ArrayList<>();
+        List<Integer> missingRows = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            com.markovai.server.ai.DigitImage img = batch.get(i).getImage();
+            String path = img.imageRelPath;
+            if (store != null && store.copyScores(type, version, path, img.imageHash, out[i])) {
+                continue;
+            }
+            if (cache != null && path != null
+                    && cache.copyIfPresent(ChainScoreCache.key(type, version, path), out[i])) {
+                continue;
+            }
+            missing.add(batch.get(i));
+            missingRows.add(i);
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        // Batches read L2 together rather than single-flight per image
+        long loadGeneration = cache != null ? cache.generation() : 0L;
+        double[][] missingOut = new double[missing.size()][out[0].length];
+        evaluateBatchCached(missing, missingOut);
+        for (int m = 0; m < missing.size(); m++) {
+            System.arraycopy(missingOut[m], 0, out[missingRows.get(m)], 0, missingOut[m].length);
+            String path = missing.get(m).getImage().imageRelPath;
+            if (cache != null && path != null) {
+                cache.putIfCurrent(ChainScoreCache.key(type, version, path), missingOut[m], loadGeneration);
+            }
+        }
+    }
+
+    private void evaluateBatchCached(List<ImageFeatureContext> batch, double[][] out) {
+        List<String> paths = new ArrayList<>(batch.size());
+        List<String> hashes = new ArrayList<>(batch.size());
+        for (ImageFeatureContext ctx : batch) {
+            if (ctx.getImage().imageRelPath == null) {
+                // Cannot be keyed; let the per-image path handle it
+                evaluateEach(batch, out);
+                return;
+            }
+            paths.add(ctx.getImage().imageRelPath);
+            hashes.add(ctx.getImage().imageHash);
+        }
+
+        String type = delegate.getChainType();
+        String version = delegate.getChainVersion();
+        WriteBehindScoreWriter writer = writeBehind;
+        if (writer != null) {
+            evaluateBatchWriteBehind(writer, batch, paths, hashes, out);
+            return;
         }
+        try {
+            List<DigitImage> images = imageDao.getOrCreateByPaths(paths, hashes);
+            List<Long> ids = new ArrayList<>(images.size());
+            for (DigitImage img : images) {
+                ids.add(img.getId());
+            }
+            Map<Long, double[]> cached = resultDao.loadScoresBatch(ids, type, version);
+
+            List<Long> missIds = new ArrayList<>();
+            List<double[]> missScores = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                double[] scores = cached.get(ids.get(i));
+                if (scores == null) {
+                    scores = delegate.computeScores(batch.get(i));
+                    missIds.add(ids.get(i));
+                    missScores.add(scores);
+                }
+                System.arraycopy(scores, 0, out[i], 0, out[i].length);
+            }
+            if (!missIds.isEmpty()) {
+                // One transaction for all misses instead of a commit per row
+                resultDao.upsertScoresBatch(missIds, type, version, missScores);
+            }
+            logger.debug("Batch of {} images chain {}/{}: {} cache misses", batch.size(), type, version,
+                    missIds.size());
+            countL2(batch.size() - missIds.size(), missIds.size());
+        } catch (SQLException e) {
+            logger.error("Database error in CachedMarkovChainEvaluator batch, falling back to direct computation", e);
+            delegate.computeScoresBatch(batch, out);
+        }
+    }
+
+    private void evaluateBatchWriteBehind(WriteBehindScoreWriter writer, List<ImageFeatureContext> batch,
+            List<String> paths, List<String> hashes, double[][] out) {
+        String type = delegate.getChainType();
+        String version = delegate.getChainVersion();
+        boolean[] done = new boolean[batch.size()];
+        int misses = 0;
+        try {
+            Map<String, DigitImage> images = imageDao.findByPaths(paths);
+            List<Long> ids = new ArrayList<>(images.size());
+            for (DigitImage img : images.values()) {
+                ids.add(img.getId());
+            }
+            Map<Long, double[]> cached = resultDao.loadScoresBatch(ids, type, version);
+
+            for (int i = 0; i < batch.size(); i++) {
+                DigitImage img = images.get(paths.get(i));
+                double[] scores = img != null ? cached.get(img.getId()) : null;
+                if (scores == null) {
+                    scores = writer.pendingScores(paths.get(i), type, version);
+                }
+                if (scores == null) {
+                    misses++;
+                    scores = delegate.computeScores(batch.get(i));
+                    writer.enqueue(paths.get(i), hashes.get(i), type, version, scores);
+                }
+                System.arraycopy(scores, 0, out[i], 0, out[i].length);
+                done[i] = true;
+            }
+            logger.debug("Batch of {} images chain {}/{}: {} cache misses", batch.size(), type, version, misses);
+            countL2(batch.size() - misses, misses);
+        } catch (SQLException e) {
+            logger.error("Database error in CachedMarkovChainEvaluator batch, falling back to direct computation", e);
+            for (int i = 0; i < batch.size(); i++) {
+                if (!done[i]) {
+                    System.arraycopy(delegate.computeScores(batch.get(i)), 0, out[i], 0, out[i].length);
+                }
+            }
+        }
+    }
+
+    private void countL2(int hits, int misses) {
+        ChainScoreCache cache = scoreCache;
+        if (cache != null) {
+            cache.recordL2(hits, misses);
+        }
+    }
+
+    private void evaluateEach(List<ImageFeatureContext> batch, double[][] out) {
+        for (int i = 0; i < batch.size(); i++) {
+            System.arraycopy(evaluate(batch.get(i)), 0, out[i], 0, out[i].length);
+        }
+    }
+
+    private double[] compute(BinaryImage binaryImage, ImageFeatureContext ctx) {
+        return ctx != null ? delegate.computeScores(ctx) : delegate.computeScores(binaryImage);
     }
 
     public String getChainType() {
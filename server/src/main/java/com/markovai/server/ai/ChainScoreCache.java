@@ -0,0 +1,455 @@
+package com.markovai.server.ai;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Bounded in-process (L1) cache of chain scores keyed by image key, chain
+ * type and chain version, in front of the SQLite (L2) cache of
+ * {@link CachedMarkovChainEvaluator}.
+ *
+ * Entries are plain score arrays in lock-striped segments. A full segment
+ * admits a new entry only if it has been requested more often than the
+ * segment's least recently used entry, estimated by a small count-min
+ * sketch whose counters are halved periodically (TinyLFU). Scanning more
+ * images than fit therefore keeps a stable, frequently used set instead of
+ * flushing the whole cache on every pass, as plain LRU would.
+ *
+ * {@link #get} is single-flight: concurrent misses on one key run the
+ * loader once and the others wait for its result. Scores are copied in and
+ * out, so callers may mutate what they get. {@link #invalidateChain} and
+ * {@link #invalidateImage} drop entries whose SQLite rows were deleted; a
+ * load already running when they are called is returned but not cached.
+ * Safe for concurrent use.
+ */
+public final class ChainScoreCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final int maxEntries;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Map<String, CompletableFuture<double[]>> loading = new ConcurrentHashMap<>();
+    // Advanced by every invalidation; loads started before one are not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder l1Hits = new LongAdder();
+    private final LongAdder l1Misses = new LongAdder();
+    private final LongAdder coalescedLoads = new LongAdder();
+    private final LongAdder l2Hits = new LongAdder();
+    private final LongAdder l2Misses = new LongAdder();
+
+    /**
+     * Cache of at most {@code maxEntries} score arrays (rounded up to a
+     * multiple of the segment count).
+     */
+    public ChainScoreCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        int perSegment = (maxEntries + SEGMENTS - 1) / SEGMENTS;
+        this.maxEntries = perSegment * SEGMENTS;
+        for (int s = 0; s < SEGMENTS; s++) {
+            segments[s] = new Segment(perSegment);
+        }
+    }
+
+    public static String key(String chainType, String chainVersion, String imageKey) {
+        return chainType + '/' + chainVersion + '/' + imageKey;
+    }
+
+    private static int spread(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Copies the cached scores into {@code out}; returns false (a miss) if
+     * the key is not cached.
+     */
+    public boolean copyIfPresent(String key, double[] out) {
+        int hash = spread(key);
+        double[] scores = segmentFor(hash).get(key, hash);
+        if (scores == null) {
+            l1Misses.increment();
+            return false;
+        }
+        l1Hits.increment();
+        System.arraycopy(scores, 0, out, 0, scores.length);
+        return true;
+    }
+
+    /**
+     * Fresh copy of the cached scores, or null on a miss.
+     */
+    public double[] getIfPresent(String key) {
+        int hash = spread(key);
+        double[] scores = segmentFor(hash).get(key, hash);
+        (scores != null ? l1Hits : l1Misses).increment();
+        return scores != null ? scores.clone() : null;
+    }
+
+    /**
+     * The cached scores of {@code key}, loading and caching them on a miss.
+     * While one thread loads a key, others asking for it wait and share its
+     * result, or its exception.
+     */
+    public double[] get(String key, Supplier<double[]> loader) {
+        double[] cached = getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<double[]> mine = new CompletableFuture<>();
+        CompletableFuture<double[]> running = loading.putIfAbsent(key, mine);
+        if (running != null) {
+            coalescedLoads.increment();
+            try {
+                return running.join().clone();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw e;
+            }
+        }
+        try {
+            int hash = spread(key);
+            long loadGeneration = generation.get();
+            // A load finishing between the miss and the claim already cached it
+            double[] scores = segmentFor(hash).peek(key);
+            if (scores == null) {
+                scores = loader.get();
+                segmentFor(hash).putIfCurrent(key, hash, scores.clone(), generation, loadGeneration);
+            } else {
+                scores = scores.clone();
+            }
+            mine.complete(scores.clone());
+            return scores;
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    /**
+     * Offers {@code scores} (copied) for {@code key}, subject to admission
+     * when the segment is full.
+     */
+    public void put(String key, double[] scores) {
+        int hash = spread(key);
+        segmentFor(hash).put(key, hash, scores.clone());
+    }
+
+    /**
+     * Current invalidation generation. Read it before loading scores from
+     * L2 and pass it to {@link #putIfCurrent}, so that scores whose rows
+     * were invalidated meanwhile are not cached.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Like {@link #put}, but drops the scores if an invalidation happened
+     * since {@code loadGeneration} was read from {@link #generation()}.
+     */
+    public void putIfCurrent(String key, double[] scores, long loadGeneration) {
+        int hash = spread(key);
+        segmentFor(hash).putIfCurrent(key, hash, scores.clone(), generation, loadGeneration);
+    }
+
+    /**
+     * Records the outcome of lookups that missed L1 and went to the L2
+     * (SQLite) cache.
+     */
+    void recordL2(int hits, int misses) {
+        if (hits > 0) {
+            l2Hits.add(hits);
+        }
+        if (misses > 0) {
+            l2Misses.add(misses);
+        }
+    }
+
+    /**
+     * Drops every entry of the chain; returns the number dropped.
+     */
+    public int invalidateChain(String chainType, String chainVersion) {
+        String prefix = chainType + '/' + chainVersion + '/';
+        return invalidate(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops the entries of the image in every chain; returns the number
+     * dropped.
+     */
+    public int invalidateImage(String imageRelPath) {
+        // Chain types and versions contain no '/', the image path may
+        return invalidate(key -> {
+            int chainEnd = key.indexOf('/', key.indexOf('/') + 1);
+            return chainEnd >= 0 && key.substring(chainEnd + 1).equals(imageRelPath);
+        });
+    }
+
+    private int invalidate(Predicate<String> matches) {
+        generation.incrementAndGet();
+        int removed = 0;
+        for (Segment segment : segments) {
+            removed += segment.removeIf(matches);
+        }
+        return removed;
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public Stats getStats() {
+        long entries = 0;
+        long evictions = 0;
+        long rejections = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+                evictions += segment.evictions;
+                rejections += segment.rejections;
+            }
+        }
+        return new Stats(entries, maxEntries, l1Hits.sum(), l1Misses.sum(), coalescedLoads.sum(), evictions,
+                rejections, l2Hits.sum(), l2Misses.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "ChainScoreCache{" + getStats() + "}";
+    }
+
+    /**
+     * LRU map plus the frequency sketch of its keys; all access under the
+     * segment's lock.
+     */
+    private static final class Segment {
+        private final int capacity;
+        private final LinkedHashMap<String, double[]> entries;
+        private final FrequencySketch sketch;
+        long evictions;
+        long rejections;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized double[] get(String key, int hash) {
+            sketch.increment(hash);
+            return entries.get(key);
+        }
+
+        synchronized double[] peek(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, int hash, double[] scores) {
+            if (entries.containsKey(key) || entries.size() < capacity) {
+                entries.put(key, scores);
+                return;
+            }
+            Iterator<Map.Entry<String, double[]>> eldest = entries.entrySet().iterator();
+            String victim = eldest.next().getKey();
+            if (sketch.frequency(hash) <= sketch.frequency(spread(victim))) {
+                rejections++;
+                return;
+            }
+            eldest.remove();
+            evictions++;
+            entries.put(key, scores);
+        }
+
+        // Under the segment lock, so no invalidation can slip in between
+        synchronized void putIfCurrent(String key, int hash, double[] scores, AtomicLong generation,
+                long loadGeneration) {
+            if (generation.get() == loadGeneration) {
+                put(key, hash, scores);
+            }
+        }
+
+        synchronized int removeIf(Predicate<String> matches) {
+            int before = entries.size();
+            entries.keySet().removeIf(matches);
+            return before - entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key, saturating at 15.
+     * After {@code 10 * capacity} increments every counter is halved, so
+     * the estimates follow recent popularity.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = { 0x97CB3127, 0xB9A6B5D3, 0x85EBCA6B, 0xC2B2AE35 };
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            // 16 counters per long; at least one long per 4 entries
+            int longs = Integer.highestOneBit(Math.max(4, capacity / 4 * 2 - 1)) << 1;
+            this.table = new long[longs];
+            this.mask = longs - 1;
+            this.sampleSize = 10 * Math.max(1, capacity);
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            return (h ^ (h >>> 17)) & mask;
+        }
+
+        // Counter of row r lives in nibble (hash-derived offset + r) of its long
+        private static int shift(int hash, int row) {
+            return (((hash >>> 28) + row * 4) & 15) << 2;
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int r = 0; r < 4; r++) {
+                int count = (int) ((table[index(hash, r)] >>> shift(hash, r)) & 15L);
+                min = Math.min(min, count);
+            }
+            return min;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int r = 0; r < 4; r++) {
+                int i = index(hash, r);
+                int shift = shift(hash, r);
+                if (((table[i] >>> shift) & 15L) < 15) {
+                    table[i] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+    }
+
+    /**
+     * Point-in-time counters per tier: L1 is this cache, L2 the SQLite
+     * lookups made on L1 misses.
+     */
+    public static final class Stats {
+        private final long entries;
+        private final long maxEntries;
+        private final long l1Hits;
+        private final long l1Misses;
+        private final long coalescedLoads;
+        private final long evictions;
+        private final long rejections;
+        private final long l2Hits;
+        private final long l2Misses;
+
+        Stats(long entries, long maxEntries, long l1Hits, long l1Misses, long coalescedLoads, long evictions,
+                long rejections, long l2Hits, long l2Misses) {
+            this.entries = entries;
+            this.maxEntries = maxEntries;
+            this.l1Hits = l1Hits;
+            this.l1Misses = l1Misses;
+            this.coalescedLoads = coalescedLoads;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.l2Hits = l2Hits;
+            this.l2Misses = l2Misses;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getMaxEntries() {
+            return maxEntries;
+        }
+
+        public long getL1Hits() {
+            return l1Hits;
+        }
+
+        public long getL1Misses() {
+            return l1Misses;
+        }
+
+        public double getL1HitRate() {
+            long lookups = l1Hits + l1Misses;
+            return lookups == 0 ? 0.0 : (double) l1Hits / lookups;
+        }
+
+        /**
+         * Misses that waited for another thread's load of the same key.
+         */
+        public long getCoalescedLoads() {
+            return coalescedLoads;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * New entries not admitted because they were less frequent than the
+         * entry they would have evicted.
+         */
+        public long getRejections() {
+            return rejections;
+        }
+
+        public long getL2Hits() {
+            return l2Hits;
+        }
+
+        /**
+         * L2 misses, i.e. scores computed by the chain evaluator.
+         */
+        public long getL2Misses() {
+            return l2Misses;
+        }
+
+        public double getL2HitRate() {
+            long lookups = l2Hits + l2Misses;
+            return lookups == 0 ? 0.0 : (double) l2Hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("entries=%d/%d, L1 %d hits / %d misses (%.1f%%), %d coalesced, "
+                    + "%d evicted, %d rejected, L2 %d hits / %d misses (%.1f%%)", entries, maxEntries, l1Hits,
+                    l1Misses, 100.0 * getL1HitRate(), coalescedLoads, evictions, rejections, l2Hits, l2Misses,
+                    100.0 * getL2HitRate());
+        }
+    }
+}
@@ -33,4 +33,18 @@ public class ColumnPatchSequenceExtractor implements MultiSequenceExtractor {
 
         return (b3 * 8) + (b2 * 4) + (b1 * 2) + b0;
     }
+
+    @Override
+    public List<int[]> extractSequences(BinaryImage binaryImage) {
+        List<int[]> sequences = new ArrayList<>(GRID_SIZE);
+
+        for (int c = 0; c < GRID_SIZE; c++) {
+            int[] colSeq = new int[GRID_SIZE];
+            for (int r = 0; r < GRID_SIZE; r++) {
+                colSeq[r] = binaryImage.patch2x2(r, c);
+            }
+            sequences.add(colSeq);
+        }
+        return sequences;
+    }
 }
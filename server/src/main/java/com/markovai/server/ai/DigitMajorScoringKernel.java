@@ -0,0 +1,147 @@
+package com.markovai.server.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Scores a sequence against all 10 digit models in a single pass.
+ * <p>
+ * Tables are stored digit-major: for each initial state and each
+ * (prev, cur) transition the log-probabilities of the 10 digits are
+ * contiguous and padded to {@link #LANES}, so one transition is a single
+ * contiguous load. When the {@code jdk.incubator.vector} module is present
+ * the lanes are accumulated with the Vector API, otherwise a scalar loop is
+ * used. Both paths add in the same order as
+ * {@link DigitMarkovModel#logLikelihood(int, int[])} and give bit-identical
+ * results.
+ */
+public final class DigitMajorScoringKernel {
+    private static final Logger logger = LoggerFactory.getLogger(DigitMajorScoringKernel.class);
+
+    static final int LANES = 16;
+    private static final int NUM_DIGITS = 10;
+
+    private static final boolean VECTOR_ENABLED = detectVectorSupport();
+
+    private final int numStates;
+    // [state * LANES + digit]
+    private final double[] logInitial;
+    // [(prev * numStates + cur) * LANES + digit]
+    private final double[] logTransition;
+
+    DigitMajorScoringKernel(int numStates) {
+        this.numStates = numStates;
+        this.logInitial = new double[numStates * LANES];
+        this.logTransition = new double[numStates * numStates * LANES];
+    }
+
+    void setLogInitial(int digit, int state, double logP) {
+        logInitial[state * LANES + digit] = logP;
+    }
+
+    void setLogTransition(int digit, int prevState, int nextState, double logP) {
+        logTransition[(prevState * numStates + nextState) * LANES + digit] = logP;
+    }
+
+    public static boolean isVectorized() {
+        return VECTOR_ENABLED;
+    }
+
+    /**
+     * Log-likelihood of a single sequence for every digit.
+     */
+    public double[] scoreSequence(int[] seq) {
+        double[] out = new double[LANES];
+        scoreInto(seq, out);
+        return trim(out);
+    }
+
+    /**
+     * Summed log-likelihood of all sequences for every digit, equivalent to
+     * calling {@link DigitMarkovModel#logLikelihoodForSequences} per digit.
+     */
+    public double[] scoreSequences(List<int[]> sequences) {
+        double[] total = new double[LANES];
+        if (VECTOR_ENABLED) {
+            VectorScoringSupport.scoreSequencesInto(logInitial, logTransition, numStates, sequences, total);
+            return trim(total);
+        }
+        double[] seqScores = new double[LANES];
+        for (int[] seq : sequences) {
+            scoreInto(seq, seqScores);
+            for (int d = 0; d < NUM_DIGITS; d++) {
+                total[d] += seqScores[d];
+            }
+        }
+        return trim(total);
+    }
+
+    /**
+     * Writes the per-digit log-likelihood of {@code seq} into
+     * {@code out[0..9]}. {@code out} must have at least {@link #LANES}
+     * entries; lanes 10..15 are scratch.
+     */
+    void scoreInto(int[] seq, double[] out) {
+        int s0 = seq[0];
+        if (s0 < 0 || s0 >= numStates) {
+            java.util.Arrays.fill(out, 0, NUM_DIGITS, Double.NEGATIVE_INFINITY);
+            return;
+        }
+
+        if (VECTOR_ENABLED) {
+            VectorScoringSupport.scoreInto(logInitial, logTransition, numStates, seq, out);
+            return;
+        }
+
+        int base = s0 * LANES;
+        for (int d = 0; d < NUM_DIGITS; d++) {
+            out[d] = logInitial[base + d];
+        }
+        for (int t = 1; t < seq.length; t++) {
+            int prev = seq[t - 1];
+            int cur = seq[t];
+            if (prev >= 0 && prev < numStates && cur >= 0 && cur < numStates) {
+                int row = (prev * numStates + cur) * LANES;
+                for (int d = 0; d < NUM_DIGITS; d++) {
+                    out[d] += logTransition[row + d];
+                }
+            }
+        }
+    }
+
+    private static double[] trim(double[] padded) {
+        double[] result = new double[NUM_DIGITS];
+        System.arraycopy(padded, 0, result, 0, NUM_DIGITS);
+        return result;
+    }
+
+    private static boolean detectVectorSupport() {
+        if ("false".equalsIgnoreCase(System.getProperty("markov.scoring.vector"))) {
+            logger.info("Vector API scoring disabled via markov.scoring.vector=false, using scalar kernel");
+            return false;
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            logger.info("jdk.incubator.vector not available, using scalar scoring kernel");
+            return false;
+        }
+        try {
+            int lanes = VectorScoringSupport.laneCount();
+            if (LANES % lanes != 0) {
+                logger.info("Unsupported vector width {}, using scalar scoring kernel", lanes);
+                return false;
+            }
+            if (lanes < 4) {
+                // Five 2-lane chunks per transition lose to the scalar loop
+                logger.info("Vector width {} is slower than scalar scoring, using scalar scoring kernel", lanes);
+                return false;
+            }
+            logger.info("Using Vector API scoring kernel ({} double lanes)", lanes);
+            return true;
+        } catch (LinkageError e) {
+            logger.info("Vector API unavailable ({}), using scalar scoring kernel", e.toString());
+            return false;
+        }
+    }
+}
@@ -16,25 +16,50 @@ public class DigitMarkovModel {
     private final int numStates;
     private final SequenceExtractor extractor;
 
-    // counts and probabilities for each digit 0..9
-    // [digit][state]
-    private final long[][] initialCounts;
-    // [digit][prevState][nextState]
-    private final long[][][] transitionCounts;
+    // counts for each digit 0..9
+    private final MarkovCountTable counts;
 
+    // Log-space tables used by the scoring path, one flat array each.
+    // [digit * numStates + state]
+    private final double[] logInitialProbs;
+    // [(digit * numStates + prevState) * numStates + nextState]
+    private final double[] logTransitionProbs;
+
+    // Linear probabilities, only kept in compatibility mode (null otherwise)
     // [digit][state]
     private final double[][] initialProbs;
     // [digit][prevState][nextState]
     private final double[][][] transitionProbs;
 
+    // Same log tables in digit-major layout, scores all digits in one pass
+    private final DigitMajorScoringKernel scoringKernel;
+
     public DigitMarkovModel(int numStates, SequenceExtractor extractor) {
+        this(numStates, extractor, false);
+    }
+
+    /**
+     * @param keepLinearProbabilities compatibility mode: also keep the linear
+     *                                probability tables so that
+     *                                {@link #getInitialProbability} and
+     *                                {@link #getTransitionProbability} return the
+     *                                exact values instead of exp(logP).
+     */
+    public DigitMarkovModel(int numStates, SequenceExtractor extractor, boolean keepLinearProbabilities) {
         this.numStates = numStates;
         this.extractor = extractor;
 
-        this.initialCounts = new long[NUM_DIGITS][numStates];
-        this.transitionCounts = new long[NUM_DIGITS][numStates][numStates];
-        this.initialProbs = new double[NUM_DIGITS][numStates];
-        this.transitionProbs = new double[NUM_DIGITS][numStates][numStates];
+        this.counts = new MarkovCountTable(numStates);
+        this.logInitialProbs = new double[NUM_DIGITS * numStates];
+        this.logTransitionProbs = new double[NUM_DIGITS * numStates * numStates];
+        this.scoringKernel = new DigitMajorScoringKernel(numStates);
+        if (keepLinearProbabilities) {
+            this.initialProbs = new double[NUM_DIGITS][numStates];
+            this.transitionProbs = new double[NUM_DIGITS][numStates][numStates];
+        } else {
+            this.initialProbs = null;
+            this.transitionProbs = null;
+        }
 
         logger.info("Initializing DigitMarkovModel with {} states. Using extractor: {}", numStates,
                 extractor == null ? "None (Manual)" : extractor.getClass().getSimpleName());
@@ -77,8 +102,7 @@ public class DigitMarkovModel {
         int[] digitCounts = new int[NUM_DIGITS];
 
         for (DigitImage img : trainingData) {
-            int[][] binary = binarize(img.pixels, 128);
-            int[] seq = extractor.extractSequence(binary);
+            int[] seq = extractor.extractSequence(BinaryImage.of(img));
 
             // Log for first few samples if trace enabled, checking expected values
             if (logger.isTraceEnabled() && digitCounts[img.label] == 0) {
@@ -129,22 +153,23 @@ public class DigitMarkovModel {
     }
 
     private void updateCounts(int d, int[] seq) {
-        if (seq.length == 0)
-            return;
+        counts.update(d, seq);
+    }
 
-        // Update initial state count
-        if (seq[0] >= 0 && seq[0] < numStates) {
-            initialCounts[d][seq[0]]++;
-        }
+    /**
+     * Creates an empty count table compatible with this model, e.g. for a
+     * parallel training worker.
+     */
+    public MarkovCountTable newCountTable() {
+        return new MarkovCountTable(numStates);
+    }
 
-        // Update transitions
-        for (int t = 1; t < seq.length; t++) {
-            int prev = seq[t - 1];
-            int cur = seq[t];
-            if (prev >= 0 && prev < numStates && cur >= 0 && cur < numStates) {
-                transitionCounts[d][prev][cur]++;
-            }
-        }
+    /**
+     * Adds externally accumulated counts. Like trainOnSequences, this does not
+     * call finalizeProbabilities().
+     */
+    public void addCounts(MarkovCountTable other) {
+        counts.mergeFrom(other);
     }
 
     public void finalizeProbabilities() {
@@ -152,28 +177,39 @@ public class DigitMarkovModel {
             // Initial probabilities: Calculate total count + smoothing mass
             long totalInit = numStates; // Add '1' for each state (Laplace smoothing)
             for (int s = 0; s < numStates; s++) {
-                totalInit += initialCounts[d][s];
+                totalInit += counts.getInitialCount(d, s);
             }
 
             for (int s = 0; s < numStates; s++) {
-                initialProbs[d][s] = (double) (initialCounts[d][s] + 1) / totalInit;
+                double p = (double) (counts.getInitialCount(d, s) + 1) / totalInit;
+                logInitialProbs[d * numStates + s] = Math.log(p);
+                scoringKernel.setLogInitial(d, s, logInitialProbs[d * numStates + s]);
+                if (initialProbs != null) {
+                    initialProbs[d][s] = p;
+                }
             }
 
             // Transition probabilities
             for (int prev = 0; prev < numStates; prev++) {
                 long totalTrans = numStates; // Add '1' for each next state
                 for (int next = 0; next < numStates; next++) {
-                    totalTrans += transitionCounts[d][prev][next];
+                    totalTrans += counts.getTransitionCount(d, prev, next);
                 }
 
+                int rowBase = (d * numStates + prev) * numStates;
                 for (int next = 0; next < numStates; next++) {
-                    transitionProbs[d][prev][next] = (double) (transitionCounts[d][prev][next] + 1) / totalTrans;
+                    double p = (double) (counts.getTransitionCount(d, prev, next) + 1) / totalTrans;
+                    logTransitionProbs[rowBase + next] = Math.log(p);
+                    scoringKernel.setLogTransition(d, prev, next, logTransitionProbs[rowBase + next]);
+                    if (transitionProbs != null) {
+                        transitionProbs[d][prev][next] = p;
+                    }
                 }
 
                 if (logger.isTraceEnabled() && numStates <= 4) { // Only log full tables if small
                     for (int next = 0; next < numStates; next++) {
                         logger.trace("Digit {} transition {}->{}: count={}, prob={}", d, prev, next,
-                                transitionCounts[d][prev][next], transitionProbs[d][prev][next]);
+                                counts.getTransitionCount(d, prev, next), getTransitionProbability(d, prev, next));
                     }
                 }
             }
@@ -195,20 +231,76 @@ public class DigitMarkovModel {
         if (seq[0] < 0 || seq[0] >= numStates)
             return Double.NEGATIVE_INFINITY; // Should not happen
 
-        double p0 = initialProbs[digit][seq[0]];
-        double logL = Math.log(p0);
+        // Table lookups only; logs are precomputed in finalizeProbabilities()
+        double logL = logInitialProbs[digit * numStates + seq[0]];
 
+        int digitBase = digit * numStates * numStates;
         for (int t = 1; t < seq.length; t++) {
             int prev = seq[t - 1];
             int cur = seq[t];
             if (prev >= 0 && prev < numStates && cur >= 0 && cur < numStates) {
-                double p = transitionProbs[digit][prev][cur];
-                logL += Math.log(p);
+                logL += logTransitionProbs[digitBase + prev * numStates + cur];
             }
         }
         return logL;
     }
 
+    /**
+     * Log-likelihood of {@code seq} for all 10 digits in one pass.
+     */
+    public double[] logLikelihoods(int[] seq) {
+        return scoringKernel.scoreSequence(seq);
+    }
+
+    /**
+     * Summed log-likelihood of {@code sequences} for all 10 digits in one pass.
+     */
+    public double[] logLikelihoodsForSequences(java.util.List<int[]> sequences) {
+        return scoringKernel.scoreSequences(sequences);
+    }
+
+    public DigitMajorScoringKernel getScoringKernel() {
+        return scoringKernel;
+    }
+
+    public int getNumStates() {
+        return numStates;
+    }
+
+    public boolean isKeepingLinearProbabilities() {
+        return initialProbs != null;
+    }
+
+    public double getLogInitialProbability(int digit, int state) {
+        return logInitialProbs[digit * numStates + state];
+    }
+
+    public double getLogTransitionProbability(int digit, int prevState, int nextState) {
+        return logTransitionProbs[(digit * numStates + prevState) * numStates + nextState];
+    }
+
+    /**
+     * Linear initial probability. Exact in compatibility mode, otherwise
+     * recovered from the log table.
+     */
+    public double getInitialProbability(int digit, int state) {
+        if (initialProbs != null) {
+            return initialProbs[digit][state];
+        }
+        return Math.exp(getLogInitialProbability(digit, state));
+    }
+
+    /**
+     * Linear transition probability. Exact in compatibility mode, otherwise
+     * recovered from the log table.
+     */
+    public double getTransitionProbability(int digit, int prevState, int nextState) {
+        if (transitionProbs != null) {
+            return transitionProbs[digit][prevState][nextState];
+        }
+        return Math.exp(getLogTransitionProbability(digit, prevState, nextState));
+    }
+
     public double surprise(int digit, int[] seq) {
         return -logLikelihood(digit, seq);
     }
@@ -218,8 +310,7 @@ public class DigitMarkovModel {
     }
 
     public ClassificationResult classifyWithScores(DigitImage img) {
-        int[][] binary = binarize(img.pixels, 128);
-        int[] seq = extractor.extractSequence(binary);
+        int[] seq = extractor.extractSequence(BinaryImage.of(img));
 
         // Debug logging for extraction
         if (logger.isDebugEnabled()) {
@@ -242,8 +333,9 @@ public class DigitMarkovModel {
             logger.trace("Classifying sequence: " + java.util.Arrays.toString(seq));
         }
 
+        double[] allLogL = logLikelihoods(seq);
         for (int d = 0; d < NUM_DIGITS; d++) {
-            double logL = logLikelihood(d, seq);
+            double logL = allLogL[d];
             logLikelihoods[d] = logL;
             surprises[d] = -logL;
 
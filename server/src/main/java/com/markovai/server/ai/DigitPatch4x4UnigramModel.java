@@ -1,36 +1,30 @@
 package com.markovai.server.ai;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class DigitPatch4x4UnigramModel {
 
-    // For each digit 0..9, map: patchSymbol -> count
-    private final Map<Integer, Integer>[] countsPerDigit;
+    private static final int NUM_DIGITS = 10;
+    private static final int NUM_SYMBOLS = 65536;
 
-    // Total patch counts per digit
-    private final int[] totalPatchesPerDigit;
+    // Dense per-digit symbol counts (primitive, no boxing)
+    private final Patch4x4CountTable counts = new Patch4x4CountTable();
 
-    // After finalize: patchSymbol -> log P(patch | digit)
-    private final Map<Integer, Double>[] logProbPerDigit;
+    // After finalize: compact dictionary of the symbols seen in training.
+    // symbolRow[symbol] is the row of that symbol in logProbRows; row 0 is the
+    // shared row for unseen symbols.
+    private final int[] symbolRow = new int[NUM_SYMBOLS];
 
-    // Log probability for unseen symbols per digit
-    private final double[] logProbUnseen;
+    // Symbol-major log P(patch | digit): [row * NUM_DIGITS + digit], so the 10
+    // digit values of one symbol are adjacent.
+    private double[] logProbRows = new double[NUM_DIGITS];
 
     // Laplace smoothing constant
     private final double alpha = 1.0;
 
-    @SuppressWarnings("unchecked")
     public DigitPatch4x4UnigramModel() {
-        countsPerDigit = new HashMap[10];
-        totalPatchesPerDigit = new int[10];
-        logProbPerDigit = new HashMap[10];
-        logProbUnseen = new double[10];
-
-        for (int d = 0; d < 10; d++) {
-            countsPerDigit[d] = new HashMap<>();
-            logProbPerDigit[d] = new HashMap<>();
-        }
     }
 
     public void trainOnImage(int digitLabel, int[][] binaryImage) {
@@ -39,13 +33,43 @@ public class DigitPatch4x4UnigramModel {
         for (int r = 0; r < 7; r++) {
             for (int c = 0; c < 7; c++) {
                 int symbol = encodePatch(binaryImage, r * 4, c * 4);
-
-                countsPerDigit[digitLabel].merge(symbol, 1, (a, b) -> a + b);
-                totalPatchesPerDigit[digitLabel]++;
+                counts.add(digitLabel, symbol);
             }
         }
     }
 
+    public void trainOnImage(int digitLabel, BinaryImage binaryImage) {
+        for (int symbol : extractSymbols(binaryImage)) {
+            counts.add(digitLabel, symbol);
+        }
+    }
+
+    /**
+     * Parallel equivalent of calling {@link #trainOnImage} for every image and
+     * then {@link #finalizeProbabilities()}. Each worker counts into a private
+     * {@link Patch4x4CountTable}; the tables are merged with a tree reduction.
+     */
+    public void trainParallel(List<DigitImage> trainingData, ForkJoinPool pool) {
+        Patch4x4CountTable merged = ShardedReduction.run(pool, trainingData.size(),
+                Patch4x4CountTable::new,
+                (table, i) -> countImage(table, trainingData.get(i)),
+                Patch4x4CountTable::mergeFrom);
+        addCounts(merged);
+        finalizeProbabilities();
+    }
+
+    private static void countImage(Patch4x4CountTable table, DigitImage img) {
+        if (img.label < 0 || img.label >= 10)
+            return;
+        for (int symbol : extractSymbols(BinaryImage.of(img))) {
+            table.add(img.label, symbol);
+        }
+    }
+
+    public void addCounts(Patch4x4CountTable table) {
+        counts.mergeFrom(table);
+    }
+
     public static int encodePatch(int[][] binaryImage, int startRow, int startCol) {
         int symbol = 0;
         for (int pr = 0; pr < 4; pr++) {
@@ -62,31 +86,76 @@ public class DigitPatch4x4UnigramModel {
         return symbol;
     }
 
-    public double logProbForSymbol(int digit, int symbol) {
-        Double lp = logProbPerDigit[digit].get(symbol);
-        if (lp == null) {
-            return logProbUnseen[digit];
+    public static int encodePatch(BinaryImage binaryImage, int startRow, int startCol) {
+        return binaryImage.patch4x4(startRow, startCol);
+    }
+
+    /**
+     * The 49 non-overlapping 4x4 patch symbols of an image, row-major.
+     */
+    public static int[] extractSymbols(BinaryImage binaryImage) {
+        int[] symbols = new int[49];
+        int idx = 0;
+        for (int r = 0; r < 7; r++) {
+            for (int c = 0; c < 7; c++) {
+                symbols[idx++] = binaryImage.patch4x4(r * 4, c * 4);
+            }
         }
-        return lp;
+        return symbols;
+    }
+
+    public double logProbForSymbol(int digit, int symbol) {
+        return logProbRows[symbolRow[symbol] * NUM_DIGITS + digit];
+    }
+
+    /**
+     * Copies log P(symbol | digit) for all 10 digits into {@code out[0..9]}.
+     */
+    public void logProbsForSymbol(int symbol, double[] out) {
+        System.arraycopy(logProbRows, symbolRow[symbol] * NUM_DIGITS, out, 0, NUM_DIGITS);
     }
 
     public void finalizeProbabilities() {
         // Vocabulary size is 65536 (all possible 4x4 binary patterns)
         double vocabSize = 65536.0;
 
-        for (int d = 0; d < 10; d++) {
-            int total = totalPatchesPerDigit[d];
-            double denom = total + alpha * vocabSize;
+        double[] denom = new double[NUM_DIGITS];
+        for (int d = 0; d < NUM_DIGITS; d++) {
+            denom[d] = counts.getTotal(d) + alpha * vocabSize;
+        }
 
-            // P(unseen) = alpha / denom
-            logProbUnseen[d] = Math.log(alpha / denom);
+        // Assign a row to every symbol seen for at least one digit
+        Arrays.fill(symbolRow, 0);
+        int rows = 1;
+        for (int s = 0; s < NUM_SYMBOLS; s++) {
+            for (int d = 0; d < NUM_DIGITS; d++) {
+                if (counts.getCount(d, s) > 0) {
+                    symbolRow[s] = rows++;
+                    break;
+                }
+            }
+        }
 
-            for (Map.Entry<Integer, Integer> entry : countsPerDigit[d].entrySet()) {
-                int count = entry.getValue();
-                double p = (count + alpha) / denom;
-                logProbPerDigit[d].put(entry.getKey(), Math.log(p));
+        double[] table = new double[rows * NUM_DIGITS];
+        for (int d = 0; d < NUM_DIGITS; d++) {
+            // P(unseen) = alpha / denom
+            table[d] = Math.log(alpha / denom[d]);
+        }
+        for (int s = 0; s < NUM_SYMBOLS; s++) {
+            int row = symbolRow[s];
+            if (row == 0)
+                continue;
+            for (int d = 0; d < NUM_DIGITS; d++) {
+                int count = counts.getCount(d, s);
+                if (count > 0) {
+                    double p = (count + alpha) / denom[d];
+                    table[row * NUM_DIGITS + d] = Math.log(p);
+                } else {
+                    table[row * NUM_DIGITS + d] = table[d];
+                }
             }
         }
+        logProbRows = table;
     }
 
     public double[] sumLogLikelihoodsForImage(int[][] binaryImage) {
@@ -96,18 +165,48 @@ public class DigitPatch4x4UnigramModel {
             for (int c = 0; c < 7; c++) {
                 int symbol = encodePatch(binaryImage, r * 4, c * 4);
 
+                int base = symbolRow[symbol] * NUM_DIGITS;
                 for (int d = 0; d < 10; d++) {
-                    Double lp = logProbPerDigit[d].get(symbol);
-                    if (lp == null) {
-                        lp = logProbUnseen[d];
-                    }
-                    sumLogL[d] += lp;
+                    sumLogL[d] += logProbRows[base + d];
                 }
             }
         }
         return sumLogL;
     }
 
+    public double[] sumLogLikelihoodsForImage(BinaryImage binaryImage) {
+        double[] sumLogL = new double[10];
+        for (int symbol : extractSymbols(binaryImage)) {
+            int base = symbolRow[symbol] * NUM_DIGITS;
+            for (int d = 0; d < 10; d++) {
+                sumLogL[d] += logProbRows[base + d];
+            }
+        }
+        return sumLogL;
+    }
+
+    /**
+     * Number of distinct symbols seen in training (size of the compact
+     * dictionary, excluding the shared unseen row).
+     */
+    public int getNumSeenSymbols() {
+        return logProbRows.length / NUM_DIGITS - 1;
+    }
+
+    /**
+     * Approximate heap bytes of the lookup structures used for scoring.
+     */
+    public long getLookupFootprintBytes() {
+        return (long) symbolRow.length * Integer.BYTES + (long) logProbRows.length * Double.BYTES;
+    }
+
+    /**
+     * Approximate heap bytes of the training count tables.
+     */
+    public long getCountFootprintBytes() {
+        return (long) NUM_SYMBOLS * NUM_DIGITS * Integer.BYTES + NUM_DIGITS * Integer.BYTES;
+    }
+
     public int getNumPatchesPerImage() {
         return 49;
     }
@@ -0,0 +1,176 @@
+package com.markovai.server.ai;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-image cache of extracted features, shared by every node of a factor
+ * graph during one classification + feedback cycle. Each feature is computed
+ * lazily on first use and then reused, so an image is binarized and each
+ * sequence extracted at most once.
+ *
+ * Returned arrays are shared and must be treated as read-only. Not thread
+ * safe; one context belongs to one image being processed by one thread.
+ */
+public class ImageFeatureContext {
+
+    private static final int GRID_SIZE = 14;
+    private static final int NUM_STATES = 16;
+
+    private final DigitImage image;
+
+    private BinaryImage binary;
+    private int[] patchGrid;
+    private int[] patch4x4Symbols;
+    private Map<Object, int[]> sequenceByExtractor;
+    private Map<MultiSequenceExtractor, List<int[]>> sequencesByExtractor;
+    private Map<MultiSequenceExtractor, int[]> transitionIdsByExtractor;
+
+    public ImageFeatureContext(DigitImage image) {
+        this.image = image;
+    }
+
+    public DigitImage getImage() {
+        return image;
+    }
+
+    public BinaryImage getBinaryImage() {
+        if (binary == null) {
+            binary = BinaryImage.of(image);
+        }
+        return binary;
+    }
+
+    /**
+     * Row-major 14x14 grid of 2x2 patch symbols; identical to the output of
+     * {@link PatchSequenceExtractor}.
+     */
+    public int[] getPatchGrid() {
+        if (patchGrid == null) {
+            BinaryImage b = getBinaryImage();
+            int[] grid = new int[GRID_SIZE * GRID_SIZE];
+            int idx = 0;
+            for (int r = 0; r < GRID_SIZE; r++) {
+                for (int c = 0; c < GRID_SIZE; c++) {
+                    grid[idx++] = b.patch2x2(r, c);
+                }
+            }
+            patchGrid = grid;
+        }
+        return patchGrid;
+    }
+
+    /**
+     * The 49 non-overlapping 4x4 patch symbols, row-major.
+     */
+    public int[] getPatch4x4Symbols() {
+        if (patch4x4Symbols == null) {
+            patch4x4Symbols = DigitPatch4x4UnigramModel.extractSymbols(getBinaryImage());
+        }
+        return patch4x4Symbols;
+    }
+
+    public int[] getSequence(SequenceExtractor extractor) {
+        // Exact class: a subclass may override the extraction
+        if (extractor.getClass() == PatchSequenceExtractor.class) {
+            return getPatchGrid();
+        }
+        if (sequenceByExtractor == null) {
+            sequenceByExtractor = new IdentityHashMap<>(2);
+        }
+        return sequenceByExtractor.computeIfAbsent(extractor,
+                e -> ((SequenceExtractor) e).extractSequence(getBinaryImage()));
+    }
+
+    public List<int[]> getSequences(MultiSequenceExtractor extractor) {
+        if (sequencesByExtractor == null) {
+            sequencesByExtractor = new IdentityHashMap<>(2);
+        }
+        List<int[]> sequences = sequencesByExtractor.get(extractor);
+        if (sequences == null) {
+            // The standard row/column extractors are slices of the shared 2x2
+            // grid; subclasses may override the extraction, so match exactly
+            if (extractor.getClass() == RowPatchSequenceExtractor.class) {
+                sequences = gridRows();
+            } else if (extractor.getClass() == ColumnPatchSequenceExtractor.class) {
+                sequences = gridColumns();
+            } else {
+                sequences = extractor.extractSequences(getBinaryImage());
+            }
+            sequencesByExtractor.put(extractor, sequences);
+        }
+        return sequences;
+    }
+
+    /**
+     * Transition ids ({@code from * 16 + to}) over all sequences of the given
+     * extractor, in sequence order. Out-of-range states are skipped.
+     */
+    public int[] getTransitionIds(MultiSequenceExtractor extractor) {
+        if (transitionIdsByExtractor == null) {
+            transitionIdsByExtractor = new IdentityHashMap<>(2);
+        }
+        int[] tids = transitionIdsByExtractor.get(extractor);
+        if (tids == null) {
+            tids = toTransitionIds(getSequences(extractor));
+            transitionIdsByExtractor.put(extractor, tids);
+        }
+        return tids;
+    }
+
+    public static int[] toTransitionIds(List<int[]> sequences) {
+        // Count total transitions first
+        int totalTransitions = 0;
+        for (int[] seq : sequences) {
+            if (seq.length > 1) {
+                totalTransitions += (seq.length - 1);
+            }
+        }
+
+        int[] tids = new int[totalTransitions];
+        int idx = 0;
+        for (int[] seq : sequences) {
+            for (int i = 0; i < seq.length - 1; i++) {
+                int from = seq[i];
+                int to = seq[i + 1];
+                // Validate range just in case
+                if (from >= 0 && from < NUM_STATES && to >= 0 && to < NUM_STATES) {
+                    tids[idx++] = from * NUM_STATES + to;
+                }
+            }
+        }
+        // Resize if any skipped (shouldn't happen with correct logic)
+        if (idx != totalTransitions) {
+            int[] result = new int[idx];
+            System.arraycopy(tids, 0, result, 0, idx);
+            return result;
+        }
+        return tids;
+    }
+
+    private List<int[]> gridRows() {
+        int[] grid = getPatchGrid();
+        List<int[]> rows = new ArrayList<>(GRID_SIZE);
+        for (int r = 0; r < GRID_SIZE; r++) {
+            int[] rowSeq = new int[GRID_SIZE];
+            System.arraycopy(grid, r * GRID_SIZE, rowSeq, 0, GRID_SIZE);
+            rows.add(rowSeq);
+        }
+        return rows;
+    }
+
+    private List<int[]> gridColumns() {
+        int[] grid = getPatchGrid();
+        List<int[]> cols = new ArrayList<>(GRID_SIZE);
+        for (int c = 0; c < GRID_SIZE; c++) {
+            int[] colSeq = new int[GRID_SIZE];
+            for (int r = 0; r < GRID_SIZE; r++) {
+                colSeq[r] = grid[r * GRID_SIZE + c];
+            }
+            cols.add(colSeq);
+        }
+        return cols;
+    }
+}
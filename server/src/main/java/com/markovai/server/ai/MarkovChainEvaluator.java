@@ -1,9 +1,31 @@
 package com.markovai.server.ai;
 
+import java.util.List;
+
 public interface MarkovChainEvaluator {
     String getChainType();
 
     String getChainVersion();
 
     double[] computeScores(byte[] binary28x28);
+
+    default double[] computeScores(BinaryImage binaryImage) {
+        return computeScores(binaryImage.toFlatBytes());
+    }
+
+    /**
+     * Scores an image using features already memoized in the context.
+     */
+    default double[] computeScores(ImageFeatureContext ctx) {
+        return computeScores(ctx.getBinaryImage());
+    }
+
+    /**
+     * Scores a batch of images into {@code out[i][0..9]}.
+     */
+    default void computeScoresBatch(List<ImageFeatureContext> batch, double[][] out) {
+        for (int i = 0; i < batch.size(); i++) {
+            System.arraycopy(computeScores(batch.get(i)), 0, out[i], 0, out[i].length);
+        }
+    }
 }
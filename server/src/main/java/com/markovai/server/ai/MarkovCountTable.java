@@ -0,0 +1,71 @@
+package com.markovai.server.ai;
+
+/**
+ * Flat primitive count tables for the 10 per-digit Markov chains of a
+ * {@link DigitMarkovModel}. Used both as the model's own storage and as the
+ * private per-worker table during parallel training.
+ */
+public class MarkovCountTable {
+    private static final int NUM_DIGITS = 10;
+
+    private final int numStates;
+    // [digit * numStates + state]
+    private final long[] initialCounts;
+    // [(digit * numStates + prevState) * numStates + nextState]
+    private final long[] transitionCounts;
+
+    public MarkovCountTable(int numStates) {
+        this.numStates = numStates;
+        this.initialCounts = new long[NUM_DIGITS * numStates];
+        this.transitionCounts = new long[NUM_DIGITS * numStates * numStates];
+    }
+
+    public int getNumStates() {
+        return numStates;
+    }
+
+    public void update(int d, int[] seq) {
+        if (seq.length == 0)
+            return;
+
+        // Update initial state count
+        if (seq[0] >= 0 && seq[0] < numStates) {
+            initialCounts[d * numStates + seq[0]]++;
+        }
+
+        // Update transitions
+        int digitBase = d * numStates * numStates;
+        for (int t = 1; t < seq.length; t++) {
+            int prev = seq[t - 1];
+            int cur = seq[t];
+            if (prev >= 0 && prev < numStates && cur >= 0 && cur < numStates) {
+                transitionCounts[digitBase + prev * numStates + cur]++;
+            }
+        }
+    }
+
+    /**
+     * Adds all counts of {@code other} into this table. Counts are integers, so
+     * merging in any order gives exactly the sequential result.
+     */
+    public void mergeFrom(MarkovCountTable other) {
+        if (other.numStates != numStates) {
+            throw new IllegalArgumentException(
+                    "Cannot merge count tables with " + other.numStates + " and " + numStates + " states");
+        }
+        for (int i = 0; i < initialCounts.length; i++) {
+            initialCounts[i] += other.initialCounts[i];
+        }
+        for (int i = 0; i < transitionCounts.length; i++) {
+            transitionCounts[i] += other.transitionCounts[i];
+        }
+    }
+
+    public long getInitialCount(int digit, int state) {
+        return initialCounts[digit * numStates + state];
+    }
+
+    public long getTransitionCount(int digit, int prevState, int nextState) {
+        return transitionCounts[(digit * numStates + prevState) * numStates + nextState];
+    }
+}
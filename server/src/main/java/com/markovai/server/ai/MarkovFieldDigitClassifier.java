@@ -1,31 +1,92 @@
 package com.markovai.server.ai;
 
+import com.markovai.server.ai.hierarchy.ColumnMarkovNode;
+import com.markovai.server.ai.hierarchy.CompiledFactorGraph;
 import com.markovai.server.ai.hierarchy.DigitFactorNode;
-import com.markovai.server.ai.hierarchy.NodeResult;
+import com.markovai.server.ai.hierarchy.FeedbackDelta;
+import com.markovai.server.ai.hierarchy.FeedbackEventLog;
+import com.markovai.server.ai.hierarchy.FeedbackMetrics;
+import com.markovai.server.ai.hierarchy.FeedbackSnapshot;
+import com.markovai.server.ai.hierarchy.FeedbackStateFile;
+import com.markovai.server.ai.hierarchy.Patch4x4Node;
+import com.markovai.server.ai.hierarchy.RowMarkovNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-
-import com.markovai.server.ai.hierarchy.WeightedSumNode;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MarkovFieldDigitClassifier {
     private static final Logger logger = LoggerFactory.getLogger(MarkovFieldDigitClassifier.class);
 
+    // Images scored per batch when feedback learning is frozen
+    private static final int EVAL_BATCH_SIZE = 256;
+    // Images per feedback buffer within a mini-batch
+    private static final int MINI_BATCH_SHARD_SIZE = 4;
+
     private final DigitFactorNode root;
+    // Compiled once; the graph must be fully wired before construction
+    private final CompiledFactorGraph plan;
+    // Pool for frozen evaluation; null evaluates sequentially
+    private ForkJoinPool evaluationPool;
+    // Feedback state checkpoints while learning; null disables them
+    private Path checkpointDir;
+    private int checkpointEveryNImages;
+    // Records every feedback decision while learning; null disables it
+    private FeedbackEventLog eventLog;
 
     public MarkovFieldDigitClassifier(DigitFactorNode root) {
         this.root = root;
+        this.plan = CompiledFactorGraph.compile(root);
+        // Frozen evaluation is order independent; -DparallelEval=false keeps it sequential
+        this.evaluationPool = "false".equalsIgnoreCase(System.getProperty("parallelEval")) ? null
+                : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Sets the pool used to evaluate batches in parallel while no node is
+     * learning. {@code null} evaluates sequentially.
+     */
+    public void setEvaluationPool(ForkJoinPool pool) {
+        this.evaluationPool = pool;
+    }
+
+    /**
+     * Checkpoints the learned feedback state into {@code dir} every
+     * {@code everyNImages} learning images (0: only at the end of each
+     * learning pass). {@code null} disables checkpointing.
+     */
+    public void setFeedbackCheckpointing(Path dir, int everyNImages) {
+        this.checkpointDir = dir;
+        this.checkpointEveryNImages = everyNImages;
+    }
+
+    /**
+     * Appends every feedback decision of the learning passes to {@code log}
+     * (and compacts it when due), so the learned state can be rebuilt with
+     * {@link #replayFeedbackEventLog}. {@code null} stops recording.
+     */
+    public void setFeedbackEventLog(FeedbackEventLog log) {
+        this.eventLog = log;
     }
 
     public ClassificationResult classifyWithDetails(DigitImage img) {
-        // Compute bottom-up results
-        Map<String, NodeResult> results = new HashMap<>();
-        NodeResult rootRes = computeRecursive(root, img, results);
+        return classifyWithDetails(new ImageFeatureContext(img));
+    }
 
-        double[] totalLogL = rootRes.logLikelihoodsPerDigit;
+    /**
+     * Classifies using a per-image feature context shared by all nodes; pass
+     * the same context to the feedback calls to reuse the extracted features.
+     */
+    public ClassificationResult classifyWithDetails(ImageFeatureContext ctx) {
+        // Compute bottom-up results
+        double[] totalLogL = plan.evaluate(ctx);
         int bestDigit = -1;
         double bestLogL = Double.NEGATIVE_INFINITY;
 
@@ -38,47 +99,94 @@ public class MarkovFieldDigitClassifier {
         return new ClassificationResult(bestDigit, totalLogL, null);
     }
 
+    /**
+     * Classifies a batch of images with the batch scoring path of every node.
+     * Only valid while no node is learning, since all images are scored
+     * against the same feedback state.
+     */
+    public ClassificationResult[] classifyBatch(List<ImageFeatureContext> batch) {
+        double[][] scores = plan.evaluateBatch(batch);
+        ClassificationResult[] results = new ClassificationResult[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            double[] totalLogL = scores[i];
+            int bestDigit = -1;
+            double bestLogL = Double.NEGATIVE_INFINITY;
+            for (int d = 0; d < 10; d++) {
+                if (totalLogL[d] > bestLogL) {
+                    bestLogL = totalLogL[d];
+                    bestDigit = d;
+                }
+            }
+            results[i] = new ClassificationResult(bestDigit, totalLogL, null);
+        }
+        return results;
+    }
+
     public int classify(DigitImage img) {
         return classifyWithDetails(img).getPredictedDigit();
     }
 
-    private NodeResult computeRecursive(DigitFactorNode node, DigitImage img, Map<String, NodeResult> memo) {
-        if (memo.containsKey(node.getId())) {
-            return memo.get(node.getId());
-        }
+    public double evaluateAccuracy(List<DigitImage> testData, boolean isTestSet) {
+        return evaluateAccuracy(testData, isTestSet, true);
+    }
 
-        // Compute children first
-        Map<String, NodeResult> childResults = new HashMap<>();
-        for (DigitFactorNode child : node.getChildren()) {
-            boolean skip = false;
-            // Optimization: If parent is WeightedSumNode and weight is 0, skip calculation
-            if (node instanceof WeightedSumNode) {
-                WeightedSumNode wsn = (WeightedSumNode) node;
-                if (wsn.getWeight(child.getId()) == 0.0) {
-                    skip = true;
-                }
-            }
+    /**
+     * Learns on {@code data} as the continuation of the previous learning
+     * pass: feedback goes on from the current state and no epoch decay is
+     * applied first. Learning a prefix of a list with
+     * {@link #evaluateAccuracy} and then the rest with this method yields
+     * the state one pass over the whole list would (with mini-batches, when
+     * the prefix is a whole number of batches), so sweeps over growing
+     * prefixes of one shuffle only learn each image once. Returns the online
+     * accuracy over {@code data}.
+     */
+    public double continueLearning(List<DigitImage> data) {
+        return evaluateAccuracy(data, false, false);
+    }
 
-            if (!skip) {
-                childResults.put(child.getId(), computeRecursive(child, img, memo));
-            }
+    private double evaluateAccuracy(List<DigitImage> testData, boolean isTestSet, boolean newEpoch) {
+        logger.info("Evaluating MRF accuracy on {} images (isTestSet={})...", testData.size(), isTestSet);
+
+        Patch4x4Node p4Node = findPatch4x4Node();
+
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+
+        checkNoLeakage(isTestSet, p4Node, rowNode, colNode);
+        if (newEpoch) {
+            applyEpochDecay(isTestSet, p4Node, rowNode, colNode);
         }
 
-        // Compute this node
-        NodeResult res = node.computeForImage(img, childResults);
-        memo.put(node.getId(), res);
-        return res;
-    }
+        boolean frozen = (p4Node == null || !p4Node.getFeedbackConfig().learningEnabled)
+                && (rowNode == null || !rowNode.getFeedbackConfig().learningEnabled)
+                && (colNode == null || !colNode.getFeedbackConfig().learningEnabled);
+        if (frozen) {
+            // No feedback state changes, so image order does not matter
+            return evaluateFrozenBatched(testData, p4Node != null && p4Node.getFeedbackConfig().enabled);
+        }
 
-    public double evaluateAccuracy(List<DigitImage> testData, boolean isTestSet) {
-        logger.info("Evaluating MRF accuracy on {} images (isTestSet={})...", testData.size(), isTestSet);
+        int miniBatchSize = p4Node != null ? p4Node.getFeedbackConfig().miniBatchSize : 0;
+        if (miniBatchSize > 1) {
+            return evaluateMiniBatched(testData, miniBatchSize, p4Node, rowNode, colNode);
+        }
 
-        com.markovai.server.ai.hierarchy.Patch4x4Node p4Node = findPatch4x4Node();
+        EvalCounts counts = new EvalCounts();
+        for (DigitImage img : testData) {
+            scoreAndLearn(img, p4Node, rowNode, colNode, counts);
+            afterImages(counts.total, 1, testData.size());
+        }
+        if (checkpointDir != null) {
+            checkpointFeedback();
+        }
 
-        com.markovai.server.ai.hierarchy.RowMarkovNode rowNode = findRowMarkovNode();
-        com.markovai.server.ai.hierarchy.ColumnMarkovNode colNode = findColumnMarkovNode();
+        return logEvaluationComplete(counts.correct, counts.total,
+                p4Node != null && p4Node.getFeedbackConfig().enabled, counts.p4Updates, counts.rowUpdates,
+                counts.colUpdates, 0);
+    }
 
-        // LEAKAGE GUARD
+    // LEAKAGE GUARD: no node may learn while evaluating the test set
+    private static void checkNoLeakage(boolean isTestSet, Patch4x4Node p4Node,
+            RowMarkovNode rowNode, ColumnMarkovNode colNode) {
         if (isTestSet) {
             if (p4Node != null && p4Node.getFeedbackConfig().learningEnabled) {
                 throw new IllegalStateException("LEAKAGE PREVENTION: Patch4x4 learning active on TEST set.");
@@ -90,96 +198,666 @@ public class MarkovFieldDigitClassifier {
                 throw new IllegalStateException("LEAKAGE PREVENTION: ColumnMarkov learning active on TEST set.");
             }
         }
+    }
+
+    // Try to apply decay at start of epoch/eval if applicable
+    // Only allow decay if this is NOT a test set (i.e. isLearningAllowed =
+    // !isTestSet)
+    private void applyEpochDecay(boolean isTestSet, Patch4x4Node p4Node,
+            RowMarkovNode rowNode, ColumnMarkovNode colNode) {
+        if (p4Node != null && p4Node.applyDecayIfEnabled(!isTestSet)) {
+            recordEvent(log -> log.appendEpochDecay(FeedbackEventLog.NodeKind.PATCH4X4));
+        }
+        if (rowNode != null && rowNode.applyDecayIfEnabled(!isTestSet)) {
+            recordEvent(log -> log.appendEpochDecay(FeedbackEventLog.NodeKind.ROW));
+        }
+        if (colNode != null && colNode.applyDecayIfEnabled(!isTestSet)) {
+            recordEvent(log -> log.appendEpochDecay(FeedbackEventLog.NodeKind.COLUMN));
+        }
+    }
 
-        // Try to apply decay at start of epoch/eval if applicable
-        // Only allow decay if this is NOT a test set (i.e. isLearningAllowed =
-        // !isTestSet)
+    // Progress every 1000 images and a checkpoint every checkpointEveryNImages,
+    // for each multiple crossed by the last {@code added} of {@code total} images
+    private void afterImages(int total, int added, int dataSize) {
+        if (total / 1000 > (total - added) / 1000) {
+            logger.info("MRF Evaluated {}/{}...", total / 1000 * 1000, dataSize);
+        }
+        if (checkpointDir != null && checkpointEveryNImages > 0
+                && total / checkpointEveryNImages > (total - added) / checkpointEveryNImages) {
+            checkpointFeedback();
+        }
+    }
+
+    // Scores one image and applies its feedback to every node, counting it
+    // for every node that is learning
+    private void scoreAndLearn(DigitImage img, Patch4x4Node p4Node, RowMarkovNode rowNode,
+            ColumnMarkovNode colNode, EvalCounts counts) {
+        // Features extracted for scoring are reused by the feedback updates
+        ImageFeatureContext ctx = new ImageFeatureContext(img);
+        ClassificationResult result = classifyWithDetails(ctx);
+        int trueDigit = img.label;
+        boolean wasCorrect = result.getPredictedDigit() == trueDigit;
+        if (wasCorrect) {
+            counts.correct++;
+        }
+        counts.total++;
+
+        // Feedback Loop
         if (p4Node != null) {
-            p4Node.applyDecayIfEnabled(!isTestSet);
+            counts.addLearningImages(1, p4Node, rowNode, colNode);
+            double[] scores = result.getLogLikelihoods();
+            int rivalDigit = rivalDigit(scores, trueDigit);
+            double margin = scores[trueDigit] - (rivalDigit >= 0 ? scores[rivalDigit] : Double.NEGATIVE_INFINITY);
+
+            // Patch4x4 Feedback
+            p4Node.applyFeedback(ctx, trueDigit, rivalDigit, wasCorrect, margin);
+
+            // Row Feedback
+            if (rowNode != null) {
+                rowNode.applyFeedback(ctx, trueDigit, rivalDigit, wasCorrect, margin);
+            }
+
+            // Column Feedback
+            if (colNode != null) {
+                colNode.applyFeedback(ctx, trueDigit, rivalDigit, wasCorrect, margin);
+            }
+
+            if (eventLog != null) {
+                recordFeedback(ctx, p4Node, rowNode, colNode, rivalDigit, wasCorrect, margin, false);
+                compactEventLogIfDue(p4Node, rowNode, colNode);
+            }
         }
-        if (rowNode != null) {
-            rowNode.applyDecayIfEnabled(!isTestSet);
+    }
+
+    /**
+     * Data-parallel learning pass over {@code data}: the images are split
+     * into one contiguous shard per worker classifier, and in each round
+     * every worker starts from this classifier's feedback state, learns
+     * serially on its next {@code averageEveryNImages} images and the
+     * workers' states are averaged back into this classifier (see
+     * {@link FeedbackSnapshot#average}).
+     *
+     * Workers must be built from the same graph config and base models;
+     * their feedback configs are replaced by this classifier's. Rounds run
+     * on the evaluation pool, and workers are averaged in list order, so
+     * the result depends only on the data order, the number of workers and
+     * {@code averageEveryNImages}. Returns the online accuracy over all
+     * workers. Not recorded by the feedback event log. Like
+     * {@link #evaluateAccuracy}, refuses to learn when {@code isTestSet}.
+     */
+    public double evaluateAccuracyDataParallel(List<DigitImage> data, boolean isTestSet,
+            List<MarkovFieldDigitClassifier> workers, int averageEveryNImages) {
+        if (workers.isEmpty() || averageEveryNImages < 1) {
+            throw new IllegalArgumentException("Need at least one worker and averageEveryNImages >= 1");
         }
-        if (colNode != null) {
-            colNode.applyDecayIfEnabled(!isTestSet);
+        if (eventLog != null) {
+            throw new IllegalStateException("The feedback event log cannot record data-parallel learning");
+        }
+        logger.info("Evaluating MRF accuracy on {} images (isTestSet={}) with {} workers, averaging every {} "
+                + "images...", data.size(), isTestSet, workers.size(), averageEveryNImages);
+
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+        if (p4Node == null) {
+            throw new IllegalStateException("Data-parallel learning needs a Patch4x4 node");
+        }
+        checkNoLeakage(isTestSet, p4Node, rowNode, colNode);
+        applyEpochDecay(isTestSet, p4Node, rowNode, colNode);
+        for (MarkovFieldDigitClassifier worker : workers) {
+            worker.findPatch4x4Node().setFeedbackConfig(p4Node.getFeedbackConfig());
+            if (rowNode != null) {
+                worker.findRowMarkovNode().setFeedbackConfig(rowNode.getFeedbackConfig());
+            }
+            if (colNode != null) {
+                worker.findColumnMarkovNode().setFeedbackConfig(colNode.getFeedbackConfig());
+            }
         }
 
+        int numWorkers = workers.size();
+        int shardSize = (data.size() + numWorkers - 1) / numWorkers;
         int correct = 0;
         int total = 0;
-        int p4Updates = 0;
-        int rowUpdates = 0;
-        int colUpdates = 0;
+        for (int offset = 0; offset < shardSize; offset += averageEveryNImages) {
+            FeedbackSnapshot p4Base = p4Node.snapshot();
+            FeedbackSnapshot rowBase = rowNode != null ? rowNode.snapshot() : null;
+            FeedbackSnapshot colBase = colNode != null ? colNode.snapshot() : null;
+
+            List<ForkJoinTask<WorkerRound>> rounds = new ArrayList<>(numWorkers);
+            for (int w = 0; w < numWorkers; w++) {
+                int shardEnd = Math.min(data.size(), (w + 1) * shardSize);
+                int from = w * shardSize + offset;
+                int to = Math.min(shardEnd, from + averageEveryNImages);
+                if (from < to) {
+                    MarkovFieldDigitClassifier worker = workers.get(w);
+                    rounds.add(ForkJoinTask.adapt(() -> worker.learnRound(data.subList(from, to), p4Base, rowBase,
+                            colBase)));
+                }
+            }
+            if (evaluationPool != null) {
+                rounds.forEach(evaluationPool::execute);
+            }
+            List<WorkerRound> results = new ArrayList<>(rounds.size());
+            for (ForkJoinTask<WorkerRound> round : rounds) {
+                results.add(evaluationPool != null ? round.join() : round.invoke());
+            }
 
-        for (DigitImage img : testData) {
-            ClassificationResult result = classifyWithDetails(img);
-            int predicted = result.getPredictedDigit();
-            int trueDigit = img.label;
+            List<FeedbackSnapshot> p4States = new ArrayList<>();
+            List<FeedbackSnapshot> rowStates = new ArrayList<>();
+            List<FeedbackSnapshot> colStates = new ArrayList<>();
+            int roundImages = 0;
+            for (WorkerRound r : results) {
+                correct += r.correct;
+                roundImages += r.total;
+                p4States.add(r.p4State);
+                rowStates.add(r.rowState);
+                colStates.add(r.colState);
+            }
+            p4Node.restore(FeedbackSnapshot.average(p4Base, p4States));
+            if (rowNode != null) {
+                rowNode.restore(FeedbackSnapshot.average(rowBase, rowStates));
+            }
+            if (colNode != null) {
+                colNode.restore(FeedbackSnapshot.average(colBase, colStates));
+            }
 
-            if (predicted == trueDigit) {
-                correct++;
+            total += roundImages;
+            afterImages(total, roundImages, data.size());
+        }
+        if (checkpointDir != null) {
+            checkpointFeedback();
+        }
+
+        double accuracy = (double) correct / total;
+        logger.info("MRF Evaluation complete. Accuracy: {} ({}/{}) [Workers: {}, AverageEvery: {}]",
+                String.format("%.4f", accuracy), correct, total, numWorkers, averageEveryNImages);
+        return accuracy;
+    }
+
+    /**
+     * One worker's share of a data-parallel round: its accuracy counts and
+     * the feedback state it reached.
+     */
+    private static final class WorkerRound {
+        int correct;
+        int total;
+        FeedbackSnapshot p4State;
+        FeedbackSnapshot rowState;
+        FeedbackSnapshot colState;
+    }
+
+    // Restores the round's starting state, then learns serially on images
+    private WorkerRound learnRound(List<DigitImage> images, FeedbackSnapshot p4Base,
+            FeedbackSnapshot rowBase, FeedbackSnapshot colBase) {
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = rowBase != null ? findRowMarkovNode() : null;
+        ColumnMarkovNode colNode = colBase != null ? findColumnMarkovNode() : null;
+        p4Node.restore(p4Base);
+        if (rowNode != null) {
+            rowNode.restore(rowBase);
+        }
+        if (colNode != null) {
+            colNode.restore(colBase);
+        }
+
+        EvalCounts counts = new EvalCounts();
+        for (DigitImage img : images) {
+            scoreAndLearn(img, p4Node, rowNode, colNode, counts);
+        }
+        WorkerRound round = new WorkerRound();
+        round.correct = counts.correct;
+        round.total = counts.total;
+        round.p4State = p4Node.snapshot();
+        round.rowState = rowNode != null ? rowNode.snapshot() : null;
+        round.colState = colNode != null ? colNode.snapshot() : null;
+        return round;
+    }
+
+    // Highest-scoring digit other than trueDigit, -1 if none scores above -inf
+    private static int rivalDigit(double[] scores, int trueDigit) {
+        int rivalDigit = -1;
+        double rivalScore = Double.NEGATIVE_INFINITY;
+        for (int d = 0; d < 10; d++) {
+            if (d == trueDigit)
+                continue;
+            if (scores[d] > rivalScore) {
+                rivalScore = scores[d];
+                rivalDigit = d;
             }
-            total++;
-
-            // Feedback Loop
-            if (p4Node != null) {
-                double[] scores = result.getLogLikelihoods();
-                int rivalDigit = -1;
-                double rivalScore = Double.NEGATIVE_INFINITY;
-                for (int d = 0; d < 10; d++) {
-                    if (d == trueDigit)
-                        continue;
-                    if (scores[d] > rivalScore) {
-                        rivalScore = scores[d];
-                        rivalDigit = d;
-                    }
-                }
-                double margin = scores[trueDigit] - rivalScore;
-                boolean wasCorrect = (predicted == trueDigit);
-
-                // Patch4x4 Feedback
-                int[] symbols = p4Node.extractPatchSymbols(img);
-                p4Node.applyFeedback(symbols, trueDigit, rivalDigit, wasCorrect, margin);
-                if (p4Node.getFeedbackConfig().learningEnabled) {
-                    p4Updates++;
-                }
+        }
+        return rivalDigit;
+    }
 
-                // Row Feedback
-                if (rowNode != null) {
-                    int[] tids = rowNode.extractTransitionIds(img);
-                    rowNode.applyFeedback(tids, trueDigit, rivalDigit, wasCorrect, margin);
-                    if (rowNode.getFeedbackConfig().learningEnabled) {
-                        rowUpdates++;
-                    }
+    /**
+     * Online feedback in mini-batches of {@code batchSize} images: each batch
+     * is scored in parallel against the tables as they were at the batch
+     * start, the gated updates are buffered per shard of
+     * {@link #MINI_BATCH_SHARD_SIZE} images and the buffers, merged in image
+     * order, are applied at the batch boundary. Shards and merge order do not
+     * depend on the pool, so runs are repeatable on any machine.
+     */
+    private double evaluateMiniBatched(List<DigitImage> testData, int batchSize,
+            Patch4x4Node p4Node, RowMarkovNode rowNode, ColumnMarkovNode colNode) {
+        EvalCounts counts = new EvalCounts();
+        for (int from = 0; from < testData.size(); from += batchSize) {
+            int start = from;
+            int size = Math.min(batchSize, testData.size() - from);
+
+            // Per-image decisions, kept only for the event log
+            BatchDecisions decisions = eventLog != null ? new BatchDecisions(size) : null;
+            // Fixed shards merged in image order: the merged delta does not
+            // depend on the pool
+            MiniBatchFeedback batch = ShardedReduction.runOrdered(evaluationPool, size, MINI_BATCH_SHARD_SIZE,
+                    () -> new MiniBatchFeedback(p4Node, rowNode, colNode, decisions),
+                    (acc, i) -> acc.scoreAndAccumulate(i, testData.get(start + i)),
+                    MiniBatchFeedback::mergeFrom);
+
+            // Batch boundary: the only point where the tables change
+            p4Node.applyFeedbackDelta(batch.p4Delta);
+            if (rowNode != null) {
+                rowNode.applyFeedbackDelta(batch.rowDelta);
+            }
+            if (colNode != null) {
+                colNode.applyFeedbackDelta(batch.colDelta);
+            }
+            if (decisions != null && eventLog != null) {
+                // Logged in image order, then the boundary
+                for (int i = 0; i < size; i++) {
+                    recordFeedback(decisions.ctx[i], p4Node, rowNode, colNode, decisions.rivalDigit[i],
+                            decisions.correct[i], decisions.margin[i], true);
                 }
+                recordEvent(FeedbackEventLog::appendBatchEnd);
+                compactEventLogIfDue(p4Node, rowNode, colNode);
+            }
 
-                // Column Feedback
-                if (colNode != null) {
-                    int[] tids = colNode.extractTransitionIds(img);
-                    colNode.applyFeedback(tids, trueDigit, rivalDigit, wasCorrect, margin);
-                    if (colNode.getFeedbackConfig().learningEnabled) {
-                        colUpdates++;
-                    }
-                }
+            counts.correct += batch.correct;
+            counts.total += size;
+            counts.addLearningImages(size, p4Node, rowNode, colNode);
+            afterImages(counts.total, size, testData.size());
+        }
+        if (checkpointDir != null) {
+            checkpointFeedback();
+        }
+
+        return logEvaluationComplete(counts.correct, counts.total, p4Node.getFeedbackConfig().enabled,
+                counts.p4Updates, counts.rowUpdates, counts.colUpdates, batchSize);
+    }
+
+    private static final class BatchDecisions {
+        // Contexts of the scoring pass, so logging does not re-extract features
+        final ImageFeatureContext[] ctx;
+        final int[] rivalDigit;
+        final boolean[] correct;
+        final double[] margin;
+
+        BatchDecisions(int size) {
+            this.ctx = new ImageFeatureContext[size];
+            this.rivalDigit = new int[size];
+            this.correct = new boolean[size];
+            this.margin = new double[size];
+        }
+    }
+
+    /**
+     * One shard's share of a mini-batch: its accuracy count and the feedback
+     * updates it buffered for each learning node.
+     */
+    private final class MiniBatchFeedback {
+        final Patch4x4Node p4Node;
+        final RowMarkovNode rowNode;
+        final ColumnMarkovNode colNode;
+        final FeedbackDelta p4Delta;
+        final FeedbackDelta rowDelta;
+        final FeedbackDelta colDelta;
+        // Shared by all shards; each writes only its own images' entries
+        final BatchDecisions decisions;
+        int correct;
+
+        MiniBatchFeedback(Patch4x4Node p4Node, RowMarkovNode rowNode, ColumnMarkovNode colNode,
+                BatchDecisions decisions) {
+            this.decisions = decisions;
+            this.p4Node = p4Node;
+            this.rowNode = rowNode;
+            this.colNode = colNode;
+            this.p4Delta = p4Node.newFeedbackDelta();
+            this.rowDelta = rowNode != null ? rowNode.newFeedbackDelta() : null;
+            this.colDelta = colNode != null ? colNode.newFeedbackDelta() : null;
+        }
+
+        void scoreAndAccumulate(int index, DigitImage img) {
+            ImageFeatureContext ctx = new ImageFeatureContext(img);
+            ClassificationResult result = classifyWithDetails(ctx);
+            int trueDigit = img.label;
+            boolean wasCorrect = result.getPredictedDigit() == trueDigit;
+            if (wasCorrect) {
+                correct++;
             }
 
-            if (total % 1000 == 0) {
-                logger.info("MRF Evaluated {}/{}...", total, testData.size());
+            double[] scores = result.getLogLikelihoods();
+            int rivalDigit = rivalDigit(scores, trueDigit);
+            double margin = scores[trueDigit] - (rivalDigit >= 0 ? scores[rivalDigit] : Double.NEGATIVE_INFINITY);
+            if (decisions != null) {
+                decisions.ctx[index] = ctx;
+                decisions.rivalDigit[index] = rivalDigit;
+                decisions.correct[index] = wasCorrect;
+                decisions.margin[index] = margin;
+            }
+            p4Node.accumulateFeedback(p4Delta, ctx, trueDigit, rivalDigit, wasCorrect, margin);
+            if (rowNode != null) {
+                rowNode.accumulateFeedback(rowDelta, ctx, trueDigit, rivalDigit, wasCorrect, margin);
+            }
+            if (colNode != null) {
+                colNode.accumulateFeedback(colDelta, ctx, trueDigit, rivalDigit, wasCorrect, margin);
             }
         }
 
-        double accuracy = (double) correct / total;
-        if (p4Node != null && p4Node.getFeedbackConfig().enabled) {
-            logger.info("MRF Evaluation complete. Accuracy: {} ({}/{}) [P4Updates: {}, RowUpdates: {}, ColUpdates: {}]",
-                    String.format("%.4f", accuracy), correct, total, p4Updates, rowUpdates, colUpdates);
+        void mergeFrom(MiniBatchFeedback other) {
+            correct += other.correct;
+            p4Delta.mergeFrom(other.p4Delta);
+            if (rowDelta != null) {
+                rowDelta.mergeFrom(other.rowDelta);
+            }
+            if (colDelta != null) {
+                colDelta.mergeFrom(other.colDelta);
+            }
+        }
+    }
+
+    private double evaluateFrozenBatched(List<DigitImage> testData, boolean feedbackEnabled) {
+        int numBatches = (testData.size() + EVAL_BATCH_SIZE - 1) / EVAL_BATCH_SIZE;
+        AtomicInteger progress = new AtomicInteger();
+
+        // Each shard counts into its own accumulator; integer sums make the
+        // reduction independent of scheduling
+        EvalCounts counts;
+        if (evaluationPool != null && numBatches > 1) {
+            counts = ShardedReduction.run(evaluationPool, numBatches, EvalCounts::new,
+                    (acc, b) -> evaluateBatchInto(testData, b, acc, progress),
+                    EvalCounts::mergeFrom);
         } else {
+            counts = new EvalCounts();
+            for (int b = 0; b < numBatches; b++) {
+                evaluateBatchInto(testData, b, counts, progress);
+            }
+        }
+        return logEvaluationComplete(counts.correct, counts.total, feedbackEnabled, counts.p4Updates,
+                counts.rowUpdates, counts.colUpdates, 0);
+    }
+
+    // The summary line of every evaluation path, so their reports stay
+    // comparable; the mini-batch size is reported when positive
+    private static double logEvaluationComplete(int correct, int total, boolean feedbackEnabled, long p4Updates,
+            long rowUpdates, long colUpdates, int miniBatchSize) {
+        double accuracy = (double) correct / total;
+        if (!feedbackEnabled) {
             logger.info("MRF Evaluation complete. Accuracy: {} ({}/{})",
                     String.format("%.4f", accuracy), correct, total);
+        } else if (miniBatchSize > 0) {
+            logger.info("MRF Evaluation complete. Accuracy: {} ({}/{}) [P4Updates: {}, RowUpdates: {}, ColUpdates: {}, "
+                    + "MiniBatch: {}]", String.format("%.4f", accuracy), correct, total, p4Updates, rowUpdates,
+                    colUpdates, miniBatchSize);
+        } else {
+            logger.info("MRF Evaluation complete. Accuracy: {} ({}/{}) [P4Updates: {}, RowUpdates: {}, ColUpdates: {}]",
+                    String.format("%.4f", accuracy), correct, total, p4Updates, rowUpdates, colUpdates);
         }
         return accuracy;
     }
 
+    private void evaluateBatchInto(List<DigitImage> testData, int batchIndex, EvalCounts acc,
+            AtomicInteger progress) {
+        int from = batchIndex * EVAL_BATCH_SIZE;
+        int to = Math.min(testData.size(), from + EVAL_BATCH_SIZE);
+        List<ImageFeatureContext> batch = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            batch.add(new ImageFeatureContext(testData.get(i)));
+        }
+        ClassificationResult[] results = classifyBatch(batch);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].getPredictedDigit() == testData.get(from + i).label) {
+                acc.correct++;
+            }
+            acc.total++;
+        }
+
+        int done = progress.addAndGet(results.length);
+        if (done / 1000 > (done - results.length) / 1000) {
+            logger.info("MRF Evaluated {}/{}...", done / 1000 * 1000, testData.size());
+        }
+    }
+
+    private static final class EvalCounts {
+        int correct;
+        int total;
+        // Images seen while each node had learning enabled, whether or not
+        // gating let the update through; frozen evaluation counts none
+        long p4Updates;
+        long rowUpdates;
+        long colUpdates;
+
+        void addLearningImages(int images, Patch4x4Node p4Node, RowMarkovNode rowNode, ColumnMarkovNode colNode) {
+            if (p4Node.getFeedbackConfig().learningEnabled) {
+                p4Updates += images;
+            }
+            if (rowNode != null && rowNode.getFeedbackConfig().learningEnabled) {
+                rowUpdates += images;
+            }
+            if (colNode != null && colNode.getFeedbackConfig().learningEnabled) {
+                colUpdates += images;
+            }
+        }
+
+        void mergeFrom(EvalCounts other) {
+            correct += other.correct;
+            total += other.total;
+            p4Updates += other.p4Updates;
+            rowUpdates += other.rowUpdates;
+            colUpdates += other.colUpdates;
+        }
+    }
+
+    // Appends one feedback event per node that applies the update live
+    private void recordFeedback(ImageFeatureContext ctx, Patch4x4Node p4Node, RowMarkovNode rowNode,
+            ColumnMarkovNode colNode, int rivalDigit, boolean wasCorrect, double margin, boolean buffered) {
+        long imageHash = FeedbackEventLog.imageHash(ctx.getImage());
+        int trueDigit = ctx.getImage().label;
+        if (appliesFeedback(p4Node.getFeedbackConfig())) {
+            recordEvent(log -> log.appendFeedback(FeedbackEventLog.NodeKind.PATCH4X4, imageHash,
+                    p4Node.extractPatchSymbols(ctx), trueDigit, rivalDigit, wasCorrect, margin, buffered));
+        }
+        if (rowNode != null && appliesFeedback(rowNode.getFeedbackConfig())) {
+            recordEvent(log -> log.appendFeedback(FeedbackEventLog.NodeKind.ROW, imageHash,
+                    rowNode.extractTransitionIds(ctx), trueDigit, rivalDigit, wasCorrect, margin, buffered));
+        }
+        if (colNode != null && appliesFeedback(colNode.getFeedbackConfig())) {
+            recordEvent(log -> log.appendFeedback(FeedbackEventLog.NodeKind.COLUMN, imageHash,
+                    colNode.extractTransitionIds(ctx), trueDigit, rivalDigit, wasCorrect, margin, buffered));
+        }
+    }
+
+    private static boolean appliesFeedback(Patch4x4FeedbackConfig cfg) {
+        return cfg.enabled && cfg.learningEnabled;
+    }
+
+    private void compactEventLogIfDue(Patch4x4Node p4Node, RowMarkovNode rowNode, ColumnMarkovNode colNode) {
+        recordEvent(log -> log.compactIfDue(p4Node, rowNode, colNode));
+    }
+
+    private interface EventLogWrite {
+        void apply(FeedbackEventLog log) throws IOException;
+    }
+
+    // On failure stops recording, so the log stays a consistent prefix of the run
+    private void recordEvent(EventLogWrite write) {
+        if (eventLog == null) {
+            return;
+        }
+        try {
+            write.apply(eventLog);
+        } catch (IOException e) {
+            logger.error("Feedback event log write failed; recording stopped", e);
+            eventLog = null;
+        }
+    }
+
+    /**
+     * Rebuilds the feedback state of the patch4x4, row and column nodes from
+     * an event log directory (see {@link FeedbackEventLog#replay}); returns
+     * the sequence number of the last event applied.
+     */
+    public long replayFeedbackEventLog(Path dir) throws IOException {
+        return FeedbackEventLog.replay(dir, findPatch4x4Node(), findRowMarkovNode(), findColumnMarkovNode());
+    }
+
+    /**
+     * Writes the feedback state of the patch4x4, row and column nodes to
+     * {@code dir/<nodeId>.fbstate}, atomically replacing older checkpoints.
+     */
+    public void saveFeedbackState(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+        if (p4Node != null) {
+            p4Node.saveFeedbackState(stateFile(dir, p4Node));
+        }
+        if (rowNode != null) {
+            rowNode.saveFeedbackState(stateFile(dir, rowNode));
+        }
+        if (colNode != null) {
+            colNode.saveFeedbackState(stateFile(dir, colNode));
+        }
+    }
+
+    /**
+     * Restores feedback state saved by {@link #saveFeedbackState}. Nodes
+     * without a file, or whose file was learned with a different config, keep
+     * their current state. Returns the number of nodes restored.
+     */
+    public int loadFeedbackState(Path dir) {
+        int restored = 0;
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+        try {
+            if (p4Node != null && Files.exists(stateFile(dir, p4Node))) {
+                p4Node.loadFeedbackState(stateFile(dir, p4Node));
+                restored++;
+            }
+            if (rowNode != null && Files.exists(stateFile(dir, rowNode))) {
+                rowNode.loadFeedbackState(stateFile(dir, rowNode));
+                restored++;
+            }
+            if (colNode != null && Files.exists(stateFile(dir, colNode))) {
+                colNode.loadFeedbackState(stateFile(dir, colNode));
+                restored++;
+            }
+        } catch (IOException e) {
+            logger.error("Failed to load feedback state from {}", dir, e);
+        }
+        logger.info("Restored feedback state of {} node(s) from {}", restored, dir);
+        return restored;
+    }
+
+    /**
+     * Copy-on-write snapshot of the learned feedback state of the patch4x4,
+     * row and column nodes present in the graph; see
+     * {@link FeedbackSnapshot}. Take it
+     * while no feedback is being applied.
+     */
+    public FeedbackState snapshotFeedback() {
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+        return new FeedbackState(p4Node != null ? p4Node.snapshot() : null,
+                rowNode != null ? rowNode.snapshot() : null, colNode != null ? colNode.snapshot() : null);
+    }
+
+    /**
+     * Puts the feedback nodes back into a state taken by
+     * {@link #snapshotFeedback} on this graph; configs are left as they are.
+     * A state can be restored any number of times.
+     */
+    public void restoreFeedback(FeedbackState state) {
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+        if (p4Node != null) {
+            p4Node.restore(state.p4State);
+        }
+        if (rowNode != null) {
+            rowNode.restore(state.rowState);
+        }
+        if (colNode != null) {
+            colNode.restore(state.colState);
+        }
+    }
+
+    /**
+     * Feedback state of a whole graph, see {@link #snapshotFeedback}.
+     */
+    public static final class FeedbackState {
+        private final FeedbackSnapshot p4State;
+        private final FeedbackSnapshot rowState;
+        private final FeedbackSnapshot colState;
+
+        private FeedbackState(FeedbackSnapshot p4State, FeedbackSnapshot rowState,
+                FeedbackSnapshot colState) {
+            this.p4State = p4State;
+            this.rowState = rowState;
+            this.colState = colState;
+        }
+    }
+
+    private static Path stateFile(Path dir, DigitFactorNode node) {
+        return dir.resolve(node.getId() + FeedbackStateFile.EXTENSION);
+    }
+
+    private void checkpointFeedback() {
+        try {
+            saveFeedbackState(checkpointDir);
+        } catch (IOException e) {
+            logger.error("Feedback checkpoint to {} failed", checkpointDir, e);
+        }
+    }
+
+    /**
+     * Live feedback counters of the patch4x4, row and column nodes present
+     * in the graph, in that order.
+     */
+    public List<FeedbackMetrics.Snapshot> getFeedbackMetrics() {
+        List<FeedbackMetrics.Snapshot> out = new ArrayList<>(3);
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+        if (p4Node != null) {
+            out.add(p4Node.snapshotFeedbackMetrics());
+        }
+        if (rowNode != null) {
+            out.add(rowNode.snapshotFeedbackMetrics());
+        }
+        if (colNode != null) {
+            out.add(colNode.snapshotFeedbackMetrics());
+        }
+        return out;
+    }
+
+    public void resetFeedbackMetrics() {
+        Patch4x4Node p4Node = findPatch4x4Node();
+        RowMarkovNode rowNode = findRowMarkovNode();
+        ColumnMarkovNode colNode = findColumnMarkovNode();
+        if (p4Node != null) {
+            p4Node.getFeedbackMetrics().reset();
+        }
+        if (rowNode != null) {
+            rowNode.getFeedbackMetrics().reset();
+        }
+        if (colNode != null) {
+            colNode.getFeedbackMetrics().reset();
+        }
+    }
+
     public void setPatch4x4Config(com.markovai.server.ai.Patch4x4FeedbackConfig config) {
-        com.markovai.server.ai.hierarchy.Patch4x4Node node = findPatch4x4Node();
+        Patch4x4Node node = findPatch4x4Node();
         if (node != null) {
             node.setFeedbackConfig(config);
             logger.info("Updated Patch4x4 feedback config: enabled={}, learningEnabled={}",
@@ -190,7 +868,7 @@ public class MarkovFieldDigitClassifier {
     }
 
     public void setRowFeedbackConfig(com.markovai.server.ai.Patch4x4FeedbackConfig config) {
-        com.markovai.server.ai.hierarchy.RowMarkovNode node = findRowMarkovNode();
+        RowMarkovNode node = findRowMarkovNode();
         if (node != null) {
             node.setFeedbackConfig(config);
             logger.info("Updated RowMarkov feedback config: enabled={}, learningEnabled={}",
@@ -201,7 +879,7 @@ public class MarkovFieldDigitClassifier {
     }
 
     public void setColumnFeedbackConfig(com.markovai.server.ai.Patch4x4FeedbackConfig config) {
-        com.markovai.server.ai.hierarchy.ColumnMarkovNode node = findColumnMarkovNode();
+        ColumnMarkovNode node = findColumnMarkovNode();
         if (node != null) {
             node.setFeedbackConfig(config);
             logger.info("Updated ColumnMarkov feedback config: enabled={}, learningEnabled={}",
@@ -211,19 +889,16 @@ public class MarkovFieldDigitClassifier {
         }
     }
 
-    private com.markovai.server.ai.hierarchy.Patch4x4Node findPatch4x4Node() {
-        return (com.markovai.server.ai.hierarchy.Patch4x4Node) findNodeRecursive(root, "patch4x4",
-                com.markovai.server.ai.hierarchy.Patch4x4Node.class);
+    private Patch4x4Node findPatch4x4Node() {
+        return (Patch4x4Node) findNodeRecursive(root, "patch4x4", Patch4x4Node.class);
     }
 
-    private com.markovai.server.ai.hierarchy.RowMarkovNode findRowMarkovNode() {
-        return (com.markovai.server.ai.hierarchy.RowMarkovNode) findNodeRecursive(root, "row",
-                com.markovai.server.ai.hierarchy.RowMarkovNode.class);
+    private RowMarkovNode findRowMarkovNode() {
+        return (RowMarkovNode) findNodeRecursive(root, "row", RowMarkovNode.class);
     }
 
-    private com.markovai.server.ai.hierarchy.ColumnMarkovNode findColumnMarkovNode() {
-        return (com.markovai.server.ai.hierarchy.ColumnMarkovNode) findNodeRecursive(root, "col",
-                com.markovai.server.ai.hierarchy.ColumnMarkovNode.class);
+    private ColumnMarkovNode findColumnMarkovNode() {
+        return (ColumnMarkovNode) findNodeRecursive(root, "col", ColumnMarkovNode.class);
     }
 
     private <T> T findNodeRecursive(DigitFactorNode current, String targetId, Class<T> type) {
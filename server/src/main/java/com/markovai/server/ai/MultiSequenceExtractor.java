@@ -10,4 +10,12 @@ public interface MultiSequenceExtractor {
      * @return List of 1D integer arrays
      */
     List<int[]> extractSequences(int[][] binaryImage);
+
+    /**
+     * Extracts multiple sequences of states from a bit-packed binary image.
+     * Implementations that can read the packed rows directly should override.
+     */
+    default List<int[]> extractSequences(BinaryImage binaryImage) {
+        return extractSequences(binaryImage.toArray());
+    }
 }
@@ -24,19 +24,23 @@ public class Patch2x2Evaluator implements MarkovChainEvaluator {
 
     @Override
     public double[] computeScores(byte[] binary28x28) {
-        int[][] binary = new int[28][28];
-        for (int i = 0; i < 784; i++) {
-            binary[i / 28][i % 28] = binary28x28[i];
-        }
+        return computeScores(BinaryImage.fromFlat(binary28x28));
+    }
 
-        int[] sequence = extractor.extractSequence(binary);
+    @Override
+    public double[] computeScores(BinaryImage binary) {
+        return scoreSequence(extractor.extractSequence(binary));
+    }
 
-        double[] sumLogL = new double[10];
+    @Override
+    public double[] computeScores(ImageFeatureContext ctx) {
+        return scoreSequence(ctx.getSequence(extractor));
+    }
+
+    private double[] scoreSequence(int[] sequence) {
         long totalSteps = (sequence.length > 1) ? (sequence.length - 1) : 1;
 
-        for (int d = 0; d < 10; d++) {
-            sumLogL[d] = model.logLikelihood(d, sequence);
-        }
+        double[] sumLogL = model.logLikelihoods(sequence);
 
         double[] avgLogL = new double[10];
         for (int d = 0; d < 10; d++) {
@@ -0,0 +1,40 @@
+package com.markovai.server.ai;
+
+/**
+ * Dense primitive counts of 4x4 patch symbols per digit. Symbol-major, so the
+ * 10 digit counts of one symbol are adjacent.
+ */
+public class Patch4x4CountTable {
+    static final int NUM_DIGITS = 10;
+    static final int NUM_SYMBOLS = 65536;
+
+    // [symbol * NUM_DIGITS + digit]
+    private final int[] counts = new int[NUM_SYMBOLS * NUM_DIGITS];
+    private final int[] totalPerDigit = new int[NUM_DIGITS];
+
+    public void add(int digit, int symbol) {
+        // An out-of-range digit would silently count under a neighbouring symbol
+        if (digit < 0 || digit >= NUM_DIGITS) {
+            throw new IllegalArgumentException("Digit out of range: " + digit);
+        }
+        counts[symbol * NUM_DIGITS + digit]++;
+        totalPerDigit[digit]++;
+    }
+
+    public void mergeFrom(Patch4x4CountTable other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        for (int d = 0; d < NUM_DIGITS; d++) {
+            totalPerDigit[d] += other.totalPerDigit[d];
+        }
+    }
+
+    public int getCount(int digit, int symbol) {
+        return counts[symbol * NUM_DIGITS + digit];
+    }
+
+    public int getTotal(int digit) {
+        return totalPerDigit[digit];
+    }
+}
@@ -1,8 +1,5 @@
 package com.markovai.server.ai;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Patch4x4Evaluator implements MarkovChainEvaluator {
 
     private final DigitPatch4x4UnigramModel model;
@@ -27,39 +24,39 @@ public class Patch4x4Evaluator implements MarkovChainEvaluator {
 
     @Override
     public double[] computeScores(byte[] binary28x28) {
-        int[][] binary = new int[28][28];
-        for (int i = 0; i < 784; i++) {
-            binary[i / 28][i % 28] = binary28x28[i];
-        }
+        return computeScores(BinaryImage.fromFlat(binary28x28));
+    }
 
-        List<Integer> patchSymbols = new ArrayList<>();
-        for (int r = 0; r < 7; r++) {
-            for (int c = 0; c < 7; c++) {
-                patchSymbols.add(DigitPatch4x4UnigramModel.encodePatch(binary, r * 4, c * 4));
-            }
-        }
-        int nSteps = patchSymbols.size(); // Should be 49
+    @Override
+    public double[] computeScores(BinaryImage binary) {
+        return scoreSymbols(DigitPatch4x4UnigramModel.extractSymbols(binary));
+    }
 
-        double[] smoothedSum = new double[10];
+    @Override
+    public double[] computeScores(ImageFeatureContext ctx) {
+        return scoreSymbols(ctx.getPatch4x4Symbols());
+    }
 
-        for (int d = 0; d < 10; d++) {
-            double prevLp = 0.0;
-            boolean first = true;
-            double sum = 0.0;
+    private double[] scoreSymbols(int[] patchSymbols) {
+        int nSteps = patchSymbols.length; // Should be 49
+
+        double[] smoothedSum = new double[10];
+        double[] prevLp = new double[10];
+        double[] symbolLp = new double[10];
 
-            for (Integer symbol : patchSymbols) {
-                double lp = model.logProbForSymbol(d, symbol);
+        for (int i = 0; i < nSteps; i++) {
+            model.logProbsForSymbol(patchSymbols[i], symbolLp);
 
-                if (first) {
-                    sum += lp;
-                    first = false;
+            for (int d = 0; d < 10; d++) {
+                double lp = symbolLp[d];
+                if (i == 0) {
+                    smoothedSum[d] += lp;
                 } else {
-                    double diff = lp - prevLp;
-                    sum += lp - smoothingLambda * Math.abs(diff);
+                    double diff = lp - prevLp[d];
+                    smoothedSum[d] += lp - smoothingLambda * Math.abs(diff);
                 }
-                prevLp = lp;
+                prevLp[d] = lp;
             }
-            smoothedSum[d] = sum;
         }
 
         double[] avgLogL = new double[10];
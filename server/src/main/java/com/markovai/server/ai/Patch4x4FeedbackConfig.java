@@ -17,6 +17,11 @@ public class Patch4x4FeedbackConfig {
     public double minUpdateScale = 0.05;
     public double maxUpdateScale = 1.0;
     public int applyDecayEveryNUpdates = 0;
+    // Lock-free feedback updates so several threads can learn at once
+    public boolean concurrentUpdates = false;
+    // Images scored against frozen tables per learning step; updates are
+    // buffered and applied at the batch boundary. 0 or 1: apply immediately
+    public int miniBatchSize = 0;
 
     public Patch4x4FeedbackConfig() {
     }
@@ -60,7 +65,7 @@ public class Patch4x4FeedbackConfig {
     }
 
     public Patch4x4FeedbackConfig copy() {
-        return new Patch4x4FeedbackConfig(
+        Patch4x4FeedbackConfig copy = new Patch4x4FeedbackConfig(
                 this.enabled,
                 this.learningEnabled,
                 this.adjScale,
@@ -76,5 +81,8 @@ public class Patch4x4FeedbackConfig {
                 this.minUpdateScale,
                 this.maxUpdateScale,
                 this.applyDecayEveryNUpdates);
+        copy.concurrentUpdates = this.concurrentUpdates;
+        copy.miniBatchSize = this.miniBatchSize;
+        return copy;
     }
 }
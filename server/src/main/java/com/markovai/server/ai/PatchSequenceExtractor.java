@@ -35,4 +35,16 @@ public class PatchSequenceExtractor implements SequenceExtractor {
         }
         return seq;
     }
+
+    @Override
+    public int[] extractSequence(BinaryImage binaryImage) {
+        int[] seq = new int[SEQ_LENGTH];
+        int idx = 0;
+        for (int r = 0; r < GRID_SIZE; r++) {
+            for (int c = 0; c < GRID_SIZE; c++) {
+                seq[idx++] = binaryImage.patch2x2(r, c);
+            }
+        }
+        return seq;
+    }
 }
@@ -17,4 +17,17 @@ public class PixelSequenceExtractor implements SequenceExtractor {
         }
         return seq;
     }
+
+    @Override
+    public int[] extractSequence(BinaryImage binaryImage) {
+        int[] seq = new int[SEQ_LENGTH];
+        int idx = 0;
+        for (int r = 0; r < IMAGE_SIZE; r++) {
+            int mask = binaryImage.getRowMask(r);
+            for (int c = IMAGE_SIZE - 1; c >= 0; c--) {
+                seq[idx++] = (mask >>> c) & 1;
+            }
+        }
+        return seq;
+    }
 }
@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class RowColumnDigitClassifier {
     private static final Logger logger = LoggerFactory.getLogger(RowColumnDigitClassifier.class);
@@ -65,7 +66,7 @@ public class RowColumnDigitClassifier {
                 continue;
             digitCounts[d]++;
 
-            int[][] binary = DigitMarkovModel.binarize(img.pixels, 128);
+            BinaryImage binary = BinaryImage.of(img);
 
             List<int[]> rowSeqs = rowExtractor.extractSequences(binary);
             List<int[]> colSeqs = columnExtractor.extractSequences(binary);
@@ -94,8 +95,90 @@ public class RowColumnDigitClassifier {
         logger.info("Row-Column-Patch Training Complete.");
     }
 
+    /**
+     * Same result as {@link #train(List)}, but the dataset is split across
+     * {@code pool}. Each worker counts into private primitive tables, the
+     * tables are merged with a tree reduction and the models are finalized
+     * once. Counts are integers, so the models are bit-identical to the
+     * sequential ones.
+     */
+    public void trainParallel(List<DigitImage> trainingData, ForkJoinPool pool) {
+        logger.info("Starting parallel Row-Column-Patch training with {} samples on {} workers",
+                trainingData.size(), pool.getParallelism());
+        long startTime = System.currentTimeMillis();
+
+        TrainingShard merged = ShardedReduction.run(pool, trainingData.size(),
+                TrainingShard::new,
+                (shard, i) -> shard.accept(trainingData.get(i)),
+                TrainingShard::mergeFrom);
+
+        for (int d = 0; d < NUM_DIGITS; d++) {
+            logger.debug("Digit {}: {} samples processed", d, merged.digitCounts[d]);
+        }
+        logger.info("Processed {} row sequences and {} column sequences.", merged.totalRowSeqs,
+                merged.totalColSeqs);
+
+        rowModel.addCounts(merged.rowCounts);
+        columnModel.addCounts(merged.colCounts);
+        patchModel.addCounts(merged.patchCounts);
+
+        logger.info("Finalizing Row Model...");
+        rowModel.finalizeProbabilities();
+        logger.info("Finalizing Column Model...");
+        columnModel.finalizeProbabilities();
+        logger.info("Finalizing Patch Model...");
+        patchModel.finalizeProbabilities();
+
+        logger.info("Parallel Row-Column-Patch Training Complete in {} ms.", System.currentTimeMillis() - startTime);
+    }
+
+    // Private per-worker counts for parallel training
+    private final class TrainingShard {
+        final MarkovCountTable rowCounts = rowModel.newCountTable();
+        final MarkovCountTable colCounts = columnModel.newCountTable();
+        final MarkovCountTable patchCounts = patchModel.newCountTable();
+        final int[] digitCounts = new int[NUM_DIGITS];
+        long totalRowSeqs = 0;
+        long totalColSeqs = 0;
+
+        void accept(DigitImage img) {
+            int d = img.label;
+            if (d < 0 || d >= NUM_DIGITS)
+                return;
+            digitCounts[d]++;
+
+            BinaryImage binary = BinaryImage.of(img);
+
+            List<int[]> rowSeqs = rowExtractor.extractSequences(binary);
+            List<int[]> colSeqs = columnExtractor.extractSequences(binary);
+            int[] patchSeq = patchExtractor.extractSequence(binary);
+
+            for (int[] seq : rowSeqs) {
+                rowCounts.update(d, seq);
+            }
+            for (int[] seq : colSeqs) {
+                colCounts.update(d, seq);
+            }
+            patchCounts.update(d, patchSeq);
+
+            totalRowSeqs += rowSeqs.size();
+            totalColSeqs += colSeqs.size();
+        }
+
+        void mergeFrom(TrainingShard other) {
+            rowCounts.mergeFrom(other.rowCounts);
+            colCounts.mergeFrom(other.colCounts);
+            patchCounts.mergeFrom(other.patchCounts);
+            for (int d = 0; d < NUM_DIGITS; d++) {
+                digitCounts[d] += other.digitCounts[d];
+            }
+            totalRowSeqs += other.totalRowSeqs;
+            totalColSeqs += other.totalColSeqs;
+        }
+    }
+
     public ClassificationResult classifyWithScores(DigitImage img) {
-        int[][] binary = DigitMarkovModel.binarize(img.pixels, 128);
+        BinaryImage binary = BinaryImage.of(img);
 
         List<int[]> rowSeqs = rowExtractor.extractSequences(binary);
         List<int[]> colSeqs = columnExtractor.extractSequences(binary);
@@ -112,9 +195,12 @@ public class RowColumnDigitClassifier {
         double secondBestTotalLogL = Double.NEGATIVE_INFINITY;
         int bestDigit = -1;
 
+        double[] rowLogLs = rowModel.logLikelihoodsForSequences(rowSeqs);
+        double[] colLogLs = columnModel.logLikelihoodsForSequences(colSeqs);
+
         for (int d = 0; d < NUM_DIGITS; d++) {
-            double rowLogL = rowModel.logLikelihoodForSequences(d, rowSeqs);
-            double colLogL = columnModel.logLikelihoodForSequences(d, colSeqs);
+            double rowLogL = rowLogLs[d];
+            double colLogL = colLogLs[d];
 
             // Legacy behavior: Sum row + col only
             double totalLogL = rowLogL + colLogL;
@@ -26,15 +26,20 @@ public class RowMarkovEvaluator implements MarkovChainEvaluator {
 
     @Override
     public double[] computeScores(byte[] binary28x28) {
-        // Convert flat binary to 2D int array
-        int[][] binary = new int[28][28];
-        for (int i = 0; i < 784; i++) {
-            binary[i / 28][i % 28] = binary28x28[i];
-        }
+        return computeScores(BinaryImage.fromFlat(binary28x28));
+    }
 
-        List<int[]> sequences = extractor.extractSequences(binary);
+    @Override
+    public double[] computeScores(BinaryImage binary) {
+        return scoreSequences(extractor.extractSequences(binary));
+    }
 
-        double[] sumLogL = new double[10];
+    @Override
+    public double[] computeScores(ImageFeatureContext ctx) {
+        return scoreSequences(ctx.getSequences(extractor));
+    }
+
+    private double[] scoreSequences(List<int[]> sequences) {
         long totalSteps = 0;
         for (int[] seq : sequences) {
             if (seq.length > 1) {
@@ -45,9 +50,8 @@ public class RowMarkovEvaluator implements MarkovChainEvaluator {
         if (totalSteps == 0)
             totalSteps = 1;
 
-        for (int d = 0; d < 10; d++) {
-            sumLogL[d] = model.logLikelihoodForSequences(d, sequences);
-        }
+        // All 10 digits in one pass over the sequences
+        double[] sumLogL = model.logLikelihoodsForSequences(sequences);
 
         double[] avgLogL = new double[10];
         for (int d = 0; d < 10; d++) {
@@ -34,4 +34,18 @@ public class RowPatchSequenceExtractor implements MultiSequenceExtractor {
 
         return (b3 * 8) + (b2 * 4) + (b1 * 2) + b0;
     }
+
+    @Override
+    public List<int[]> extractSequences(BinaryImage binaryImage) {
+        List<int[]> sequences = new ArrayList<>(GRID_SIZE);
+
+        for (int r = 0; r < GRID_SIZE; r++) {
+            int[] rowSeq = new int[GRID_SIZE];
+            for (int c = 0; c < GRID_SIZE; c++) {
+                rowSeq[c] = binaryImage.patch2x2(r, c);
+            }
+            sequences.add(rowSeq);
+        }
+        return sequences;
+    }
 }
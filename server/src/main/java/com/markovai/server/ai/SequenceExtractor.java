@@ -8,4 +8,12 @@ public interface SequenceExtractor {
      * @return 1D array of states
      */
     int[] extractSequence(int[][] binaryImage);
+
+    /**
+     * Extracts a sequence of states from a bit-packed binary image.
+     * Implementations that can read the packed rows directly should override.
+     */
+    default int[] extractSequence(BinaryImage binaryImage) {
+        return extractSequence(binaryImage.toArray());
+    }
 }
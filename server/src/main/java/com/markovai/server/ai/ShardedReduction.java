@@ -0,0 +1,132 @@
+package com.markovai.server.ai;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Splits the index range [0, size) into one shard per pool worker, lets each
+ * shard accumulate into its own private accumulator and merges the results
+ * pairwise up the fork-join tree.
+ *
+ * {@link #runOrdered} instead uses shards of a fixed size and merges them
+ * left to right, so reductions that are not associative (floating-point
+ * sums) give the same result on any pool, or on none.
+ */
+final class ShardedReduction {
+
+    private ShardedReduction() {
+    }
+
+    static <A> A run(ForkJoinPool pool, int size, Supplier<A> factory, ObjIntConsumer<A> accumulate,
+            BiConsumer<A, A> mergeInto) {
+        int shards = Math.max(1, pool.getParallelism());
+        int shardSize = Math.max(1, (size + shards - 1) / shards);
+        return pool.invoke(new Task<>(0, size, shardSize, factory, accumulate, mergeInto));
+    }
+
+    /**
+     * Shards of {@code shardSize} indices accumulated in parallel on
+     * {@code pool} (in the calling thread if it is null), then merged in
+     * index order into the first shard's accumulator.
+     */
+    @SuppressWarnings("unchecked")
+    static <A> A runOrdered(ForkJoinPool pool, int size, int shardSize, Supplier<A> factory,
+            ObjIntConsumer<A> accumulate, BiConsumer<A, A> mergeInto) {
+        int numShards = Math.max(1, (size + shardSize - 1) / shardSize);
+        Object[] shards = new Object[numShards];
+        if (pool != null && numShards > 1) {
+            pool.invoke(new ShardTask<>(0, numShards, size, shardSize, shards, factory, accumulate));
+        } else {
+            for (int s = 0; s < numShards; s++) {
+                shards[s] = shard(s, size, shardSize, factory, accumulate);
+            }
+        }
+        A merged = (A) shards[0];
+        for (int s = 1; s < numShards; s++) {
+            mergeInto.accept(merged, (A) shards[s]);
+        }
+        return merged;
+    }
+
+    private static <A> A shard(int s, int size, int shardSize, Supplier<A> factory, ObjIntConsumer<A> accumulate) {
+        A acc = factory.get();
+        for (int i = s * shardSize; i < Math.min(size, (s + 1) * shardSize); i++) {
+            accumulate.accept(acc, i);
+        }
+        return acc;
+    }
+
+    private static final class ShardTask<A> extends RecursiveAction {
+        private final int fromShard;
+        private final int toShard;
+        private final int size;
+        private final int shardSize;
+        private final Object[] shards;
+        private final Supplier<A> factory;
+        private final ObjIntConsumer<A> accumulate;
+
+        ShardTask(int fromShard, int toShard, int size, int shardSize, Object[] shards, Supplier<A> factory,
+                ObjIntConsumer<A> accumulate) {
+            this.fromShard = fromShard;
+            this.toShard = toShard;
+            this.size = size;
+            this.shardSize = shardSize;
+            this.shards = shards;
+            this.factory = factory;
+            this.accumulate = accumulate;
+        }
+
+        @Override
+        protected void compute() {
+            if (toShard - fromShard == 1) {
+                shards[fromShard] = shard(fromShard, size, shardSize, factory, accumulate);
+                return;
+            }
+            int mid = (fromShard + toShard) >>> 1;
+            invokeAll(new ShardTask<>(fromShard, mid, size, shardSize, shards, factory, accumulate),
+                    new ShardTask<>(mid, toShard, size, shardSize, shards, factory, accumulate));
+        }
+    }
+
+    private static final class Task<A> extends RecursiveTask<A> {
+        private final int from;
+        private final int to;
+        private final int shardSize;
+        private final Supplier<A> factory;
+        private final ObjIntConsumer<A> accumulate;
+        private final BiConsumer<A, A> mergeInto;
+
+        Task(int from, int to, int shardSize, Supplier<A> factory, ObjIntConsumer<A> accumulate,
+                BiConsumer<A, A> mergeInto) {
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+            this.factory = factory;
+            this.accumulate = accumulate;
+            this.mergeInto = mergeInto;
+        }
+
+        @Override
+        protected A compute() {
+            if (to - from <= shardSize) {
+                A acc = factory.get();
+                for (int i = from; i < to; i++) {
+                    accumulate.accept(acc, i);
+                }
+                return acc;
+            }
+            int mid = (from + to) >>> 1;
+            Task<A> left = new Task<>(from, mid, shardSize, factory, accumulate, mergeInto);
+            Task<A> right = new Task<>(mid, to, shardSize, factory, accumulate, mergeInto);
+            right.fork();
+            A leftResult = left.compute();
+            A rightResult = right.join();
+            mergeInto.accept(leftResult, rightResult);
+            return leftResult;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.ImageFeatureContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat execution plan for a factor graph. The graph is compiled once into an
+ * array of slots in topological (post-order) order; each slot is either a
+ * leaf evaluated through {@link DigitFactorNode#computeInto}, an inlined
+ * weighted sum over earlier slots, or a generic node given its children's
+ * results.
+ *
+ * Zero-weight edges of {@link WeightedSumNode}s are pruned at compile time,
+ * exactly as the recursive evaluation skipped them, and nodes shared by
+ * several parents (same id) occupy a single slot. Scores are identical to
+ * the recursive evaluation: sums add children in the same order.
+ *
+ * The plan is immutable; per-image scratch buffers are per thread.
+ */
+public final class CompiledFactorGraph {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledFactorGraph.class);
+    private static final int NUM_DIGITS = 10;
+
+    private static final byte LEAF = 0;
+    private static final byte SUM = 1;
+    private static final byte GENERIC = 2;
+
+    private final DigitFactorNode[] nodes;
+    private final byte[] kinds;
+    // For SUM and GENERIC slots: the child slots, in child order
+    private final int[][] childSlots;
+    // For SUM slots: weight of each entry of childSlots
+    private final double[][] childWeights;
+    private final int rootSlot;
+
+    // results[slot] points at a generic node's output or at slotBuffers[slot]
+    private final ThreadLocal<double[][][]> scratch;
+
+    private CompiledFactorGraph(List<DigitFactorNode> nodes, List<Byte> kinds, List<int[]> childSlots,
+            List<double[]> childWeights) {
+        int n = nodes.size();
+        this.nodes = nodes.toArray(new DigitFactorNode[0]);
+        this.kinds = new byte[n];
+        for (int i = 0; i < n; i++) {
+            this.kinds[i] = kinds.get(i);
+        }
+        this.childSlots = childSlots.toArray(new int[0][]);
+        this.childWeights = childWeights.toArray(new double[0][]);
+        this.rootSlot = n - 1;
+        this.scratch = ThreadLocal.withInitial(() -> new double[][][] { new double[n][], new double[n][NUM_DIGITS] });
+    }
+
+    public static CompiledFactorGraph compile(DigitFactorNode root) {
+        Compiler compiler = new Compiler();
+        compiler.visit(root);
+        CompiledFactorGraph plan = new CompiledFactorGraph(compiler.nodes, compiler.kinds, compiler.childSlots,
+                compiler.childWeights);
+        logger.debug("Compiled factor graph rooted at {} into {} slots", root.getId(), plan.size());
+        return plan;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    public DigitFactorNode getRoot() {
+        return nodes[rootSlot];
+    }
+
+    /**
+     * Evaluates the whole graph for one image and returns the root's
+     * per-digit scores (a fresh array owned by the caller).
+     */
+    public double[] evaluate(ImageFeatureContext ctx) {
+        double[][][] buffers = scratch.get();
+        double[][] results = buffers[0];
+        double[][] slotBuffers = buffers[1];
+
+        for (int slot = 0; slot < nodes.length; slot++) {
+            switch (kinds[slot]) {
+                case LEAF:
+                    nodes[slot].computeInto(ctx, slotBuffers[slot]);
+                    results[slot] = slotBuffers[slot];
+                    break;
+                case SUM: {
+                    double[] total = slotBuffers[slot];
+                    Arrays.fill(total, 0.0);
+                    int[] children = childSlots[slot];
+                    double[] weights = childWeights[slot];
+                    for (int i = 0; i < children.length; i++) {
+                        double w = weights[i];
+                        double[] child = results[children[i]];
+                        for (int d = 0; d < NUM_DIGITS; d++) {
+                            total[d] += w * child[d];
+                        }
+                    }
+                    results[slot] = total;
+                    break;
+                }
+                default: {
+                    Map<String, NodeResult> childResults = new HashMap<>();
+                    for (int child : childSlots[slot]) {
+                        childResults.put(nodes[child].getId(), new NodeResult(results[child]));
+                    }
+                    results[slot] = nodes[slot].computeForImage(ctx, childResults).logLikelihoodsPerDigit;
+                }
+            }
+        }
+
+        double[] root = results[rootSlot];
+        // Leaf and sum slots live in the reusable scratch buffer
+        double[] out = kinds[rootSlot] == GENERIC ? root : root.clone();
+        Arrays.fill(results, null);
+        return out;
+    }
+
+    /**
+     * Evaluates the graph for a batch of images, one node at a time over the
+     * whole batch via {@link DigitFactorNode#computeForBatch}. Row i of the
+     * returned matrix holds the root scores of image i.
+     */
+    public double[][] evaluateBatch(List<ImageFeatureContext> batch) {
+        int n = batch.size();
+        double[][][] results = new double[nodes.length][][];
+        for (int slot = 0; slot < nodes.length; slot++) {
+            double[][] out = new double[n][NUM_DIGITS];
+            Map<String, double[][]> childResults;
+            if (kinds[slot] == LEAF) {
+                childResults = Collections.emptyMap();
+            } else {
+                childResults = new HashMap<>();
+                for (int child : childSlots[slot]) {
+                    childResults.put(nodes[child].getId(), results[child]);
+                }
+            }
+            nodes[slot].computeForBatch(batch, childResults, out);
+            results[slot] = out;
+        }
+        return results[rootSlot];
+    }
+
+    private static final class Compiler {
+        final List<DigitFactorNode> nodes = new ArrayList<>();
+        final List<Byte> kinds = new ArrayList<>();
+        final List<int[]> childSlots = new ArrayList<>();
+        final List<double[]> childWeights = new ArrayList<>();
+        final Map<String, Integer> slotById = new HashMap<>();
+
+        int visit(DigitFactorNode node) {
+            Integer existing = slotById.get(node.getId());
+            if (existing != null) {
+                return existing;
+            }
+
+            List<DigitFactorNode> children = node.getChildren();
+            List<Integer> slots = new ArrayList<>();
+            List<Double> weights = new ArrayList<>();
+            boolean weighted = node instanceof WeightedSumNode;
+            for (DigitFactorNode child : children) {
+                double w = weighted ? ((WeightedSumNode) node).getWeight(child.getId()) : 1.0;
+                if (weighted && w == 0.0) {
+                    continue;
+                }
+                slots.add(visit(child));
+                weights.add(w);
+            }
+
+            byte kind = weighted ? SUM : children.isEmpty() ? LEAF : GENERIC;
+            int[] slotArray = new int[slots.size()];
+            double[] weightArray = new double[weights.size()];
+            for (int i = 0; i < slotArray.length; i++) {
+                slotArray[i] = slots.get(i);
+                weightArray[i] = weights.get(i);
+            }
+
+            int slot = nodes.size();
+            nodes.add(node);
+            kinds.add(kind);
+            childSlots.add(slotArray);
+            childWeights.add(weightArray);
+            slotById.put(node.getId(), slot);
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.markovai.server.ai.hierarchy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+/**
+ * A fixed number of equally sized pages (primitive arrays) with
+ * copy-on-write sharing. {@link #share()} freezes the current pages into a
+ * snapshot that both sides reference; the live side copies a page the first
+ * time it writes to it afterwards, so a branch costs only the pages it
+ * touches. A fresh instance points every page at one shared zero page.
+ *
+ * {@link #read} is safe from any thread. {@link #write} may race with other
+ * writers (the first-touch copy is synchronized), but {@link #share} and
+ * {@link #fork} must not run concurrently with writers.
+ */
+final class CopyOnWritePages<A> {
+
+    static final int PAGE_SHIFT = 10;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final VarHandle PAGE = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle OWNED = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private final Object[] pages;
+    // 1 if the page is private to this instance and may be written in place
+    private final byte[] owned;
+    private final UnaryOperator<A> copier;
+
+    private CopyOnWritePages(Object[] pages, UnaryOperator<A> copier) {
+        this.pages = pages;
+        this.owned = new byte[pages.length];
+        this.copier = copier;
+    }
+
+    /**
+     * {@code numPages} pages all backed by {@code zeroPage}, which is never
+     * written.
+     */
+    static <A> CopyOnWritePages<A> zeroed(int numPages, A zeroPage, UnaryOperator<A> copier) {
+        Object[] pages = new Object[numPages];
+        Arrays.fill(pages, zeroPage);
+        return new CopyOnWritePages<>(pages, copier);
+    }
+
+    static int pagesFor(int length) {
+        return (length + PAGE_MASK) >>> PAGE_SHIFT;
+    }
+
+    int numPages() {
+        return pages.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    A read(int page) {
+        return (A) PAGE.getAcquire(pages, page);
+    }
+
+    /**
+     * The page, copied first if it is still shared.
+     */
+    @SuppressWarnings("unchecked")
+    A write(int page) {
+        if ((byte) OWNED.getAcquire(owned, page) == 0) {
+            synchronized (this) {
+                if (owned[page] == 0) {
+                    PAGE.setRelease(pages, page, copier.apply((A) pages[page]));
+                    OWNED.setRelease(owned, page, (byte) 1);
+                }
+            }
+        }
+        return (A) PAGE.getAcquire(pages, page);
+    }
+
+    /**
+     * Freezes the current pages: returns a snapshot sharing them, and makes
+     * this instance copy each page before its next write. The snapshot must
+     * only be read or forked.
+     */
+    CopyOnWritePages<A> share() {
+        Arrays.fill(owned, (byte) 0);
+        return fork();
+    }
+
+    /**
+     * A new writable instance sharing this one's pages.
+     */
+    CopyOnWritePages<A> fork() {
+        return new CopyOnWritePages<>(pages.clone(), copier);
+    }
+
+    /**
+     * Number of pages this instance has copied since it was created or last
+     * shared.
+     */
+    int ownedPages() {
+        int n = 0;
+        for (byte b : owned) {
+            n += b;
+        }
+        return n;
+    }
+}
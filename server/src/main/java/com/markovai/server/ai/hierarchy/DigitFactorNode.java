@@ -1,6 +1,9 @@
 package com.markovai.server.ai.hierarchy;
 
 import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.ImageFeatureContext;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -18,4 +21,35 @@ public interface DigitFactorNode {
     // For now, we are only defining the signature. Leaf nodes will ignore
     // childResults.
     NodeResult computeForImage(DigitImage img, Map<String, NodeResult> childResults);
+
+    // Same as computeForImage(DigitImage, ...), but reads features from a
+    // per-image context shared by all nodes, so each feature is extracted once.
+    default NodeResult computeForImage(ImageFeatureContext ctx, Map<String, NodeResult> childResults) {
+        return computeForImage(ctx.getImage(), childResults);
+    }
+
+    // Leaf variant writing the 10 scores into out, so callers can reuse the
+    // buffer across images. The default copies computeForImage's result;
+    // leaves backed by cached evaluators override it to fill out directly.
+    default void computeInto(ImageFeatureContext ctx, double[] out) {
+        double[] scores = computeForImage(ctx, Collections.emptyMap()).logLikelihoodsPerDigit;
+        System.arraycopy(scores, 0, out, 0, scores.length);
+    }
+
+    // Batch variant: computes this node for every image of the batch and
+    // writes the 10 scores of image i into out[i]. childResults maps a child
+    // id to that child's batch results, row i belonging to image i. The
+    // default scores image by image; nodes override it with batch-optimized
+    // versions.
+    default void computeForBatch(List<ImageFeatureContext> batch, Map<String, double[][]> childResults,
+            double[][] out) {
+        for (int i = 0; i < batch.size(); i++) {
+            Map<String, NodeResult> imageResults = new HashMap<>();
+            for (Map.Entry<String, double[][]> e : childResults.entrySet()) {
+                imageResults.put(e.getKey(), new NodeResult(e.getValue()[i]));
+            }
+            double[] scores = computeForImage(batch.get(i), imageResults).logLikelihoodsPerDigit;
+            System.arraycopy(scores, 0, out[i], 0, scores.length);
+        }
+    }
 }
@@ -3,7 +3,9 @@ package com.markovai.server.ai.hierarchy;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.markovai.db.DigitImageDao;
 import com.markovai.db.MarkovChainResultDao;
+import com.markovai.db.SqliteConnectionProvider;
 import com.markovai.db.SqliteInitializer;
+import com.markovai.db.WriteBehindScoreWriter;
 import com.markovai.server.ai.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +16,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class FactorGraphBuilder {
 
@@ -33,10 +36,29 @@ public class FactorGraphBuilder {
 
     private final DigitImageDao imageDao;
     private final MarkovChainResultDao resultDao;
-
+    private BaseScoreStore baseScoreStore;
+    private WriteBehindScoreWriter writeBehind;
+    private ChainScoreCache scoreCache;
+
+    /**
+     * Builder for standalone tools: initializes the SQLite cache at
+     * {@code markov_cache.db} and uses the JVM-wide connections for it.
+     */
     public FactorGraphBuilder(DigitMarkovModel rowModel, DigitMarkovModel colModel, DigitMarkovModel patchModel,
             MultiSequenceExtractor rowExtractor, MultiSequenceExtractor colExtractor,
             SequenceExtractor patchExtractor, DigitPatch4x4UnigramModel patch4x4Model) {
+        this(rowModel, colModel, patchModel, rowExtractor, colExtractor, patchExtractor, patch4x4Model,
+                initializedConnections());
+    }
+
+    /**
+     * Builder whose cached leaf nodes share the given (already initialized)
+     * DAOs.
+     */
+    public FactorGraphBuilder(DigitMarkovModel rowModel, DigitMarkovModel colModel, DigitMarkovModel patchModel,
+            MultiSequenceExtractor rowExtractor, MultiSequenceExtractor colExtractor,
+            SequenceExtractor patchExtractor, DigitPatch4x4UnigramModel patch4x4Model,
+            DigitImageDao imageDao, MarkovChainResultDao resultDao) {
         this.rowModel = rowModel;
         this.colModel = colModel;
         this.patchModel = patchModel;
@@ -44,7 +66,19 @@ public class FactorGraphBuilder {
         this.colExtractor = colExtractor;
         this.patchExtractor = patchExtractor;
         this.patch4x4Model = patch4x4Model;
+        this.imageDao = imageDao;
+        this.resultDao = resultDao;
+    }
 
+    private FactorGraphBuilder(DigitMarkovModel rowModel, DigitMarkovModel colModel, DigitMarkovModel patchModel,
+            MultiSequenceExtractor rowExtractor, MultiSequenceExtractor colExtractor,
+            SequenceExtractor patchExtractor, DigitPatch4x4UnigramModel patch4x4Model,
+            SqliteConnectionProvider connections) {
+        this(rowModel, colModel, patchModel, rowExtractor, colExtractor, patchExtractor, patch4x4Model,
+                new DigitImageDao(connections), new MarkovChainResultDao(connections));
+    }
+
+    private static SqliteConnectionProvider initializedConnections() {
         // Initialize DB
         try {
             SqliteInitializer.initialize(DB_PATH);
@@ -53,8 +87,69 @@ public class FactorGraphBuilder {
             logger.error("Failed to initialize SQLite", e);
             throw new RuntimeException(e);
         }
-        this.imageDao = new DigitImageDao(DB_PATH);
-        this.resultDao = new MarkovChainResultDao(DB_PATH);
+        return SqliteConnectionProvider.shared(DB_PATH);
+    }
+
+    /**
+     * Base scores handed to every cached leaf evaluator built afterwards.
+     */
+    public void setBaseScoreStore(BaseScoreStore baseScoreStore) {
+        this.baseScoreStore = baseScoreStore;
+    }
+
+    /**
+     * Write-behind for the cache misses of every cached leaf evaluator built
+     * afterwards; null writes them synchronously.
+     */
+    public void setWriteBehind(WriteBehindScoreWriter writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * In-process L1 shared by every cached leaf evaluator built afterwards;
+     * null disables it.
+     */
+    public void setScoreCache(ChainScoreCache scoreCache) {
+        this.scoreCache = scoreCache;
+    }
+
+    /**
+     * Precomputes the row, column and 2x2 patch chain scores of the given
+     * images with the same evaluators (and versions) the built nodes use.
+     */
+    public BaseScoreStore buildBaseScoreStore(List<DigitImage> images, ForkJoinPool pool) {
+        return BaseScoreStore.build(images, baseEvaluators(), pool);
+    }
+
+    /**
+     * Like {@link #buildBaseScoreStore(List, ForkJoinPool)}, copying the
+     * images {@code known} already covers instead of scoring them.
+     */
+    public BaseScoreStore buildBaseScoreStore(List<DigitImage> images, ForkJoinPool pool, BaseScoreStore known) {
+        return BaseScoreStore.build(images, baseEvaluators(), pool, known);
+    }
+
+    /**
+     * Loads the row, column and 2x2 patch chain scores the built nodes would
+     * read from SQLite, for every image cached there, with one scan.
+     */
+    public BaseScoreStore preloadBaseScoreStore() throws SQLException {
+        return BaseScoreStore.load(resultDao, baseEvaluators());
+    }
+
+    private List<MarkovChainEvaluator> baseEvaluators() {
+        return List.of(
+                new RowMarkovEvaluator(rowModel, rowExtractor, CHAIN_VERSION),
+                new ColumnMarkovEvaluator(colModel, colExtractor, CHAIN_VERSION),
+                new Patch2x2Evaluator(patchModel, patchExtractor, CHAIN_VERSION));
+    }
+
+    private CachedMarkovChainEvaluator cached(MarkovChainEvaluator evaluator) {
+        CachedMarkovChainEvaluator cached = new CachedMarkovChainEvaluator(evaluator, imageDao, resultDao);
+        cached.setBaseScoreStore(baseScoreStore);
+        cached.setWriteBehind(writeBehind);
+        cached.setScoreCache(scoreCache);
+        return cached;
     }
 
     public static class ConfigNode {
@@ -84,8 +179,7 @@ public class FactorGraphBuilder {
                 switch (cn.type) {
                     case "RowMarkovNode":
                         RowMarkovEvaluator rowEval = new RowMarkovEvaluator(rowModel, rowExtractor, CHAIN_VERSION);
-                        CachedMarkovChainEvaluator cachedRow = new CachedMarkovChainEvaluator(rowEval, imageDao,
-                                resultDao);
+                        CachedMarkovChainEvaluator cachedRow = cached(rowEval);
                         Patch4x4FeedbackConfig rowFeedback = cn.feedback != null ? cn.feedback
                                 : Patch4x4FeedbackConfig.disabled();
                         node = new RowMarkovNode(cn.id, cachedRow, rowExtractor, rowFeedback);
@@ -93,16 +187,14 @@ public class FactorGraphBuilder {
                     case "ColumnMarkovNode":
                         ColumnMarkovEvaluator colEval = new ColumnMarkovEvaluator(colModel, colExtractor,
                                 CHAIN_VERSION);
-                        CachedMarkovChainEvaluator cachedCol = new CachedMarkovChainEvaluator(colEval, imageDao,
-                                resultDao);
+                        CachedMarkovChainEvaluator cachedCol = cached(colEval);
                         Patch4x4FeedbackConfig colFeedback = cn.feedback != null ? cn.feedback
                                 : Patch4x4FeedbackConfig.disabled();
                         node = new ColumnMarkovNode(cn.id, cachedCol, colExtractor, colFeedback);
                         break;
                     case "PatchMarkovNode":
                         Patch2x2Evaluator patchEval = new Patch2x2Evaluator(patchModel, patchExtractor, CHAIN_VERSION);
-                        CachedMarkovChainEvaluator cachedPatch = new CachedMarkovChainEvaluator(patchEval, imageDao,
-                                resultDao);
+                        CachedMarkovChainEvaluator cachedPatch = cached(patchEval);
                         node = new PatchMarkovNode(cn.id, cachedPatch);
                         break;
                     case "Patch4x4Node":
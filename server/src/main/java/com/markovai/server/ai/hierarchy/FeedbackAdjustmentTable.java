@@ -0,0 +1,591 @@
+package com.markovai.server.ai.hierarchy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+import static com.markovai.server.ai.hierarchy.CopyOnWritePages.PAGE_MASK;
+import static com.markovai.server.ai.hierarchy.CopyOnWritePages.PAGE_SHIFT;
+import static com.markovai.server.ai.hierarchy.CopyOnWritePages.PAGE_SIZE;
+
+/**
+ * Per-digit feedback adjustments {@code [digit][key]} with O(1) decay.
+ *
+ * Entries are stored as raw values times one global scale: the effective
+ * value is {@code raw * scale}. Decay multiplies only the scale; the raw
+ * values are folded back (renormalized) once the scale drops below
+ * {@link #RENORMALIZE_BELOW}, which is rare for decay rates near zero.
+ * Updates clamp the effective value, so the {@code maxAdjAbs} semantics
+ * are the same as for a plain table.
+ *
+ * While no decay has happened the scale is exactly 1.0 and every value is
+ * bit-identical to the plain table.
+ *
+ * The raw values live in copy-on-write pages ({@link CopyOnWritePages}), so
+ * {@link #snapshot()}, {@link #restore} and {@link #reset()} cost one
+ * pointer per page and a branch only copies the pages it updates.
+ *
+ * The pages and the scale are published together as one immutable
+ * {@link State}, so readers never combine a scale with raw values it does
+ * not belong to. The {@code *Concurrent} methods may be called from many
+ * threads: entry updates CAS the raw value inside a shared section
+ * ({@link #beginConcurrentUpdate}), while decay, renormalization, reset,
+ * snapshot and restore take the exclusive lock. The plain methods are for
+ * single-threaded use.
+ *
+ * Tables created with {@link #sparse} start in a sparse layout for large,
+ * mostly untouched key spaces: an open-addressing {@link IntSlotMap} gives
+ * each touched key a {@code numDigits}-wide slot, and slots are packed into
+ * the pages in first-touch order, so memory, renormalization and snapshots
+ * scale with the touched keys. Once more than
+ * {@code numKeys / SPARSE_KEY_RATIO} keys are touched, or before the first
+ * concurrent update (which needs fixed positions), the table is promoted
+ * to the dense layout. Raw values are moved unchanged, so the layout never
+ * affects results.
+ */
+final class FeedbackAdjustmentTable {
+
+    static final double RENORMALIZE_BELOW = 1.0e-30;
+    static final int SPARSE_KEY_RATIO = 8;
+
+    private static final VarHandle RAW = MethodHandles.arrayElementVarHandle(double[].class);
+    // Backs every untouched page; never written
+    private static final double[] ZERO_PAGE = new double[PAGE_SIZE];
+
+    private static final class State {
+        final CopyOnWritePages<double[]> pages;
+        final double scale;
+        // Sparse layout: values at slot * numDigits + digit. null: dense
+        // layout, values at digit * numKeys + key
+        final IntSlotMap slots;
+
+        State(CopyOnWritePages<double[]> pages, double scale, IntSlotMap slots) {
+            this.pages = pages;
+            this.scale = scale;
+            this.slots = slots;
+        }
+    }
+
+    /**
+     * Frozen table contents; may be restored any number of times.
+     */
+    static final class Snapshot {
+        final int numDigits;
+        final int numKeys;
+        final CopyOnWritePages<double[]> pages;
+        final double scale;
+        // Frozen copy; null for the dense layout
+        final IntSlotMap slots;
+
+        private Snapshot(int numDigits, int numKeys, CopyOnWritePages<double[]> pages, double scale,
+                IntSlotMap slots) {
+            this.numDigits = numDigits;
+            this.numKeys = numKeys;
+            this.pages = pages;
+            this.scale = scale;
+            this.slots = slots;
+        }
+
+        /**
+         * Snapshot of {@code numDigits * numKeys} digit-major raw values read
+         * from {@code values}. Few touched keys give the sparse layout;
+         * otherwise all-zero pages stay on the shared zero page.
+         */
+        static Snapshot read(int numDigits, int numKeys, DoubleBuffer values, double scale) {
+            int numValues = numDigits * numKeys;
+            CopyOnWritePages<double[]> pages = CopyOnWritePages.zeroed(CopyOnWritePages.pagesFor(numValues),
+                    ZERO_PAGE, double[]::clone);
+
+            boolean[] touched = new boolean[numKeys];
+            int numTouched = 0;
+            for (int i = 0; i < numValues; i++) {
+                if (values.get(i) != 0.0 && !touched[i % numKeys]) {
+                    touched[i % numKeys] = true;
+                    numTouched++;
+                }
+            }
+            if (numTouched <= sparseKeyLimit(numKeys)) {
+                IntSlotMap slots = new IntSlotMap(numTouched);
+                for (int key = 0; key < numKeys; key++) {
+                    if (!touched[key]) {
+                        continue;
+                    }
+                    int slot = slots.getOrAdd(key);
+                    for (int d = 0; d < numDigits; d++) {
+                        int idx = slot * numDigits + d;
+                        pages.write(idx >>> PAGE_SHIFT)[idx & PAGE_MASK] = values.get(d * numKeys + key);
+                    }
+                }
+                return new Snapshot(numDigits, numKeys, pages, scale, slots);
+            }
+
+            for (int p = 0; p < pages.numPages(); p++) {
+                int from = p << PAGE_SHIFT;
+                int len = Math.min(PAGE_SIZE, numValues - from);
+                for (int i = from; i < from + len; i++) {
+                    if (values.get(i) != 0.0) {
+                        values.get(from, pages.write(p), 0, len);
+                        break;
+                    }
+                }
+            }
+            return new Snapshot(numDigits, numKeys, pages, scale, null);
+        }
+
+        /**
+         * Writes the raw values digit-major into {@code values}, which must
+         * start zeroed (only touched keys are written for the sparse layout).
+         */
+        void writeTo(DoubleBuffer values) {
+            if (slots == null) {
+                int numValues = numDigits * numKeys;
+                for (int p = 0; p < pages.numPages(); p++) {
+                    values.put(p << PAGE_SHIFT, pages.read(p), 0, Math.min(PAGE_SIZE, numValues - (p << PAGE_SHIFT)));
+                }
+                return;
+            }
+            for (int slot = 0; slot < slots.size(); slot++) {
+                int key = slots.keyAt(slot);
+                for (int d = 0; d < numDigits; d++) {
+                    int idx = slot * numDigits + d;
+                    values.put(d * numKeys + key, pages.read(idx >>> PAGE_SHIFT)[idx & PAGE_MASK]);
+                }
+            }
+        }
+
+        /**
+         * Snapshot holding the mean effective value of {@code snapshots}
+         * (scale 1.0), summed in list order. Only touched entries are read:
+         * the union of the slots when every snapshot is sparse, otherwise
+         * the non-zero pages and slots, so the work scales with what the
+         * snapshots hold rather than with the key space.
+         */
+        static Snapshot mean(List<Snapshot> snapshots) {
+            Snapshot first = snapshots.get(0);
+            boolean allSparse = true;
+            for (Snapshot s : snapshots) {
+                if (s.numDigits != first.numDigits || s.numKeys != first.numKeys) {
+                    throw new IllegalArgumentException("Cannot average tables of different shapes");
+                }
+                allSparse &= s.slots != null;
+            }
+            return allSparse ? meanSparse(snapshots) : meanDense(snapshots);
+        }
+
+        private double rawAt(int slot, int digit) {
+            int idx = slot * numDigits + digit;
+            return pages.read(idx >>> PAGE_SHIFT)[idx & PAGE_MASK];
+        }
+
+        private static Snapshot meanSparse(List<Snapshot> snapshots) {
+            Snapshot first = snapshots.get(0);
+            int numDigits = first.numDigits;
+            int numKeys = first.numKeys;
+
+            // Sums by slot of the union of the snapshots' keys
+            IntSlotMap union = new IntSlotMap(first.slots.size());
+            double[] sum = new double[Math.max(4, first.slots.size()) * numDigits];
+            for (Snapshot s : snapshots) {
+                for (int slot = 0; slot < s.slots.size(); slot++) {
+                    int to = union.getOrAdd(s.slots.keyAt(slot)) * numDigits;
+                    if (to + numDigits > sum.length) {
+                        sum = Arrays.copyOf(sum, Math.max(sum.length * 2, to + numDigits));
+                    }
+                    for (int d = 0; d < numDigits; d++) {
+                        sum[to + d] += s.rawAt(slot, d) * s.scale;
+                    }
+                }
+            }
+
+            int numTouched = 0;
+            boolean[] touched = new boolean[union.size()];
+            for (int slot = 0; slot < union.size(); slot++) {
+                for (int d = 0; d < numDigits; d++) {
+                    sum[slot * numDigits + d] /= snapshots.size();
+                    touched[slot] |= sum[slot * numDigits + d] != 0.0;
+                }
+                if (touched[slot]) {
+                    numTouched++;
+                }
+            }
+
+            CopyOnWritePages<double[]> pages = CopyOnWritePages.zeroed(
+                    CopyOnWritePages.pagesFor(numDigits * numKeys), ZERO_PAGE, double[]::clone);
+            IntSlotMap slots = numTouched <= sparseKeyLimit(numKeys) ? new IntSlotMap(numTouched) : null;
+            for (int from = 0; from < union.size(); from++) {
+                if (!touched[from]) {
+                    continue;
+                }
+                int key = union.keyAt(from);
+                int to = slots != null ? slots.getOrAdd(key) : -1;
+                for (int d = 0; d < numDigits; d++) {
+                    double v = sum[from * numDigits + d];
+                    int idx = slots != null ? to * numDigits + d : d * numKeys + key;
+                    if (v != 0.0) {
+                        pages.write(idx >>> PAGE_SHIFT)[idx & PAGE_MASK] = v;
+                    }
+                }
+            }
+            return new Snapshot(numDigits, numKeys, pages, 1.0, slots);
+        }
+
+        private static Snapshot meanDense(List<Snapshot> snapshots) {
+            Snapshot first = snapshots.get(0);
+            int numDigits = first.numDigits;
+            int numKeys = first.numKeys;
+            CopyOnWritePages<double[]> pages = CopyOnWritePages.zeroed(
+                    CopyOnWritePages.pagesFor(numDigits * numKeys), ZERO_PAGE, double[]::clone);
+            for (Snapshot s : snapshots) {
+                if (s.slots == null) {
+                    for (int p = 0; p < s.pages.numPages(); p++) {
+                        double[] src = s.pages.read(p);
+                        if (src == ZERO_PAGE) {
+                            continue;
+                        }
+                        double[] dst = pages.write(p);
+                        for (int i = 0; i < PAGE_SIZE; i++) {
+                            dst[i] += src[i] * s.scale;
+                        }
+                    }
+                    continue;
+                }
+                for (int slot = 0; slot < s.slots.size(); slot++) {
+                    int key = s.slots.keyAt(slot);
+                    for (int d = 0; d < numDigits; d++) {
+                        double raw = s.rawAt(slot, d);
+                        if (raw != 0.0) {
+                            int idx = d * numKeys + key;
+                            pages.write(idx >>> PAGE_SHIFT)[idx & PAGE_MASK] += raw * s.scale;
+                        }
+                    }
+                }
+            }
+            for (int p = 0; p < pages.numPages(); p++) {
+                if (pages.read(p) == ZERO_PAGE) {
+                    continue;
+                }
+                double[] dst = pages.write(p);
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    dst[i] /= snapshots.size();
+                }
+            }
+            return new Snapshot(numDigits, numKeys, pages, 1.0, null);
+        }
+    }
+
+    private final int numDigits;
+    private final int numKeys;
+    // Layout of a fresh or reset table
+    private final boolean sparse;
+    private final StampedLock lock = new StampedLock();
+    private volatile State state;
+
+    FeedbackAdjustmentTable(int numDigits, int numKeys) {
+        this(numDigits, numKeys, false);
+    }
+
+    private FeedbackAdjustmentTable(int numDigits, int numKeys, boolean sparse) {
+        this.numDigits = numDigits;
+        this.numKeys = numKeys;
+        this.sparse = sparse;
+        this.state = emptyState();
+    }
+
+    /**
+     * A table that starts in the sparse layout.
+     */
+    static FeedbackAdjustmentTable sparse(int numDigits, int numKeys) {
+        return new FeedbackAdjustmentTable(numDigits, numKeys, true);
+    }
+
+    /**
+     * Touched keys above which a sparse table is promoted to dense.
+     */
+    static int sparseKeyLimit(int numKeys) {
+        return numKeys / SPARSE_KEY_RATIO;
+    }
+
+    private CopyOnWritePages<double[]> zeroPages() {
+        return CopyOnWritePages.zeroed(CopyOnWritePages.pagesFor(numDigits * numKeys), ZERO_PAGE, double[]::clone);
+    }
+
+    private State emptyState() {
+        return new State(zeroPages(), 1.0, sparse ? new IntSlotMap(64) : null);
+    }
+
+    // Existing entry, or -1 if a sparse table has no slot for the key
+    private int indexOf(State st, int digit, int key) {
+        if (st.slots == null) {
+            return digit * numKeys + key;
+        }
+        int slot = st.slots.slotOf(key);
+        return slot < 0 ? -1 : slot * numDigits + digit;
+    }
+
+    // State to write key into: promotes instead of adding a slot past the limit
+    private State writableState(int key) {
+        State st = state;
+        if (st.slots != null && st.slots.size() >= sparseKeyLimit(numKeys) && st.slots.slotOf(key) < 0) {
+            st = dense(st);
+            state = st;
+        }
+        return st;
+    }
+
+    private int writeIndex(State st, int digit, int key) {
+        return st.slots == null ? digit * numKeys + key : st.slots.getOrAdd(key) * numDigits + digit;
+    }
+
+    private State dense(State st) {
+        CopyOnWritePages<double[]> out = zeroPages();
+        for (int slot = 0; slot < st.slots.size(); slot++) {
+            int key = st.slots.keyAt(slot);
+            for (int d = 0; d < numDigits; d++) {
+                int from = slot * numDigits + d;
+                double v = st.pages.read(from >>> PAGE_SHIFT)[from & PAGE_MASK];
+                if (v != 0.0) {
+                    int to = d * numKeys + key;
+                    out.write(to >>> PAGE_SHIFT)[to & PAGE_MASK] = v;
+                }
+            }
+        }
+        return new State(out, st.scale, null);
+    }
+
+    boolean isSparse() {
+        return state.slots != null;
+    }
+
+    /**
+     * {@code {nonZero, saturated}}: entries with a non-zero effective value,
+     * and those among them whose magnitude reached {@code limit} (up to
+     * rounding of the decay scale). May run while the table is updated; the
+     * counts are then a best-effort view.
+     */
+    long[] countSaturated(double limit) {
+        State st = state;
+        IntSlotMap slots = st.slots;
+        int numValues = slots == null ? numDigits * numKeys : slots.size() * numDigits;
+        double threshold = limit * (1.0 - 1.0e-9);
+        long nonZero = 0;
+        long saturated = 0;
+        for (int p = 0; (p << PAGE_SHIFT) < numValues; p++) {
+            double[] page = st.pages.read(p);
+            if (page == ZERO_PAGE) {
+                continue;
+            }
+            int len = Math.min(PAGE_SIZE, numValues - (p << PAGE_SHIFT));
+            for (int i = 0; i < len; i++) {
+                double v = Math.abs((double) RAW.getOpaque(page, i) * st.scale);
+                if (v != 0.0) {
+                    nonZero++;
+                    if (v >= threshold) {
+                        saturated++;
+                    }
+                }
+            }
+        }
+        return new long[] { nonZero, saturated };
+    }
+
+    int getNumKeys() {
+        return numKeys;
+    }
+
+    double get(int digit, int key) {
+        State st = state;
+        int idx = indexOf(st, digit, key);
+        if (idx < 0) {
+            return 0.0;
+        }
+        return (double) RAW.getOpaque(st.pages.read(idx >>> PAGE_SHIFT), idx & PAGE_MASK) * st.scale;
+    }
+
+    /**
+     * {@code out[d] += factor * get(d, key)} for every digit, with one key
+     * lookup. Untouched keys of a sparse table leave {@code out} as is.
+     */
+    void addScaledTo(int key, double factor, double[] out) {
+        State st = state;
+        int base;
+        int stride;
+        if (st.slots == null) {
+            base = key;
+            stride = numKeys;
+        } else {
+            int slot = st.slots.slotOf(key);
+            if (slot < 0) {
+                return;
+            }
+            base = slot * numDigits;
+            stride = 1;
+        }
+        for (int d = 0; d < numDigits; d++) {
+            int idx = base + d * stride;
+            double raw = (double) RAW.getOpaque(st.pages.read(idx >>> PAGE_SHIFT), idx & PAGE_MASK);
+            out[d] += factor * (raw * st.scale);
+        }
+    }
+
+    /**
+     * Adds {@code delta} to the effective value and clamps it to
+     * {@code [-maxAbs, maxAbs]}.
+     */
+    void addClamped(int digit, int key, double delta, double maxAbs) {
+        State st = writableState(key);
+        int idx = writeIndex(st, digit, key);
+        double[] page = st.pages.write(idx >>> PAGE_SHIFT);
+        int off = idx & PAGE_MASK;
+        page[off] = clamp(page[off] * st.scale + delta, maxAbs) / st.scale;
+    }
+
+    /**
+     * Lock-free variant of {@link #addClamped}; must be called between
+     * {@link #beginConcurrentUpdate} and {@link #endConcurrentUpdate}.
+     */
+    void addClampedConcurrent(int digit, int key, double delta, double maxAbs) {
+        // The shared section keeps state (and so the scale and the dense
+        // layout) fixed
+        State st = state;
+        int idx = digit * numKeys + key;
+        double[] page = st.pages.write(idx >>> PAGE_SHIFT);
+        int off = idx & PAGE_MASK;
+        double cur;
+        double next;
+        do {
+            cur = (double) RAW.getVolatile(page, off);
+            next = clamp(cur * st.scale + delta, maxAbs) / st.scale;
+        } while (!RAW.compareAndSet(page, off, cur, next));
+    }
+
+    private static double clamp(double v, double maxAbs) {
+        if (v > maxAbs)
+            v = maxAbs;
+        if (v < -maxAbs)
+            v = -maxAbs;
+        return v;
+    }
+
+    long beginConcurrentUpdate() {
+        if (state.slots != null) {
+            // Lock-free updates need fixed positions
+            long stamp = lock.writeLock();
+            try {
+                State st = state;
+                if (st.slots != null) {
+                    state = dense(st);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        return lock.readLock();
+    }
+
+    void endConcurrentUpdate(long stamp) {
+        lock.unlockRead(stamp);
+    }
+
+    /**
+     * Multiplies every effective value by {@code factor}.
+     */
+    void decay(double factor) {
+        State st = state;
+        double scale = st.scale * factor;
+        if (factor == 0.0) {
+            state = emptyState();
+        } else if (Math.abs(scale) < RENORMALIZE_BELOW) {
+            state = new State(scaled(st.pages, scale), 1.0, st.slots);
+        } else {
+            state = new State(st.pages, scale, st.slots);
+        }
+    }
+
+    void decayConcurrent(double factor) {
+        long stamp = lock.writeLock();
+        try {
+            decay(factor);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Folds the scale into the raw values and resets it to 1.
+     */
+    void renormalize() {
+        long stamp = lock.writeLock();
+        try {
+            State st = state;
+            if (st.scale != 1.0) {
+                state = new State(scaled(st.pages, st.scale), 1.0, st.slots);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Fresh pages: lock-free readers keep a consistent view of the old ones
+    private CopyOnWritePages<double[]> scaled(CopyOnWritePages<double[]> pages, double scale) {
+        CopyOnWritePages<double[]> out = zeroPages();
+        for (int p = 0; p < pages.numPages(); p++) {
+            double[] src = pages.read(p);
+            if (src == ZERO_PAGE) {
+                continue;
+            }
+            double[] dst = out.write(p);
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                dst[i] = src[i] * scale;
+            }
+        }
+        return out;
+    }
+
+    void reset() {
+        long stamp = lock.writeLock();
+        try {
+            state = emptyState();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    Snapshot snapshot() {
+        long stamp = lock.writeLock();
+        try {
+            State st = state;
+            return new Snapshot(numDigits, numKeys, st.pages.share(), st.scale,
+                    st.slots != null ? st.slots.copy() : null);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void restore(Snapshot snapshot) {
+        if (snapshot.numDigits != numDigits || snapshot.numKeys != numKeys) {
+            throw new IllegalArgumentException("Snapshot of a " + snapshot.numDigits + "x" + snapshot.numKeys
+                    + " table cannot be restored into a " + numDigits + "x" + numKeys + " table");
+        }
+        long stamp = lock.writeLock();
+        try {
+            state = new State(snapshot.pages.fork(), snapshot.scale,
+                    snapshot.slots != null ? snapshot.slots.copy() : null);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    double getScale() {
+        return state.scale;
+    }
+
+    /**
+     * Pages copied since the last snapshot, restore or reset.
+     */
+    int getPrivatePages() {
+        return state.pages.ownedPages();
+    }
+}
@@ -0,0 +1,279 @@
+package com.markovai.server.ai.hierarchy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.markovai.server.ai.hierarchy.CopyOnWritePages.PAGE_MASK;
+import static com.markovai.server.ai.hierarchy.CopyOnWritePages.PAGE_SHIFT;
+import static com.markovai.server.ai.hierarchy.CopyOnWritePages.PAGE_SIZE;
+
+/**
+ * Global per-key update counts (used for frequency scaling) plus the total
+ * updates counter that drives "decay every N updates". The
+ * {@code *Concurrent} methods are atomic; the plain ones are for
+ * single-threaded use. Counts live in copy-on-write pages, like the
+ * adjustment table, so snapshots are cheap; snapshot, restore and reset
+ * must not run concurrently with updates.
+ *
+ * Like {@link FeedbackAdjustmentTable#sparse}, {@link #sparse} counts pack
+ * touched keys into slots until {@link FeedbackAdjustmentTable#sparseKeyLimit}
+ * keys are touched or the first concurrent increment, then go dense.
+ */
+final class FeedbackCounts {
+
+    private static final VarHandle COUNT = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final long[] ZERO_PAGE = new long[PAGE_SIZE];
+
+    /**
+     * Frozen counts; may be restored any number of times.
+     */
+    static final class Snapshot {
+        final int numKeys;
+        final CopyOnWritePages<long[]> pages;
+        // Frozen copy; null for the dense layout
+        final IntSlotMap slots;
+        final long updates;
+
+        private Snapshot(int numKeys, CopyOnWritePages<long[]> pages, IntSlotMap slots, long updates) {
+            this.numKeys = numKeys;
+            this.pages = pages;
+            this.slots = slots;
+            this.updates = updates;
+        }
+
+        static Snapshot read(int numKeys, LongBuffer counts, long updates) {
+            CopyOnWritePages<long[]> pages = CopyOnWritePages.zeroed(CopyOnWritePages.pagesFor(numKeys), ZERO_PAGE,
+                    long[]::clone);
+
+            int numTouched = 0;
+            for (int key = 0; key < numKeys; key++) {
+                if (counts.get(key) != 0L) {
+                    numTouched++;
+                }
+            }
+            if (numTouched <= FeedbackAdjustmentTable.sparseKeyLimit(numKeys)) {
+                IntSlotMap slots = new IntSlotMap(numTouched);
+                for (int key = 0; key < numKeys; key++) {
+                    long count = counts.get(key);
+                    if (count != 0L) {
+                        int slot = slots.getOrAdd(key);
+                        pages.write(slot >>> PAGE_SHIFT)[slot & PAGE_MASK] = count;
+                    }
+                }
+                return new Snapshot(numKeys, pages, slots, updates);
+            }
+
+            for (int p = 0; p < pages.numPages(); p++) {
+                int from = p << PAGE_SHIFT;
+                int len = Math.min(PAGE_SIZE, numKeys - from);
+                for (int i = from; i < from + len; i++) {
+                    if (counts.get(i) != 0L) {
+                        counts.get(from, pages.write(p), 0, len);
+                        break;
+                    }
+                }
+            }
+            return new Snapshot(numKeys, pages, null, updates);
+        }
+
+        /**
+         * Writes the counts into {@code values}, which must start zeroed.
+         */
+        void writeTo(LongBuffer values) {
+            if (slots == null) {
+                for (int p = 0; p < pages.numPages(); p++) {
+                    values.put(p << PAGE_SHIFT, pages.read(p), 0, Math.min(PAGE_SIZE, numKeys - (p << PAGE_SHIFT)));
+                }
+                return;
+            }
+            for (int slot = 0; slot < slots.size(); slot++) {
+                values.put(slots.keyAt(slot), pages.read(slot >>> PAGE_SHIFT)[slot & PAGE_MASK]);
+            }
+        }
+
+        /**
+         * Counts of {@code base} plus every branch's increments since
+         * {@code base}, for branches that all started from it.
+         */
+        static Snapshot merge(Snapshot base, List<Snapshot> branches) {
+            long[] total = new long[base.numKeys];
+            base.writeTo(LongBuffer.wrap(total));
+            long[] baseCounts = total.clone();
+            long[] counts = new long[base.numKeys];
+            long updates = base.updates;
+            for (Snapshot s : branches) {
+                if (s.numKeys != base.numKeys) {
+                    throw new IllegalArgumentException("Cannot merge counts of different sizes");
+                }
+                Arrays.fill(counts, 0L);
+                s.writeTo(LongBuffer.wrap(counts));
+                for (int key = 0; key < base.numKeys; key++) {
+                    total[key] += counts[key] - baseCounts[key];
+                }
+                updates += s.updates - base.updates;
+            }
+            return read(base.numKeys, LongBuffer.wrap(total), updates);
+        }
+    }
+
+    // Pages plus the slot map of the sparse layout (null when dense)
+    private static final class State {
+        final CopyOnWritePages<long[]> pages;
+        final IntSlotMap slots;
+
+        State(CopyOnWritePages<long[]> pages, IntSlotMap slots) {
+            this.pages = pages;
+            this.slots = slots;
+        }
+    }
+
+    private final int numKeys;
+    private final boolean sparse;
+    private volatile State state;
+    private final AtomicLong updates = new AtomicLong();
+
+    FeedbackCounts(int numKeys) {
+        this(numKeys, false);
+    }
+
+    private FeedbackCounts(int numKeys, boolean sparse) {
+        this.numKeys = numKeys;
+        this.sparse = sparse;
+        this.state = emptyState();
+    }
+
+    static FeedbackCounts sparse(int numKeys) {
+        return new FeedbackCounts(numKeys, true);
+    }
+
+    private State emptyState() {
+        return new State(CopyOnWritePages.zeroed(CopyOnWritePages.pagesFor(numKeys), ZERO_PAGE, long[]::clone),
+                sparse ? new IntSlotMap(64) : null);
+    }
+
+    private int writeIndex(int key) {
+        State st = state;
+        if (st.slots == null) {
+            return key;
+        }
+        if (st.slots.size() >= FeedbackAdjustmentTable.sparseKeyLimit(numKeys) && st.slots.slotOf(key) < 0) {
+            state = dense(st);
+            return key;
+        }
+        return st.slots.getOrAdd(key);
+    }
+
+    private State dense(State st) {
+        State out = new State(CopyOnWritePages.zeroed(CopyOnWritePages.pagesFor(numKeys), ZERO_PAGE, long[]::clone),
+                null);
+        for (int slot = 0; slot < st.slots.size(); slot++) {
+            int key = st.slots.keyAt(slot);
+            out.pages.write(key >>> PAGE_SHIFT)[key & PAGE_MASK] = st.pages.read(slot >>> PAGE_SHIFT)[slot & PAGE_MASK];
+        }
+        return out;
+    }
+
+    /**
+     * Increments the count of {@code key} and returns the new count.
+     */
+    long increment(int key) {
+        int idx = writeIndex(key);
+        long[] page = state.pages.write(idx >>> PAGE_SHIFT);
+        return ++page[idx & PAGE_MASK];
+    }
+
+    /**
+     * Adds {@code n} to the count of {@code key} and returns the new count.
+     */
+    long add(int key, long n) {
+        int idx = writeIndex(key);
+        long[] page = state.pages.write(idx >>> PAGE_SHIFT);
+        return page[idx & PAGE_MASK] += n;
+    }
+
+    long incrementConcurrent(int key) {
+        State st = state;
+        if (st.slots != null) {
+            st = promoteConcurrent();
+        }
+        long[] page = st.pages.write(key >>> PAGE_SHIFT);
+        return (long) COUNT.getAndAdd(page, key & PAGE_MASK, 1L) + 1;
+    }
+
+    // Lock-free increments need fixed positions
+    private synchronized State promoteConcurrent() {
+        State st = state;
+        if (st.slots != null) {
+            st = dense(st);
+            state = st;
+        }
+        return st;
+    }
+
+    long get(int key) {
+        State st = state;
+        int idx = key;
+        if (st.slots != null) {
+            idx = st.slots.slotOf(key);
+            if (idx < 0) {
+                return 0L;
+            }
+        }
+        return (long) COUNT.getOpaque(st.pages.read(idx >>> PAGE_SHIFT), idx & PAGE_MASK);
+    }
+
+    boolean isSparse() {
+        return state.slots != null;
+    }
+
+    /**
+     * Adds {@code n} to the updates counter and returns the new total.
+     */
+    long addUpdates(long n) {
+        long total = updates.getPlain() + n;
+        updates.setPlain(total);
+        return total;
+    }
+
+    long addUpdatesConcurrent(long n) {
+        return updates.addAndGet(n);
+    }
+
+    long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * Number of multiples of {@code every} crossed when the counter moved
+     * from {@code total - n} to {@code total}; each is one decay event.
+     */
+    static long crossings(long total, long n, long every) {
+        if (every <= 0) {
+            return 0;
+        }
+        return total / every - (total - n) / every;
+    }
+
+    Snapshot snapshot() {
+        State st = state;
+        return new Snapshot(numKeys, st.pages.share(), st.slots != null ? st.slots.copy() : null, updates.get());
+    }
+
+    void restore(Snapshot snapshot) {
+        if (snapshot.numKeys != numKeys) {
+            throw new IllegalArgumentException(
+                    "Snapshot of " + snapshot.numKeys + " counts cannot be restored into " + numKeys);
+        }
+        state = new State(snapshot.pages.fork(), snapshot.slots != null ? snapshot.slots.copy() : null);
+        updates.set(snapshot.updates);
+    }
+
+    void reset() {
+        state = emptyState();
+        updates.set(0L);
+    }
+}
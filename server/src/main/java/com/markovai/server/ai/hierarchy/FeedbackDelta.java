@@ -0,0 +1,153 @@
+package com.markovai.server.ai.hierarchy;
+
+import java.util.Arrays;
+
+/**
+ * Sparse buffer of pending feedback updates for one node, filled while the
+ * node's tables are frozen and applied in one step at a mini-batch boundary
+ * (see {@code Patch4x4FeedbackConfig.miniBatchSize}).
+ *
+ * Per touched key it keeps the number of updates and, per digit, the sum of
+ * the signed margin scales ({@code +baseScale} for the true digit,
+ * {@code -baseScale} for the rival). The learning rate and the frequency
+ * scale are applied when the delta is applied, against the counts at that
+ * point. Buffers are not thread-safe; each thread fills its own and they
+ * are merged with {@link #mergeFrom}.
+ */
+public final class FeedbackDelta {
+
+    private final Class<? extends DigitFactorNode> nodeType;
+    private final int numDigits;
+    private final int numKeys;
+    private final IntSlotMap slots;
+    // sums[slot * numDigits + digit]
+    private double[] sums;
+    private long[] keyCounts;
+    private long updates;
+    // Key updates of each buffered image, in the order they were added
+    private int[] imageUpdates = new int[16];
+    private int numImages;
+
+    FeedbackDelta(Class<? extends DigitFactorNode> nodeType, int numDigits, int numKeys) {
+        this.nodeType = nodeType;
+        this.numDigits = numDigits;
+        this.numKeys = numKeys;
+        this.slots = new IntSlotMap(64);
+        this.sums = new double[slots.slotCapacity() * numDigits];
+        this.keyCounts = new long[slots.slotCapacity()];
+    }
+
+    void checkNode(Class<? extends DigitFactorNode> type, int digits, int keys) {
+        if (type != nodeType || digits != numDigits || keys != numKeys) {
+            throw new IllegalArgumentException("Delta of a " + nodeType.getSimpleName() + " cannot be applied to a "
+                    + type.getSimpleName());
+        }
+    }
+
+    private int slot(int key) {
+        int slot = slots.getOrAdd(key);
+        if (slot >= keyCounts.length) {
+            keyCounts = Arrays.copyOf(keyCounts, slots.slotCapacity());
+            sums = Arrays.copyOf(sums, slots.slotCapacity() * numDigits);
+        }
+        return slot;
+    }
+
+    /**
+     * Records one symmetric update of every key in {@code keys}.
+     */
+    void add(int[] keys, int trueDigit, int rivalDigit, double baseScale) {
+        for (int key : keys) {
+            int slot = slot(key);
+            keyCounts[slot]++;
+            sums[slot * numDigits + trueDigit] += baseScale;
+            sums[slot * numDigits + rivalDigit] -= baseScale;
+        }
+        updates += keys.length;
+        addImage(keys.length);
+    }
+
+    private void addImage(int n) {
+        if (numImages == imageUpdates.length) {
+            imageUpdates = Arrays.copyOf(imageUpdates, numImages * 2);
+        }
+        imageUpdates[numImages++] = n;
+    }
+
+    /**
+     * Adds the pending updates of {@code other} (of the same node) to this
+     * buffer.
+     */
+    public void mergeFrom(FeedbackDelta other) {
+        other.checkNode(nodeType, numDigits, numKeys);
+        for (int s = 0; s < other.slots.size(); s++) {
+            int slot = slot(other.slots.keyAt(s));
+            keyCounts[slot] += other.keyCounts[s];
+            for (int d = 0; d < numDigits; d++) {
+                sums[slot * numDigits + d] += other.sums[s * numDigits + d];
+            }
+        }
+        updates += other.updates;
+        for (int i = 0; i < other.numImages; i++) {
+            addImage(other.imageUpdates[i]);
+        }
+    }
+
+    int numTouchedKeys() {
+        return slots.size();
+    }
+
+    int keyAt(int slot) {
+        return slots.keyAt(slot);
+    }
+
+    long keyCount(int slot) {
+        return keyCounts[slot];
+    }
+
+    double sum(int slot, int digit) {
+        return sums[slot * numDigits + digit];
+    }
+
+    int getNumDigits() {
+        return numDigits;
+    }
+
+    /**
+     * Total pending key updates, as counted by "decay every N updates".
+     */
+    public long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Number of buffered images whose updates cross a multiple of
+     * {@code every} when applied one after another to a counter starting at
+     * {@code before}; the per-image decay rule of the serial path.
+     */
+    long imageCrossings(long before, long every) {
+        long total = before;
+        long crossed = 0;
+        for (int i = 0; i < numImages; i++) {
+            total += imageUpdates[i];
+            if (FeedbackCounts.crossings(total, imageUpdates[i], every) > 0) {
+                crossed++;
+            }
+        }
+        return crossed;
+    }
+
+    public boolean isEmpty() {
+        return updates == 0;
+    }
+
+    public void clear() {
+        for (int s = 0; s < slots.size(); s++) {
+            keyCounts[s] = 0;
+        }
+        Arrays.fill(sums, 0, slots.size() * numDigits, 0.0);
+        slots.clear();
+        updates = 0;
+        numImages = 0;
+    }
+}
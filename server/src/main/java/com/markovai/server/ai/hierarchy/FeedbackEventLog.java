@@ -0,0 +1,532 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of feedback update decisions, with replay and
+ * compaction, so another (or a restarted) process can rebuild the learned
+ * feedback state by streaming a file instead of re-running adaptation.
+ *
+ * A log directory holds {@value #LOG_FILE} and at most one compacted
+ * snapshot {@code snapshot-<seq>/} with one {@link FeedbackStateFile} per
+ * node, covering every event up to {@code seq}. The log file is a
+ * {@value #HEADER_BYTES}-byte header (magic, version, first sequence
+ * number) followed by records
+ * {@code [int length][payload][int crc32(payload)]}, little endian. A
+ * payload is the event's sequence number, type and node, and for feedback
+ * events the image hash, true and rival digit, flags, margin and the
+ * node's feature keys (symbols or transition ids) as unsigned 16-bit values.
+ *
+ * Replay feeds the recorded decisions back through the nodes' own gating
+ * and update code, without rescoring images. Serial updates are reproduced
+ * exactly. Mini-batch updates are re-accumulated in image order, so they
+ * match the live run up to the order of the floating-point summation. The
+ * replaying nodes need the same learning parameters as the live ones (the
+ * snapshot files check this). Only updates a node applied live (feedback
+ * and learning both enabled) are logged; learning is switched on for the
+ * replay, while a node with feedback disabled keeps it off and skips them.
+ *
+ * A torn last record (crash during an append) is ignored on replay and cut
+ * off when the log is reopened. Compaction writes the snapshot into a
+ * temporary directory that is atomically renamed, then atomically replaces
+ * the log with an empty one; a crash in between leaves events the snapshot
+ * already covers, which replay skips by sequence number.
+ */
+public final class FeedbackEventLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FeedbackEventLog.class);
+
+    public static final String LOG_FILE = "feedback.log";
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    static final int MAGIC = 0x4C46424D; // "MBFL"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    static final byte FEEDBACK = 1;
+    static final byte EPOCH_DECAY = 2;
+    static final byte BATCH_END = 3;
+
+    private static final int FLAG_CORRECT = 1;
+    // Buffered into the node's mini-batch delta until the next BATCH_END
+    private static final int FLAG_BUFFERED = 2;
+
+    /**
+     * Node an event belongs to; also names its file in a snapshot.
+     */
+    public enum NodeKind {
+        PATCH4X4("patch4x4"), ROW("row"), COLUMN("col");
+
+        private final String fileName;
+
+        NodeKind(String fileName) {
+            this.fileName = fileName + FeedbackStateFile.EXTENSION;
+        }
+    }
+
+    private final Path dir;
+    private final int compactEveryNEvents;
+    private FileChannel channel;
+    private ByteBuffer record = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private long nextSeq;
+    private long eventsSinceCompaction;
+
+    private FeedbackEventLog(Path dir, int compactEveryNEvents, FileChannel channel, long nextSeq) {
+        this.dir = dir;
+        this.compactEveryNEvents = compactEveryNEvents;
+        this.channel = channel;
+        this.nextSeq = nextSeq;
+    }
+
+    /**
+     * Starts a new log in {@code dir}, discarding any previous log and
+     * snapshot there. {@code compactEveryNEvents <= 0} never compacts on its
+     * own.
+     */
+    public static FeedbackEventLog create(Path dir, int compactEveryNEvents) throws IOException {
+        Files.createDirectories(dir);
+        for (Path snapshot : snapshotDirs(dir)) {
+            deleteTree(snapshot);
+        }
+        writeEmptyLog(dir, 1);
+        return new FeedbackEventLog(dir, compactEveryNEvents, openForAppend(dir), 1);
+    }
+
+    /**
+     * Opens the log in {@code dir} for appending, cutting off a torn last
+     * record; creates it if missing.
+     */
+    public static FeedbackEventLog open(Path dir, int compactEveryNEvents) throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve(LOG_FILE);
+        if (!Files.exists(file)) {
+            long snapshotSeq = latestSnapshotSeq(dir);
+            writeEmptyLog(dir, snapshotSeq + 1);
+            return new FeedbackEventLog(dir, compactEveryNEvents, openForAppend(dir), snapshotSeq + 1);
+        }
+        Scan scan = scan(file, Long.MAX_VALUE, null);
+        FileChannel ch = openForAppend(dir);
+        if (scan.validBytes < ch.size()) {
+            logger.warn("Feedback event log {}: dropping {} bytes of a torn record", file, ch.size() - scan.validBytes);
+            ch.truncate(scan.validBytes);
+        }
+        return new FeedbackEventLog(dir, compactEveryNEvents, ch, scan.lastSeq + 1);
+    }
+
+    private static FileChannel openForAppend(Path dir) throws IOException {
+        return FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeEmptyLog(Path dir, long firstSeq) throws IOException {
+        Path file = dir.resolve(LOG_FILE);
+        Path tmp = file.resolveSibling(LOG_FILE + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(firstSeq).flip();
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                ch.write(header);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FeedbackStateFile.forceDirectory(dir);
+    }
+
+    /**
+     * 64-bit image id for the log: the leading 16 hex digits of the content
+     * hash, or a hash of the pixels for images loaded without one.
+     */
+    public static long imageHash(DigitImage img) {
+        if (img.imageHash != null && img.imageHash.length() >= 16) {
+            return Long.parseUnsignedLong(img.imageHash.substring(0, 16), 16);
+        }
+        return Arrays.deepHashCode(img.pixels) & 0xFFFFFFFFL;
+    }
+
+    public synchronized void appendFeedback(NodeKind node, long imageHash, int[] keys, int trueDigit,
+            int rivalDigit, boolean wasCorrect, double margin, boolean buffered) throws IOException {
+        ensureCapacity(48 + 2 * keys.length);
+        beginRecord(FEEDBACK, node);
+        record.putLong(imageHash);
+        record.put((byte) trueDigit);
+        record.put((byte) rivalDigit);
+        record.put((byte) ((wasCorrect ? FLAG_CORRECT : 0) | (buffered ? FLAG_BUFFERED : 0)));
+        record.putDouble(margin);
+        record.putChar((char) keys.length);
+        for (int key : keys) {
+            record.putChar((char) key);
+        }
+        endRecord();
+    }
+
+    public synchronized void appendEpochDecay(NodeKind node) throws IOException {
+        beginRecord(EPOCH_DECAY, node);
+        endRecord();
+    }
+
+    /**
+     * Marks the point where the nodes applied their buffered mini-batch;
+     * a batch's buffered feedback events must directly precede it.
+     */
+    public synchronized void appendBatchEnd() throws IOException {
+        beginRecord(BATCH_END, NodeKind.PATCH4X4); // applies to every node
+        endRecord();
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (record.capacity() < bytes) {
+            record = ByteBuffer.allocate(Math.max(bytes, record.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private void beginRecord(byte type, NodeKind node) {
+        record.clear();
+        record.putInt(0); // length, patched in endRecord
+        record.putLong(nextSeq);
+        record.put(type);
+        record.put((byte) node.ordinal());
+    }
+
+    private void endRecord() throws IOException {
+        int length = record.position() - Integer.BYTES;
+        crc.reset();
+        crc.update(record.array(), Integer.BYTES, length);
+        record.putInt(0, length);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        // One write per record; APPEND keeps concurrent readers on whole records
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        nextSeq++;
+        eventsSinceCompaction++;
+    }
+
+    /**
+     * Sequence number of the last appended event (0 if none yet).
+     */
+    public synchronized long getLastSeq() {
+        return nextSeq - 1;
+    }
+
+    /**
+     * Forces appended events to disk.
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Compacts if at least {@code compactEveryNEvents} events were appended
+     * since the last compaction. Call only where the nodes' state reflects
+     * every appended event (between images, or after a mini-batch).
+     */
+    public boolean compactIfDue(Patch4x4Node p4Node, RowMarkovNode rowNode, ColumnMarkovNode colNode)
+            throws IOException {
+        synchronized (this) {
+            if (compactEveryNEvents <= 0 || eventsSinceCompaction < compactEveryNEvents) {
+                return false;
+            }
+        }
+        compact(p4Node, rowNode, colNode);
+        return true;
+    }
+
+    /**
+     * Replaces the log with a snapshot of the nodes' current state (which
+     * must reflect every appended event) and an empty log.
+     */
+    public synchronized void compact(Patch4x4Node p4Node, RowMarkovNode rowNode, ColumnMarkovNode colNode)
+            throws IOException {
+        long seq = nextSeq - 1;
+        Path snapshot = dir.resolve(SNAPSHOT_PREFIX + seq);
+        Path tmp = dir.resolve(SNAPSHOT_PREFIX + seq + ".tmp");
+        if (Files.exists(tmp)) {
+            deleteTree(tmp);
+        }
+        Files.createDirectories(tmp);
+        FeedbackLearner[] nodes = learners(p4Node, rowNode, colNode);
+        for (NodeKind kind : NodeKind.values()) {
+            if (nodes[kind.ordinal()] != null) {
+                nodes[kind.ordinal()].saveFeedbackState(tmp.resolve(kind.fileName));
+            }
+        }
+        if (Files.exists(snapshot)) {
+            deleteTree(snapshot);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        FeedbackStateFile.forceDirectory(dir);
+
+        channel.force(false);
+        channel.close();
+        writeEmptyLog(dir, seq + 1);
+        channel = openForAppend(dir);
+        eventsSinceCompaction = 0;
+
+        for (Path old : snapshotDirs(dir)) {
+            if (!old.equals(snapshot)) {
+                deleteTree(old);
+            }
+        }
+        logger.info("Compacted feedback event log {} into {}", dir, snapshot.getFileName());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    /**
+     * Rebuilds the nodes' feedback state from {@code dir}: restores the
+     * compacted snapshot (if any) and replays the log after it. Nodes may be
+     * null; their events are skipped. Returns the sequence number up to which
+     * the state is caught up.
+     */
+    public static long replay(Path dir, Patch4x4Node p4Node, RowMarkovNode rowNode, ColumnMarkovNode colNode)
+            throws IOException {
+        long seq = latestSnapshotSeq(dir);
+        FeedbackLearner[] nodes = learners(p4Node, rowNode, colNode);
+        if (seq > 0) {
+            Path snapshot = dir.resolve(SNAPSHOT_PREFIX + seq);
+            for (NodeKind kind : NodeKind.values()) {
+                Path file = snapshot.resolve(kind.fileName);
+                if (nodes[kind.ordinal()] != null && Files.exists(file)) {
+                    nodes[kind.ordinal()].loadFeedbackState(file);
+                }
+            }
+        }
+        return replayLog(dir.resolve(LOG_FILE), seq, p4Node, rowNode, colNode);
+    }
+
+    /**
+     * Replays the events after {@code afterSeq} from a log file onto the
+     * nodes, e.g. to follow a log another process is appending to. Returns
+     * the sequence number up to which the state is caught up; events of a
+     * mini-batch whose end is not logged yet are left for the next call.
+     */
+    public static long replayLog(Path logFile, long afterSeq, Patch4x4Node p4Node, RowMarkovNode rowNode,
+            ColumnMarkovNode colNode) throws IOException {
+        FeedbackLearner[] nodes = learners(p4Node, rowNode, colNode);
+        Replayer replayer = new Replayer(nodes, afterSeq);
+        Patch4x4FeedbackConfig[] saved = new Patch4x4FeedbackConfig[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != null) {
+                saved[i] = nodes[i].getFeedbackConfig();
+                Patch4x4FeedbackConfig learning = saved[i].copy();
+                learning.learningEnabled = true;
+                learning.concurrentUpdates = false;
+                nodes[i].setFeedbackConfig(learning);
+            }
+        }
+        try {
+            scan(logFile, afterSeq, replayer);
+        } finally {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] != null) {
+                    nodes[i].setFeedbackConfig(saved[i]);
+                }
+            }
+        }
+        if (replayer.replayed > 0) {
+            logger.info("Replayed {} feedback events from {} (caught up to #{})", replayer.replayed, logFile,
+                    replayer.caughtUp);
+        }
+        return replayer.caughtUp;
+    }
+
+    private static FeedbackLearner[] learners(Patch4x4Node p4Node, RowMarkovNode rowNode,
+            ColumnMarkovNode colNode) {
+        return new FeedbackLearner[] { p4Node, rowNode, colNode };
+    }
+
+    private interface EventSink {
+        void accept(long seq, byte type, int node, ByteBuffer payload);
+    }
+
+    private static final class Scan {
+        long validBytes;
+        long lastSeq;
+    }
+
+    // Reads whole, CRC-checked records; stops at the first torn or corrupt one
+    private static Scan scan(Path file, long afterSeq, EventSink sink) throws IOException {
+        Scan scan = new Scan();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            ByteBuffer header = ByteBuffer.wrap(in.readNBytes(HEADER_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IOException(file + ": not a feedback event log");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported version " + version);
+            }
+            scan.lastSeq = header.getLong() - 1;
+            scan.validBytes = HEADER_BYTES;
+
+            CRC32 crc = new CRC32();
+            byte[] lengthBytes = new byte[Integer.BYTES];
+            byte[] buf = new byte[256];
+            while (in.readNBytes(lengthBytes, 0, Integer.BYTES) == Integer.BYTES) {
+                int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                if (length < Long.BYTES + 2 || length > (1 << 20)) {
+                    break;
+                }
+                if (buf.length < length + Integer.BYTES) {
+                    buf = new byte[length + Integer.BYTES];
+                }
+                if (in.readNBytes(buf, 0, length + Integer.BYTES) != length + Integer.BYTES) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.wrap(buf, 0, length + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                crc.reset();
+                crc.update(buf, 0, length);
+                if ((int) crc.getValue() != payload.getInt(length)) {
+                    break;
+                }
+                payload.limit(length);
+                long seq = payload.getLong();
+                byte type = payload.get();
+                int node = payload.get();
+                if (sink != null && seq > afterSeq) {
+                    sink.accept(seq, type, node, payload);
+                }
+                scan.lastSeq = seq;
+                scan.validBytes += Integer.BYTES + length + Integer.BYTES;
+            }
+        }
+        return scan;
+    }
+
+    private static final class Replayer implements EventSink {
+        private final FeedbackLearner[] nodes;
+        private final FeedbackDelta[] pending;
+        // First event of the open mini-batch, 0 if none
+        private long batchStart;
+        long caughtUp;
+        long replayed;
+
+        Replayer(FeedbackLearner[] nodes, long afterSeq) {
+            this.nodes = nodes;
+            this.pending = new FeedbackDelta[nodes.length];
+            this.caughtUp = afterSeq;
+        }
+
+        @Override
+        public void accept(long seq, byte type, int node, ByteBuffer payload) {
+            if (type == BATCH_END) {
+                for (int i = 0; i < nodes.length; i++) {
+                    if (pending[i] != null) {
+                        nodes[i].applyFeedbackDelta(pending[i]);
+                        pending[i] = null;
+                    }
+                }
+                batchStart = 0;
+                replayed++;
+            } else {
+                FeedbackLearner learner = node < nodes.length ? nodes[node] : null;
+                switch (type) {
+                    case FEEDBACK -> feedback(learner, node, seq, payload);
+                    case EPOCH_DECAY -> {
+                        if (learner != null) {
+                            learner.applyDecayIfEnabled(true);
+                        }
+                    }
+                    default -> throw new IllegalStateException("Unknown feedback event type " + type + " at #" + seq);
+                }
+                if (learner != null) {
+                    replayed++;
+                }
+            }
+            // An open batch is replayed again from its start next time
+            caughtUp = batchStart > 0 ? batchStart - 1 : seq;
+        }
+
+        private void feedback(FeedbackLearner learner, int node, long seq, ByteBuffer payload) {
+            payload.getLong(); // image hash
+            int trueDigit = payload.get();
+            int rivalDigit = payload.get();
+            int flags = payload.get();
+            double margin = payload.getDouble();
+            int[] keys = new int[payload.getChar()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = payload.getChar();
+            }
+            boolean wasCorrect = (flags & FLAG_CORRECT) != 0;
+            if ((flags & FLAG_BUFFERED) != 0) {
+                if (batchStart == 0) {
+                    batchStart = seq;
+                }
+                if (learner != null) {
+                    if (pending[node] == null) {
+                        pending[node] = learner.newFeedbackDelta();
+                    }
+                    learner.accumulateFeedback(pending[node], keys, trueDigit, rivalDigit, wasCorrect, margin);
+                }
+            } else if (batchStart > 0) {
+                throw new IllegalStateException("Unbuffered feedback event #" + seq + " inside a mini-batch");
+            } else if (learner != null) {
+                learner.applyFeedback(keys, trueDigit, rivalDigit, wasCorrect, margin);
+            }
+        }
+    }
+
+    /**
+     * Sequence number covered by the newest complete snapshot in
+     * {@code dir}, or 0.
+     */
+    static long latestSnapshotSeq(Path dir) throws IOException {
+        long latest = 0;
+        for (Path snapshot : snapshotDirs(dir)) {
+            latest = Math.max(latest, Long.parseLong(snapshot.getFileName().toString()
+                    .substring(SNAPSHOT_PREFIX.length())));
+        }
+        return latest;
+    }
+
+    // Complete snapshot directories (temporary ones are not included)
+    private static List<Path> snapshotDirs(Path dir) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return dirs;
+        }
+        try (Stream<Path> entries = Files.list(dir)) {
+            entries.filter(p -> Files.isDirectory(p))
+                    .filter(p -> p.getFileName().toString().matches(SNAPSHOT_PREFIX + "\\d+"))
+                    .forEach(dirs::add);
+        }
+        return dirs;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Feedback update strategy compiled from a {@link Patch4x4FeedbackConfig}:
+ * gating, the margin scale and the frequency scale are resolved once, and
+ * the clamped frequency scale {@code 1/sqrt(1+n)} or {@code 1/(1+n)} is read
+ * from a precomputed table indexed by the global count. Every value equals
+ * the one computed inline, so updates are bit-identical.
+ *
+ * Two flavours keep the historical node behaviour: {@link #forSymbols}
+ * (patch4x4: case-sensitive mode name, scale clamped only when frequency
+ * scaling is on) and {@link #forTransitions} (row/column: case-insensitive
+ * mode name, scale always clamped).
+ */
+final class FeedbackKernel {
+
+    enum FrequencyScaling {
+        NONE, GLOBAL_SQRT, GLOBAL_LINEAR
+    }
+
+    // Upper bound on the table; counts beyond it are computed (or saturated)
+    private static final int MAX_TABLE_SIZE = 1 << 16;
+
+    private final Patch4x4FeedbackConfig source;
+
+    private final boolean updateOnlyIfIncorrect;
+    private final boolean useMarginGating;
+    private final double marginTarget;
+    private final double eta;
+    private final double maxAdjAbs;
+
+    private final boolean frequencyScalingEnabled;
+    private final String frequencyScalingMode;
+    private final FrequencyScaling scaling;
+    private final double minUpdateScale;
+    private final double maxUpdateScale;
+    // scaleTable[n] = clamped frequency scale at count n
+    private final double[] scaleTable;
+    // Counts >= saturationCount all scale to saturatedScale
+    private final long saturationCount;
+    private final double saturatedScale;
+
+    private FeedbackKernel(Patch4x4FeedbackConfig cfg, boolean caseInsensitiveMode, boolean clampAlways) {
+        this.source = cfg;
+        this.updateOnlyIfIncorrect = cfg.updateOnlyIfIncorrect;
+        this.useMarginGating = cfg.useMarginGating;
+        this.marginTarget = cfg.marginTarget;
+        this.eta = cfg.eta;
+        this.maxAdjAbs = cfg.maxAdjAbs;
+        this.minUpdateScale = cfg.minUpdateScale;
+        this.maxUpdateScale = cfg.maxUpdateScale;
+        this.frequencyScalingEnabled = cfg.frequencyScalingEnabled;
+        this.frequencyScalingMode = cfg.frequencyScalingMode;
+
+        if (!cfg.frequencyScalingEnabled) {
+            this.scaling = FrequencyScaling.NONE;
+        } else if (caseInsensitiveMode ? "GLOBAL_LINEAR".equalsIgnoreCase(cfg.frequencyScalingMode)
+                : "GLOBAL_LINEAR".equals(cfg.frequencyScalingMode)) {
+            this.scaling = FrequencyScaling.GLOBAL_LINEAR;
+        } else {
+            // Default GLOBAL_SQRT
+            this.scaling = FrequencyScaling.GLOBAL_SQRT;
+        }
+
+        if (scaling == FrequencyScaling.NONE) {
+            this.scaleTable = new double[0];
+            this.saturationCount = 0;
+            this.saturatedScale = clampAlways ? clamp(1.0) : 1.0;
+            return;
+        }
+
+        // Both scales are non-increasing in n, so once the clamped value
+        // reaches minUpdateScale it stays there
+        double[] table = new double[MAX_TABLE_SIZE];
+        int n = 0;
+        long saturation = Long.MAX_VALUE;
+        for (; n < MAX_TABLE_SIZE; n++) {
+            double raw = rawScale(n);
+            table[n] = clamp(raw);
+            if (raw < minUpdateScale) {
+                saturation = n;
+                n++;
+                break;
+            }
+        }
+        this.scaleTable = Arrays.copyOf(table, n);
+        this.saturationCount = saturation;
+        this.saturatedScale = saturation < n ? table[(int) saturation] : 0.0;
+    }
+
+    static FeedbackKernel forSymbols(Patch4x4FeedbackConfig cfg) {
+        return new FeedbackKernel(cfg, false, false);
+    }
+
+    static FeedbackKernel forTransitions(Patch4x4FeedbackConfig cfg) {
+        return new FeedbackKernel(cfg, true, true);
+    }
+
+    /**
+     * True if this kernel was compiled from a config with the same
+     * update-relevant values as {@code cfg} (configs are mutable, so setting
+     * the same config again recompiles only if its fields changed).
+     */
+    boolean matches(Patch4x4FeedbackConfig cfg) {
+        return cfg == source && updateOnlyIfIncorrect == cfg.updateOnlyIfIncorrect
+                && useMarginGating == cfg.useMarginGating && marginTarget == cfg.marginTarget && eta == cfg.eta
+                && maxAdjAbs == cfg.maxAdjAbs && minUpdateScale == cfg.minUpdateScale
+                && maxUpdateScale == cfg.maxUpdateScale && frequencyScalingEnabled == cfg.frequencyScalingEnabled
+                && Objects.equals(frequencyScalingMode, cfg.frequencyScalingMode);
+    }
+
+    private double rawScale(long count) {
+        return scaling == FrequencyScaling.GLOBAL_LINEAR ? 1.0 / (1.0 + count) : 1.0 / Math.sqrt(1.0 + count);
+    }
+
+    private double clamp(double scaleFreq) {
+        if (scaleFreq < minUpdateScale)
+            scaleFreq = minUpdateScale;
+        if (scaleFreq > maxUpdateScale)
+            scaleFreq = maxUpdateScale;
+        return scaleFreq;
+    }
+
+    FrequencyScaling getScaling() {
+        return scaling;
+    }
+
+    /**
+     * Whether an image with this outcome and margin produces an update.
+     */
+    boolean shouldUpdate(boolean wasCorrect, double margin) {
+        if (updateOnlyIfIncorrect && wasCorrect) {
+            return false;
+        }
+        return !(useMarginGating && margin >= marginTarget);
+    }
+
+    /**
+     * For an image {@link #shouldUpdate} rejected: whether its correctness,
+     * rather than its margin, gated it.
+     */
+    boolean gatedByCorrectness(boolean wasCorrect) {
+        return updateOnlyIfIncorrect && wasCorrect;
+    }
+
+    /**
+     * Margin-based scale of an image's updates, in [0, 1].
+     */
+    double baseScale(double margin) {
+        double scale = 1.0;
+        if (useMarginGating) {
+            scale = (marginTarget - margin);
+            if (scale < 0)
+                scale = 0;
+            if (scale > 1.0)
+                scale = 1.0; // clamp
+        }
+        return scale;
+    }
+
+    /**
+     * Clamped frequency scale for a key whose global count (after this
+     * update) is {@code count}.
+     */
+    double frequencyScale(long count) {
+        if (scaling == FrequencyScaling.NONE) {
+            return saturatedScale;
+        }
+        if (count < scaleTable.length) {
+            return scaleTable[(int) count];
+        }
+        if (count >= saturationCount) {
+            return saturatedScale;
+        }
+        return clamp(rawScale(count));
+    }
+
+    double effectiveEta(double baseScale, long count) {
+        return eta * baseScale * frequencyScale(count);
+    }
+
+    /**
+     * One symmetric update of {@code key}: count it, then move the true
+     * digit up and the rival down by the effective learning rate.
+     */
+    void update(FeedbackAdjustmentTable adj, FeedbackCounts counts, int key, int trueDigit, int rivalDigit,
+            double baseScale) {
+        double etaEff = effectiveEta(baseScale, counts.increment(key));
+        adj.addClamped(trueDigit, key, etaEff, maxAdjAbs);
+        adj.addClamped(rivalDigit, key, -etaEff, maxAdjAbs);
+    }
+
+    /**
+     * {@link #update} for every key, serially or lock-free.
+     */
+    void updateAll(FeedbackAdjustmentTable adj, FeedbackCounts counts, int[] keys, int trueDigit, int rivalDigit,
+            double baseScale, boolean concurrent) {
+        if (!concurrent) {
+            for (int key : keys) {
+                update(adj, counts, key, trueDigit, rivalDigit, baseScale);
+            }
+            return;
+        }
+        long stamp = adj.beginConcurrentUpdate();
+        try {
+            for (int key : keys) {
+                double etaEff = effectiveEta(baseScale, counts.incrementConcurrent(key));
+                adj.addClampedConcurrent(trueDigit, key, etaEff, maxAdjAbs);
+                adj.addClampedConcurrent(rivalDigit, key, -etaEff, maxAdjAbs);
+            }
+        } finally {
+            adj.endConcurrentUpdate(stamp);
+        }
+    }
+
+    /**
+     * Applies a mini-batch of buffered updates. Each key's summed update is
+     * scaled by the mean frequency scale over the counts it passes through
+     * in the batch (what the serial loop would apply on average) and
+     * clamped once. Counts are advanced; the updates counter and decay are
+     * left to the caller.
+     */
+    void applyDelta(FeedbackAdjustmentTable adj, FeedbackCounts counts, FeedbackDelta delta) {
+        int numDigits = delta.getNumDigits();
+        for (int s = 0; s < delta.numTouchedKeys(); s++) {
+            int key = delta.keyAt(s);
+            long n = delta.keyCount(s);
+            long before = counts.add(key, n) - n;
+            double freqSum = 0.0;
+            for (long c = before + 1; c <= before + n; c++) {
+                freqSum += frequencyScale(c);
+            }
+            double etaEff = eta * (freqSum / n);
+            for (int d = 0; d < numDigits; d++) {
+                double sum = delta.sum(s, d);
+                if (sum != 0.0) {
+                    adj.addClamped(d, key, etaEff * sum, maxAdjAbs);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Feedback learning operations shared by the patch4x4, row and column
+ * nodes, keyed by the node's feature keys (symbols or transition ids) so
+ * they can be driven without an image, e.g. by {@link FeedbackEventLog}.
+ */
+interface FeedbackLearner {
+
+    Patch4x4FeedbackConfig getFeedbackConfig();
+
+    void setFeedbackConfig(Patch4x4FeedbackConfig config);
+
+    boolean applyFeedback(int[] keys, int trueDigit, int rivalDigit, boolean wasCorrect, double margin);
+
+    FeedbackDelta newFeedbackDelta();
+
+    void accumulateFeedback(FeedbackDelta delta, int[] keys, int trueDigit, int rivalDigit, boolean wasCorrect,
+            double margin);
+
+    void applyFeedbackDelta(FeedbackDelta delta);
+
+    boolean applyDecayIfEnabled(boolean isLearningAllowed);
+
+    void saveFeedbackState(Path file) throws IOException;
+
+    void loadFeedbackState(Path file) throws IOException;
+}
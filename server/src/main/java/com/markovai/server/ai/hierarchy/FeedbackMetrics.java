@@ -0,0 +1,225 @@
+package com.markovai.server.ai.hierarchy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live feedback counters of one node: images updated or gated (by
+ * correctness or by margin), key updates, decays and the time spent in the
+ * feedback calls, with a log2 histogram of the call latencies.
+ *
+ * Counters are {@link LongAdder}s, so recording from many learning threads
+ * costs a striped add and never contends or logs. Adjustment saturation is
+ * not counted per update; {@link #snapshot} scans the node's table when a
+ * report is requested.
+ */
+public final class FeedbackMetrics {
+
+    // Bucket b counts calls of [2^b, 2^(b+1)) ns; the last one is open-ended
+    private static final int LATENCY_BUCKETS = 32;
+
+    private final LongAdder imagesUpdated = new LongAdder();
+    private final LongAdder gatedByCorrectness = new LongAdder();
+    private final LongAdder gatedByMargin = new LongAdder();
+    private final LongAdder keyUpdates = new LongAdder();
+    private final LongAdder decays = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder callNanos = new LongAdder();
+    private final LongAdder[] latency = new LongAdder[LATENCY_BUCKETS];
+    private volatile long sinceNanos = System.nanoTime();
+
+    FeedbackMetrics() {
+        for (int b = 0; b < LATENCY_BUCKETS; b++) {
+            latency[b] = new LongAdder();
+        }
+    }
+
+    /**
+     * An image whose updates were applied ({@code keys} key updates) or,
+     * for mini-batches, buffered (0 keys; see {@link #recordKeyUpdates}).
+     */
+    void recordUpdate(int keys) {
+        imagesUpdated.increment();
+        if (keys > 0) {
+            keyUpdates.add(keys);
+        }
+    }
+
+    void recordGated(boolean byCorrectness) {
+        (byCorrectness ? gatedByCorrectness : gatedByMargin).increment();
+    }
+
+    void recordKeyUpdates(long keys) {
+        keyUpdates.add(keys);
+    }
+
+    void recordDecays(long n) {
+        decays.add(n);
+    }
+
+    /**
+     * One feedback call that took {@code nanos}.
+     */
+    void recordCall(long nanos) {
+        calls.increment();
+        callNanos.add(nanos);
+        int bucket = nanos <= 1 ? 0 : Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+        latency[bucket].increment();
+    }
+
+    /**
+     * Zeroes every counter; throughput is measured from now on.
+     */
+    public void reset() {
+        imagesUpdated.reset();
+        gatedByCorrectness.reset();
+        gatedByMargin.reset();
+        keyUpdates.reset();
+        decays.reset();
+        calls.reset();
+        callNanos.reset();
+        for (LongAdder bucket : latency) {
+            bucket.reset();
+        }
+        sinceNanos = System.nanoTime();
+    }
+
+    Snapshot snapshot(String nodeId, FeedbackAdjustmentTable adj, double maxAdjAbs, long updatesCounter) {
+        long[] saturation = adj.countSaturated(maxAdjAbs);
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int b = 0; b < LATENCY_BUCKETS; b++) {
+            long n = latency[b].sum();
+            if (n > 0) {
+                histogram.put(b == LATENCY_BUCKETS - 1 ? ">=" + (1L << b) : "<" + (1L << (b + 1)), n);
+            }
+        }
+        return new Snapshot(nodeId, imagesUpdated.sum(), gatedByCorrectness.sum(), gatedByMargin.sum(),
+                keyUpdates.sum(), decays.sum(), calls.sum(), callNanos.sum(), System.nanoTime() - sinceNanos,
+                histogram, saturation[0], saturation[1], maxAdjAbs, updatesCounter);
+    }
+
+    /**
+     * Point-in-time view of a node's counters, plus the derived rates.
+     */
+    public static final class Snapshot {
+        private final String nodeId;
+        private final long imagesUpdated;
+        private final long imagesGatedByCorrectness;
+        private final long imagesGatedByMargin;
+        private final long keyUpdates;
+        private final long decayEvents;
+        private final long feedbackCalls;
+        private final long feedbackNanos;
+        private final long elapsedNanos;
+        private final Map<String, Long> feedbackLatencyNanos;
+        private final long adjNonZeroEntries;
+        private final long adjSaturatedEntries;
+        private final double maxAdjAbs;
+        private final long updatesCounter;
+
+        Snapshot(String nodeId, long imagesUpdated, long imagesGatedByCorrectness, long imagesGatedByMargin,
+                long keyUpdates, long decayEvents, long feedbackCalls, long feedbackNanos, long elapsedNanos,
+                Map<String, Long> feedbackLatencyNanos, long adjNonZeroEntries, long adjSaturatedEntries,
+                double maxAdjAbs, long updatesCounter) {
+            this.nodeId = nodeId;
+            this.imagesUpdated = imagesUpdated;
+            this.imagesGatedByCorrectness = imagesGatedByCorrectness;
+            this.imagesGatedByMargin = imagesGatedByMargin;
+            this.keyUpdates = keyUpdates;
+            this.decayEvents = decayEvents;
+            this.feedbackCalls = feedbackCalls;
+            this.feedbackNanos = feedbackNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.feedbackLatencyNanos = feedbackLatencyNanos;
+            this.adjNonZeroEntries = adjNonZeroEntries;
+            this.adjSaturatedEntries = adjSaturatedEntries;
+            this.maxAdjAbs = maxAdjAbs;
+            this.updatesCounter = updatesCounter;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public long getImagesUpdated() {
+            return imagesUpdated;
+        }
+
+        public long getImagesGatedByCorrectness() {
+            return imagesGatedByCorrectness;
+        }
+
+        public long getImagesGatedByMargin() {
+            return imagesGatedByMargin;
+        }
+
+        public long getKeyUpdates() {
+            return keyUpdates;
+        }
+
+        public long getDecayEvents() {
+            return decayEvents;
+        }
+
+        public long getFeedbackCalls() {
+            return feedbackCalls;
+        }
+
+        public long getFeedbackNanos() {
+            return feedbackNanos;
+        }
+
+        public double getMeanFeedbackMicros() {
+            return feedbackCalls == 0 ? 0.0 : feedbackNanos / 1000.0 / feedbackCalls;
+        }
+
+        /**
+         * Call counts by latency bucket in ns ({@code "<2048"}: 1024-2047).
+         */
+        public Map<String, Long> getFeedbackLatencyNanos() {
+            return feedbackLatencyNanos;
+        }
+
+        /**
+         * Key updates per second of wall time since the counters started.
+         */
+        public double getKeyUpdatesPerSecond() {
+            return elapsedNanos <= 0 ? 0.0 : keyUpdates * 1.0e9 / elapsedNanos;
+        }
+
+        /**
+         * Key updates per second spent inside the feedback calls.
+         */
+        public double getKeyUpdatesPerFeedbackSecond() {
+            return feedbackNanos <= 0 ? 0.0 : keyUpdates * 1.0e9 / feedbackNanos;
+        }
+
+        public long getAdjNonZeroEntries() {
+            return adjNonZeroEntries;
+        }
+
+        public long getAdjSaturatedEntries() {
+            return adjSaturatedEntries;
+        }
+
+        /**
+         * Share of the learned (non-zero) adjustments clamped at
+         * {@code maxAdjAbs}.
+         */
+        public double getAdjSaturatedFraction() {
+            return adjNonZeroEntries == 0 ? 0.0 : (double) adjSaturatedEntries / adjNonZeroEntries;
+        }
+
+        public double getMaxAdjAbs() {
+            return maxAdjAbs;
+        }
+
+        /**
+         * The node's persistent updates counter (drives decay every N).
+         */
+        public long getUpdatesCounter() {
+            return updatesCounter;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.markovai.server.ai.hierarchy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frozen feedback state (adjustments, global counts, updates counter and
+ * decay scale) of one feedback node, taken with {@code snapshot()} and
+ * applied with {@code restore(snapshot)} on the same kind of node.
+ *
+ * Snapshots share pages with the node copy-on-write: taking one is O(pages)
+ * and the node copies a page only when it next updates it. A snapshot is
+ * immutable and can be restored any number of times, e.g. to branch several
+ * experiments from the state after a common adaptation prefix.
+ */
+public final class FeedbackSnapshot {
+
+    final Class<? extends DigitFactorNode> nodeType;
+    final FeedbackAdjustmentTable.Snapshot adjustments;
+    final FeedbackCounts.Snapshot counts;
+
+    FeedbackSnapshot(Class<? extends DigitFactorNode> nodeType, FeedbackAdjustmentTable.Snapshot adjustments,
+            FeedbackCounts.Snapshot counts) {
+        this.nodeType = nodeType;
+        this.adjustments = adjustments;
+        this.counts = counts;
+    }
+
+    void checkNodeType(Class<? extends DigitFactorNode> type) {
+        if (type != nodeType) {
+            throw new IllegalArgumentException(
+                    "Snapshot of a " + nodeType.getSimpleName() + " cannot be restored into a " + type.getSimpleName());
+        }
+    }
+
+    /**
+     * Merges the states of workers that each started from {@code base} and
+     * learned on their own images (periodic model averaging): adjustments
+     * become the workers' mean, i.e. {@code base} plus the mean delta, while
+     * counts and the updates counter add up every worker's increments, so
+     * frequency scaling sees all the images. Workers are combined in list
+     * order, so the result depends only on the inputs.
+     */
+    public static FeedbackSnapshot average(FeedbackSnapshot base, List<FeedbackSnapshot> workers) {
+        if (workers.isEmpty()) {
+            return base;
+        }
+        List<FeedbackAdjustmentTable.Snapshot> adjustments = new ArrayList<>(workers.size());
+        List<FeedbackCounts.Snapshot> counts = new ArrayList<>(workers.size());
+        for (FeedbackSnapshot worker : workers) {
+            worker.checkNodeType(base.nodeType);
+            adjustments.add(worker.adjustments);
+            counts.add(worker.counts);
+        }
+        return new FeedbackSnapshot(base.nodeType, FeedbackAdjustmentTable.Snapshot.mean(adjustments),
+                FeedbackCounts.Snapshot.merge(base.counts, counts));
+    }
+
+    public long getUpdatesCounter() {
+        return counts.updates;
+    }
+}
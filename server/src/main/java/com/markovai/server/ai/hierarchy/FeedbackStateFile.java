@@ -0,0 +1,167 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Versioned, fixed-layout file holding one node's {@link FeedbackSnapshot}.
+ *
+ * Layout (little endian): a {@value #HEADER_BYTES}-byte header
+ * (magic, version, numDigits, numKeys, config hash, updates counter, decay
+ * scale, node type name), then the raw adjustments
+ * {@code double[numDigits * numKeys]} digit-major, then the global counts
+ * {@code long[numKeys]}.
+ *
+ * Files are written through a memory mapping into a temporary file that is
+ * forced to disk and atomically moved over the previous checkpoint, and the
+ * directory is then forced so the rename itself is durable; a crash leaves
+ * either the old or the new state. Loading maps the file and
+ * copies only the non-zero pages (or touched keys, for sparse tables) into
+ * the copy-on-write tables.
+ */
+public final class FeedbackStateFile {
+
+    public static final String EXTENSION = ".fbstate";
+
+    static final int MAGIC = 0x4D4B4642; // "MKFB"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 128;
+    private static final int TYPE_NAME_BYTES = 64;
+
+    private FeedbackStateFile() {
+    }
+
+    /**
+     * Hash of the config fields that shape the learned values. Scoring-only
+     * and on/off fields are excluded, so a state learned with learning
+     * enabled loads into a frozen node.
+     */
+    public static long configHash(Patch4x4FeedbackConfig cfg) {
+        return Objects.hash(cfg.eta, cfg.marginTarget, cfg.updateOnlyIfIncorrect, cfg.useMarginGating, cfg.maxAdjAbs,
+                cfg.decayRate, cfg.frequencyScalingEnabled, cfg.frequencyScalingMode, cfg.minUpdateScale,
+                cfg.maxUpdateScale, cfg.applyDecayEveryNUpdates);
+    }
+
+    public static void write(Path file, FeedbackSnapshot snapshot, long configHash) throws IOException {
+        FeedbackAdjustmentTable.Snapshot adj = snapshot.adjustments;
+        FeedbackCounts.Snapshot counts = snapshot.counts;
+        int numValues = adj.numDigits * adj.numKeys;
+        long size = HEADER_BYTES + (long) numValues * Double.BYTES + (long) counts.numKeys * Long.BYTES;
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putInt(adj.numDigits);
+            buf.putInt(adj.numKeys);
+            buf.putLong(configHash);
+            buf.putLong(counts.updates);
+            buf.putDouble(adj.scale);
+            byte[] typeName = Arrays.copyOf(snapshot.nodeType.getSimpleName().getBytes(StandardCharsets.US_ASCII),
+                    TYPE_NAME_BYTES);
+            buf.put(typeName);
+
+            // A freshly extended mapping reads as zeros
+            buf.position(HEADER_BYTES);
+            adj.writeTo(buf.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+
+            buf.position(HEADER_BYTES + numValues * Double.BYTES);
+            counts.writeTo(buf.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+
+            buf.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Forces {@code dir}'s entries to disk, making renames into it durable.
+     * Platforms that cannot open a directory as a channel (Windows) skip it.
+     */
+    static void forceDirectory(Path dir) throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException | UnsupportedOperationException e) {
+            return;
+        }
+        try (ch) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Reads a snapshot written for the same node type, table sizes and
+     * config hash; anything else is rejected with an IOException.
+     */
+    public static FeedbackSnapshot read(Path file, Class<? extends DigitFactorNode> nodeType, int numDigits,
+            int numKeys, long expectedConfigHash) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException(file + ": truncated header");
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buf.getInt() != MAGIC) {
+                throw new IOException(file + ": not a feedback state file");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported version " + version);
+            }
+            int fileDigits = buf.getInt();
+            int fileKeys = buf.getInt();
+            long configHash = buf.getLong();
+            long updates = buf.getLong();
+            double scale = buf.getDouble();
+            byte[] typeName = new byte[TYPE_NAME_BYTES];
+            buf.get(typeName);
+            String fileType = new String(typeName, StandardCharsets.US_ASCII).trim();
+
+            if (!nodeType.getSimpleName().equals(fileType)) {
+                throw new IOException(file + ": state of a " + fileType + ", expected " + nodeType.getSimpleName());
+            }
+            if (fileDigits != numDigits || fileKeys != numKeys) {
+                throw new IOException(file + ": table is " + fileDigits + "x" + fileKeys + ", expected " + numDigits
+                        + "x" + numKeys);
+            }
+            if (configHash != expectedConfigHash) {
+                throw new IOException(file + ": learned with a different feedback config");
+            }
+            int numValues = numDigits * numKeys;
+            if (size != HEADER_BYTES + (long) numValues * Double.BYTES + (long) numKeys * Long.BYTES) {
+                throw new IOException(file + ": unexpected size " + size);
+            }
+
+            buf.position(HEADER_BYTES);
+            DoubleBuffer values = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            FeedbackAdjustmentTable.Snapshot adj = FeedbackAdjustmentTable.Snapshot.read(numDigits, numKeys, values,
+                    scale);
+
+            buf.position(HEADER_BYTES + numValues * Double.BYTES);
+            LongBuffer countValues = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            FeedbackCounts.Snapshot counts = FeedbackCounts.Snapshot.read(numKeys, countValues, updates);
+
+            return new FeedbackSnapshot(nodeType, adj, counts);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.markovai.server.ai.hierarchy;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from non-negative int keys to dense slots
+ * {@code 0..size()-1}, assigned in insertion order. Callers keep their
+ * values in parallel arrays indexed by slot, so nothing is boxed.
+ * Not thread-safe.
+ */
+final class IntSlotMap {
+
+    private static final int EMPTY = -1;
+
+    // Open-addressing table: key and its slot, linear probing
+    private int[] tableKeys;
+    private int[] tableSlots;
+    private int mask;
+    // Keys by slot
+    private int[] slotKeys;
+    private int size;
+
+    IntSlotMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.tableKeys = new int[capacity];
+        this.tableSlots = new int[capacity];
+        this.mask = capacity - 1;
+        this.slotKeys = new int[Math.max(4, expectedSize)];
+        Arrays.fill(tableKeys, EMPTY);
+    }
+
+    private IntSlotMap(IntSlotMap other) {
+        this.tableKeys = other.tableKeys.clone();
+        this.tableSlots = other.tableSlots.clone();
+        this.mask = other.mask;
+        this.slotKeys = other.slotKeys.clone();
+        this.size = other.size;
+    }
+
+    IntSlotMap copy() {
+        return new IntSlotMap(this);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Slot of {@code key}, or -1 if absent.
+     */
+    int slotOf(int key) {
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            int k = tableKeys[i];
+            if (k == key) {
+                return tableSlots[i];
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Slot of {@code key}, assigning the next free slot if absent.
+     */
+    int getOrAdd(int key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+        int i = hash(key) & mask;
+        for (;; i = (i + 1) & mask) {
+            int k = tableKeys[i];
+            if (k == key) {
+                return tableSlots[i];
+            }
+            if (k == EMPTY) {
+                break;
+            }
+        }
+        int slot = size++;
+        if (slot == slotKeys.length) {
+            slotKeys = Arrays.copyOf(slotKeys, slot * 2);
+        }
+        slotKeys[slot] = key;
+        tableKeys[i] = key;
+        tableSlots[i] = slot;
+        // Keep the load factor at most 1/2
+        if (size * 2 > tableKeys.length) {
+            rehash(tableKeys.length * 2);
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        tableKeys = new int[capacity];
+        tableSlots = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(tableKeys, EMPTY);
+        for (int slot = 0; slot < size; slot++) {
+            int i = hash(slotKeys[slot]) & mask;
+            while (tableKeys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            tableKeys[i] = slotKeys[slot];
+            tableSlots[i] = slot;
+        }
+    }
+
+    int keyAt(int slot) {
+        return slotKeys[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Slots capacity reached so far; parallel value arrays must be at least
+     * this long.
+     */
+    int slotCapacity() {
+        return slotKeys.length;
+    }
+
+    void clear() {
+        Arrays.fill(tableKeys, EMPTY);
+        size = 0;
+    }
+}
@@ -1,33 +1,42 @@
 package com.markovai.server.ai.hierarchy;
 
+import com.markovai.server.ai.BinaryImage;
 import com.markovai.server.ai.DigitImage;
-import com.markovai.server.ai.DigitMarkovModel;
+import com.markovai.server.ai.ImageFeatureContext;
 import com.markovai.server.ai.DigitPatch4x4UnigramModel;
 import com.markovai.server.ai.Patch4x4FeedbackConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-public class Patch4x4Node implements DigitFactorNode {
+public class Patch4x4Node implements DigitFactorNode, FeedbackLearner {
     private static final Logger logger = LoggerFactory.getLogger(Patch4x4Node.class);
 
     private final String id;
     private final DigitPatch4x4UnigramModel model;
     private final double smoothingLambda;
     private Patch4x4FeedbackConfig feedbackCfg;
+    // Update strategy compiled from feedbackCfg when it is set. Immutable,
+    // so concurrent updates only read this field
+    private FeedbackKernel kernel;
 
     public Patch4x4FeedbackConfig getFeedbackConfig() {
         return feedbackCfg;
     }
 
     // Adjustment table: [digit][symbol]
-    // 0..65535 symbols. 10 digits.
-    private final double[][] adj = new double[10][65536];
-    private final long[] globalSymbolCount = new long[65536];
-    private long updatesCounter = 0;
+    // 0..65535 symbols. 10 digits. Decay is a lazy global scale; sparse
+    // until a good share of the symbols have been seen.
+    private final FeedbackAdjustmentTable adj = FeedbackAdjustmentTable.sparse(10, 65536);
+    // Global symbol counts and the updates counter
+    private final FeedbackCounts counts = FeedbackCounts.sparse(65536);
+    private final FeedbackMetrics metrics = new FeedbackMetrics();
 
     public Patch4x4Node(String id, DigitPatch4x4UnigramModel model, double smoothingLambda,
             Patch4x4FeedbackConfig feedbackCfg) {
@@ -38,6 +47,7 @@ public class Patch4x4Node implements DigitFactorNode {
         if (feedbackCfg == null) {
             throw new IllegalArgumentException("feedbackCfg cannot be null");
         }
+        this.kernel = FeedbackKernel.forSymbols(feedbackCfg);
     }
 
     @Override
@@ -52,42 +62,14 @@ public class Patch4x4Node implements DigitFactorNode {
 
     @Override
     public NodeResult computeForImage(DigitImage img, Map<String, NodeResult> childResults) {
-        int[] symbols = extractPatchSymbols(img);
-        int nSteps = symbols.length; // Should be 49
-
-        double[] smoothedSum = new double[10];
-
-        for (int d = 0; d < 10; d++) {
-            double prevLp = 0.0;
-            boolean first = true;
-            double sum = 0.0;
-
-            for (int symbol : symbols) {
-                double baseLp = model.logProbForSymbol(d, symbol);
-
-                // Apply feedback adjustment if enabled
-                if (feedbackCfg.enabled) {
-                    baseLp += feedbackCfg.adjScale * adj[d][symbol];
-                }
-
-                double lp = baseLp;
-
-                if (first) {
-                    sum += lp;
-                    first = false;
-                } else {
-                    double diff = lp - prevLp;
-                    sum += lp - smoothingLambda * Math.abs(diff);
-                }
-                prevLp = lp;
-            }
-            smoothedSum[d] = sum;
-        }
+        return computeForImage(new ImageFeatureContext(img), childResults);
+    }
 
+    @Override
+    public NodeResult computeForImage(ImageFeatureContext ctx, Map<String, NodeResult> childResults) {
+        DigitImage img = ctx.getImage();
         double[] avgLogL = new double[10];
-        for (int d = 0; d < 10; d++) {
-            avgLogL[d] = smoothedSum[d] / nSteps;
-        }
+        scoreSymbols(ctx.getPatch4x4Symbols(), avgLogL, new double[10], new double[10], new double[10]);
 
         if (logger.isDebugEnabled()) {
             double minAvg = Double.MAX_VALUE;
@@ -105,146 +87,256 @@ public class Patch4x4Node implements DigitFactorNode {
         return new NodeResult(avgLogL);
     }
 
-    public int[] extractPatchSymbols(DigitImage img) {
-        // Binarize
-        int[][] binary2D = DigitMarkovModel.binarize(img.pixels, 128);
-
-        int[] symbols = new int[49];
-        int idx = 0;
-        for (int r = 0; r < 7; r++) {
-            for (int c = 0; c < 7; c++) {
-                symbols[idx++] = DigitPatch4x4UnigramModel.encodePatch(binary2D, r * 4, c * 4);
+    @Override
+    public void computeForBatch(List<ImageFeatureContext> batch, Map<String, double[][]> childResults,
+            double[][] out) {
+        // Scratch rows reused across the batch
+        double[] smoothedSum = new double[10];
+        double[] prevLp = new double[10];
+        double[] symbolLp = new double[10];
+        for (int i = 0; i < batch.size(); i++) {
+            scoreSymbols(batch.get(i).getPatch4x4Symbols(), out[i], smoothedSum, prevLp, symbolLp);
+        }
+    }
+
+    private void scoreSymbols(int[] symbols, double[] avgLogL, double[] smoothedSum, double[] prevLp,
+            double[] symbolLp) {
+        int nSteps = symbols.length; // Should be 49
+        Arrays.fill(smoothedSum, 0.0);
+
+        // Symbol-major: one table row lookup gives all 10 digits
+        for (int i = 0; i < nSteps; i++) {
+            int symbol = symbols[i];
+            model.logProbsForSymbol(symbol, symbolLp);
+
+            // Apply feedback adjustment if enabled
+            if (feedbackCfg.enabled) {
+                adj.addScaledTo(symbol, feedbackCfg.adjScale, symbolLp);
+            }
+
+            for (int d = 0; d < 10; d++) {
+                double lp = symbolLp[d];
+
+                if (i == 0) {
+                    smoothedSum[d] += lp;
+                } else {
+                    double diff = lp - prevLp[d];
+                    smoothedSum[d] += lp - smoothingLambda * Math.abs(diff);
+                }
+                prevLp[d] = lp;
             }
         }
-        return symbols;
+
+        for (int d = 0; d < 10; d++) {
+            avgLogL[d] = smoothedSum[d] / nSteps;
+        }
+    }
+
+    public int[] extractPatchSymbols(DigitImage img) {
+        return DigitPatch4x4UnigramModel.extractSymbols(BinaryImage.of(img));
     }
 
+    public int[] extractPatchSymbols(ImageFeatureContext ctx) {
+        return ctx.getPatch4x4Symbols();
+    }
+
+    /**
+     * Applies the feedback of one scored image; returns true if learning is
+     * on, the image passed gating and at least one symbol was updated.
+     */
+    public boolean applyFeedback(ImageFeatureContext ctx, int trueDigit, int rivalDigit, boolean wasCorrect,
+            double margin) {
+        return applyFeedback(ctx.getPatch4x4Symbols(), trueDigit, rivalDigit, wasCorrect, margin);
+    }
+
+    /**
+     * Replaces the feedback config and compiles its update kernel. Fields
+     * changed on a config that is already set take effect once it is set
+     * again.
+     */
     public void setFeedbackConfig(Patch4x4FeedbackConfig newConfig) {
         if (newConfig == null) {
             throw new IllegalArgumentException("Cannot set null feedback config");
         }
+        if (!kernel.matches(newConfig)) {
+            this.kernel = FeedbackKernel.forSymbols(newConfig);
+        }
         this.feedbackCfg = newConfig;
     }
 
-    public void applyFeedback(int[] symbols, int trueDigit, int rivalDigit, boolean wasCorrect, double margin) {
+    public boolean applyFeedback(int[] symbols, int trueDigit, int rivalDigit, boolean wasCorrect, double margin) {
         // Must be enabled overall
         if (!feedbackCfg.enabled)
-            return;
+            return false;
 
         // Must have learning specifically enabled
         if (!feedbackCfg.learningEnabled) {
             // Scoring is enabled but learning is frozen.
-            return;
+            return false;
         }
 
-        boolean doUpdate = true;
-        if (feedbackCfg.updateOnlyIfIncorrect && wasCorrect) {
-            doUpdate = false;
+        long start = System.nanoTime();
+        FeedbackKernel k = kernel;
+        if (!k.shouldUpdate(wasCorrect, margin)) {
+            metrics.recordGated(k.gatedByCorrectness(wasCorrect));
+            metrics.recordCall(System.nanoTime() - start);
+            return false;
         }
 
-        if (feedbackCfg.useMarginGating) {
-            if (margin >= feedbackCfg.marginTarget) {
-                doUpdate = false;
-            }
-        }
+        double scale = k.baseScale(margin);
+        boolean concurrent = feedbackCfg.concurrentUpdates;
+        k.updateAll(adj, counts, symbols, trueDigit, rivalDigit, scale, concurrent);
 
-        if (!doUpdate)
-            return;
+        // Decay once if this image's updates crossed a multiple of N. With
+        // concurrent updates the atomic counter hands each crossing to
+        // exactly one thread.
+        long total = concurrent ? counts.addUpdatesConcurrent(symbols.length) : counts.addUpdates(symbols.length);
+        if (FeedbackCounts.crossings(total, symbols.length, feedbackCfg.applyDecayEveryNUpdates) > 0) {
+            applyDecay(feedbackCfg.decayRate);
+        }
+        metrics.recordUpdate(symbols.length);
+        metrics.recordCall(System.nanoTime() - start);
 
-        double scale = 1.0;
-        if (feedbackCfg.useMarginGating) {
-            scale = (feedbackCfg.marginTarget - margin);
-            if (scale < 0)
-                scale = 0;
-            if (scale > 1.0)
-                scale = 1.0; // clamp
+        if (logger.isTraceEnabled()) {
+            logger.trace("Feedback update: true={}, rival={}, margin={}, scale={}, updated {} symbols",
+                    trueDigit, rivalDigit, String.format("%.4f", margin), String.format("%.4f", scale), symbols.length);
         }
+        return symbols.length > 0;
+    }
 
-        for (int s : symbols) {
-            if (feedbackCfg.learningEnabled) {
-                globalSymbolCount[s]++;
-            }
+    /**
+     * Empty update buffer for {@link #accumulateFeedback}.
+     */
+    public FeedbackDelta newFeedbackDelta() {
+        return new FeedbackDelta(getClass(), 10, 65536);
+    }
 
-            double scaleFreq = 1.0;
-            if (feedbackCfg.frequencyScalingEnabled) {
-                if ("GLOBAL_LINEAR".equals(feedbackCfg.frequencyScalingMode)) {
-                    scaleFreq = 1.0 / (1.0 + globalSymbolCount[s]);
-                } else {
-                    // Default to GLOBAL_SQRT
-                    scaleFreq = 1.0 / Math.sqrt(1.0 + globalSymbolCount[s]);
-                }
-                if (scaleFreq < feedbackCfg.minUpdateScale)
-                    scaleFreq = feedbackCfg.minUpdateScale;
-                if (scaleFreq > feedbackCfg.maxUpdateScale)
-                    scaleFreq = feedbackCfg.maxUpdateScale;
-            }
+    /**
+     * Mini-batch variant of {@link #applyFeedback}: same gating, but the
+     * updates go into {@code delta} and the tables are left untouched, so
+     * several threads may call this (each with its own delta) while others
+     * score.
+     */
+    public void accumulateFeedback(FeedbackDelta delta, ImageFeatureContext ctx, int trueDigit, int rivalDigit,
+            boolean wasCorrect, double margin) {
+        accumulateFeedback(delta, ctx.getPatch4x4Symbols(), trueDigit, rivalDigit, wasCorrect, margin);
+    }
 
-            double etaEff = feedbackCfg.eta * scale * scaleFreq;
-
-            adj[trueDigit][s] += etaEff;
-            adj[rivalDigit][s] -= etaEff;
-
-            double m = feedbackCfg.maxAdjAbs;
-            if (adj[trueDigit][s] > m)
-                adj[trueDigit][s] = m;
-            if (adj[trueDigit][s] < -m)
-                adj[trueDigit][s] = -m;
-            if (adj[rivalDigit][s] > m)
-                adj[rivalDigit][s] = m;
-            if (adj[rivalDigit][s] < -m)
-                adj[rivalDigit][s] = -m;
-        }
-
-        updatesCounter += symbols.length;
-        if (feedbackCfg.applyDecayEveryNUpdates > 0
-                && updatesCounter % feedbackCfg.applyDecayEveryNUpdates < symbols.length) {
-            // Check if we crossed a multiple of N
-            // Simplification: if (updatesCounter % N) is small, or just check the modulo.
-            // Strict "every N" means we trigger if we just crossed the threshold.
-            // Since we add 49 at a time, we might skip the exact 0.
-            // Better check: (oldCounter / N) < (newCounter / N)
-            long oldVal = updatesCounter - symbols.length;
-            if (oldVal / feedbackCfg.applyDecayEveryNUpdates < updatesCounter / feedbackCfg.applyDecayEveryNUpdates) {
-                applyDecay(feedbackCfg.decayRate);
-            }
+    public void accumulateFeedback(FeedbackDelta delta, int[] symbols, int trueDigit, int rivalDigit,
+            boolean wasCorrect, double margin) {
+        if (!feedbackCfg.enabled || !feedbackCfg.learningEnabled)
+            return;
+
+        FeedbackKernel k = kernel;
+        if (!k.shouldUpdate(wasCorrect, margin)) {
+            metrics.recordGated(k.gatedByCorrectness(wasCorrect));
+            return;
         }
+        delta.add(symbols, trueDigit, rivalDigit, k.baseScale(margin));
+        metrics.recordUpdate(0);
+    }
 
-        if (logger.isTraceEnabled()) {
-            logger.trace("Feedback update: true={}, rival={}, margin={}, scale={}, updated {} symbols",
-                    trueDigit, rivalDigit, String.format("%.4f", margin), String.format("%.4f", scale), symbols.length);
+    /**
+     * Applies the buffered updates of a mini-batch; must not run concurrently
+     * with scoring or other feedback calls.
+     */
+    public void applyFeedbackDelta(FeedbackDelta delta) {
+        delta.checkNode(getClass(), 10, 65536);
+        if (delta.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        kernel.applyDelta(adj, counts, delta);
+        long total = counts.addUpdates(delta.getUpdates());
+        // At most one decay per image, as if applied image by image
+        long decays = delta.imageCrossings(total - delta.getUpdates(), feedbackCfg.applyDecayEveryNUpdates);
+        for (long i = 0; i < decays; i++) {
+            applyDecay(feedbackCfg.decayRate);
         }
+        metrics.recordKeyUpdates(delta.getUpdates());
+        metrics.recordCall(System.nanoTime() - start);
     }
 
-    public void applyDecayIfEnabled(boolean isLearningAllowed) {
+    /**
+     * Applies the epoch decay if learning is on and configured for it;
+     * returns whether it did.
+     */
+    public boolean applyDecayIfEnabled(boolean isLearningAllowed) {
         if (feedbackCfg.enabled && feedbackCfg.learningEnabled && isLearningAllowed
                 && feedbackCfg.applyDecayEachEpoch) {
             applyDecay(feedbackCfg.decayRate);
             logger.info("Applied decay to Patch4x4 adjustments (epoch end)");
+            return true;
         }
+        return false;
     }
 
     private void applyDecay(double rate) {
         double factor = 1.0 - rate;
-        for (int d = 0; d < 10; d++) {
-            for (int s = 0; s < 65536; s++) {
-                adj[d][s] *= factor;
-            }
+        // O(1): only the table's global scale changes
+        if (feedbackCfg.concurrentUpdates) {
+            adj.decayConcurrent(factor);
+        } else {
+            adj.decay(factor);
         }
+        metrics.recordDecays(1);
         if (logger.isDebugEnabled()) {
             logger.debug("Applied decay to Patch4x4 adjustments (factor={})", factor);
         }
     }
 
     public void resetFeedbackState() {
-        for (int d = 0; d < 10; d++) {
-            for (int s = 0; s < 65536; s++) {
-                adj[d][s] = 0.0;
-            }
-        }
-        for (int s = 0; s < 65536; s++) {
-            globalSymbolCount[s] = 0;
-        }
-        updatesCounter = 0;
+        adj.reset();
+        counts.reset();
         logger.info("Reset Patch4x4 feedback state (adj and counts).");
     }
+
+    /**
+     * Live feedback counters of this node.
+     */
+    public FeedbackMetrics getFeedbackMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Current counters plus the saturation of the adjustment table (a scan
+     * of the table; cheap enough for on-demand reports).
+     */
+    public FeedbackMetrics.Snapshot snapshotFeedbackMetrics() {
+        return metrics.snapshot(id, adj, feedbackCfg.maxAdjAbs, counts.getUpdates());
+    }
+
+    /**
+     * Copy-on-write snapshot of the learned feedback state. Take it while no
+     * feedback is being applied.
+     */
+    public FeedbackSnapshot snapshot() {
+        return new FeedbackSnapshot(getClass(), adj.snapshot(), counts.snapshot());
+    }
+
+    /**
+     * Replaces the learned feedback state with {@code snapshot}; the node's
+     * config is left as is.
+     */
+    public void restore(FeedbackSnapshot snapshot) {
+        snapshot.checkNodeType(getClass());
+        adj.restore(snapshot.adjustments);
+        counts.restore(snapshot.counts);
+    }
+
+    /**
+     * Checkpoints the learned feedback state to {@code file} (crash-safe, see
+     * {@link FeedbackStateFile}).
+     */
+    public void saveFeedbackState(Path file) throws IOException {
+        FeedbackStateFile.write(file, snapshot(), FeedbackStateFile.configHash(feedbackCfg));
+    }
+
+    /**
+     * Restores feedback state saved by a node of the same type with an
+     * equivalent learning config.
+     */
+    public void loadFeedbackState(Path file) throws IOException {
+        restore(FeedbackStateFile.read(file, getClass(), 10, 65536, FeedbackStateFile.configHash(feedbackCfg)));
+    }
 }
@@ -2,7 +2,7 @@ package com.markovai.server.ai.hierarchy;
 
 import com.markovai.server.ai.CachedMarkovChainEvaluator;
 import com.markovai.server.ai.DigitImage;
-import com.markovai.server.ai.DigitMarkovModel;
+import com.markovai.server.ai.ImageFeatureContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,16 +34,20 @@ public class PatchMarkovNode implements DigitFactorNode {
 
     @Override
     public NodeResult computeForImage(DigitImage img, Map<String, NodeResult> childResults) {
-        // Binarize and flatten
-        int[][] binary2D = DigitMarkovModel.binarize(img.pixels, 128);
-        byte[] binaryFlat = new byte[784];
-        for (int r = 0; r < 28; r++) {
-            for (int c = 0; c < 28; c++) {
-                binaryFlat[r * 28 + c] = (byte) binary2D[r][c];
-            }
-        }
+        return computeForImage(new ImageFeatureContext(img), childResults);
+    }
 
-        double[] avgLogL = evaluator.evaluate(img.imageRelPath, img.imageHash, binaryFlat);
+    @Override
+    public NodeResult computeForImage(ImageFeatureContext ctx, Map<String, NodeResult> childResults) {
+        double[] avgLogL = new double[10];
+        computeInto(ctx, avgLogL);
+        return new NodeResult(avgLogL);
+    }
+
+    @Override
+    public void computeInto(ImageFeatureContext ctx, double[] avgLogL) {
+        DigitImage img = ctx.getImage();
+        evaluator.evaluateInto(ctx, avgLogL);
 
         if (logger.isDebugEnabled()) {
             double minAvg = Double.MAX_VALUE;
@@ -57,7 +61,11 @@ public class PatchMarkovNode implements DigitFactorNode {
             logger.debug("PatchMarkovNode {} [Label {}]: AvgLogL range=[{:.4f}, {:.4f}]",
                     id, img.label, minAvg, maxAvg);
         }
+    }
 
-        return new NodeResult(avgLogL);
+    @Override
+    public void computeForBatch(List<ImageFeatureContext> batch, Map<String, double[][]> childResults,
+            double[][] out) {
+        evaluator.evaluateBatch(batch, out);
     }
 }
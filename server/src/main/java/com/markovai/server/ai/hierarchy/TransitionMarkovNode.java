@@ -0,0 +1,358 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.BinaryImage;
+import com.markovai.server.ai.CachedMarkovChainEvaluator;
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.ImageFeatureContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.markovai.server.ai.MultiSequenceExtractor;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Leaf scoring an image by the transitions of one family of patch
+ * sequences (rows or columns) through a cached Markov chain evaluator,
+ * plus learned per-transition feedback adjustments. Subclasses only choose
+ * the sequences; the feedback state, its snapshots and checkpoints, and the
+ * serial, concurrent and mini-batch update paths are shared.
+ */
+public abstract class TransitionMarkovNode implements DigitFactorNode, FeedbackLearner {
+
+    // Logged under the concrete node class
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final String id;
+    private final CachedMarkovChainEvaluator evaluator;
+    private final MultiSequenceExtractor extractor;
+    private Patch4x4FeedbackConfig feedbackConfig;
+    // Update strategy compiled from feedbackConfig when it is set. Immutable,
+    // so concurrent updates only read this field
+    private FeedbackKernel kernel;
+
+    // Feedback state
+    private static final int NUM_DIGITS = 10;
+    private static final int NUM_STATES = 16;
+    private static final int TRANSITION_SPACE = NUM_STATES * NUM_STATES;
+
+    // adj[digit][transition_id]; decay is a lazy global scale
+    private final FeedbackAdjustmentTable adj = new FeedbackAdjustmentTable(NUM_DIGITS, TRANSITION_SPACE);
+    // Global transition counts and the updates counter
+    private final FeedbackCounts counts = new FeedbackCounts(TRANSITION_SPACE);
+    private final FeedbackMetrics metrics = new FeedbackMetrics();
+
+    protected TransitionMarkovNode(String id, CachedMarkovChainEvaluator evaluator,
+            MultiSequenceExtractor extractor,
+            Patch4x4FeedbackConfig feedbackConfig) {
+        this.id = id;
+        this.evaluator = evaluator;
+        this.extractor = extractor;
+        this.feedbackConfig = feedbackConfig;
+        this.kernel = FeedbackKernel.forTransitions(feedbackConfig);
+        logger.debug("Created {} with id {}, feedback enabled={}", getClass().getSimpleName(), id,
+                feedbackConfig.enabled);
+    }
+
+    /**
+     * Replaces the feedback config and compiles its update kernel. Fields
+     * changed on a config that is already set take effect once it is set
+     * again.
+     */
+    public void setFeedbackConfig(Patch4x4FeedbackConfig config) {
+        if (!kernel.matches(config)) {
+            this.kernel = FeedbackKernel.forTransitions(config);
+        }
+        this.feedbackConfig = config;
+    }
+
+    public void resetFeedbackState() {
+        adj.reset();
+        counts.reset();
+        logger.info("{} feedback state reset.", getClass().getSimpleName());
+    }
+
+    /**
+     * Live feedback counters of this node.
+     */
+    public FeedbackMetrics getFeedbackMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Current counters plus the saturation of the adjustment table.
+     */
+    public FeedbackMetrics.Snapshot snapshotFeedbackMetrics() {
+        return metrics.snapshot(id, adj, feedbackConfig.maxAdjAbs, counts.getUpdates());
+    }
+
+    /**
+     * Copy-on-write snapshot of the learned feedback state. Take it while no
+     * feedback is being applied.
+     */
+    public FeedbackSnapshot snapshot() {
+        return new FeedbackSnapshot(getClass(), adj.snapshot(), counts.snapshot());
+    }
+
+    /**
+     * Replaces the learned feedback state with {@code snapshot}; the node's
+     * config is left as is.
+     */
+    public void restore(FeedbackSnapshot snapshot) {
+        snapshot.checkNodeType(getClass());
+        adj.restore(snapshot.adjustments);
+        counts.restore(snapshot.counts);
+    }
+
+    /**
+     * Checkpoints the learned feedback state to {@code file} (crash-safe, see
+     * {@link FeedbackStateFile}).
+     */
+    public void saveFeedbackState(Path file) throws IOException {
+        FeedbackStateFile.write(file, snapshot(), FeedbackStateFile.configHash(feedbackConfig));
+    }
+
+    /**
+     * Restores feedback state saved by a node of the same type with an
+     * equivalent learning config.
+     */
+    public void loadFeedbackState(Path file) throws IOException {
+        restore(FeedbackStateFile.read(file, getClass(), NUM_DIGITS, TRANSITION_SPACE, FeedbackStateFile.configHash(feedbackConfig)));
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public List<DigitFactorNode> getChildren() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public NodeResult computeForImage(DigitImage img, Map<String, NodeResult> childResults) {
+        return computeForImage(new ImageFeatureContext(img), childResults);
+    }
+
+    @Override
+    public NodeResult computeForImage(ImageFeatureContext ctx, Map<String, NodeResult> childResults) {
+        double[] avgLogL = new double[NUM_DIGITS];
+        computeInto(ctx, avgLogL);
+        return new NodeResult(avgLogL);
+    }
+
+    @Override
+    public void computeInto(ImageFeatureContext ctx, double[] avgLogL) {
+        DigitImage img = ctx.getImage();
+        evaluator.evaluateInto(ctx, avgLogL);
+
+        // Apply feedback adjustment if enabled
+        if (feedbackConfig.enabled) {
+            addFeedbackAdjustment(ctx.getTransitionIds(extractor), avgLogL);
+        }
+
+        if (logger.isDebugEnabled()) {
+            double minAvg = Double.MAX_VALUE;
+            double maxAvg = Double.MIN_VALUE;
+            for (double val : avgLogL) {
+                if (val < minAvg)
+                    minAvg = val;
+                if (val > maxAvg)
+                    maxAvg = val;
+            }
+            logger.debug("{} {} [Label {}]: AvgLogL range=[{:.4f}, {:.4f}]",
+                    getClass().getSimpleName(), id, img.label, minAvg, maxAvg);
+        }
+    }
+
+    @Override
+    public void computeForBatch(List<ImageFeatureContext> batch, Map<String, double[][]> childResults,
+            double[][] out) {
+        // One cache round trip for the whole batch
+        evaluator.evaluateBatch(batch, out);
+        if (feedbackConfig.enabled) {
+            for (int i = 0; i < batch.size(); i++) {
+                addFeedbackAdjustment(batch.get(i).getTransitionIds(extractor), out[i]);
+            }
+        }
+    }
+
+    private void addFeedbackAdjustment(int[] tids, double[] avgLogL) {
+        if (tids.length > 0) {
+            // Calculate adjustment per digit
+            double[] adjustments = new double[NUM_DIGITS];
+            for (int d = 0; d < NUM_DIGITS; d++) {
+                double sumAdj = 0;
+                for (int tid : tids) {
+                    sumAdj += adj.get(d, tid);
+                }
+                // Average adjustment matching scoring
+                adjustments[d] = sumAdj / tids.length;
+            }
+
+            // Add weighted adjustment
+            for (int d = 0; d < NUM_DIGITS; d++) {
+                avgLogL[d] += (adjustments[d] * feedbackConfig.adjScale);
+            }
+        }
+    }
+
+    /**
+     * Applies the epoch decay if learning is on and configured for it;
+     * returns whether it did.
+     */
+    public boolean applyDecayIfEnabled(boolean isLearningAllowed) {
+        if (feedbackConfig.enabled && feedbackConfig.learningEnabled && isLearningAllowed
+                && feedbackConfig.applyDecayEachEpoch) {
+            applyDecay();
+            logger.info("Applied decay to {} adjustments (epoch end)", getClass().getSimpleName());
+            return true;
+        }
+        return false;
+    }
+
+    public Patch4x4FeedbackConfig getFeedbackConfig() {
+        return feedbackConfig;
+    }
+
+    public int[] extractTransitionIds(DigitImage img) {
+        return extractTransitionIds(BinaryImage.of(img));
+    }
+
+    public int[] extractTransitionIds(BinaryImage binary) {
+        // Re-extract using same logic as classifier/evaluator
+        return ImageFeatureContext.toTransitionIds(extractor.extractSequences(binary));
+    }
+
+    public int[] extractTransitionIds(ImageFeatureContext ctx) {
+        return ctx.getTransitionIds(extractor);
+    }
+
+    /**
+     * Applies the feedback of one scored image; returns true if learning is
+     * on, the image passed gating and at least one transition was updated.
+     */
+    public boolean applyFeedback(ImageFeatureContext ctx, int trueDigit, int rivalDigit, boolean wasCorrect,
+            double margin) {
+        return applyFeedback(ctx.getTransitionIds(extractor), trueDigit, rivalDigit, wasCorrect, margin);
+    }
+
+    public boolean applyFeedback(int[] transitionIds, int trueDigit, int rivalDigit, boolean wasCorrect, double margin) {
+        if (!feedbackConfig.enabled || !feedbackConfig.learningEnabled) {
+            return false;
+        }
+
+        // Gating
+        long start = System.nanoTime();
+        FeedbackKernel k = kernel;
+        if (!k.shouldUpdate(wasCorrect, margin)) {
+            metrics.recordGated(k.gatedByCorrectness(wasCorrect));
+            metrics.recordCall(System.nanoTime() - start);
+            return false; // Correct, or margin satisfied
+        }
+        double baseScale = k.baseScale(margin);
+
+        if (feedbackConfig.concurrentUpdates) {
+            applyFeedbackConcurrent(k, transitionIds, trueDigit, rivalDigit, baseScale);
+            metrics.recordUpdate(transitionIds.length);
+            metrics.recordCall(System.nanoTime() - start);
+            return transitionIds.length > 0;
+        }
+
+        // Updates
+        for (int tid : transitionIds) {
+            k.update(adj, counts, tid, trueDigit, rivalDigit, baseScale);
+
+            // Decay logic
+            long updates = counts.addUpdates(1);
+            if (feedbackConfig.applyDecayEveryNUpdates > 0 &&
+                    updates % feedbackConfig.applyDecayEveryNUpdates == 0) {
+                applyDecay();
+            }
+        }
+        metrics.recordUpdate(transitionIds.length);
+        metrics.recordCall(System.nanoTime() - start);
+        return transitionIds.length > 0;
+    }
+
+    /**
+     * Lock-free variant used when several threads learn at once. Decays
+     * that fall inside this image's updates are applied after its updates
+     * rather than between them; the number of decays is exact.
+     */
+    private void applyFeedbackConcurrent(FeedbackKernel k, int[] transitionIds, int trueDigit, int rivalDigit,
+            double baseScale) {
+        k.updateAll(adj, counts, transitionIds, trueDigit, rivalDigit, baseScale, true);
+
+        long total = counts.addUpdatesConcurrent(transitionIds.length);
+        long decays = FeedbackCounts.crossings(total, transitionIds.length, feedbackConfig.applyDecayEveryNUpdates);
+        for (long i = 0; i < decays; i++) {
+            adj.decayConcurrent(1.0 - feedbackConfig.decayRate);
+        }
+        metrics.recordDecays(decays);
+    }
+
+    /**
+     * Empty update buffer for {@link #accumulateFeedback}.
+     */
+    public FeedbackDelta newFeedbackDelta() {
+        return new FeedbackDelta(getClass(), NUM_DIGITS, TRANSITION_SPACE);
+    }
+
+    /**
+     * Mini-batch variant of {@link #applyFeedback}: same gating, but the
+     * updates go into {@code delta} and the tables are left untouched.
+     */
+    public void accumulateFeedback(FeedbackDelta delta, ImageFeatureContext ctx, int trueDigit, int rivalDigit,
+            boolean wasCorrect, double margin) {
+        accumulateFeedback(delta, ctx.getTransitionIds(extractor), trueDigit, rivalDigit, wasCorrect, margin);
+    }
+
+    public void accumulateFeedback(FeedbackDelta delta, int[] transitionIds, int trueDigit, int rivalDigit,
+            boolean wasCorrect, double margin) {
+        if (!feedbackConfig.enabled || !feedbackConfig.learningEnabled) {
+            return;
+        }
+        FeedbackKernel k = kernel;
+        if (!k.shouldUpdate(wasCorrect, margin)) {
+            metrics.recordGated(k.gatedByCorrectness(wasCorrect));
+            return;
+        }
+        delta.add(transitionIds, trueDigit, rivalDigit, k.baseScale(margin));
+        metrics.recordUpdate(0);
+    }
+
+    /**
+     * Applies the buffered updates of a mini-batch, then the decays they
+     * crossed.
+     */
+    public void applyFeedbackDelta(FeedbackDelta delta) {
+        delta.checkNode(getClass(), NUM_DIGITS, TRANSITION_SPACE);
+        if (delta.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        kernel.applyDelta(adj, counts, delta);
+        long total = counts.addUpdates(delta.getUpdates());
+        long decays = FeedbackCounts.crossings(total, delta.getUpdates(), feedbackConfig.applyDecayEveryNUpdates);
+        for (long i = 0; i < decays; i++) {
+            applyDecay();
+        }
+        metrics.recordKeyUpdates(delta.getUpdates());
+        metrics.recordCall(System.nanoTime() - start);
+    }
+
+    private void applyDecay() {
+        // O(1): only the table's global scale changes
+        if (feedbackConfig.concurrentUpdates) {
+            adj.decayConcurrent(1.0 - feedbackConfig.decayRate);
+        } else {
+            adj.decay(1.0 - feedbackConfig.decayRate);
+        }
+        metrics.recordDecays(1);
+    }
+}
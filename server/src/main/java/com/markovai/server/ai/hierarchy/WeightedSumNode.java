@@ -1,10 +1,12 @@
 package com.markovai.server.ai.hierarchy;
 
 import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.ImageFeatureContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -79,4 +81,33 @@ public class WeightedSumNode implements DigitFactorNode {
 
         return new NodeResult(totalLogL);
     }
+
+    @Override
+    public void computeForBatch(List<ImageFeatureContext> batch, Map<String, double[][]> childResults,
+            double[][] out) {
+        for (double[] row : out) {
+            Arrays.fill(row, 0.0);
+        }
+
+        // out += w * child, one child matrix at a time
+        for (DigitFactorNode child : children) {
+            double[][] cr = childResults.get(child.getId());
+            double w = weights.getOrDefault(child.getId(), 0.0);
+
+            if (cr == null) {
+                if (w != 0.0) {
+                    logger.warn("Missing batch result for child {}", child.getId());
+                }
+                continue;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                double[] src = cr[i];
+                double[] dst = out[i];
+                for (int d = 0; d < 10; d++) {
+                    dst[d] += w * src[d];
+                }
+            }
+        }
+    }
 }
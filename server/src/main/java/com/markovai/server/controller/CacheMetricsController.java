@@ -0,0 +1,38 @@
+package com.markovai.server.controller;
+
+import com.markovai.db.WriteBehindScoreWriter;
+import com.markovai.server.ai.ChainScoreCache;
+import com.markovai.server.service.CacheControlService;
+import com.markovai.server.service.MarkovTrainingService;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+public class CacheMetricsController {
+
+    private final CacheControlService cacheControlService;
+    private final MarkovTrainingService trainingService;
+
+    public CacheMetricsController(CacheControlService cacheControlService, MarkovTrainingService trainingService) {
+        this.cacheControlService = cacheControlService;
+        this.trainingService = trainingService;
+    }
+
+    /**
+     * Size and per-tier hit/miss counters of the chain score cache: L1 in
+     * memory, L2 in SQLite. Empty when the L1 is disabled.
+     */
+    @GetMapping("/cache-metrics/scores")
+    public ChainScoreCache.Stats getScoreCacheStats() {
+        ChainScoreCache cache = trainingService.getScoreCache();
+        return cache != null ? cache.getStats() : null;
+    }
+
+    /**
+     * Queue depth and write counters of the cache write-behind; empty when
+     * it is disabled.
+     */
+    @GetMapping("/cache-metrics/write-behind")
+    public WriteBehindScoreWriter.Stats getWriteBehindStats() {
+        return cacheControlService.getWriteBehindStats();
+    }
+}
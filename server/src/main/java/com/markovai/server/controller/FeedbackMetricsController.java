@@ -0,0 +1,37 @@
+package com.markovai.server.controller;
+
+import com.markovai.server.ai.MarkovFieldDigitClassifier;
+import com.markovai.server.ai.hierarchy.FeedbackMetrics;
+import com.markovai.server.service.MarkovTrainingService;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Collections;
+import java.util.List;
+
+@RestController
+public class FeedbackMetricsController {
+
+    private final MarkovTrainingService trainingService;
+
+    public FeedbackMetricsController(MarkovTrainingService trainingService) {
+        this.trainingService = trainingService;
+    }
+
+    /**
+     * Live feedback counters of the active MRF's learning nodes; empty
+     * until an MRF has been built.
+     */
+    @GetMapping("/feedback-metrics")
+    public List<FeedbackMetrics.Snapshot> getFeedbackMetrics() {
+        MarkovFieldDigitClassifier mrf = trainingService.getActiveMrf();
+        return mrf != null ? mrf.getFeedbackMetrics() : Collections.emptyList();
+    }
+
+    @PostMapping("/feedback-metrics/reset")
+    public void resetFeedbackMetrics() {
+        MarkovFieldDigitClassifier mrf = trainingService.getActiveMrf();
+        if (mrf != null) {
+            mrf.resetFeedbackMetrics();
+        }
+    }
+}
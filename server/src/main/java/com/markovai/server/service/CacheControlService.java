@@ -1,23 +1,30 @@
 package com.markovai.server.service;
 
+import com.markovai.db.DigitImage;
+import com.markovai.db.DigitImageDao;
 import com.markovai.db.MarkovChainResultDao;
+import com.markovai.db.WriteBehindScoreWriter;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
-import java.io.File;
 import java.sql.SQLException;
+import java.util.Optional;
 
 @Service
 public class CacheControlService {
 
-    private static final String DB_PATH;
-
-    static {
-        String dataDir = System.getProperty("markov.data.dir", ".");
-        DB_PATH = dataDir + File.separator + "markov_cache.db";
-    }
+    private final DigitImageDao imageDao;
     private final MarkovChainResultDao resultDao;
+    // Null unless -DcacheWriteBehind=true
+    private final WriteBehindScoreWriter writeBehind;
+    // Holds the in-memory score tiers (L1 and base score stores)
+    private final MarkovTrainingService trainingService;
 
-    public CacheControlService() {
-        this.resultDao = new MarkovChainResultDao(DB_PATH);
+    public CacheControlService(DigitImageDao imageDao, MarkovChainResultDao resultDao,
+            ObjectProvider<WriteBehindScoreWriter> writeBehind, MarkovTrainingService trainingService) {
+        this.imageDao = imageDao;
+        this.resultDao = resultDao;
+        this.writeBehind = writeBehind.getIfAvailable();
+        this.trainingService = trainingService;
     }
 
     /**
@@ -26,9 +33,50 @@ public class CacheControlService {
      */
     public void clearChain(String chainType, String chainVersion) {
         try {
+            flushWriteBehind();
             resultDao.deleteByChain(chainType, chainVersion);
         } catch (SQLException e) {
             throw new RuntimeException("Failed to clear chain cache for " + chainType + "/" + chainVersion, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while clearing chain cache for " + chainType + "/"
+                    + chainVersion, e);
+        }
+        trainingService.invalidateChainScores(chainType, chainVersion);
+    }
+
+    /**
+     * Clears the cached results of one image in every chain, e.g. after the
+     * file at that path changed.
+     */
+    public void clearImage(String imageRelPath) {
+        try {
+            flushWriteBehind();
+            Optional<DigitImage> img = imageDao.findByPath(imageRelPath);
+            if (img.isPresent()) {
+                resultDao.deleteByImage(img.get().getId());
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to clear image cache for " + imageRelPath, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while clearing image cache for " + imageRelPath, e);
+        }
+        trainingService.invalidateImageScores(imageRelPath);
+    }
+
+    // Queued scores would otherwise land after the delete
+    private void flushWriteBehind() throws InterruptedException {
+        if (writeBehind != null) {
+            writeBehind.flush();
         }
     }
+
+    /**
+     * Queue and throughput counters of the cache write-behind, or null when
+     * it is disabled.
+     */
+    public WriteBehindScoreWriter.Stats getWriteBehindStats() {
+        return writeBehind != null ? writeBehind.getStats() : null;
+    }
 }
@@ -32,18 +32,95 @@ public class MarkovTrainingService {
     @org.springframework.beans.factory.annotation.Autowired
     private org.springframework.boot.ApplicationArguments appArgs;
 
+    // Shared SQLite cache DAOs (see DatabaseConfig)
+    @org.springframework.beans.factory.annotation.Autowired
+    private com.markovai.db.DigitImageDao imageDao;
+
+    @org.springframework.beans.factory.annotation.Autowired
+    private com.markovai.db.MarkovChainResultDao resultDao;
+
+    // Cache write-behind; null unless -DcacheWriteBehind=true
+    @org.springframework.beans.factory.annotation.Autowired(required = false)
+    private com.markovai.db.WriteBehindScoreWriter writeBehind;
+
     private final RowColumnDigitClassifier model = new RowColumnDigitClassifier();
     private final com.markovai.server.ai.DigitPatch4x4UnigramModel patch4x4Model = new com.markovai.server.ai.DigitPatch4x4UnigramModel();
     private boolean isReady = false;
+    // Base chain scores shared by every MRF the sweeps build; null when disabled
+    private volatile com.markovai.server.ai.BaseScoreStore baseScoreStore;
+    // Base chain scores read from SQLite by the startup preload; null until it finishes
+    private volatile com.markovai.server.ai.BaseScoreStore preloadedScores;
+    // The preload scan; null unless -DcachePreload=true
+    private volatile Thread cachePreload;
+    // In-process L1 over the SQLite chain cache; null when -DscoreCacheEntries=0
+    private final com.markovai.server.ai.ChainScoreCache scoreCache = newScoreCache();
+    // Most recently built learning MRF, whose feedback metrics are reported
+    private volatile MarkovFieldDigitClassifier activeMrf;
 
     public RowColumnDigitClassifier getModel() {
         return model;
     }
 
+    /**
+     * The MRF most recently built by startup evaluation, a protocol run or
+     * a sweep iteration; null before the first one.
+     */
+    public MarkovFieldDigitClassifier getActiveMrf() {
+        return activeMrf;
+    }
+
+    /**
+     * The chain score L1 shared by every factor graph this service builds;
+     * null when disabled.
+     */
+    public com.markovai.server.ai.ChainScoreCache getScoreCache() {
+        return scoreCache;
+    }
+
     public boolean isReady() {
         return isReady;
     }
 
+    /**
+     * Forgets the in-memory scores of a chain whose cached rows were
+     * deleted: drops its L1 entries and the base score stores, which are
+     * rebuilt by the next protocol run. Until then its scores are
+     * recomputed on demand.
+     */
+    public void invalidateChainScores(String chainType, String chainVersion) {
+        dropBaseScoreStores();
+        if (scoreCache != null) {
+            int removed = scoreCache.invalidateChain(chainType, chainVersion);
+            logger.info("Invalidated {} cached scores of chain {}/{}", removed, chainType, chainVersion);
+        }
+    }
+
+    /**
+     * Like {@link #invalidateChainScores}, for the scores of one image in
+     * every chain.
+     */
+    public void invalidateImageScores(String imageRelPath) {
+        dropBaseScoreStores();
+        if (scoreCache != null) {
+            int removed = scoreCache.invalidateImage(imageRelPath);
+            logger.info("Invalidated {} cached scores of image {}", removed, imageRelPath);
+        }
+    }
+
+    // Graphs already built keep their reference, so the stores are retired too
+    private void dropBaseScoreStores() {
+        com.markovai.server.ai.BaseScoreStore computed = baseScoreStore;
+        com.markovai.server.ai.BaseScoreStore preloaded = preloadedScores;
+        baseScoreStore = null;
+        preloadedScores = null;
+        if (computed != null) {
+            computed.invalidate();
+        }
+        if (preloaded != null) {
+            preloaded.invalidate();
+        }
+    }
+
     @PostConstruct
     public void init() {
         new Thread(() -> {
@@ -68,16 +145,34 @@ public class MarkovTrainingService {
                     return;
                 }
 
-                model.train(trainingData);
+                // Parallel training produces bit-identical counts; -DparallelTraining=false
+                // keeps the single-threaded path.
+                boolean parallelTraining = !"false".equalsIgnoreCase(System.getProperty("parallelTraining"));
+                if (parallelTraining) {
+                    java.util.concurrent.ForkJoinPool pool = java.util.concurrent.ForkJoinPool.commonPool();
+                    model.trainParallel(trainingData, pool);
+
+                    logger.info("Training 4x4 Patch Model (parallel)...");
+                    patch4x4Model.trainParallel(trainingData, pool);
+                    logger.info("4x4 Patch Model Trained.");
+                } else {
+                    model.train(trainingData);
+
+                    // Train 4x4 Unigram Model
+                    logger.info("Training 4x4 Patch Model...");
+                    for (DigitImage img : trainingData) {
+                        patch4x4Model.trainOnImage(img.label, com.markovai.server.ai.BinaryImage.of(img));
+                    }
+                    patch4x4Model.finalizeProbabilities();
+                    logger.info("4x4 Patch Model Trained.");
+                }
 
-                // Train 4x4 Unigram Model
-                logger.info("Training 4x4 Patch Model...");
-                for (DigitImage img : trainingData) {
-                    int[][] binary = com.markovai.server.ai.DigitMarkovModel.binarize(img.pixels, 128);
-                    patch4x4Model.trainOnImage(img.label, binary);
+                // Started only now so the scan does not compete with training
+                cachePreload = startCachePreload();
+                if (cachePreload != null && "true".equalsIgnoreCase(System.getProperty("cachePreloadWait"))) {
+                    logger.info("Waiting for the cache preload before evaluating...");
+                    cachePreload.join();
                 }
-                patch4x4Model.finalizeProbabilities();
-                logger.info("4x4 Patch Model Trained.");
 
                 if (!testingData.isEmpty()) {
                     boolean runVerification = "true".equalsIgnoreCase(System.getProperty("verifyFeedbackNoLeakage"))
@@ -206,7 +301,10 @@ public class MarkovTrainingService {
                                 FactorGraphBuilder builder = new FactorGraphBuilder(
                                         model.getRowModel(), model.getColumnModel(), model.getPatchModel(),
                                         model.getRowExtractor(), model.getColumnExtractor(), model.getPatchExtractor(),
-                                        patch4x4Model);
+                                        patch4x4Model, imageDao, resultDao);
+                                builder.setBaseScoreStore(activeBaseScores());
+                                builder.setWriteBehind(writeBehind);
+                                builder.setScoreCache(scoreCache);
 
                                 ObjectMapper mapper = new ObjectMapper();
                                 FactorGraphBuilder.ConfigRoot config = mapper.readValue(
@@ -219,6 +317,16 @@ public class MarkovTrainingService {
 
                                 if (root != null) {
                                     MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(root);
+                                    activeMrf = mrf;
+                                    java.nio.file.Path stateDir = feedbackStateDir();
+                                    java.nio.file.Path logDir = feedbackLogDir();
+                                    if (logDir != null) {
+                                        // Catch up on adaptation recorded by another run
+                                        mrf.replayFeedbackEventLog(logDir);
+                                    } else if (stateDir != null) {
+                                        // Resume adapted feedback state from the last checkpoint
+                                        mrf.loadFeedbackState(stateDir);
+                                    }
                                     // Default evaluation on test set (treat as test)
                                     mrf.evaluateAccuracy(testingData, true);
                                 } else {
@@ -356,11 +464,13 @@ public class MarkovTrainingService {
         long seed;
         double baselineAcc;
         double frozenAcc;
+        long adaptMillis;
 
-        public LeakageFreeResult(long seed, double baselineAcc, double frozenAcc) {
+        public LeakageFreeResult(long seed, double baselineAcc, double frozenAcc, long adaptMillis) {
             this.seed = seed;
             this.baselineAcc = baselineAcc;
             this.frozenAcc = frozenAcc;
+            this.adaptMillis = adaptMillis;
         }
 
         public double getDelta() {
@@ -389,18 +499,30 @@ public class MarkovTrainingService {
                 seeds = new long[] { 12345L, 22222L, 33333L, 44444L, 55555L };
             }
 
+            prepareBaseScoreStore(model, patch4x4Model, testData, trainData);
+
             List<LeakageFreeResult> results = new ArrayList<>();
-            // Compute baseline once to be efficient? No, strict requirement is full reset.
-            // We will run the full protocol for each seed.
+            // Same seeds with data-parallel adaptation, when -DadaptWorkers > 1
+            int adaptWorkers = adaptWorkers();
+            List<LeakageFreeResult> parallelResults = new ArrayList<>();
+            // Strict requirement is a full reset per seed: one graph is built
+            // and its untrained feedback state restored before every run
+            MarkovFieldDigitClassifier mrf = buildMrf(model, patch4x4Model);
+            MarkovFieldDigitClassifier.FeedbackState initial = mrf.snapshotFeedback();
 
             for (long seed : seeds) {
                 logger.info("Running protocol for seed={}, rowFeedback={}, colFeedback={}", seed, useRowFeedback,
                         useColFeedback);
-                LeakageFreeResult result = performLeakageFreeProtocol(model, testData, trainData, patch4x4Model, seed,
-                        false, useRowFeedback, useColFeedback, 2000, null);
+                LeakageFreeResult result = performLeakageFreeProtocol(mrf, initial, model, testData, trainData,
+                        patch4x4Model, seed, false, useRowFeedback, useColFeedback, 2000, null, 1);
                 results.add(result);
                 logger.info("Seed={}  Baseline={:.4f}  Frozen={:.4f}  Delta={:+.4f}",
                         seed, result.baselineAcc, result.frozenAcc, result.getDelta());
+                if (adaptWorkers > 1) {
+                    parallelResults.add(performLeakageFreeProtocol(mrf, initial, model, testData, trainData,
+                            patch4x4Model, seed, false, useRowFeedback, useColFeedback, 2000, result.baselineAcc,
+                            adaptWorkers));
+                }
             }
 
             // Statistics
@@ -446,10 +568,35 @@ public class MarkovTrainingService {
             System.out.printf("Delta     mean=%+.4f std=%.4f min=%+.4f max=%+.4f%n", meanDelta, stdDelta, minDelta,
                     maxDelta);
 
+            if (!parallelResults.isEmpty()) {
+                double sumParallel = 0;
+                long serialMillis = 0;
+                long parallelMillis = 0;
+                for (int i = 0; i < results.size(); i++) {
+                    sumParallel += parallelResults.get(i).frozenAcc;
+                    serialMillis += results.get(i).adaptMillis;
+                    parallelMillis += parallelResults.get(i).adaptMillis;
+                }
+                System.out.printf("DataParallel workers=%d averageEvery=%d: FrozenAcc mean=%.4f (serial %.4f)  "
+                        + "AdaptMs mean=%d (serial %d)%n", adaptWorkers, adaptAverageEvery(),
+                        sumParallel / results.size(), meanFrozen, parallelMillis / results.size(),
+                        serialMillis / results.size());
+            }
+
             System.out.println("\n=== CSV OUTPUT ===");
-            System.out.println("seed,baselineAcc,frozenAcc,delta");
-            for (LeakageFreeResult r : results) {
-                System.out.printf("%d,%.4f,%.4f,%.4f%n", r.seed, r.baselineAcc, r.frozenAcc, r.getDelta());
+            if (parallelResults.isEmpty()) {
+                System.out.println("seed,baselineAcc,frozenAcc,delta");
+                for (LeakageFreeResult r : results) {
+                    System.out.printf("%d,%.4f,%.4f,%.4f%n", r.seed, r.baselineAcc, r.frozenAcc, r.getDelta());
+                }
+            } else {
+                System.out.println("seed,baselineAcc,frozenAcc,delta,parallelFrozenAcc,adaptMs,parallelAdaptMs");
+                for (int i = 0; i < results.size(); i++) {
+                    LeakageFreeResult r = results.get(i);
+                    LeakageFreeResult p = parallelResults.get(i);
+                    System.out.printf("%d,%.4f,%.4f,%.4f,%.4f,%d,%d%n", r.seed, r.baselineAcc, r.frozenAcc,
+                            r.getDelta(), p.frozenAcc, r.adaptMillis, p.adaptMillis);
+                }
             }
 
             logger.info("============================================================");
@@ -474,8 +621,24 @@ public class MarkovTrainingService {
         logger.info("============================================================");
 
         try {
-            performLeakageFreeProtocol(model, testData, trainData, patch4x4Model, 12345L, true, useRowFeedback,
-                    useColFeedback, 2000, null);
+            prepareBaseScoreStore(model, patch4x4Model, testData, trainData);
+            MarkovFieldDigitClassifier mrf = buildMrf(model, patch4x4Model);
+            MarkovFieldDigitClassifier.FeedbackState initial = mrf.snapshotFeedback();
+            LeakageFreeResult serial = performLeakageFreeProtocol(mrf, initial, model, testData, trainData,
+                    patch4x4Model, 12345L, true, useRowFeedback, useColFeedback, 2000, null, 1);
+
+            int adaptWorkers = adaptWorkers();
+            if (adaptWorkers > 1) {
+                logger.info("Repeating the protocol with data-parallel adaptation ({} workers, averaging every {})",
+                        adaptWorkers, adaptAverageEvery());
+                LeakageFreeResult parallel = performLeakageFreeProtocol(mrf, initial, model, testData, trainData,
+                        patch4x4Model, 12345L, false, useRowFeedback, useColFeedback, 2000, serial.baselineAcc,
+                        adaptWorkers);
+                logger.info("Adaptation  Serial: frozen={} adapt={}ms  DataParallel(workers={}, averageEvery={}): "
+                        + "frozen={} adapt={}ms", String.format("%.4f", serial.frozenAcc), serial.adaptMillis,
+                        adaptWorkers, adaptAverageEvery(), String.format("%.4f", parallel.frozenAcc),
+                        parallel.adaptMillis);
+            }
 
             logger.info("============================================================");
             logger.info("VERIFICATION PROTOCOL COMPLETE");
@@ -492,28 +655,22 @@ public class MarkovTrainingService {
         }
     }
 
-    private LeakageFreeResult performLeakageFreeProtocol(RowColumnDigitClassifier model, List<DigitImage> testData,
-            List<DigitImage> trainData, com.markovai.server.ai.DigitPatch4x4UnigramModel patch4x4Model,
-            long seed, boolean verbose, boolean useRowFeedback, boolean useColFeedback, int adaptSize,
-            Double knownBaseline)
+    /**
+     * Runs phases A-C for one seed on {@code mrf}, first restoring its
+     * feedback state to {@code initial} (taken from the untrained graph), so
+     * every run starts from scratch without rebuilding the graph.
+     */
+    private LeakageFreeResult performLeakageFreeProtocol(MarkovFieldDigitClassifier mrf,
+            MarkovFieldDigitClassifier.FeedbackState initial, RowColumnDigitClassifier model,
+            List<DigitImage> testData, List<DigitImage> trainData,
+            com.markovai.server.ai.DigitPatch4x4UnigramModel patch4x4Model, long seed, boolean verbose,
+            boolean useRowFeedback, boolean useColFeedback, int adaptSize, Double knownBaseline, int adaptWorkers)
             throws Exception {
 
-        // 1. Build MRF
-        FactorGraphBuilder builder = new FactorGraphBuilder(
-                model.getRowModel(), model.getColumnModel(), model.getPatchModel(),
-                model.getRowExtractor(), model.getColumnExtractor(), model.getPatchExtractor(),
-                patch4x4Model);
-
-        ObjectMapper mapper = new ObjectMapper();
-        FactorGraphBuilder.ConfigRoot configRoot = mapper.readValue(
-                getClass().getResourceAsStream("/mrf_config.json"),
-                FactorGraphBuilder.ConfigRoot.class);
-        Map<String, DigitFactorNode> nodes = builder.build(getClass().getResourceAsStream("/mrf_config.json"));
-        DigitFactorNode root = nodes.get(configRoot.rootNodeId);
-        if (root == null)
-            throw new RuntimeException("Root node not found");
-
-        MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(root);
+        // 1. Reset the MRF
+        mrf.restoreFeedback(initial);
+        mrf.resetFeedbackMetrics();
+        activeMrf = mrf;
 
         // Define canonical datasets
         List<DigitImage> phaseATest = testData;
@@ -570,59 +727,125 @@ public class MarkovTrainingService {
                     phaseBAdapt.size());
 
         // Setup Adaptation Configs
-        com.markovai.server.ai.Patch4x4FeedbackConfig rowAdapt = baseRowConfig.copy();
-        if (useRowFeedback) {
-            rowAdapt.enabled = true;
-            rowAdapt.learningEnabled = true;
-        } else {
-            rowAdapt.enabled = false;
-            rowAdapt.learningEnabled = false;
-        }
-        mrf.setRowFeedbackConfig(rowAdapt);
+        configureFeedback(mrf, useRowFeedback, useColFeedback, true);
 
-        com.markovai.server.ai.Patch4x4FeedbackConfig colAdapt = baseColConfig.copy();
-        if (useColFeedback) {
-            colAdapt.enabled = true;
-            colAdapt.learningEnabled = true;
+        // Run evaluation on ADAPT set (isTestSet=false)
+        java.nio.file.Path stateDir = verbose ? feedbackStateDir() : null;
+        if (stateDir != null) {
+            mrf.setFeedbackCheckpointing(stateDir, 1000);
+        }
+        java.nio.file.Path logDir = verbose ? feedbackLogDir() : null;
+        long adaptStart = System.nanoTime();
+        if (adaptWorkers > 1) {
+            // Data-parallel: each worker graph learns on its own shard, states are averaged periodically
+            if (logDir != null) {
+                logger.warn("Feedback event log is not recorded for data-parallel adaptation");
+            }
+            List<MarkovFieldDigitClassifier> workers = new ArrayList<>(adaptWorkers);
+            for (int w = 0; w < adaptWorkers; w++) {
+                workers.add(buildMrf(model, patch4x4Model));
+            }
+            mrf.evaluateAccuracyDataParallel(phaseBAdapt, false, workers, adaptAverageEvery());
         } else {
-            colAdapt.enabled = false;
-            colAdapt.learningEnabled = false;
+            com.markovai.server.ai.hierarchy.FeedbackEventLog eventLog = logDir != null
+                    ? com.markovai.server.ai.hierarchy.FeedbackEventLog.create(logDir, 20000)
+                    : null;
+            mrf.setFeedbackEventLog(eventLog);
+            try {
+                mrf.evaluateAccuracy(phaseBAdapt, false);
+            } finally {
+                mrf.setFeedbackEventLog(null);
+                if (eventLog != null) {
+                    eventLog.close();
+                }
+            }
         }
-        mrf.setColumnFeedbackConfig(colAdapt);
-
-        com.markovai.server.ai.Patch4x4FeedbackConfig patchAdapt = basePatchConfig.copy();
-        patchAdapt.enabled = true;
-        patchAdapt.learningEnabled = true;
-        mrf.setPatch4x4Config(patchAdapt);
-
-        // Run evaluation on ADAPT set (isTestSet=false)
-        mrf.evaluateAccuracy(phaseBAdapt, false);
+        long adaptMillis = (System.nanoTime() - adaptStart) / 1_000_000;
+        mrf.setFeedbackCheckpointing(null, 0);
         if (verbose)
-            logger.info("Adaptation complete.");
+            logger.info("Adaptation complete in {} ms (workers={}).", adaptMillis, Math.max(1, adaptWorkers));
 
         // 4. Phase C: Final Test (Feedback Enabled, Learning FROZEN)
         if (verbose)
             logger.info("PHASE C: Final Test Accuracy (Feedback Scoring Enabled, Learning Frozen)");
 
-        // Freeze Row Feedback
-        com.markovai.server.ai.Patch4x4FeedbackConfig rowFrozen = rowAdapt.copy();
-        rowFrozen.learningEnabled = false;
-        mrf.setRowFeedbackConfig(rowFrozen);
-
-        // Freeze Col Feedback
-        com.markovai.server.ai.Patch4x4FeedbackConfig colFrozen = colAdapt.copy();
-        colFrozen.learningEnabled = false;
-        mrf.setColumnFeedbackConfig(colFrozen);
-
-        // Freeze Patch Feedback
-        com.markovai.server.ai.Patch4x4FeedbackConfig patchFrozen = patchAdapt.copy();
-        patchFrozen.learningEnabled = false;
-        mrf.setPatch4x4Config(patchFrozen);
+        // Freeze Patch, Row and Col Feedback
+        configureFeedback(mrf, useRowFeedback, useColFeedback, false);
 
         // Run on Test Data (isTestSet=true)
         double frozenAcc = mrf.evaluateAccuracy(phaseCTest, true);
+        if (scoreCache != null) {
+            logger.info("Chain score cache: {}", scoreCache.getStats());
+        }
+
+        return new LeakageFreeResult(seed, baselineAcc, frozenAcc, adaptMillis);
+    }
 
-        return new LeakageFreeResult(seed, baselineAcc, frozenAcc);
+    /**
+     * Phase B ({@code learning}) or phase C feedback configs: patch feedback
+     * always scores, row and column feedback only when used; only phase B
+     * learns.
+     */
+    private void configureFeedback(MarkovFieldDigitClassifier mrf, boolean useRowFeedback, boolean useColFeedback,
+            boolean learning) {
+        com.markovai.server.ai.Patch4x4FeedbackConfig rowConfig = getFeedbackConfigOrDefault("row").copy();
+        rowConfig.enabled = useRowFeedback;
+        rowConfig.learningEnabled = useRowFeedback && learning;
+        mrf.setRowFeedbackConfig(rowConfig);
+
+        com.markovai.server.ai.Patch4x4FeedbackConfig colConfig = getFeedbackConfigOrDefault("col").copy();
+        colConfig.enabled = useColFeedback;
+        colConfig.learningEnabled = useColFeedback && learning;
+        mrf.setColumnFeedbackConfig(colConfig);
+
+        com.markovai.server.ai.Patch4x4FeedbackConfig patchConfig = getFeedbackConfigOrDefault("patch4x4").copy();
+        patchConfig.enabled = true;
+        patchConfig.learningEnabled = learning;
+        mrf.setPatch4x4Config(patchConfig);
+    }
+
+    /**
+     * Phases B and C of one seed for every adaptation size: the adaptation
+     * subsets are prefixes of one seeded shuffle, so the sizes are learned
+     * in increasing order, each continuing from the state learned on the
+     * previous prefix (restored after every frozen test) instead of
+     * relearning it. Falls back to learning a prefix from scratch when the
+     * previous one does not end on a mini-batch boundary. Returns the
+     * frozen test accuracy per entry of {@code adaptSizes}.
+     */
+    private double[] performAdaptationPrefixes(MarkovFieldDigitClassifier mrf,
+            MarkovFieldDigitClassifier.FeedbackState initial, List<DigitImage> testData, List<DigitImage> trainData,
+            long seed, boolean useRowFeedback, boolean useColFeedback, int[] adaptSizes) {
+        List<DigitImage> shuffled = selectAdaptationSubset(trainData, trainData.size(), seed);
+        int miniBatch = Math.max(1, getFeedbackConfigOrDefault("patch4x4").miniBatchSize);
+        int[] order = java.util.stream.IntStream.range(0, adaptSizes.length).boxed()
+                .sorted(java.util.Comparator.comparingInt(i -> adaptSizes[i]))
+                .mapToInt(Integer::intValue).toArray();
+
+        double[] frozenAcc = new double[adaptSizes.length];
+        MarkovFieldDigitClassifier.FeedbackState learned = initial;
+        int learnedSize = 0;
+        for (int i : order) {
+            int size = Math.min(adaptSizes[i], shuffled.size());
+            List<DigitImage> adapt = shuffled.subList(0, size);
+            validateNoOverlap(adapt, testData);
+
+            configureFeedback(mrf, useRowFeedback, useColFeedback, true);
+            if (learnedSize > 0 && learnedSize % miniBatch == 0) {
+                mrf.restoreFeedback(learned);
+                mrf.continueLearning(shuffled.subList(learnedSize, size));
+            } else {
+                mrf.restoreFeedback(initial);
+                mrf.evaluateAccuracy(adapt, false);
+            }
+            learned = mrf.snapshotFeedback();
+            learnedSize = size;
+
+            configureFeedback(mrf, useRowFeedback, useColFeedback, false);
+            frozenAcc[i] = mrf.evaluateAccuracy(testData, true);
+            logger.info("Seed={} AdaptSize={} Frozen={}", seed, size, String.format("%.4f", frozenAcc[i]));
+        }
+        return frozenAcc;
     }
 
     private void runAdaptationSizeSweep(RowColumnDigitClassifier model, List<DigitImage> trainData,
@@ -694,6 +917,7 @@ public class MarkovTrainingService {
                 modes.add("PATCH_ROW_COL");
             }
 
+            prepareBaseScoreStore(model, patch4x4Model, testData, cleanTrainData);
             double baselineAcc = evaluateSweepBaseline(model, testData, patch4x4Model);
 
             System.out.println("\n=== LEAKAGE-FREE ADAPTATION SIZE SWEEP ===");
@@ -716,34 +940,37 @@ public class MarkovTrainingService {
             System.out.println("\nmode,adaptSize,meanFrozen,meanDelta,stdDelta,minDelta,maxDelta");
 
             List<String> verifyRows = new ArrayList<>();
+            for (int adaptSize : adaptSizes) {
+                if (adaptSize > cleanTrainData.size()) {
+                    logger.warn("Adaptation size {} exceeds train data size {}, clamping.", adaptSize,
+                            cleanTrainData.size());
+                }
+            }
 
             for (String mode : modes) {
                 boolean useRow = mode.contains("ROW");
                 boolean useCol = mode.contains("COL");
 
-                for (int adaptSize : adaptSizes) {
-                    if (adaptSize > cleanTrainData.size()) {
-                        logger.warn("Adaptation size {} exceeds train data size {}, clamping.", adaptSize,
-                                cleanTrainData.size());
-                    }
+                // One graph per seed walks every size, see performAdaptationPrefixes
+                List<double[]> seedResults = java.util.stream.LongStream.of(seeds).parallel()
+                        .mapToObj(seed -> {
+                            try {
+                                MarkovFieldDigitClassifier mrf = buildMrf(model, patch4x4Model);
+                                return performAdaptationPrefixes(mrf, mrf.snapshotFeedback(), testData,
+                                        cleanTrainData, seed, useRow, useCol, adaptSizes);
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }).collect(java.util.stream.Collectors.toList());
 
+                for (int s = 0; s < adaptSizes.length; s++) {
+                    int adaptSize = adaptSizes[s];
                     List<Double> deltas = new ArrayList<>();
                     List<Double> frozens = new ArrayList<>();
-
-                    List<LeakageFreeResult> seedResults = java.util.stream.LongStream.of(seeds).parallel()
-                            .mapToObj(seed -> {
-                                try {
-                                    return performLeakageFreeProtocol(model, testData, cleanTrainData, patch4x4Model,
-                                            seed, false, useRow, useCol, adaptSize, baselineAcc);
-                                } catch (Exception e) {
-                                    throw new RuntimeException(e);
-                                }
-                            }).collect(java.util.stream.Collectors.toList());
-
-                    for (LeakageFreeResult res : seedResults) {
-                        double d = res.frozenAcc - baselineAcc;
+                    for (double[] res : seedResults) {
+                        double d = res[s] - baselineAcc;
                         deltas.add(d);
-                        frozens.add(res.frozenAcc);
+                        frozens.add(res[s]);
                     }
 
                     double sumFrozen = 0;
@@ -801,6 +1028,8 @@ public class MarkovTrainingService {
         logger.info("============================================================");
 
         try {
+            prepareBaseScoreStore(model, patch4x4Model, testData, trainData);
+
             // 1. Compute Baseline (Once)
             logger.info("Computing Baseline Accuracy...");
             double baselineAcc = evaluateSweepBaseline(model, testData, patch4x4Model);
@@ -897,6 +1126,7 @@ public class MarkovTrainingService {
 
         // Build Fresh MRF
         MarkovFieldDigitClassifier mrf = buildMrf(model, patch4x4Model);
+        activeMrf = mrf;
 
         // Get Base Config (so we respect file settings for other params)
         com.markovai.server.ai.Patch4x4FeedbackConfig baseConfig = getBaseConfigFromFile();
@@ -926,10 +1156,7 @@ public class MarkovTrainingService {
 
     private MarkovFieldDigitClassifier buildMrf(RowColumnDigitClassifier model,
             com.markovai.server.ai.DigitPatch4x4UnigramModel patch4x4Model) throws Exception {
-        FactorGraphBuilder builder = new FactorGraphBuilder(
-                model.getRowModel(), model.getColumnModel(), model.getPatchModel(),
-                model.getRowExtractor(), model.getColumnExtractor(), model.getPatchExtractor(),
-                patch4x4Model);
+        FactorGraphBuilder builder = newFactorGraphBuilder(model, patch4x4Model);
 
         FactorGraphBuilder.ConfigRoot configRoot = loadMrfConfig();
         Map<String, DigitFactorNode> nodes = builder.build(getClass().getResourceAsStream("/mrf_config.json"));
@@ -940,6 +1167,138 @@ public class MarkovTrainingService {
         return new MarkovFieldDigitClassifier(root);
     }
 
+    /**
+     * Directory for durable feedback checkpoints (-DfeedbackStateDir), or null.
+     */
+    private java.nio.file.Path feedbackStateDir() {
+        String dir = System.getProperty("feedbackStateDir");
+        return dir != null && !dir.isEmpty() ? java.nio.file.Paths.get(dir) : null;
+    }
+
+    /**
+     * Directory of the feedback event log (-DfeedbackLogDir), or null.
+     */
+    private java.nio.file.Path feedbackLogDir() {
+        String dir = System.getProperty("feedbackLogDir");
+        return dir != null && !dir.isEmpty() ? java.nio.file.Paths.get(dir) : null;
+    }
+
+    /**
+     * Worker graphs for data-parallel adaptation (-DadaptWorkers); 1 adapts
+     * serially.
+     */
+    private int adaptWorkers() {
+        return Math.max(1, Integer.getInteger("adaptWorkers", 1));
+    }
+
+    /**
+     * Images each worker learns between state averages (-DadaptAverageEvery).
+     */
+    private int adaptAverageEvery() {
+        return Math.max(1, Integer.getInteger("adaptAverageEvery", 250));
+    }
+
+    /**
+     * Score arrays held by the chain score L1 (-DscoreCacheEntries, default
+     * 65536, about 16 MB); 0 disables it.
+     */
+    private static com.markovai.server.ai.ChainScoreCache newScoreCache() {
+        int entries = Integer.getInteger("scoreCacheEntries", 65536);
+        return entries > 0 ? new com.markovai.server.ai.ChainScoreCache(entries) : null;
+    }
+
+    private FactorGraphBuilder newFactorGraphBuilder(RowColumnDigitClassifier model,
+            com.markovai.server.ai.DigitPatch4x4UnigramModel patch4x4Model) {
+        FactorGraphBuilder builder = new FactorGraphBuilder(
+                model.getRowModel(), model.getColumnModel(), model.getPatchModel(),
+                model.getRowExtractor(), model.getColumnExtractor(), model.getPatchExtractor(),
+                patch4x4Model, imageDao, resultDao);
+        builder.setBaseScoreStore(activeBaseScores());
+        builder.setWriteBehind(writeBehind);
+        builder.setScoreCache(scoreCache);
+        return builder;
+    }
+
+    /**
+     * The computed base score store if built, else the preloaded one, else
+     * null.
+     */
+    private com.markovai.server.ai.BaseScoreStore activeBaseScores() {
+        com.markovai.server.ai.BaseScoreStore computed = baseScoreStore;
+        return computed != null ? computed : preloadedScores;
+    }
+
+    /**
+     * With -DcachePreload=true, reads every cached row/column/patch chain
+     * score from SQLite in one background scan once the models are trained,
+     * so factor graphs built afterwards evaluate cached images without
+     * per-image queries. Protocol runs wait for the scan and score only the
+     * images it lacks (see {@link #prepareBaseScoreStore});
+     * -DcachePreloadWait=true also holds the default evaluation and
+     * readiness until it is done. Returns the scan thread, or null.
+     */
+    private Thread startCachePreload() {
+        if (!"true".equalsIgnoreCase(System.getProperty("cachePreload"))) {
+            return null;
+        }
+        Thread preload = new Thread(() -> {
+            try {
+                preloadedScores = newFactorGraphBuilder(model, patch4x4Model).preloadBaseScoreStore();
+                logger.info("Cache preload done: {} ({} MB)", preloadedScores,
+                        preloadedScores.getFootprintBytes() / (1024 * 1024));
+            } catch (Exception e) {
+                logger.error("Cache preload failed; evaluation reads SQLite per image", e);
+            }
+        }, "cache-preload");
+        preload.setDaemon(true);
+        preload.start();
+        return preload;
+    }
+
+    /**
+     * Scores the base row/column/patch chains of every test and train image
+     * once, so the MRFs rebuilt per seed, size and grid point only pay for
+     * feedback learning. The models are trained once at startup, so a store
+     * already covering the dataset (same paths and hashes) is reused as is
+     * by later protocol runs; otherwise the scores the cache preload (or
+     * the earlier store) holds are copied rather than recomputed, so
+     * evaluation reads nothing from SQLite either way.
+     * -DbaseScoreStore=false keeps the SQLite-only path.
+     */
+    private void prepareBaseScoreStore(RowColumnDigitClassifier model,
+            com.markovai.server.ai.DigitPatch4x4UnigramModel patch4x4Model, List<DigitImage> testData,
+            List<DigitImage> trainData) {
+        if ("false".equalsIgnoreCase(System.getProperty("baseScoreStore"))) {
+            logger.info("Base score store disabled");
+            return;
+        }
+        awaitCachePreload();
+        List<DigitImage> images = new ArrayList<>(testData.size() + trainData.size());
+        images.addAll(testData);
+        images.addAll(trainData);
+        com.markovai.server.ai.BaseScoreStore existing = baseScoreStore;
+        if (existing != null && existing.covers(images)) {
+            logger.info("Reusing {}", existing);
+            return;
+        }
+        baseScoreStore = newFactorGraphBuilder(model, patch4x4Model).buildBaseScoreStore(images,
+                java.util.concurrent.ForkJoinPool.commonPool(), activeBaseScores());
+        logger.info("{} ({} MB)", baseScoreStore, baseScoreStore.getFootprintBytes() / (1024 * 1024));
+    }
+
+    private void awaitCachePreload() {
+        Thread preload = cachePreload;
+        if (preload == null || !preload.isAlive()) {
+            return;
+        }
+        logger.info("Waiting for the cache preload before building the base score store...");
+        try {
+            preload.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private FactorGraphBuilder.ConfigRoot loadMrfConfig() throws Exception {
         ObjectMapper mapper = new ObjectMapper();
         return mapper.readValue(
@@ -0,0 +1,87 @@
+package com.markovai.server.tools;
+
+import com.markovai.server.ai.BinaryImage;
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.DigitMajorScoringKernel;
+import com.markovai.server.ai.DigitMarkovModel;
+import com.markovai.server.ai.RowColumnDigitClassifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reports per-image chain scoring time of the row, column and 2x2 patch
+ * models: one {@link DigitMarkovModel#logLikelihoodForSequences} call per
+ * digit against one digit-major kernel pass for all 10 digits, and checks
+ * that both give identical scores.
+ * Usage: ChainScoringBenchmark [numTrainImages] [numScoredImages]
+ */
+public class ChainScoringBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChainScoringBenchmark.class);
+    private static final int ROUNDS = 8;
+
+    public static void main(String[] args) {
+        int numTrain = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int numScored = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        RowColumnDigitClassifier model = new RowColumnDigitClassifier();
+        model.train(Patch4x4TableBenchmark.syntheticImages(numTrain, 1L));
+        List<DigitImage> scored = Patch4x4TableBenchmark.syntheticImages(numScored, 2L);
+
+        List<List<int[]>> rows = new ArrayList<>(scored.size());
+        List<List<int[]>> cols = new ArrayList<>(scored.size());
+        List<List<int[]>> patches = new ArrayList<>(scored.size());
+        for (DigitImage img : scored) {
+            BinaryImage binary = BinaryImage.of(img);
+            rows.add(model.getRowExtractor().extractSequences(binary));
+            cols.add(model.getColumnExtractor().extractSequences(binary));
+            patches.add(List.of(model.getPatchExtractor().extractSequence(binary)));
+        }
+
+        logger.info("=== Chain scoring benchmark ({} kernel) ===",
+                DigitMajorScoringKernel.isVectorized() ? "Vector API" : "scalar");
+        logger.info("train images={}, scored images={}", numTrain, numScored);
+        run("row", model.getRowModel(), rows);
+        run("column", model.getColumnModel(), cols);
+        run("patch2x2", model.getPatchModel(), patches);
+    }
+
+    private static void run(String chain, DigitMarkovModel model, List<List<int[]>> images) {
+        double bestPerDigit = Double.MAX_VALUE;
+        double bestKernel = Double.MAX_VALUE;
+        int mismatches = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            double[][] perDigit = new double[images.size()][10];
+            long t0 = System.nanoTime();
+            for (int i = 0; i < images.size(); i++) {
+                for (int d = 0; d < 10; d++) {
+                    perDigit[i][d] = model.logLikelihoodForSequences(d, images.get(i));
+                }
+            }
+            long t1 = System.nanoTime();
+            double[][] kernel = new double[images.size()][];
+            for (int i = 0; i < images.size(); i++) {
+                // Single-sequence chains (2x2 patch) are scored the way their evaluator does
+                List<int[]> seqs = images.get(i);
+                kernel[i] = seqs.size() == 1 ? model.logLikelihoods(seqs.get(0))
+                        : model.logLikelihoodsForSequences(seqs);
+            }
+            long t2 = System.nanoTime();
+
+            bestPerDigit = Math.min(bestPerDigit, (t1 - t0) / 1000.0 / images.size());
+            bestKernel = Math.min(bestKernel, (t2 - t1) / 1000.0 / images.size());
+            for (int i = 0; i < images.size(); i++) {
+                if (!Arrays.equals(perDigit[i], kernel[i])) {
+                    mismatches++;
+                }
+            }
+        }
+        logger.info("{}: per-digit {} us/image, digit-major {} us/image, {}x faster, {} mismatched images",
+                chain, String.format("%.3f", bestPerDigit), String.format("%.3f", bestKernel),
+                String.format("%.1f", bestPerDigit / bestKernel), mismatches);
+    }
+}
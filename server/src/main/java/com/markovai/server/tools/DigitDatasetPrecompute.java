@@ -1,11 +1,17 @@
 package com.markovai.server.tools;
 
+import com.markovai.db.DigitImageDao;
+import com.markovai.db.MarkovChainResultDao;
+import com.markovai.db.SqliteConnectionProvider;
+import com.markovai.db.SqliteInitializer;
 import com.markovai.server.ai.DigitImage;
 import com.markovai.server.ai.DigitMarkovModel;
 import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import com.markovai.server.ai.ImageFeatureContext;
 import com.markovai.server.ai.RowColumnDigitClassifier;
 import com.markovai.server.ai.hierarchy.DigitFactorNode;
 import com.markovai.server.ai.hierarchy.FactorGraphBuilder;
+import com.markovai.server.ai.hierarchy.WeightedSumNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,8 +23,10 @@ import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Offline tool to precompute Markov chain results and populate the SQLite
@@ -28,6 +36,9 @@ import java.util.Map;
 public class DigitDatasetPrecompute {
 
     private static final Logger logger = LoggerFactory.getLogger(DigitDatasetPrecompute.class);
+    private static final int PRECOMPUTE_BATCH_SIZE = 256;
+    // Images whose cache writes share one transaction (-DprecomputeCommitImages)
+    private static final int DEFAULT_COMMIT_IMAGES = 4096;
 
     public static void main(String[] args) {
         if (args.length < 1) {
@@ -82,14 +93,10 @@ public class DigitDatasetPrecompute {
 
             logger.info("Training models on training set only...");
             RowColumnDigitClassifier digitClassifier = new RowColumnDigitClassifier();
-            digitClassifier.train(trainingImages);
+            digitClassifier.trainParallel(trainingImages, ForkJoinPool.commonPool());
 
             DigitPatch4x4UnigramModel patch4x4Model = new DigitPatch4x4UnigramModel();
-            for (DigitImage img : trainingImages) {
-                int[][] binary = DigitMarkovModel.binarize(img.pixels, 128);
-                patch4x4Model.trainOnImage(img.label, binary);
-            }
-            patch4x4Model.finalizeProbabilities();
+            patch4x4Model.trainParallel(trainingImages, ForkJoinPool.commonPool());
             logger.info("Models trained.");
 
             // 3. Build Factor Graph (Connects to DB)
@@ -97,42 +104,61 @@ public class DigitDatasetPrecompute {
             // If running as tool, classpath might be tricky, but let's assume standard app
             // classpath.
             logger.info("Building Factor Graph / DB Access...");
-            FactorGraphBuilder builder = new FactorGraphBuilder(
-                    digitClassifier.getRowModel(),
-                    digitClassifier.getColumnModel(),
-                    digitClassifier.getPatchModel(),
-                    digitClassifier.getRowExtractor(),
-                    digitClassifier.getColumnExtractor(),
-                    digitClassifier.getPatchExtractor(),
-                    patch4x4Model);
-
-            Map<String, DigitFactorNode> nodes = builder.build(
-                    DigitDatasetPrecompute.class.getResourceAsStream("/mrf_config.json"));
-
-            // 4. Compute and Cache
-            logger.info("Precomputing chains for all images...");
-            int count = 0;
-            for (DigitImage img : allImages) {
-                // Determine nodes to compute
-                // We just trigger computeForImage on all nodes.
-                // The cached nodes (Row, Col, Patch...) will check DB and write if missing.
+            SqliteInitializer.initialize(dbFile.getPath());
+            try (SqliteConnectionProvider connections = new SqliteConnectionProvider(dbFile.getPath())) {
+                FactorGraphBuilder builder = new FactorGraphBuilder(
+                        digitClassifier.getRowModel(),
+                        digitClassifier.getColumnModel(),
+                        digitClassifier.getPatchModel(),
+                        digitClassifier.getRowExtractor(),
+                        digitClassifier.getColumnExtractor(),
+                        digitClassifier.getPatchExtractor(),
+                        patch4x4Model,
+                        new DigitImageDao(connections),
+                        new MarkovChainResultDao(connections));
+
+                Map<String, DigitFactorNode> nodes = builder.build(
+                        DigitDatasetPrecompute.class.getResourceAsStream("/mrf_config.json"));
+
+                // 4. Compute and Cache
+                logger.info("Precomputing chains for all images...");
+                // Leaf nodes only: WeightedSumNode requires children results and doesn't
+                // access the DB itself. Cached nodes (Row, Col, Patch...) check the DB for
+                // the whole batch and write the misses.
+                List<DigitFactorNode> leaves = new ArrayList<>();
                 for (DigitFactorNode node : nodes.values()) {
-                    // Skip WeightedSumNode as it requires children results and doesn't access DB
-                    // itself.
-                    // We only care about ensuring leaf nodes (Row, Col, Patch...) compute and cache
-                    // their results.
-                    if (node instanceof com.markovai.server.ai.hierarchy.WeightedSumNode) {
-                        continue;
+                    if (!(node instanceof WeightedSumNode)) {
+                        leaves.add(node);
                     }
-                    node.computeForImage(img, null);
                 }
+                // The leaves run on this thread, so their batched writes join one
+                // transaction per commit group instead of committing per batch
+                int commitImages = Math.max(PRECOMPUTE_BATCH_SIZE,
+                        Integer.getInteger("precomputeCommitImages", DEFAULT_COMMIT_IMAGES));
+                int count = 0;
+                for (int group = 0; group < allImages.size(); group += commitImages) {
+                    int groupFrom = group;
+                    int groupTo = Math.min(allImages.size(), group + commitImages);
+                    connections.inTransaction(() -> {
+                        for (int from = groupFrom; from < groupTo; from += PRECOMPUTE_BATCH_SIZE) {
+                            int to = Math.min(groupTo, from + PRECOMPUTE_BATCH_SIZE);
+                            List<ImageFeatureContext> batch = new ArrayList<>(to - from);
+                            for (int i = from; i < to; i++) {
+                                batch.add(new ImageFeatureContext(allImages.get(i)));
+                            }
+                            double[][] out = new double[batch.size()][10];
+                            for (DigitFactorNode node : leaves) {
+                                node.computeForBatch(batch, Collections.emptyMap(), out);
+                            }
+                        }
+                        return null;
+                    });
 
-                count++;
-                if (count % 100 == 0) {
+                    count = groupTo;
                     logger.info("Processed {}/{}", count, allImages.size());
                 }
+                logger.info("Precompute complete. Processed {} images.", count);
             }
-            logger.info("Precompute complete. Processed {} images.", count);
 
         } catch (Exception e) {
             logger.error("Precompute failed", e);
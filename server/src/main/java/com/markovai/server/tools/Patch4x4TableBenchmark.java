@@ -0,0 +1,121 @@
+package com.markovai.server.tools;
+
+import com.markovai.server.ai.BinaryImage;
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reports memory footprint and lookup latency of the 4x4 patch symbol table,
+ * compared with the previous boxed HashMap&lt;Integer, Double&gt; per digit
+ * layout.
+ * Usage: Patch4x4TableBenchmark [numTrainImages] [numLookupImages]
+ */
+public class Patch4x4TableBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(Patch4x4TableBenchmark.class);
+
+    // HashMap.Node (32) + Integer key (16) + Double value (16) + table slot (~8)
+    private static final long BOXED_ENTRY_BYTES = 72;
+
+    public static void main(String[] args) {
+        int numTrain = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int numLookup = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        List<DigitImage> train = syntheticImages(numTrain, 1L);
+        List<DigitImage> lookup = syntheticImages(numLookup, 2L);
+
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(train, ForkJoinPool.commonPool());
+
+        // Rebuild the legacy boxed layout from the same model for comparison
+        @SuppressWarnings("unchecked")
+        Map<Integer, Double>[] boxed = new HashMap[10];
+        long boxedEntries = 0;
+        for (int d = 0; d < 10; d++) {
+            boxed[d] = new HashMap<>();
+        }
+        int[][] symbols = new int[lookup.size()][];
+        for (int i = 0; i < lookup.size(); i++) {
+            symbols[i] = extractSymbols(lookup.get(i));
+        }
+        for (DigitImage img : train) {
+            for (int s : extractSymbols(img)) {
+                if (!boxed[img.label].containsKey(s)) {
+                    boxed[img.label].put(s, model.logProbForSymbol(img.label, s));
+                    boxedEntries++;
+                }
+            }
+        }
+
+        logger.info("=== Patch4x4 symbol table benchmark ===");
+        logger.info("train images={}, lookup images={}, seen symbols={}",
+                numTrain, numLookup, model.getNumSeenSymbols());
+        logger.info("dense lookup footprint: {} bytes", String.format("%,d", model.getLookupFootprintBytes()));
+        logger.info("dense count footprint:  {} bytes", String.format("%,d", model.getCountFootprintBytes()));
+        logger.info("boxed map footprint (est.): {} bytes ({} entries)",
+                String.format("%,d", boxedEntries * BOXED_ENTRY_BYTES), boxedEntries);
+
+        double sink = 0;
+        double[] row = new double[10];
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            for (int[] imgSymbols : symbols) {
+                for (int s : imgSymbols) {
+                    model.logProbsForSymbol(s, row);
+                    for (int d = 0; d < 10; d++) {
+                        sink += row[d];
+                    }
+                }
+            }
+            long t1 = System.nanoTime();
+            for (int[] imgSymbols : symbols) {
+                for (int s : imgSymbols) {
+                    for (int d = 0; d < 10; d++) {
+                        Double lp = boxed[d].get(s);
+                        sink += lp != null ? lp : 0.0;
+                    }
+                }
+            }
+            long t2 = System.nanoTime();
+            long lookups = (long) symbols.length * 49 * 10;
+            logger.info("round {}: dense {} ns/lookup, boxed {} ns/lookup", round,
+                    String.format("%.2f", (t1 - t0) / (double) lookups),
+                    String.format("%.2f", (t2 - t1) / (double) lookups));
+        }
+        logger.info("checksum {}", sink);
+    }
+
+    private static int[] extractSymbols(DigitImage img) {
+        return DigitPatch4x4UnigramModel.extractSymbols(BinaryImage.of(img));
+    }
+
+    // Noisy ring-like strokes, so the symbol distribution is skewed like real
+    // digits; shared with ChainScoringBenchmark
+    static List<DigitImage> syntheticImages(int n, long seed) {
+        Random rnd = new Random(seed);
+        List<DigitImage> images = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int label = rnd.nextInt(10);
+            int[][] pixels = new int[28][28];
+            double radius = 5 + label % 4;
+            for (int r = 0; r < 28; r++) {
+                for (int c = 0; c < 28; c++) {
+                    double dist = Math.hypot(r - 14, (c - 14 + label - 5) * (1 + label * 0.08));
+                    boolean stroke = Math.abs(dist - radius) < 1.5 + rnd.nextDouble();
+                    pixels[r][c] = stroke || rnd.nextDouble() < 0.02 ? 255 : rnd.nextInt(100);
+                }
+            }
+            images.add(new DigitImage(pixels, label));
+        }
+        return images;
+    }
+}
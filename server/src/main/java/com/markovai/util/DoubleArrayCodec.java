@@ -23,4 +23,17 @@ public class DoubleArrayCodec {
         buffer.get(scores);
         return scores;
     }
+
+    /**
+     * Decodes {@code bytes} straight into {@code out[offset..offset+length)}
+     * without an intermediate array; returns false, leaving {@code out}
+     * untouched, if the blob does not hold exactly {@code length} doubles.
+     */
+    public static boolean decodeInto(byte[] bytes, double[] out, int offset, int length) {
+        if (bytes == null || bytes.length != length * Double.BYTES) {
+            return false;
+        }
+        ByteBuffer.wrap(bytes).asDoubleBuffer().get(out, offset, length);
+        return true;
+    }
 }
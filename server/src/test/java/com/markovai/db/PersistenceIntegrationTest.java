@@ -1,13 +1,19 @@
 package com.markovai.db;
 
+import com.markovai.util.DoubleArrayCodec;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PersistenceIntegrationTest {
 
@@ -30,6 +36,8 @@ public class PersistenceIntegrationTest {
 
     @AfterEach
     public void teardown() {
+        // The DAOs built from the path use the shared provider
+        SqliteConnectionProvider.shared(TEST_DB).close();
         File dbFile = new File(TEST_DB);
         if (dbFile.exists()) {
             dbFile.delete();
@@ -83,4 +91,137 @@ public class PersistenceIntegrationTest {
         loaded = resultDao.loadScores(img.getId(), "row", "v1");
         Assertions.assertFalse(loaded.isPresent());
     }
+
+    @Test
+    public void testProviderReusesThreadConnectionAndStatements() throws Exception {
+        try (SqliteConnectionProvider connections = new SqliteConnectionProvider(TEST_DB)) {
+            MarkovChainResultDao dao = new MarkovChainResultDao(connections);
+            DigitImage img = new DigitImageDao(connections).getOrCreateByPath("img2.png", null);
+            dao.upsertScores(img.getId(), "col", "v1", new double[] { 1.0, 2.0 });
+
+            Connection conn = connections.connection();
+            PreparedStatement ps = connections.prepare("SELECT 1");
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertArrayEquals(new double[] { 1.0, 2.0 },
+                        dao.loadScores(img.getId(), "col", "v1").orElseThrow(), 0.0);
+            }
+            Assertions.assertSame(conn, connections.connection());
+            Assertions.assertSame(ps, connections.prepare("SELECT 1"));
+
+            // Other threads get their own connection
+            AtomicReference<Connection> other = new AtomicReference<>();
+            Thread t = new Thread(() -> {
+                try {
+                    other.set(connections.connection());
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            t.join();
+            Assertions.assertNotNull(other.get());
+            Assertions.assertNotSame(conn, other.get());
+
+            // The exited thread's connection is closed by the next one opened
+            Thread next = new Thread(() -> {
+                try {
+                    connections.connection();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            next.start();
+            next.join();
+            Assertions.assertTrue(other.get().isClosed());
+            Assertions.assertFalse(conn.isClosed());
+        }
+    }
+
+    @Test
+    public void testBatchUpsertsMatchSingleRowWrites() throws SQLException {
+        // Enough rows for full multi-row statements plus a remainder
+        int n = MarkovChainResultDao.UPSERT_ROWS_PER_STATEMENT * 2 + 7;
+        List<String> paths = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            paths.add("batch/" + i + ".png");
+            hashes.add(i == 0 ? null : "h" + i);
+        }
+        DigitImage first = imageDao.getOrCreateByPath("batch/0.png", "old");
+        List<DigitImage> images = imageDao.getOrCreateByPaths(paths, hashes);
+        Assertions.assertEquals(n, images.size());
+        Assertions.assertEquals(first.getId(), images.get(0).getId());
+        // A null hash keeps the stored one
+        Assertions.assertEquals("old", images.get(0).getImageHash());
+        Assertions.assertEquals("h5", images.get(5).getImageHash());
+
+        List<Long> ids = new ArrayList<>();
+        List<double[]> scores = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ids.add(images.get(i).getId());
+            scores.add(new double[] { i, -i });
+        }
+        resultDao.upsertScoresBatch(ids, "row", "v1", scores, 37);
+        for (int i = 0; i < n; i++) {
+            Assertions.assertArrayEquals(scores.get(i), resultDao.loadScores(ids.get(i), "row", "v1").orElseThrow(),
+                    0.0);
+        }
+        // Padded IN lists return exactly the requested rows
+        for (int k : new int[] { 1, 9, 130, n }) {
+            Assertions.assertEquals(k, imageDao.findByPaths(paths.subList(0, k)).size());
+            Assertions.assertEquals(k, resultDao.loadScoresBatch(ids.subList(n - k, n), "row", "v1").size());
+        }
+
+        // A failing transaction leaves nothing behind
+        try (SqliteConnectionProvider connections = new SqliteConnectionProvider(TEST_DB)) {
+            MarkovChainResultDao dao = new MarkovChainResultDao(connections);
+            Assertions.assertThrows(IllegalStateException.class, () -> connections.inTransaction(() -> {
+                dao.upsertScoresBatch(ids, "col", "v1", scores);
+                throw new IllegalStateException("abort");
+            }));
+            Assertions.assertTrue(dao.loadScoresBatch(ids, "col", "v1").isEmpty());
+        }
+    }
+
+    @Test
+    public void testWriteBehindWritesQueuedScores() throws Exception {
+        try (SqliteConnectionProvider connections = new SqliteConnectionProvider(TEST_DB)) {
+            DigitImageDao images = new DigitImageDao(connections);
+            MarkovChainResultDao results = new MarkovChainResultDao(connections);
+            double[] scores = { 0.5, 1.5 };
+            try (WriteBehindScoreWriter writer = new WriteBehindScoreWriter(connections, images, results, 2)) {
+                for (int i = 0; i < 10; i++) {
+                    writer.enqueue("wb/" + i + ".png", null, "row", "v1", scores);
+                }
+                scores[0] = -1.0;
+                writer.flush();
+
+                WriteBehindScoreWriter.Stats stats = writer.getStats();
+                Assertions.assertEquals(10, stats.getEnqueued());
+                Assertions.assertEquals(10, stats.getWritten());
+                Assertions.assertEquals(0, stats.getQueueDepth());
+                Assertions.assertNull(writer.pendingScores("wb/3.png", "row", "v1"));
+            }
+            // Written from the copy taken at enqueue time
+            DigitImage img = images.findByPath("wb/3.png").orElseThrow();
+            Assertions.assertArrayEquals(new double[] { 0.5, 1.5 },
+                    results.loadScores(img.getId(), "row", "v1").orElseThrow(), 0.0);
+        }
+    }
+
+    @Test
+    public void testScanScoresJoinsImagePaths() throws SQLException {
+        DigitImage a = imageDao.getOrCreateByPath("scan/a.png", null);
+        DigitImage b = imageDao.getOrCreateByPath("scan/b.png", null);
+        resultDao.upsertScores(a.getId(), "row", "v1", new double[] { 1.0 });
+        resultDao.upsertScores(b.getId(), "col", "v1", new double[] { 2.0 });
+        resultDao.upsertScores(b.getId(), "row", "v2", new double[] { 3.0 });
+
+        List<String> seen = new ArrayList<>();
+        long rows = resultDao.scanScores(List.of("col", "row"), List.of("v1", "v1"),
+                (path, hash, chain, blob) -> seen.add(path + "#" + chain + "=" + DoubleArrayCodec.fromBytes(blob)[0]));
+        seen.sort(null);
+        Assertions.assertEquals(2, rows);
+        Assertions.assertEquals(List.of("scan/a.png#1=1.0", "scan/b.png#0=2.0"), seen);
+    }
 }
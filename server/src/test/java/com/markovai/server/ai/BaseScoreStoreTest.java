@@ -0,0 +1,211 @@
+package com.markovai.server.ai;
+
+import com.markovai.db.DigitImageDao;
+import com.markovai.db.MarkovChainResultDao;
+import com.markovai.db.SqliteConnectionProvider;
+import com.markovai.server.ai.hierarchy.DigitFactorNode;
+import com.markovai.server.ai.hierarchy.FactorGraphBuilder;
+import com.markovai.util.DoubleArrayCodec;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BaseScoreStoreTest {
+
+    @Test
+    void testStoredScoresMatchEvaluators() {
+        List<DigitImage> images = TestImages.randomImagesWithPaths(60, 11);
+        RowColumnDigitClassifier model = new RowColumnDigitClassifier();
+        model.train(images.subList(0, 40));
+
+        MarkovChainEvaluator row = new RowMarkovEvaluator(model.getRowModel(), model.getRowExtractor(), "v1");
+        MarkovChainEvaluator patch = new Patch2x2Evaluator(model.getPatchModel(), model.getPatchExtractor(), "v1");
+
+        List<DigitImage> withDuplicate = new ArrayList<>(images);
+        withDuplicate.add(images.get(0));
+        withDuplicate.add(new DigitImage(new int[28][28], 0));
+        BaseScoreStore store = BaseScoreStore.build(withDuplicate, List.of(row, patch), ForkJoinPool.commonPool());
+
+        assertEquals(images.size(), store.getNumImages());
+        assertEquals(List.of("patch2x2/v1", "row/v1"), store.getChainKeys());
+        for (DigitImage img : images) {
+            ImageFeatureContext ctx = new ImageFeatureContext(img);
+            assertArrayEquals(row.computeScores(ctx), store.getScores("row", "v1", img.imageRelPath, null), 0.0);
+            assertArrayEquals(patch.computeScores(ctx), store.getScores("patch2x2", "v1", img.imageRelPath, null),
+                    0.0);
+        }
+
+        // Callers mutate the returned scores; the store must not change
+        double[] first = store.getScores("row", "v1", "img/0.png", null);
+        first[3] += 100.0;
+        assertNotEquals(first[3], store.getScores("row", "v1", "img/0.png", null)[3]);
+
+        assertNull(store.getScores("row", "v2", "img/0.png", null));
+        assertNull(store.getScores("row", "v1", "missing.png", null));
+        assertFalse(store.copyScores("row", "v1", null, null, new double[10]));
+
+        // A cleared cache retires the store for everyone holding it
+        store.invalidate();
+        assertNull(store.getScores("row", "v1", "img/1.png", null));
+        assertFalse(store.copyScores("patch2x2", "v1", "img/1.png", null, new double[10]));
+    }
+
+    @Test
+    void testLoadedStoreServesCachedRowsOnly() throws Exception {
+        RowColumnDigitClassifier model = new RowColumnDigitClassifier();
+        MarkovChainEvaluator row = new RowMarkovEvaluator(model.getRowModel(), model.getRowExtractor(), "v1");
+        MarkovChainEvaluator patch = new Patch2x2Evaluator(model.getPatchModel(), model.getPatchExtractor(), "v1");
+
+        // Stands in for the SQLite scan: chain 0 = row, 1 = patch2x2
+        MarkovChainResultDao dao = new MarkovChainResultDao(new SqliteConnectionProvider("unused.db")) {
+            @Override
+            public long scanScores(List<String> chainTypes, List<String> chainVersions, ScoreRowHandler handler) {
+                assertEquals(List.of("row", "patch2x2"), chainTypes);
+                assertEquals(List.of("v1", "v1"), chainVersions);
+                for (int n = 0; n < 3000; n++) {
+                    handler.accept("img/" + n + ".png", "h" + n, 0, DoubleArrayCodec.toBytes(scores(n)));
+                    if (n % 2 == 0) {
+                        handler.accept("img/" + n + ".png", "h" + n, 1, DoubleArrayCodec.toBytes(scores(-n)));
+                    }
+                }
+                handler.accept("bad.png", null, 1, new byte[3]);
+                return 6002;
+            }
+        };
+        BaseScoreStore store = BaseScoreStore.load(dao, List.of(row, patch));
+
+        assertEquals(3001, store.getNumImages());
+        assertArrayEquals(scores(2999), store.getScores("row", "v1", "img/2999.png", null), 0.0);
+        assertArrayEquals(scores(-2998), store.getScores("patch2x2", "v1", "img/2998.png", null), 0.0);
+        assertNull(store.getScores("patch2x2", "v1", "img/2999.png", null));
+        assertNull(store.getScores("patch2x2", "v1", "bad.png", null));
+        assertNull(store.getScores("row", "v1", "bad.png", null));
+        assertNull(store.getScores("row", "v1", "missing.png", null));
+
+        // Rows belong to the hash they were cached under
+        assertArrayEquals(scores(7), store.getScores("row", "v1", "img/7.png", "h7"), 0.0);
+        assertNull(store.getScores("row", "v1", "img/7.png", "replaced"));
+        assertTrue(store.covers(List.of(new DigitImage(new int[28][28], 8, "img/8.png", "h8"))));
+        assertFalse(store.covers(List.of(new DigitImage(new int[28][28], 8, "img/8.png", "replaced"))));
+        assertFalse(store.covers(List.of(new DigitImage(new int[28][28], 7, "img/7.png", "h7"))));
+    }
+
+    @Test
+    void testEvaluationOverPreloadedStoreQueriesNothing() throws Exception {
+        List<DigitImage> images = TestImages.randomImagesWithPaths(40, 12);
+        RowColumnDigitClassifier model = new RowColumnDigitClassifier();
+        model.train(images);
+        DigitPatch4x4UnigramModel patch4x4 = new DigitPatch4x4UnigramModel();
+        patch4x4.trainParallel(images, ForkJoinPool.commonPool());
+
+        // SQLite has every chain of the even images only
+        AtomicInteger queries = new AtomicInteger();
+        MarkovChainResultDao resultDao = new CountingResultDao(queries) {
+            @Override
+            public long scanScores(List<String> chainTypes, List<String> chainVersions, ScoreRowHandler handler) {
+                for (int n = 0; n < images.size(); n += 2) {
+                    for (int chain = 0; chain < chainTypes.size(); chain++) {
+                        handler.accept("img/" + n + ".png", null, chain, DoubleArrayCodec.toBytes(scores(n)));
+                    }
+                }
+                return images.size() / 2 * chainTypes.size();
+            }
+        };
+        FactorGraphBuilder builder = new FactorGraphBuilder(model.getRowModel(), model.getColumnModel(),
+                model.getPatchModel(), model.getRowExtractor(), model.getColumnExtractor(),
+                model.getPatchExtractor(), patch4x4, new CountingImageDao(queries), resultDao);
+        BaseScoreStore preloaded = builder.preloadBaseScoreStore();
+        BaseScoreStore store = builder.buildBaseScoreStore(images, ForkJoinPool.commonPool(), preloaded);
+
+        // Preloaded images are copied, the rest scored
+        assertArrayEquals(scores(2), store.getScores("row", "v1", "img/2.png", null), 0.0);
+        assertArrayEquals(new RowMarkovEvaluator(model.getRowModel(), model.getRowExtractor(), "v1")
+                .computeScores(new ImageFeatureContext(images.get(3))),
+                store.getScores("row", "v1", "img/3.png", null), 0.0);
+
+        builder.setBaseScoreStore(store);
+        Map<String, DigitFactorNode> nodes = builder.build(getClass().getResourceAsStream("/mrf_config.json"));
+        MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(nodes.get("root"));
+        mrf.evaluateAccuracy(images, true);
+        for (DigitImage img : images) {
+            mrf.classify(img);
+        }
+        assertEquals(0, queries.get());
+    }
+
+    // Every lookup or write would be a per-image SQL query
+    private static class CountingImageDao extends DigitImageDao {
+        private final AtomicInteger queries;
+
+        CountingImageDao(AtomicInteger queries) {
+            super(new SqliteConnectionProvider("unused.db"));
+            this.queries = queries;
+        }
+
+        @Override
+        public com.markovai.db.DigitImage getOrCreateByPath(String imageRelPath, String imageHashOrNull)
+                throws SQLException {
+            queries.incrementAndGet();
+            throw new SQLException("unexpected query");
+        }
+
+        @Override
+        public List<com.markovai.db.DigitImage> getOrCreateByPaths(List<String> imageRelPaths,
+                List<String> imageHashesOrNull) throws SQLException {
+            queries.incrementAndGet();
+            throw new SQLException("unexpected query");
+        }
+
+        @Override
+        public Optional<com.markovai.db.DigitImage> findByPath(String imageRelPath) throws SQLException {
+            queries.incrementAndGet();
+            throw new SQLException("unexpected query");
+        }
+
+        @Override
+        public Map<String, com.markovai.db.DigitImage> findByPaths(List<String> imageRelPaths)
+                throws SQLException {
+            queries.incrementAndGet();
+            throw new SQLException("unexpected query");
+        }
+    }
+
+    private static class CountingResultDao extends MarkovChainResultDao {
+        private final AtomicInteger queries;
+
+        CountingResultDao(AtomicInteger queries) {
+            super(new SqliteConnectionProvider("unused.db"));
+            this.queries = queries;
+        }
+
+        @Override
+        public Optional<double[]> loadScores(long imageId, String chainType, String chainVersion)
+                throws SQLException {
+            queries.incrementAndGet();
+            throw new SQLException("unexpected query");
+        }
+
+        @Override
+        public Map<Long, double[]> loadScoresBatch(List<Long> imageIds, String chainType, String chainVersion)
+                throws SQLException {
+            queries.incrementAndGet();
+            throw new SQLException("unexpected query");
+        }
+    }
+
+    private static double[] scores(int n) {
+        double[] scores = new double[10];
+        for (int d = 0; d < 10; d++) {
+            scores[d] = n * 10 + d;
+        }
+        return scores;
+    }
+}
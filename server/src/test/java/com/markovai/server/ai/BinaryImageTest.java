@@ -0,0 +1,51 @@
+package com.markovai.server.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryImageTest {
+
+    @Test
+    void testPackedExtractionMatchesArrayExtraction() {
+        Random rnd = new Random(11);
+        for (int n = 0; n < 50; n++) {
+            int[][] pixels = TestImages.randomPixels(rnd);
+            int[][] binary = DigitMarkovModel.binarize(pixels, 128);
+            BinaryImage packed = BinaryImage.fromPixels(pixels, 128);
+
+            int[][] unpacked = packed.toArray();
+            for (int r = 0; r < 28; r++) {
+                assertArrayEquals(binary[r], unpacked[r]);
+            }
+            assertArrayEquals(new PatchSequenceExtractor().extractSequence(binary),
+                    new PatchSequenceExtractor().extractSequence(packed));
+            assertArrayEquals(new PixelSequenceExtractor().extractSequence(binary),
+                    new PixelSequenceExtractor().extractSequence(packed));
+            assertSequencesEqual(new RowPatchSequenceExtractor().extractSequences(binary),
+                    new RowPatchSequenceExtractor().extractSequences(packed));
+            assertSequencesEqual(new ColumnPatchSequenceExtractor().extractSequences(binary),
+                    new ColumnPatchSequenceExtractor().extractSequences(packed));
+
+            // Includes windows running past the bottom/right edge
+            for (int r = 0; r < 28; r++) {
+                for (int c = 0; c < 28; c++) {
+                    assertEquals(DigitPatch4x4UnigramModel.encodePatch(binary, r, c),
+                            DigitPatch4x4UnigramModel.encodePatch(packed, r, c));
+                }
+            }
+
+            assertArrayEquals(packed.toFlatBytes(), BinaryImage.fromFlat(packed.toFlatBytes()).toFlatBytes());
+        }
+    }
+
+    private static void assertSequencesEqual(List<int[]> expected, List<int[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.markovai.server.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChainScoreCacheTest {
+
+    @Test
+    void testConcurrentMissesLoadOnce() throws Exception {
+        ChainScoreCache cache = new ChainScoreCache(64);
+        String key = ChainScoreCache.key("row", "v1", "img/0.png");
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<double[]>> results = new ArrayList<>();
+            results.add(pool.submit(() -> cache.get(key, () -> {
+                loads.incrementAndGet();
+                started.countDown();
+                await(release);
+                return new double[] { 1.0, 2.0 };
+            })));
+            started.await();
+            for (int t = 0; t < 3; t++) {
+                results.add(pool.submit(() -> cache.get(key, () -> {
+                    loads.incrementAndGet();
+                    return new double[] { -1.0, -1.0 };
+                })));
+            }
+            // Let the waiters reach the in-flight load before it completes
+            while (cache.getStats().getCoalescedLoads() < 3) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<double[]> result : results) {
+                assertArrayEquals(new double[] { 1.0, 2.0 }, result.get(), 0.0);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+
+        // Callers own their copy
+        double[] scores = cache.get(key, () -> {
+            throw new AssertionError("loaded a cached key");
+        });
+        scores[0] = 100.0;
+        assertArrayEquals(new double[] { 1.0, 2.0 }, cache.getIfPresent(key), 0.0);
+        assertEquals(2, cache.getStats().getL1Hits());
+    }
+
+    @Test
+    void testFrequentEntriesSurviveScans() {
+        ChainScoreCache cache = new ChainScoreCache(128);
+        List<String> hot = new ArrayList<>();
+        for (int i = 0; i < 48; i++) {
+            String key = ChainScoreCache.key("row", "v1", "hot/" + i);
+            cache.get(key, () -> new double[] { 1.0 });
+            hot.add(key);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (String key : hot) {
+                assertNotNull(cache.getIfPresent(key));
+            }
+        }
+
+        // A scan of keys seen once must not displace the popular ones
+        for (int i = 0; i < 1000; i++) {
+            cache.get(ChainScoreCache.key("row", "v1", "cold/" + i), () -> new double[] { 2.0 });
+        }
+        int retained = 0;
+        for (String key : hot) {
+            if (cache.getIfPresent(key) != null) {
+                retained++;
+            }
+        }
+        ChainScoreCache.Stats stats = cache.getStats();
+        assertTrue(stats.getEntries() <= stats.getMaxEntries());
+        assertTrue(retained >= 44, "retained " + retained);
+        assertTrue(stats.getRejections() > 0);
+    }
+
+    @Test
+    void testInvalidationDuringLoadIsNotCached() {
+        ChainScoreCache cache = new ChainScoreCache(64);
+        String key = ChainScoreCache.key("row", "v1", "img/0.png");
+
+        // Rows read from L2, then deleted before the batch caches them
+        long loadGeneration = cache.generation();
+        double[] loaded = { 1.0, 2.0 };
+        cache.invalidateImage("img/0.png");
+        cache.putIfCurrent(key, loaded, loadGeneration);
+        assertNull(cache.getIfPresent(key));
+
+        cache.putIfCurrent(key, loaded, cache.generation());
+        assertArrayEquals(loaded, cache.getIfPresent(key), 0.0);
+        cache.invalidateChain("row", "v1");
+        assertNull(cache.getIfPresent(key));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -57,4 +57,64 @@ class DigitMarkovModelTest {
         ClassificationResult resOne = model.classifyWithScores(imgOne);
         assertEquals(1, resOne.getPredictedDigit());
     }
+
+    @Test
+    void testLogTablesMatchLinearProbabilities() {
+        DigitMarkovModel model = new DigitMarkovModel(4, null, true);
+        model.trainOnSequences(3, java.util.List.of(new int[] { 0, 1, 2, 3 }, new int[] { 1, 1, 2 }));
+        model.finalizeProbabilities();
+        assertTrue(model.isKeepingLinearProbabilities());
+
+        int[] seq = { 1, 2, 3, 3, 0 };
+        double expected = Math.log(model.getInitialProbability(3, 1));
+        for (int t = 1; t < seq.length; t++) {
+            expected += Math.log(model.getTransitionProbability(3, seq[t - 1], seq[t]));
+        }
+        assertEquals(expected, model.logLikelihood(3, seq), 0.0);
+
+        // Without compatibility mode linear values are recovered from the log tables
+        DigitMarkovModel logOnly = new DigitMarkovModel(4);
+        logOnly.trainOnSequences(3, java.util.List.of(new int[] { 0, 1, 2, 3 }, new int[] { 1, 1, 2 }));
+        logOnly.finalizeProbabilities();
+        assertFalse(logOnly.isKeepingLinearProbabilities());
+        assertEquals(model.logLikelihood(3, seq), logOnly.logLikelihood(3, seq), 0.0);
+        assertEquals(model.getTransitionProbability(3, 1, 2), logOnly.getTransitionProbability(3, 1, 2), 1e-12);
+    }
+
+    @Test
+    void testScoringKernelMatchesPerDigitLikelihood() {
+        DigitMarkovModel model = new DigitMarkovModel(16);
+        java.util.Random rnd = new java.util.Random(7);
+        for (int d = 0; d < 10; d++) {
+            java.util.List<int[]> seqs = new java.util.ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int[] seq = new int[14];
+                for (int t = 0; t < seq.length; t++) {
+                    seq[t] = rnd.nextInt(16);
+                }
+                seqs.add(seq);
+            }
+            model.trainOnSequences(d, seqs);
+        }
+        model.finalizeProbabilities();
+
+        java.util.List<int[]> sequences = java.util.List.of(
+                new int[] { 0, 3, 15, 15, 2 }, new int[] { 7, 7, 1 }, new int[] { 9 });
+        double[] all = model.logLikelihoodsForSequences(sequences);
+        double[] single = model.logLikelihoods(sequences.get(0));
+        for (int d = 0; d < 10; d++) {
+            assertEquals(model.logLikelihoodForSequences(d, sequences), all[d], 0.0);
+            assertEquals(model.logLikelihood(d, sequences.get(0)), single[d], 0.0);
+        }
+
+        // Out-of-range transitions are skipped; an invalid first state scores -Infinity
+        java.util.List<int[]> skipped = java.util.List.of(new int[] { 3, 99, 4, 5 }, new int[] { 5, -2 });
+        java.util.List<int[]> invalid = java.util.List.of(new int[] { 1, 2 }, new int[] { -1, 2 });
+        double[] skippedAll = model.logLikelihoodsForSequences(skipped);
+        double[] invalidAll = model.logLikelihoodsForSequences(invalid);
+        for (int d = 0; d < 10; d++) {
+            assertEquals(model.logLikelihoodForSequences(d, skipped), skippedAll[d], 0.0);
+            assertEquals(Double.NEGATIVE_INFINITY, invalidAll[d], 0.0);
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package com.markovai.server.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageFeatureContextTest {
+
+    @Test
+    void testFeaturesMatchExtractorsAndAreMemoized() {
+        Random rnd = new Random(5);
+        int[][] pixels = TestImages.randomPixels(rnd);
+        ImageFeatureContext ctx = new ImageFeatureContext(new DigitImage(pixels, 3));
+        int[][] binary = DigitMarkovModel.binarize(pixels, 128);
+
+        RowPatchSequenceExtractor rowExtractor = new RowPatchSequenceExtractor();
+        ColumnPatchSequenceExtractor colExtractor = new ColumnPatchSequenceExtractor();
+        PatchSequenceExtractor patchExtractor = new PatchSequenceExtractor();
+
+        assertArrayEquals(patchExtractor.extractSequence(binary), ctx.getSequence(patchExtractor));
+
+        List<int[]> expectedRows = rowExtractor.extractSequences(binary);
+        List<int[]> rows = ctx.getSequences(rowExtractor);
+        List<int[]> expectedCols = colExtractor.extractSequences(binary);
+        List<int[]> cols = ctx.getSequences(colExtractor);
+        for (int i = 0; i < 14; i++) {
+            assertArrayEquals(expectedRows.get(i), rows.get(i));
+            assertArrayEquals(expectedCols.get(i), cols.get(i));
+        }
+
+        assertArrayEquals(ImageFeatureContext.toTransitionIds(expectedRows), ctx.getTransitionIds(rowExtractor));
+        assertEquals(14 * 13, ctx.getTransitionIds(colExtractor).length);
+
+        int[] p4 = ctx.getPatch4x4Symbols();
+        assertEquals(49, p4.length);
+        assertEquals(DigitPatch4x4UnigramModel.encodePatch(binary, 24, 24), p4[48]);
+
+        // Each feature is computed once and then shared
+        assertSame(ctx.getBinaryImage(), ctx.getBinaryImage());
+        assertSame(rows, ctx.getSequences(rowExtractor));
+        assertSame(ctx.getTransitionIds(rowExtractor), ctx.getTransitionIds(rowExtractor));
+        assertSame(p4, ctx.getPatch4x4Symbols());
+    }
+
+    @Test
+    void testSubclassedExtractorsAreNotShortcut() {
+        ImageFeatureContext ctx = new ImageFeatureContext(new DigitImage(TestImages.randomPixels(new Random(6)), 4));
+        List<int[]> reversed = List.of(new int[] { 3, 2, 1 });
+        RowPatchSequenceExtractor rowExtractor = new RowPatchSequenceExtractor() {
+            @Override
+            public List<int[]> extractSequences(BinaryImage binaryImage) {
+                return reversed;
+            }
+        };
+        PatchSequenceExtractor patchExtractor = new PatchSequenceExtractor() {
+            @Override
+            public int[] extractSequence(BinaryImage binaryImage) {
+                return new int[] { 7 };
+            }
+        };
+
+        assertSame(reversed, ctx.getSequences(rowExtractor));
+        assertArrayEquals(new int[] { 3 * 16 + 2, 2 * 16 + 1 }, ctx.getTransitionIds(rowExtractor));
+        assertArrayEquals(new int[] { 7 }, ctx.getSequence(patchExtractor));
+    }
+}
@@ -0,0 +1,255 @@
+package com.markovai.server.ai;
+
+import com.markovai.server.ai.hierarchy.Patch4x4Node;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MarkovFieldDigitClassifierTest {
+
+    @Test
+    void testParallelFrozenEvaluationMatchesSequential() {
+        List<DigitImage> train = TestImages.bandedImages(500, 1, 10);
+        List<DigitImage> test = TestImages.bandedImages(1100, 2, 10);
+
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(train, ForkJoinPool.commonPool());
+        MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(
+                new Patch4x4Node("patch4x4", model, 0.5, Patch4x4FeedbackConfig.disabled()));
+
+        mrf.setEvaluationPool(null);
+        double sequential = mrf.evaluateAccuracy(test, true);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            mrf.setEvaluationPool(pool);
+            assertEquals(sequential, mrf.evaluateAccuracy(test, true), 0.0);
+        } finally {
+            pool.shutdown();
+        }
+
+        int correct = 0;
+        for (DigitImage img : test) {
+            if (mrf.classify(img) == img.label) {
+                correct++;
+            }
+        }
+        assertEquals((double) correct / test.size(), sequential, 0.0);
+    }
+
+    @Test
+    void testMiniBatchFeedbackIsRepeatable() {
+        List<DigitImage> train = TestImages.bandedImages(400, 3, 10);
+        List<DigitImage> adapt = TestImages.bandedImages(300, 4, 10);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(train, ForkJoinPool.commonPool());
+
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = false;
+        cfg.frequencyScalingEnabled = true;
+        cfg.applyDecayEveryNUpdates = 2000;
+        cfg.miniBatchSize = 32;
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Patch4x4Node first = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+            MarkovFieldDigitClassifier firstMrf = new MarkovFieldDigitClassifier(first);
+            firstMrf.setEvaluationPool(pool);
+            double firstAccuracy = firstMrf.evaluateAccuracy(adapt, false);
+
+            Patch4x4Node second = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+            MarkovFieldDigitClassifier secondMrf = new MarkovFieldDigitClassifier(second);
+            secondMrf.setEvaluationPool(pool);
+            assertEquals(firstAccuracy, secondMrf.evaluateAccuracy(adapt, false), 0.0);
+            assertEquals(first.snapshot().getUpdatesCounter(), second.snapshot().getUpdatesCounter());
+            assertEquals(adapt.size() * 49L, first.snapshot().getUpdatesCounter());
+
+            Patch4x4Node untouched = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+            boolean learned = false;
+            for (DigitImage img : train.subList(0, 50)) {
+                ImageFeatureContext ctx = new ImageFeatureContext(img);
+                double[] scores = first.computeForImage(ctx, null).logLikelihoodsPerDigit;
+                assertArrayEquals(scores, second.computeForImage(ctx, null).logLikelihoodsPerDigit, 0.0);
+                learned |= !Arrays.equals(scores, untouched.computeForImage(ctx, null).logLikelihoodsPerDigit);
+            }
+            assertTrue(learned);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testMiniBatchFeedbackIgnoresPoolParallelism() throws IOException {
+        List<DigitImage> train = TestImages.bandedImages(300, 11, 10);
+        List<DigitImage> adapt = TestImages.bandedImages(300, 12, 10);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(train, ForkJoinPool.commonPool());
+
+        // Margin-scaled updates, so the merged sums depend on addition order
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = true;
+        cfg.marginTarget = 0.5;
+        cfg.frequencyScalingEnabled = true;
+        cfg.miniBatchSize = 64;
+
+        // Differences this small vanish from the scores, so compare the state
+        Path dir = Files.createTempDirectory("minibatch");
+        List<Path> states = new ArrayList<>();
+        for (int parallelism : new int[] { 0, 2, 3, 7 }) {
+            Patch4x4Node node = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+            MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(node);
+            ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+            try {
+                mrf.setEvaluationPool(pool);
+                mrf.evaluateAccuracy(adapt, false);
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+            Path state = dir.resolve("patch4x4-" + parallelism + ".state");
+            node.saveFeedbackState(state);
+            states.add(state);
+        }
+        for (Path state : states.subList(1, states.size())) {
+            assertEquals(-1L, Files.mismatch(states.get(0), state), state.getFileName().toString());
+        }
+    }
+
+    @Test
+    void testMiniBatchDecaysAsOftenAsSerial() {
+        // A batch of 32 images (1568 key updates) crosses many multiples of N
+        assertMiniBatchDecaysAsSerial(100, 200 * 49L / 100);
+    }
+
+    @Test
+    void testMiniBatchDecaysOncePerImageBelowImageSize() {
+        // Every image's 49 updates cross a multiple of 20, some cross two;
+        // serial learning still decays once per image
+        assertMiniBatchDecaysAsSerial(20, 200);
+    }
+
+    private static void assertMiniBatchDecaysAsSerial(int everyNUpdates, long expectedDecays) {
+        List<DigitImage> train = TestImages.bandedImages(200, 7, 10);
+        List<DigitImage> adapt = TestImages.bandedImages(200, 8, 10);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(train, ForkJoinPool.commonPool());
+
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = false;
+        cfg.applyDecayEveryNUpdates = everyNUpdates;
+
+        Patch4x4Node serial = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+        MarkovFieldDigitClassifier serialMrf = new MarkovFieldDigitClassifier(serial);
+        serialMrf.setEvaluationPool(null);
+        serialMrf.evaluateAccuracy(adapt, false);
+
+        cfg.miniBatchSize = 32;
+        Patch4x4Node batched = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+        MarkovFieldDigitClassifier batchedMrf = new MarkovFieldDigitClassifier(batched);
+        batchedMrf.setEvaluationPool(null);
+        batchedMrf.evaluateAccuracy(adapt, false);
+
+        long decays = serial.snapshotFeedbackMetrics().getDecayEvents();
+        assertEquals(expectedDecays, decays);
+        assertEquals(decays, batched.snapshotFeedbackMetrics().getDecayEvents());
+        assertEquals(serial.snapshot().getUpdatesCounter(), batched.snapshot().getUpdatesCounter());
+    }
+
+    @Test
+    void testDataParallelFeedbackIsRepeatable() {
+        List<DigitImage> train = TestImages.bandedImages(400, 5, 10);
+        List<DigitImage> adapt = TestImages.bandedImages(300, 6, 10);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(train, ForkJoinPool.commonPool());
+
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = false;
+        cfg.frequencyScalingEnabled = true;
+        cfg.applyDecayEveryNUpdates = 2000;
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Patch4x4Node first = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+            MarkovFieldDigitClassifier firstMrf = new MarkovFieldDigitClassifier(first);
+            firstMrf.setEvaluationPool(pool);
+            // Learning on the test set is refused in parallel mode too
+            assertThrows(IllegalStateException.class,
+                    () -> firstMrf.evaluateAccuracyDataParallel(adapt, true, workers(model, 3), 40));
+            double firstAccuracy = firstMrf.evaluateAccuracyDataParallel(adapt, false, workers(model, 3), 40);
+
+            // Sequential rounds give the same result as pooled ones
+            Patch4x4Node second = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+            MarkovFieldDigitClassifier secondMrf = new MarkovFieldDigitClassifier(second);
+            secondMrf.setEvaluationPool(null);
+            assertEquals(firstAccuracy, secondMrf.evaluateAccuracyDataParallel(adapt, false, workers(model, 3), 40),
+                    0.0);
+            // Every worker's counts survive the averaging
+            assertEquals(adapt.size() * 49L, first.snapshot().getUpdatesCounter());
+            assertEquals(first.snapshot().getUpdatesCounter(), second.snapshot().getUpdatesCounter());
+
+            Patch4x4Node untouched = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+            boolean learned = false;
+            for (DigitImage img : train.subList(0, 50)) {
+                ImageFeatureContext ctx = new ImageFeatureContext(img);
+                double[] scores = first.computeForImage(ctx, null).logLikelihoodsPerDigit;
+                assertArrayEquals(scores, second.computeForImage(ctx, null).logLikelihoodsPerDigit, 0.0);
+                learned |= !Arrays.equals(scores, untouched.computeForImage(ctx, null).logLikelihoodsPerDigit);
+            }
+            assertTrue(learned);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testPrefixContinuationMatchesOnePass() {
+        List<DigitImage> train = TestImages.bandedImages(300, 9, 10);
+        List<DigitImage> adapt = TestImages.bandedImages(256, 10, 10);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(train, ForkJoinPool.commonPool());
+
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = false;
+        cfg.applyDecayEachEpoch = true;
+        cfg.decayRate = 0.1;
+        cfg.applyDecayEveryNUpdates = 1000;
+
+        Patch4x4Node onePass = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+        new MarkovFieldDigitClassifier(onePass).evaluateAccuracy(adapt, false);
+
+        // The epoch decay is applied once, before the prefix
+        Patch4x4Node node = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+        MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(node);
+        MarkovFieldDigitClassifier.FeedbackState initial = mrf.snapshotFeedback();
+        mrf.evaluateAccuracy(adapt.subList(0, 96), false);
+        MarkovFieldDigitClassifier.FeedbackState prefix = mrf.snapshotFeedback();
+        mrf.continueLearning(adapt.subList(96, adapt.size()));
+        TestImages.assertSameScores(onePass, node, train.subList(0, 50));
+
+        // A restored state replays the same continuation, any number of times
+        mrf.restoreFeedback(prefix);
+        mrf.continueLearning(adapt.subList(96, adapt.size()));
+        TestImages.assertSameScores(onePass, node, train.subList(0, 50));
+
+        mrf.restoreFeedback(initial);
+        TestImages.assertSameScores(new Patch4x4Node("patch4x4", model, 0.5, cfg.copy()), node, train.subList(0, 50));
+    }
+
+    private static List<MarkovFieldDigitClassifier> workers(DigitPatch4x4UnigramModel model, int n) {
+        List<MarkovFieldDigitClassifier> workers = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            workers.add(new MarkovFieldDigitClassifier(
+                    new Patch4x4Node("patch4x4", model, 0.5, Patch4x4FeedbackConfig.disabled())));
+        }
+        return workers;
+    }
+}
@@ -0,0 +1,65 @@
+package com.markovai.server.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelTrainingTest {
+
+    @Test
+    void testParallelTrainingIsBitIdenticalToSequential() {
+        List<DigitImage> data = TestImages.randomImages(300, 42);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            RowColumnDigitClassifier sequential = new RowColumnDigitClassifier();
+            sequential.train(data);
+            RowColumnDigitClassifier parallel = new RowColumnDigitClassifier();
+            parallel.trainParallel(data, pool);
+
+            DigitPatch4x4UnigramModel seqPatch = new DigitPatch4x4UnigramModel();
+            for (DigitImage img : data) {
+                seqPatch.trainOnImage(img.label, DigitMarkovModel.binarize(img.pixels, 128));
+            }
+            seqPatch.finalizeProbabilities();
+            DigitPatch4x4UnigramModel parPatch = new DigitPatch4x4UnigramModel();
+            parPatch.trainParallel(data, pool);
+
+            for (int d = 0; d < 10; d++) {
+                for (int prev = 0; prev < 16; prev++) {
+                    for (int next = 0; next < 16; next++) {
+                        assertEquals(sequential.getRowModel().getLogTransitionProbability(d, prev, next),
+                                parallel.getRowModel().getLogTransitionProbability(d, prev, next), 0.0);
+                        assertEquals(sequential.getColumnModel().getLogTransitionProbability(d, prev, next),
+                                parallel.getColumnModel().getLogTransitionProbability(d, prev, next), 0.0);
+                        assertEquals(sequential.getPatchModel().getLogTransitionProbability(d, prev, next),
+                                parallel.getPatchModel().getLogTransitionProbability(d, prev, next), 0.0);
+                    }
+                }
+            }
+
+            for (DigitImage img : TestImages.randomImages(20, 7)) {
+                assertArrayEquals(sequential.classifyWithScores(img).getLogLikelihoods(),
+                        parallel.classifyWithScores(img).getLogLikelihoods(), 0.0);
+                int[][] binary = DigitMarkovModel.binarize(img.pixels, 128);
+                assertArrayEquals(seqPatch.sumLogLikelihoodsForImage(binary),
+                        parPatch.sumLogLikelihoodsForImage(binary), 0.0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testPatchCountsRejectDigitOutOfRange() {
+        Patch4x4CountTable counts = new Patch4x4CountTable();
+        assertThrows(IllegalArgumentException.class, () -> counts.add(10, 7));
+        assertThrows(IllegalArgumentException.class, () -> counts.add(-1, 7));
+        assertEquals(0, counts.getCount(0, 8));
+        counts.add(9, 7);
+        assertEquals(1, counts.getCount(9, 7));
+        assertEquals(1, counts.getTotal(9));
+    }
+}
@@ -0,0 +1,135 @@
+package com.markovai.server.ai;
+
+import com.markovai.server.ai.hierarchy.Patch4x4Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Seeded synthetic 28x28 digit images shared by the tests, plus the feedback
+ * config and score assertions the learning tests have in common. Image i is
+ * labelled {@code i % 10}; the same seed always gives the same images.
+ */
+public final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * Uniform grey-level noise, one {@code nextInt(256)} per pixel in row
+     * order.
+     */
+    public static int[][] randomPixels(Random rnd) {
+        int[][] pixels = new int[28][28];
+        for (int r = 0; r < 28; r++) {
+            for (int c = 0; c < 28; c++) {
+                pixels[r][c] = rnd.nextInt(256);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Images of {@link #randomPixels} noise, without paths.
+     */
+    public static List<DigitImage> randomImages(int n, long seed) {
+        Random rnd = new Random(seed);
+        List<DigitImage> images = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            images.add(new DigitImage(randomPixels(rnd), i % 10));
+        }
+        return images;
+    }
+
+    /**
+     * Like {@link #randomImages(int, long)}, keyed by the relative path
+     * {@code img/<i>.png} and without a hash.
+     */
+    public static List<DigitImage> randomImagesWithPaths(int n, long seed) {
+        Random rnd = new Random(seed);
+        List<DigitImage> images = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            images.add(new DigitImage(randomPixels(rnd), i % 10, "img/" + i + ".png", null));
+        }
+        return images;
+    }
+
+    /**
+     * Black images with each pixel set with probability
+     * {@code 1 / oneIn}.
+     */
+    public static List<DigitImage> sparseImages(int n, long seed, int oneIn) {
+        Random rnd = new Random(seed);
+        List<DigitImage> images = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int[][] pixels = new int[28][28];
+            for (int r = 0; r < 28; r++) {
+                for (int c = 0; c < 28; c++) {
+                    pixels[r][c] = rnd.nextInt(oneIn) == 0 ? 255 : 0;
+                }
+            }
+            images.add(new DigitImage(pixels, i % 10));
+        }
+        return images;
+    }
+
+    /**
+     * Images with a horizontal band whose position depends on the label, so
+     * models have something to learn, plus pixels set with probability
+     * {@code 1 / noiseOneIn} elsewhere.
+     */
+    public static List<DigitImage> bandedImages(int n, long seed, int noiseOneIn) {
+        Random rnd = new Random(seed);
+        List<DigitImage> images = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int label = i % 10;
+            int[][] pixels = new int[28][28];
+            for (int r = 0; r < 28; r++) {
+                for (int c = 0; c < 28; c++) {
+                    boolean band = Math.abs(r - 4 - 2 * label) < 2;
+                    pixels[r][c] = band || rnd.nextInt(noiseOneIn) == 0 ? 255 : 0;
+                }
+            }
+            images.add(new DigitImage(pixels, label));
+        }
+        return images;
+    }
+
+    /**
+     * Feedback config that learns from every image (the other fields keep
+     * their {@link Patch4x4FeedbackConfig#disabled()} values).
+     */
+    public static Patch4x4FeedbackConfig learningConfig() {
+        Patch4x4FeedbackConfig cfg = Patch4x4FeedbackConfig.disabled();
+        cfg.enabled = true;
+        cfg.learningEnabled = true;
+        cfg.updateOnlyIfIncorrect = false;
+        return cfg;
+    }
+
+    /**
+     * Asserts that both nodes score every image identically and have made
+     * the same number of updates.
+     */
+    public static void assertSameScores(Patch4x4Node expected, Patch4x4Node actual, List<DigitImage> images) {
+        for (DigitImage img : images) {
+            ImageFeatureContext ctx = new ImageFeatureContext(img);
+            assertArrayEquals(expected.computeForImage(ctx, null).logLikelihoodsPerDigit,
+                    actual.computeForImage(ctx, null).logLikelihoodsPerDigit, 0.0);
+        }
+        assertEquals(expected.snapshot().getUpdatesCounter(), actual.snapshot().getUpdatesCounter());
+    }
+
+    /**
+     * Asserts that two per-image score arrays are identical.
+     */
+    public static void assertSameScores(double[][] expected, double[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i], 0.0);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import com.markovai.server.ai.ImageFeatureContext;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import com.markovai.server.ai.TestImages;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompiledFactorGraphTest {
+
+    private static class ConstantNode implements DigitFactorNode {
+        private final String id;
+        private final double base;
+        int calls = 0;
+
+        ConstantNode(String id, double base) {
+            this.id = id;
+            this.base = base;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public List<DigitFactorNode> getChildren() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public NodeResult computeForImage(DigitImage img, Map<String, NodeResult> childResults) {
+            calls++;
+            double[] scores = new double[10];
+            for (int d = 0; d < 10; d++) {
+                scores[d] = base - 0.37 * d;
+            }
+            return new NodeResult(scores);
+        }
+    }
+
+    @Test
+    void testPlanMatchesWeightedSumsAndPrunesZeroWeights() {
+        ConstantNode a = new ConstantNode("a", -1.5);
+        ConstantNode b = new ConstantNode("b", -2.25);
+        ConstantNode unused = new ConstantNode("unused", -9.0);
+
+        WeightedSumNode inner = new WeightedSumNode("inner", List.of(a, b), Map.of("a", 0.3, "b", 1.7));
+        WeightedSumNode root = new WeightedSumNode("root", List.of(inner, a, unused),
+                Map.of("inner", 0.9, "a", 0.1, "unused", 0.0));
+
+        CompiledFactorGraph plan = CompiledFactorGraph.compile(root);
+        // a, b, inner, root; "unused" is pruned and "a" is shared
+        assertEquals(4, plan.size());
+        assertSame(root, plan.getRoot());
+
+        DigitImage img = new DigitImage(new int[28][28], 0);
+        double[] first = plan.evaluate(new ImageFeatureContext(img));
+        double[] second = plan.evaluate(new ImageFeatureContext(img));
+
+        double[] expectedInner = inner.computeForImage(img,
+                Map.of("a", a.computeForImage(img, null), "b", b.computeForImage(img, null))).logLikelihoodsPerDigit;
+        double[] expectedRoot = root.computeForImage(img,
+                Map.of("inner", new NodeResult(expectedInner), "a", a.computeForImage(img, null)))
+                .logLikelihoodsPerDigit;
+
+        assertArrayEquals(expectedRoot, first, 0.0);
+        assertArrayEquals(expectedRoot, second, 0.0);
+        assertNotSame(first, second);
+        assertEquals(0, unused.calls);
+    }
+
+    @Test
+    void testBatchEvaluationMatchesPerImage() {
+        List<DigitImage> images = TestImages.randomImages(40, 3);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(images.subList(0, 30), ForkJoinPool.commonPool());
+
+        Patch4x4Node p4 = new Patch4x4Node("patch4x4", model, 0.5, Patch4x4FeedbackConfig.disabled());
+        ConstantNode a = new ConstantNode("a", -1.5);
+        WeightedSumNode root = new WeightedSumNode("root", List.of(p4, a), Map.of("patch4x4", 0.8, "a", 0.2));
+        CompiledFactorGraph plan = CompiledFactorGraph.compile(root);
+
+        List<ImageFeatureContext> batch = new ArrayList<>();
+        for (DigitImage img : images) {
+            batch.add(new ImageFeatureContext(img));
+        }
+        double[][] batchScores = plan.evaluateBatch(batch);
+        for (int i = 0; i < images.size(); i++) {
+            assertArrayEquals(plan.evaluate(new ImageFeatureContext(images.get(i))), batchScores[i], 0.0);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import com.markovai.server.ai.ImageFeatureContext;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import com.markovai.server.ai.TestImages;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentFeedbackTest {
+
+    private static Patch4x4FeedbackConfig learningConfig(boolean concurrent) {
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = false;
+        cfg.maxAdjAbs = 1.0e6;
+        cfg.concurrentUpdates = concurrent;
+        return cfg;
+    }
+
+    @Test
+    void testConcurrentUpdatesLoseNothing() throws Exception {
+        List<DigitImage> images = TestImages.sparseImages(200, 9, 4);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(images, ForkJoinPool.commonPool());
+
+        // Without clamping, scaling or decay the result is a plain sum of
+        // per-image deltas, so any order must give the same table.
+        Patch4x4Node serial = new Patch4x4Node("p", model, 0.5, learningConfig(false));
+        Patch4x4Node concurrent = new Patch4x4Node("p", model, 0.5, learningConfig(true));
+        for (DigitImage img : images) {
+            serial.applyFeedback(new ImageFeatureContext(img), img.label, (img.label + 1) % 10, false, 0.0);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int offset = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = offset; i < images.size(); i += 4) {
+                        DigitImage img = images.get(i);
+                        concurrent.applyFeedback(new ImageFeatureContext(img), img.label, (img.label + 1) % 10,
+                                false, 0.0);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (DigitImage img : images) {
+            ImageFeatureContext ctx = new ImageFeatureContext(img);
+            assertArrayEquals(serial.computeForImage(ctx, null).logLikelihoodsPerDigit,
+                    concurrent.computeForImage(ctx, null).logLikelihoodsPerDigit, 1e-9);
+        }
+    }
+
+    @Test
+    void testDecayCrossings() {
+        assertEquals(0, FeedbackCounts.crossings(48, 48, 100));
+        assertEquals(1, FeedbackCounts.crossings(100, 49, 100));
+        assertEquals(1, FeedbackCounts.crossings(147, 49, 100));
+        assertEquals(3, FeedbackCounts.crossings(700, 300, 100));
+        assertEquals(0, FeedbackCounts.crossings(700, 300, 0));
+    }
+}
@@ -0,0 +1,162 @@
+package com.markovai.server.ai.hierarchy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedbackAdjustmentTableTest {
+
+    @Test
+    void testLazyDecayTracksEagerTable() {
+        Random rnd = new Random(5);
+        FeedbackAdjustmentTable table = new FeedbackAdjustmentTable(10, 256);
+        double[][] eager = new double[10][256];
+        double maxAbs = 0.05;
+
+        for (int step = 0; step < 20000; step++) {
+            int d = rnd.nextInt(10);
+            int k = rnd.nextInt(256);
+            double delta = (rnd.nextDouble() - 0.4) * 0.01;
+            table.addClamped(d, k, delta, maxAbs);
+            eager[d][k] = Math.max(-maxAbs, Math.min(maxAbs, eager[d][k] + delta));
+
+            if (step % 50 == 0) {
+                table.decay(0.97);
+                for (double[] row : eager) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] *= 0.97;
+                    }
+                }
+            }
+        }
+
+        for (int d = 0; d < 10; d++) {
+            for (int k = 0; k < 256; k++) {
+                assertEquals(eager[d][k], table.get(d, k), 1e-12);
+                assertTrue(Math.abs(table.get(d, k)) <= maxAbs);
+            }
+        }
+    }
+
+    @Test
+    void testRenormalizesWhenScaleUnderflows() {
+        FeedbackAdjustmentTable table = new FeedbackAdjustmentTable(2, 4);
+        table.addClamped(1, 3, 2.0, 5.0);
+        table.decay(1.0e-20);
+        table.decay(1.0e-20);
+
+        assertEquals(1.0, table.getScale(), 0.0);
+        assertEquals(2.0e-40, table.get(1, 3), 1e-52);
+
+        table.decay(0.0);
+        assertEquals(0.0, table.get(1, 3), 0.0);
+    }
+
+    @Test
+    void testSparseTableMatchesDenseAcrossPromotion() {
+        Random rnd = new Random(9);
+        int numKeys = 65536;
+        FeedbackAdjustmentTable dense = new FeedbackAdjustmentTable(10, numKeys);
+        FeedbackAdjustmentTable sparse = FeedbackAdjustmentTable.sparse(10, numKeys);
+        FeedbackCounts denseCounts = new FeedbackCounts(numKeys);
+        FeedbackCounts sparseCounts = FeedbackCounts.sparse(numKeys);
+        FeedbackAdjustmentTable.Snapshot snapshot = null;
+
+        int[] keys = new int[2000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rnd.nextInt(numKeys);
+        }
+        for (int step = 0; step < 200000; step++) {
+            // Few keys first, then enough distinct keys to force promotion
+            int key = step < 100000 ? keys[rnd.nextInt(keys.length)] : rnd.nextInt(numKeys);
+            int d = rnd.nextInt(10);
+            double delta = (rnd.nextDouble() - 0.5) * 0.1;
+            dense.addClamped(d, key, delta, 0.2);
+            sparse.addClamped(d, key, delta, 0.2);
+            assertEquals(denseCounts.increment(key), sparseCounts.increment(key));
+
+            if (step % 997 == 0) {
+                dense.decay(0.99);
+                sparse.decay(0.99);
+            }
+            if (step == 50000) {
+                assertTrue(sparse.isSparse());
+                assertTrue(sparseCounts.isSparse());
+                assertTrue(sparse.getPrivatePages() < 30, "pages scale with touched keys");
+                snapshot = sparse.snapshot();
+            }
+        }
+        assertFalse(sparse.isSparse());
+        assertFalse(sparseCounts.isSparse());
+
+        double[] fromDense = new double[10];
+        double[] fromSparse = new double[10];
+        for (int key = 0; key < numKeys; key++) {
+            for (int d = 0; d < 10; d++) {
+                assertEquals(dense.get(d, key), sparse.get(d, key), 0.0);
+            }
+            dense.addScaledTo(key, 0.1, fromDense);
+            sparse.addScaledTo(key, 0.1, fromSparse);
+            assertEquals(denseCounts.get(key), sparseCounts.get(key));
+        }
+        assertArrayEquals(fromDense, fromSparse, 0.0);
+
+        // A sparse snapshot restores into the promoted table
+        FeedbackAdjustmentTable.Snapshot promoted = sparse.snapshot();
+        sparse.restore(snapshot);
+        assertTrue(sparse.isSparse());
+        sparse.restore(promoted);
+        assertEquals(dense.get(4, keys[0]), sparse.get(4, keys[0]), 0.0);
+    }
+
+    @Test
+    void testMeanOfSparseAndDenseSnapshots() {
+        Random rnd = new Random(13);
+        int numKeys = 65536;
+        List<FeedbackAdjustmentTable> tables = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            FeedbackAdjustmentTable table = FeedbackAdjustmentTable.sparse(10, numKeys);
+            for (int step = 0; step < 3000; step++) {
+                table.addClamped(rnd.nextInt(10), rnd.nextInt(500) * 97, (rnd.nextDouble() - 0.5) * 0.1, 0.2);
+            }
+            table.decay(0.9 - 0.1 * t);
+            tables.add(table);
+        }
+
+        FeedbackAdjustmentTable mean = new FeedbackAdjustmentTable(10, numKeys);
+        mean.restore(FeedbackAdjustmentTable.Snapshot.mean(snapshots(tables)));
+        assertTrue(mean.isSparse(), "the union of few touched keys stays sparse");
+        assertMean(tables, mean);
+
+        // Promoted to dense by the first concurrent update
+        tables.get(1).endConcurrentUpdate(tables.get(1).beginConcurrentUpdate());
+        assertFalse(tables.get(1).isSparse());
+        mean.restore(FeedbackAdjustmentTable.Snapshot.mean(snapshots(tables)));
+        assertFalse(mean.isSparse());
+        assertMean(tables, mean);
+    }
+
+    private static List<FeedbackAdjustmentTable.Snapshot> snapshots(List<FeedbackAdjustmentTable> tables) {
+        List<FeedbackAdjustmentTable.Snapshot> snapshots = new ArrayList<>();
+        for (FeedbackAdjustmentTable table : tables) {
+            snapshots.add(table.snapshot());
+        }
+        return snapshots;
+    }
+
+    private static void assertMean(List<FeedbackAdjustmentTable> tables, FeedbackAdjustmentTable mean) {
+        for (int key = 0; key < mean.getNumKeys(); key++) {
+            for (int d = 0; d < 10; d++) {
+                double sum = 0.0;
+                for (FeedbackAdjustmentTable table : tables) {
+                    sum += table.get(d, key);
+                }
+                assertEquals(sum / tables.size(), mean.get(d, key), 0.0);
+            }
+        }
+    }
+}
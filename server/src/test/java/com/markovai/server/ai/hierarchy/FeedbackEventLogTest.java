@@ -0,0 +1,108 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import com.markovai.server.ai.MarkovFieldDigitClassifier;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import com.markovai.server.ai.TestImages;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedbackEventLogTest {
+
+    // Scaled updates and both decays, so replay has to reproduce them all
+    private static Patch4x4FeedbackConfig logConfig() {
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.frequencyScalingEnabled = true;
+        cfg.applyDecayEachEpoch = true;
+        cfg.applyDecayEveryNUpdates = 1000;
+        return cfg;
+    }
+
+    @Test
+    void testReplayRebuildsLearnedState() throws IOException {
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(TestImages.bandedImages(300, 1, 8), ForkJoinPool.commonPool());
+        List<DigitImage> adapt = TestImages.bandedImages(240, 2, 8);
+        Path dir = Files.createTempDirectory("fblog");
+
+        Patch4x4Node live = new Patch4x4Node("patch4x4", model, 0.5, logConfig());
+        MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(live);
+        try (FeedbackEventLog log = FeedbackEventLog.create(dir, 150)) {
+            mrf.setFeedbackEventLog(log);
+            mrf.evaluateAccuracy(adapt.subList(0, 120), false);
+            mrf.evaluateAccuracy(adapt.subList(120, 240), false);
+            assertEquals(242, log.getLastSeq(), "one event per image plus two epoch decays");
+        }
+        assertTrue(FeedbackEventLog.latestSnapshotSeq(dir) > 0, "compacted during the run");
+
+        // A frozen node catches up from the snapshot plus the log tail
+        Patch4x4FeedbackConfig frozen = logConfig();
+        frozen.learningEnabled = false;
+        Patch4x4Node follower = new Patch4x4Node("patch4x4", model, 0.5, frozen);
+        assertEquals(242, FeedbackEventLog.replay(dir, follower, null, null));
+        assertSame(frozen, follower.getFeedbackConfig());
+        TestImages.assertSameScores(live, follower, adapt.subList(0, 40));
+
+        // A torn record is ignored by replay and cut off on reopen
+        Files.write(dir.resolve(FeedbackEventLog.LOG_FILE), new byte[] { 42, 0, 0, 0, 1, 2 },
+                StandardOpenOption.APPEND);
+        Patch4x4Node again = new Patch4x4Node("patch4x4", model, 0.5, frozen);
+        assertEquals(242, FeedbackEventLog.replay(dir, again, null, null));
+        TestImages.assertSameScores(live, again, adapt.subList(0, 40));
+        try (FeedbackEventLog log = FeedbackEventLog.open(dir, 0)) {
+            assertEquals(242, log.getLastSeq());
+        }
+    }
+
+    @Test
+    void testLogsOnlyAppliedFeedback() throws IOException {
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(TestImages.bandedImages(200, 5, 8), ForkJoinPool.commonPool());
+        List<DigitImage> adapt = TestImages.bandedImages(60, 6, 8);
+        Path dir = Files.createTempDirectory("fblog");
+
+        // Learning is set but feedback is off, so nothing is applied
+        Patch4x4FeedbackConfig off = logConfig();
+        off.enabled = false;
+        Patch4x4Node live = new Patch4x4Node("patch4x4", model, 0.5, off);
+        MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(live);
+        try (FeedbackEventLog log = FeedbackEventLog.create(dir, 0)) {
+            mrf.setFeedbackEventLog(log);
+            mrf.evaluateAccuracy(adapt, false);
+            assertEquals(0, log.getLastSeq());
+        }
+        assertEquals(0, live.snapshot().getUpdatesCounter());
+    }
+
+    @Test
+    void testReplaysMiniBatches() throws IOException {
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(TestImages.bandedImages(300, 3, 8), ForkJoinPool.commonPool());
+        List<DigitImage> adapt = TestImages.bandedImages(100, 4, 8);
+        Path dir = Files.createTempDirectory("fblog");
+
+        Patch4x4FeedbackConfig cfg = logConfig();
+        cfg.miniBatchSize = 16;
+        Patch4x4Node live = new Patch4x4Node("patch4x4", model, 0.5, cfg);
+        MarkovFieldDigitClassifier mrf = new MarkovFieldDigitClassifier(live);
+        // Sequential batches sum in image order, like the replay
+        mrf.setEvaluationPool(null);
+        try (FeedbackEventLog log = FeedbackEventLog.create(dir, 0)) {
+            mrf.setFeedbackEventLog(log);
+            mrf.evaluateAccuracy(adapt, false);
+        }
+
+        Patch4x4Node follower = new Patch4x4Node("patch4x4", model, 0.5, cfg.copy());
+        FeedbackEventLog.replay(dir, follower, null, null);
+        TestImages.assertSameScores(live, follower, adapt.subList(0, 40));
+    }
+}
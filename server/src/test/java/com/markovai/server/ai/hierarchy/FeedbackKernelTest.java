@@ -0,0 +1,62 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedbackKernelTest {
+
+    private static double inlineScale(Patch4x4FeedbackConfig cfg, long count) {
+        double scaleFreq = "GLOBAL_LINEAR".equalsIgnoreCase(cfg.frequencyScalingMode) ? 1.0 / (1.0 + count)
+                : 1.0 / Math.sqrt(1.0 + count);
+        if (scaleFreq < cfg.minUpdateScale)
+            scaleFreq = cfg.minUpdateScale;
+        if (scaleFreq > cfg.maxUpdateScale)
+            scaleFreq = cfg.maxUpdateScale;
+        return scaleFreq;
+    }
+
+    @Test
+    void testTableMatchesInlineScale() {
+        for (String mode : new String[] { "GLOBAL_SQRT", "GLOBAL_LINEAR" }) {
+            for (double minScale : new double[] { 0.0, 0.01, 0.3 }) {
+                Patch4x4FeedbackConfig cfg = Patch4x4FeedbackConfig.disabled();
+                cfg.frequencyScalingEnabled = true;
+                cfg.frequencyScalingMode = mode;
+                cfg.minUpdateScale = minScale;
+                cfg.maxUpdateScale = 0.9;
+                FeedbackKernel k = FeedbackKernel.forTransitions(cfg);
+                for (long n = 0; n < 200_000; n += (n < 5000 ? 1 : 997)) {
+                    assertEquals(inlineScale(cfg, n), k.frequencyScale(n), 0.0, mode + " n=" + n);
+                }
+                assertEquals(inlineScale(cfg, Long.MAX_VALUE / 2), k.frequencyScale(Long.MAX_VALUE / 2), 0.0);
+            }
+        }
+    }
+
+    @Test
+    void testFlavours() {
+        Patch4x4FeedbackConfig cfg = Patch4x4FeedbackConfig.disabled();
+        cfg.frequencyScalingEnabled = true;
+        cfg.frequencyScalingMode = "global_linear";
+        assertEquals(FeedbackKernel.FrequencyScaling.GLOBAL_LINEAR, FeedbackKernel.forTransitions(cfg).getScaling());
+        assertEquals(FeedbackKernel.FrequencyScaling.GLOBAL_SQRT, FeedbackKernel.forSymbols(cfg).getScaling());
+
+        // Scaling off: transitions still clamp 1.0, symbols use it as is
+        cfg.frequencyScalingEnabled = false;
+        cfg.maxUpdateScale = 0.5;
+        assertEquals(0.5, FeedbackKernel.forTransitions(cfg).frequencyScale(3), 0.0);
+        assertEquals(1.0, FeedbackKernel.forSymbols(cfg).frequencyScale(3), 0.0);
+    }
+
+    @Test
+    void testRecompilesWhenConfigChanges() {
+        Patch4x4FeedbackConfig cfg = Patch4x4FeedbackConfig.disabled();
+        FeedbackKernel k = FeedbackKernel.forSymbols(cfg);
+        assertTrue(k.matches(cfg));
+        cfg.eta = cfg.eta * 2;
+        assertFalse(k.matches(cfg));
+        assertFalse(k.matches(cfg.copy()));
+    }
+}
@@ -0,0 +1,53 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedbackMetricsTest {
+
+    @Test
+    void testCountsGatingUpdatesDecayAndSaturation() {
+        Patch4x4FeedbackConfig cfg = Patch4x4FeedbackConfig.disabled();
+        cfg.enabled = true;
+        cfg.learningEnabled = true;
+        cfg.updateOnlyIfIncorrect = true;
+        cfg.useMarginGating = true;
+        cfg.marginTarget = 0.5;
+        cfg.frequencyScalingEnabled = false;
+        cfg.eta = 1.0;
+        cfg.maxAdjAbs = 0.01;
+        cfg.applyDecayEveryNUpdates = 4;
+        cfg.decayRate = 0.0;
+        Patch4x4Node node = new Patch4x4Node("patch4x4", new DigitPatch4x4UnigramModel(), 0.5, cfg);
+        int[] symbols = { 1, 2 };
+
+        node.applyFeedback(symbols, 3, 5, true, 0.0);
+        node.applyFeedback(symbols, 3, 5, false, 0.9);
+        for (int i = 0; i < 3; i++) {
+            node.applyFeedback(symbols, 3, 5, false, 0.0);
+        }
+
+        FeedbackMetrics.Snapshot m = node.snapshotFeedbackMetrics();
+        assertEquals("patch4x4", m.getNodeId());
+        assertEquals(1, m.getImagesGatedByCorrectness());
+        assertEquals(1, m.getImagesGatedByMargin());
+        assertEquals(3, m.getImagesUpdated());
+        assertEquals(6, m.getKeyUpdates());
+        assertEquals(6, m.getUpdatesCounter());
+        assertEquals(1, m.getDecayEvents());
+        assertEquals(5, m.getFeedbackCalls());
+        assertEquals(5, m.getFeedbackLatencyNanos().values().stream().mapToLong(Long::longValue).sum());
+        // Keys 1 and 2, digits 3 and 5, all clamped
+        assertEquals(4, m.getAdjNonZeroEntries());
+        assertEquals(1.0, m.getAdjSaturatedFraction(), 0.0);
+
+        node.getFeedbackMetrics().reset();
+        m = node.snapshotFeedbackMetrics();
+        assertEquals(0, m.getFeedbackCalls());
+        assertEquals(0, m.getKeyUpdates());
+        assertEquals(6, m.getUpdatesCounter());
+    }
+}
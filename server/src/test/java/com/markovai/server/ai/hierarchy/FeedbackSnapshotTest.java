@@ -0,0 +1,98 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import com.markovai.server.ai.ImageFeatureContext;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import com.markovai.server.ai.TestImages;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedbackSnapshotTest {
+
+    private static double[][] scores(Patch4x4Node node, List<DigitImage> images) {
+        double[][] out = new double[images.size()][];
+        for (int i = 0; i < images.size(); i++) {
+            out[i] = node.computeForImage(new ImageFeatureContext(images.get(i)), null).logLikelihoodsPerDigit;
+        }
+        return out;
+    }
+
+    private static void adapt(Patch4x4Node node, List<DigitImage> images) {
+        for (DigitImage img : images) {
+            node.applyFeedback(new ImageFeatureContext(img), img.label, (img.label + 3) % 10, false, 0.0);
+        }
+    }
+
+    @Test
+    void testBranchesFromSnapshot() {
+        List<DigitImage> images = TestImages.sparseImages(120, 21, 3);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(images, ForkJoinPool.commonPool());
+
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = false;
+        cfg.frequencyScalingEnabled = true;
+        cfg.applyDecayEveryNUpdates = 500;
+        Patch4x4Node node = new Patch4x4Node("p", model, 0.5, cfg);
+
+        List<DigitImage> prefix = images.subList(0, 40);
+        List<DigitImage> rest = images.subList(40, 120);
+
+        adapt(node, prefix);
+        FeedbackSnapshot common = node.snapshot();
+        double[][] atSnapshot = scores(node, images);
+        assertEquals(40L * 49, common.getUpdatesCounter());
+
+        adapt(node, rest);
+        double[][] branchA = scores(node, images);
+
+        // Restore and replay the same branch: identical, counts and decay included
+        node.restore(common);
+        TestImages.assertSameScores(atSnapshot, scores(node, images));
+        adapt(node, rest);
+        TestImages.assertSameScores(branchA, scores(node, images));
+
+        // A second, reset node replaying everything agrees with the branch
+        Patch4x4Node replay = new Patch4x4Node("p", model, 0.5, cfg);
+        adapt(replay, images);
+        TestImages.assertSameScores(branchA, scores(replay, images));
+
+        // The snapshot itself was never modified by the branches
+        node.resetFeedbackState();
+        node.restore(common);
+        TestImages.assertSameScores(atSnapshot, scores(node, images));
+    }
+
+    @Test
+    void testRejectsSnapshotOfOtherNodeType() {
+        FeedbackAdjustmentTable table = new FeedbackAdjustmentTable(10, 256);
+        FeedbackSnapshot snapshot = new FeedbackSnapshot(RowMarkovNode.class, table.snapshot(),
+                new FeedbackCounts(256).snapshot());
+        Patch4x4Node node = new Patch4x4Node("p", new DigitPatch4x4UnigramModel(), 0.0,
+                Patch4x4FeedbackConfig.disabled());
+        assertThrows(IllegalArgumentException.class, () -> node.restore(snapshot));
+    }
+
+    @Test
+    void testSnapshotCopiesOnlyTouchedPages() {
+        FeedbackAdjustmentTable table = new FeedbackAdjustmentTable(10, 65536);
+        table.addClamped(3, 17, 0.5, 5.0);
+        assertEquals(1, table.getPrivatePages());
+
+        FeedbackAdjustmentTable.Snapshot snapshot = table.snapshot();
+        assertEquals(0, table.getPrivatePages());
+        table.addClamped(3, 18, 0.25, 5.0);
+        table.addClamped(7, 40000, -0.25, 5.0);
+        assertEquals(2, table.getPrivatePages());
+
+        table.restore(snapshot);
+        assertEquals(0.5, table.get(3, 17), 0.0);
+        assertEquals(0.0, table.get(3, 18), 0.0);
+        assertEquals(0.0, table.get(7, 40000), 0.0);
+    }
+}
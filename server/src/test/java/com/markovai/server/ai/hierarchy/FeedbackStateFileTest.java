@@ -0,0 +1,73 @@
+package com.markovai.server.ai.hierarchy;
+
+import com.markovai.server.ai.DigitImage;
+import com.markovai.server.ai.DigitPatch4x4UnigramModel;
+import com.markovai.server.ai.ImageFeatureContext;
+import com.markovai.server.ai.Patch4x4FeedbackConfig;
+import com.markovai.server.ai.TestImages;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedbackStateFileTest {
+
+    @Test
+    void testRoundTripRestoresLearnedState() throws IOException {
+        List<DigitImage> images = TestImages.sparseImages(80, 17, 3);
+        DigitPatch4x4UnigramModel model = new DigitPatch4x4UnigramModel();
+        model.trainParallel(images, ForkJoinPool.commonPool());
+
+        Patch4x4FeedbackConfig cfg = TestImages.learningConfig();
+        cfg.useMarginGating = false;
+        cfg.frequencyScalingEnabled = true;
+        cfg.applyDecayEveryNUpdates = 300;
+
+        Patch4x4Node node = new Patch4x4Node("patch4x4", model, 0.5, cfg);
+        for (DigitImage img : images) {
+            node.applyFeedback(new ImageFeatureContext(img), img.label, (img.label + 1) % 10, false, 0.0);
+        }
+
+        Path dir = Files.createTempDirectory("fbstate");
+        Path file = dir.resolve("patch4x4" + FeedbackStateFile.EXTENSION);
+        node.saveFeedbackState(file);
+        node.saveFeedbackState(file); // overwrite in place
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count(), "no temporary file left behind");
+        }
+
+        // A frozen node with the same learning parameters picks the state up
+        Patch4x4FeedbackConfig frozen = cfg.copy();
+        frozen.learningEnabled = false;
+        Patch4x4Node restored = new Patch4x4Node("patch4x4", model, 0.5, frozen);
+        restored.loadFeedbackState(file);
+        for (DigitImage img : images) {
+            ImageFeatureContext ctx = new ImageFeatureContext(img);
+            assertArrayEquals(node.computeForImage(ctx, null).logLikelihoodsPerDigit,
+                    restored.computeForImage(ctx, null).logLikelihoodsPerDigit, 0.0);
+        }
+        assertEquals(node.snapshot().getUpdatesCounter(), restored.snapshot().getUpdatesCounter());
+
+        // Learning further from the restored state matches the original
+        node.applyFeedback(new ImageFeatureContext(images.get(0)), 3, 4, false, 0.0);
+        Patch4x4FeedbackConfig resumed = cfg.copy();
+        restored.setFeedbackConfig(resumed);
+        restored.applyFeedback(new ImageFeatureContext(images.get(0)), 3, 4, false, 0.0);
+        ImageFeatureContext ctx = new ImageFeatureContext(images.get(5));
+        assertArrayEquals(node.computeForImage(ctx, null).logLikelihoodsPerDigit,
+                restored.computeForImage(ctx, null).logLikelihoodsPerDigit, 0.0);
+
+        Patch4x4FeedbackConfig other = cfg.copy();
+        other.eta = cfg.eta * 2;
+        Patch4x4Node mismatched = new Patch4x4Node("patch4x4", model, 0.5, other);
+        assertThrows(IOException.class, () -> mismatched.loadFeedbackState(file));
+
+        Files.write(file, new byte[] { 1, 2, 3 });
+        assertThrows(IOException.class, () -> restored.loadFeedbackState(file));
+    }
+}
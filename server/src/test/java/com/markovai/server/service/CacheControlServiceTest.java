@@ -0,0 +1,141 @@
+package com.markovai.server.service;
+
+import com.markovai.db.DigitImage;
+import com.markovai.db.DigitImageDao;
+import com.markovai.db.MarkovChainResultDao;
+import com.markovai.db.SqliteConnectionProvider;
+import com.markovai.server.ai.CachedMarkovChainEvaluator;
+import com.markovai.server.ai.ImageFeatureContext;
+import com.markovai.server.ai.MarkovChainEvaluator;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheControlServiceTest {
+
+    @Test
+    void testClearedScoresAreRecomputed() {
+        InMemoryImageDao imageDao = new InMemoryImageDao();
+        InMemoryResultDao resultDao = new InMemoryResultDao();
+        MarkovTrainingService trainingService = new MarkovTrainingService();
+        CacheControlService control = new CacheControlService(imageDao, resultDao, () -> null, trainingService);
+
+        CountingEvaluator rowChain = new CountingEvaluator("row");
+        CountingEvaluator colChain = new CountingEvaluator("column");
+        CachedMarkovChainEvaluator row = cached(rowChain, imageDao, resultDao, trainingService);
+        CachedMarkovChainEvaluator col = cached(colChain, imageDao, resultDao, trainingService);
+        ImageFeatureContext a = context("img/a.png");
+        ImageFeatureContext b = context("img/b.png");
+
+        for (int pass = 0; pass < 2; pass++) {
+            row.evaluate(a);
+            row.evaluate(b);
+            col.evaluate(a);
+        }
+        assertEquals(2, rowChain.computed);
+        assertEquals(1, colChain.computed);
+
+        // Neither SQLite nor the L1 may still serve the cleared chain
+        control.clearChain("row", "v1");
+        row.evaluate(a);
+        row.evaluate(b);
+        col.evaluate(a);
+        assertEquals(4, rowChain.computed);
+        assertEquals(1, colChain.computed);
+
+        control.clearImage("img/a.png");
+        row.evaluate(a);
+        row.evaluate(b);
+        col.evaluate(a);
+        assertEquals(5, rowChain.computed);
+        assertEquals(2, colChain.computed);
+    }
+
+    private static CachedMarkovChainEvaluator cached(MarkovChainEvaluator chain, DigitImageDao imageDao,
+            MarkovChainResultDao resultDao, MarkovTrainingService trainingService) {
+        CachedMarkovChainEvaluator cached = new CachedMarkovChainEvaluator(chain, imageDao, resultDao);
+        cached.setScoreCache(trainingService.getScoreCache());
+        return cached;
+    }
+
+    private static ImageFeatureContext context(String path) {
+        return new ImageFeatureContext(new com.markovai.server.ai.DigitImage(new int[28][28], 0, path, null));
+    }
+
+    private static final class CountingEvaluator implements MarkovChainEvaluator {
+        private final String type;
+        int computed;
+
+        CountingEvaluator(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public String getChainType() {
+            return type;
+        }
+
+        @Override
+        public String getChainVersion() {
+            return "v1";
+        }
+
+        @Override
+        public synchronized double[] computeScores(byte[] binary28x28) {
+            computed++;
+            return new double[10];
+        }
+    }
+
+    // Stand in for the SQLite tables
+    private static final class InMemoryImageDao extends DigitImageDao {
+        final Map<String, DigitImage> byPath = new HashMap<>();
+
+        InMemoryImageDao() {
+            super(new SqliteConnectionProvider("unused.db"));
+        }
+
+        @Override
+        public DigitImage getOrCreateByPath(String imageRelPath, String imageHashOrNull) {
+            return byPath.computeIfAbsent(imageRelPath,
+                    p -> new DigitImage(byPath.size() + 1, p, imageHashOrNull, 0L));
+        }
+
+        @Override
+        public Optional<DigitImage> findByPath(String imageRelPath) {
+            return Optional.ofNullable(byPath.get(imageRelPath));
+        }
+    }
+
+    private static final class InMemoryResultDao extends MarkovChainResultDao {
+        final Map<String, double[]> rows = new HashMap<>();
+
+        InMemoryResultDao() {
+            super(new SqliteConnectionProvider("unused.db"));
+        }
+
+        @Override
+        public Optional<double[]> loadScores(long imageId, String chainType, String chainVersion) {
+            return Optional.ofNullable(rows.get(imageId + "/" + chainType + "/" + chainVersion));
+        }
+
+        @Override
+        public void upsertScores(long imageId, String chainType, String chainVersion, double[] scores) {
+            rows.put(imageId + "/" + chainType + "/" + chainVersion, scores.clone());
+        }
+
+        @Override
+        public void deleteByChain(String chainType, String chainVersion) {
+            rows.keySet().removeIf(key -> key.endsWith("/" + chainType + "/" + chainVersion));
+        }
+
+        @Override
+        public void deleteByImage(long imageId) {
+            rows.keySet().removeIf(key -> key.startsWith(imageId + "/"));
+        }
+    }
+}
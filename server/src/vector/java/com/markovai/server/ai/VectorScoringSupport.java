@@ -0,0 +1,160 @@
+package com.markovai.server.ai;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.List;
+
+/**
+ * Vector API path of {@code DigitMajorScoringKernel}. Only loaded when the
+ * {@code jdk.incubator.vector} module is present at runtime.
+ *
+ * Lives in the {@code vector} source set, the only one compiled against the
+ * incubating module, and so cannot see the main classes.
+ */
+final class VectorScoringSupport {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int NUM_DIGITS = 10;
+    // DigitMajorScoringKernel.LANES: padded digits per table row
+    private static final int LANES = 16;
+
+    private VectorScoringSupport() {
+    }
+
+    static int laneCount() {
+        return SPECIES.length();
+    }
+
+    /**
+     * Per-digit score of one sequence (with a valid first state) into
+     * {@code out[0..9]}.
+     */
+    static void scoreInto(double[] logInitial, double[] logTransition, int numStates, int[] seq, double[] out) {
+        final int width = SPECIES.length();
+        if (width == 8) {
+            scoreTwoChunks(logInitial, logTransition, numStates, List.of(seq), false, out);
+            return;
+        }
+        if (width == 4) {
+            scoreThreeChunks(logInitial, logTransition, numStates, List.of(seq), false, out);
+            return;
+        }
+        // One pass over the sequence per vector chunk; the sequence stays in L1.
+        // Chunks holding only padding lanes are skipped.
+        for (int k = 0; k < NUM_DIGITS; k += width) {
+            score(logInitial, logTransition, numStates, seq, k).intoArray(out, k);
+        }
+    }
+
+    /**
+     * Sums the per-digit scores of all {@code sequences} into
+     * {@code out[0..9]} without leaving vector registers between sequences;
+     * a sequence with an invalid first state contributes -Infinity, as in
+     * the scalar path.
+     */
+    static void scoreSequencesInto(double[] logInitial, double[] logTransition, int numStates,
+            List<int[]> sequences, double[] out) {
+        final int width = SPECIES.length();
+        if (width == 8) {
+            scoreTwoChunks(logInitial, logTransition, numStates, sequences, true, out);
+            return;
+        }
+        if (width == 4) {
+            scoreThreeChunks(logInitial, logTransition, numStates, sequences, true, out);
+            return;
+        }
+        for (int k = 0; k < NUM_DIGITS; k += width) {
+            DoubleVector total = DoubleVector.zero(SPECIES);
+            for (int[] seq : sequences) {
+                total = total.add(seq[0] >= 0 && seq[0] < numStates
+                        ? score(logInitial, logTransition, numStates, seq, k)
+                        : DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY));
+            }
+            total.intoArray(out, k);
+        }
+    }
+
+    // 8 lanes (e.g. AVX-512): both chunks accumulate in one walk of each
+    // sequence. Without sum, the last sequence's scores are written as is
+    // (no 0.0 + x), matching DigitMarkovModel.logLikelihood.
+    private static void scoreTwoChunks(double[] logInitial, double[] logTransition, int numStates,
+            List<int[]> sequences, boolean sum, double[] out) {
+        DoubleVector total0 = DoubleVector.zero(SPECIES);
+        DoubleVector total1 = DoubleVector.zero(SPECIES);
+        for (int[] seq : sequences) {
+            int s0 = seq[0];
+            if (s0 < 0 || s0 >= numStates) {
+                total0 = total0.add(Double.NEGATIVE_INFINITY);
+                total1 = total1.add(Double.NEGATIVE_INFINITY);
+                continue;
+            }
+            DoubleVector acc0 = DoubleVector.fromArray(SPECIES, logInitial, s0 * LANES);
+            DoubleVector acc1 = DoubleVector.fromArray(SPECIES, logInitial, s0 * LANES + 8);
+            int prev = s0;
+            for (int t = 1; t < seq.length; t++) {
+                int cur = seq[t];
+                if (prev >= 0 && prev < numStates && cur >= 0 && cur < numStates) {
+                    int row = (prev * numStates + cur) * LANES;
+                    acc0 = acc0.add(DoubleVector.fromArray(SPECIES, logTransition, row));
+                    acc1 = acc1.add(DoubleVector.fromArray(SPECIES, logTransition, row + 8));
+                }
+                prev = cur;
+            }
+            total0 = sum ? total0.add(acc0) : acc0;
+            total1 = sum ? total1.add(acc1) : acc1;
+        }
+        total0.intoArray(out, 0);
+        total1.intoArray(out, 8);
+    }
+
+    // 4 lanes (e.g. AVX2): lanes 0..11 in one walk of each sequence
+    private static void scoreThreeChunks(double[] logInitial, double[] logTransition, int numStates,
+            List<int[]> sequences, boolean sum, double[] out) {
+        DoubleVector total0 = DoubleVector.zero(SPECIES);
+        DoubleVector total1 = DoubleVector.zero(SPECIES);
+        DoubleVector total2 = DoubleVector.zero(SPECIES);
+        for (int[] seq : sequences) {
+            int s0 = seq[0];
+            if (s0 < 0 || s0 >= numStates) {
+                total0 = total0.add(Double.NEGATIVE_INFINITY);
+                total1 = total1.add(Double.NEGATIVE_INFINITY);
+                total2 = total2.add(Double.NEGATIVE_INFINITY);
+                continue;
+            }
+            DoubleVector acc0 = DoubleVector.fromArray(SPECIES, logInitial, s0 * LANES);
+            DoubleVector acc1 = DoubleVector.fromArray(SPECIES, logInitial, s0 * LANES + 4);
+            DoubleVector acc2 = DoubleVector.fromArray(SPECIES, logInitial, s0 * LANES + 8);
+            int prev = s0;
+            for (int t = 1; t < seq.length; t++) {
+                int cur = seq[t];
+                if (prev >= 0 && prev < numStates && cur >= 0 && cur < numStates) {
+                    int row = (prev * numStates + cur) * LANES;
+                    acc0 = acc0.add(DoubleVector.fromArray(SPECIES, logTransition, row));
+                    acc1 = acc1.add(DoubleVector.fromArray(SPECIES, logTransition, row + 4));
+                    acc2 = acc2.add(DoubleVector.fromArray(SPECIES, logTransition, row + 8));
+                }
+                prev = cur;
+            }
+            total0 = sum ? total0.add(acc0) : acc0;
+            total1 = sum ? total1.add(acc1) : acc1;
+            total2 = sum ? total2.add(acc2) : acc2;
+        }
+        total0.intoArray(out, 0);
+        total1.intoArray(out, 4);
+        total2.intoArray(out, 8);
+    }
+
+    private static DoubleVector score(double[] logInitial, double[] logTransition, int numStates, int[] seq,
+            int k) {
+        DoubleVector acc = DoubleVector.fromArray(SPECIES, logInitial, seq[0] * LANES + k);
+        for (int t = 1; t < seq.length; t++) {
+            int prev = seq[t - 1];
+            int cur = seq[t];
+            if (prev >= 0 && prev < numStates && cur >= 0 && cur < numStates) {
+                acc = acc.add(DoubleVector.fromArray(SPECIES, logTransition, (prev * numStates + cur) * LANES + k));
+            }
+        }
+        return acc;
+    }
+}